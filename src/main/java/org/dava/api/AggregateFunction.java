@@ -0,0 +1,15 @@
+package org.dava.api;
+
+/**
+ * Aggregates that can be computed by the database, see {@link Repository#aggregate(AggregateFunction, String)}.
+ *
+ * <p> COUNT counts rows with a value in the column (or every row with no column). The rest are only for
+ * numeric columns.
+ */
+public enum AggregateFunction {
+    COUNT,
+    SUM,
+    MIN,
+    MAX,
+    AVG
+}
@@ -1,11 +1,16 @@
 package org.dava.api;
 
+import org.dava.api.annotations.Column;
 import org.dava.api.annotations.Query;
 import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.AggregateService;
+import org.dava.core.database.service.BulkLoader;
+import org.dava.core.database.service.Compactor;
 import org.dava.core.database.service.MarshallingService;
 import org.dava.core.database.service.caching.Cache;
+import org.dava.core.database.service.caching.CacheKey;
 import org.dava.core.database.service.operations.Delete;
-import org.dava.core.database.service.operations.Insert;
+import org.dava.core.database.service.operations.PartitionedInsert;
 import org.dava.core.database.service.operations.common.Batch;
 import org.dava.core.database.service.structure.Database;
 import org.dava.core.database.service.structure.Row;
@@ -19,12 +24,18 @@ import org.dava.core.sql.parsing.SqlService;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 
@@ -37,14 +48,42 @@ public class Repository<T, ID> {
     private Database database;
     private Table<T> table;
     private Cache cache;
+    private boolean cacheObjects;
     private String tableName;
 
 
 
+    /**
+     * Makes a repository for the table class given as 'T' when extending this class
+     */
     public Repository (Database database){
+        this(database, null);
+    }
+
+    /**
+     * Makes a repository for the table class. Use this if 'T' isn't given when extending this class.
+     */
+    public Repository (Database database, Class<T> tableClass){
         this.database = database;
-        this.tableName = this.getClass().getTypeParameters()[0].getClass().getName();
+        Class<T> resolvedClass = (tableClass == null)? resolveTableClass() : tableClass;
+        org.dava.api.annotations.Table annotation = resolvedClass.getAnnotation(org.dava.api.annotations.Table.class);
+        this.tableName = (annotation == null || annotation.name().isEmpty())? resolvedClass.getSimpleName() : annotation.name();
         this.table = safeCastParameterized(database.getTableByName(this.tableName), Table.class);
+
+        // shared by every repository of the database, so saves can invalidate the tables of nested objects
+        this.cache = database.getQueryCache();
+        this.cacheObjects = database.isCachingObjects();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<T> resolveTableClass() {
+        Type superclass = this.getClass().getGenericSuperclass();
+        if (superclass instanceof ParameterizedType parameterizedType
+            && parameterizedType.getActualTypeArguments()[0] instanceof Class<?> tableClass) {
+            return (Class<T>) tableClass;
+        }
+        throw new DavaException(REPOSITORY_ERROR, "Couldn't find the table class of repository: " + this.getClass().getName() +
+                                    ". Extend Repository<T, ID> with the table class, or pass it to the constructor", null);
     }
 
 
@@ -56,16 +95,15 @@ public class Repository<T, ID> {
      * @return returns the record or null if not found
      */
     public T findById(ID primaryKey) {
-        return cache.get(this.tableName, Cache.hash("findById", primaryKey), () -> {
+        return findCached(CacheKey.of("findById", primaryKey), null, () -> {
             String columnName = MarshallingService.getPrimaryKeyField(table.getTableClass()).getName();
         
             Equals equals = new Equals(columnName, primaryKey.toString());
             
-            return equals.retrieve(table, List.of(), null, null).stream()
-                .map(row -> MarshallingService.parseObject(row, table.getTableClass()))
-                .findFirst()
-                .orElse(null);
-        });
+            return equals.retrieve(table, List.of(), null, null);
+        }).stream()
+            .findFirst()
+            .orElse(null);
     }
 
     /**
@@ -74,8 +112,8 @@ public class Repository<T, ID> {
      * @param primaryKeys
      * @return returns all records found
      */
-    public T findAllById(List<ID> primaryKeys) {
-        return cache.get(this.tableName, Cache.hash("findById", Cache.hashList(primaryKeys)), () -> {
+    public List<T> findAllById(List<ID> primaryKeys) {
+        return findCached(CacheKey.of("findAllById", List.copyOf(primaryKeys)), null, () -> {
             String columnName = MarshallingService.getPrimaryKeyField(table.getTableClass()).getName();
 
             In in = new In(
@@ -85,10 +123,7 @@ public class Repository<T, ID> {
                 columnName
             );
         
-            return in.retrieve(table, List.of(), null, null).stream()
-                .map(row -> MarshallingService.parseObject(row, table.getTableClass()))
-                .findFirst()
-                .orElse(null);
+            return in.retrieve(table, List.of(), null, null);
         });
         
     }
@@ -101,12 +136,24 @@ public class Repository<T, ID> {
      * @return 
      */
     public List<T> findByColumn(String columnName, String value) {
-        return cache.get("findByColumn", Cache.hash(columnName, value), () -> {
+        return findByColumn(columnName, value, null);
+    }
+
+    /**
+     * Finds all table records for the given column name and value, only setting the provided fields
+     * on the returned records. Columns that aren't in 'fields' aren't read, so this is faster for
+     * tables with lots of columns when only a few are needed.
+     * 
+     * @param columnName name of the column in the table
+     * @param value that each returned record should have for the provided column
+     * @param fields names of the fields to set, or null for all of them
+     * @return 
+     */
+    public List<T> findByColumn(String columnName, String value, Set<String> fields) {
+        return findCached(CacheKey.of("findByColumn", columnName, value), fields, () -> {
             Equals equals = new Equals(columnName, value);
             
-            return equals.retrieve(table, List.of(), null, null).stream()
-                .map(row -> MarshallingService.parseObject(row, table.getTableClass()))
-                .toList();
+            return equals.retrieve(table, List.of(), null, null);
         });
         
     }
@@ -116,15 +163,102 @@ public class Repository<T, ID> {
      * @return
      */
     public List<T> findAll() {
-        return cache.get(this.tableName, Cache.hash("findAll"), () -> {
+        return findAll(null);
+    }
+
+    /**
+     * Returns all table records in the table, only setting the provided fields on them
+     * 
+     * @param fields names of the fields to set, or null for all of them
+     * @return
+     */
+    public List<T> findAll(Set<String> fields) {
+        return findCached(CacheKey.of("findAll"), fields, () -> {
             All all = new All();
     
-            return all.retrieve(table, List.of(), null, null).stream()
-                .map(row -> MarshallingService.parseObject(row, table.getTableClass()))
-                .toList();
+            return all.retrieve(table, List.of(), null, null);
         });
     }
 
+    /**
+     * Gets the rows from 'retrieve' and makes them into records, going through the cache if there is one.
+     * Depending on how the database was built, either the rows are cached (and made into new records for
+     * each call) or the records are.
+     */
+    private List<T> findCached(CacheKey rowsKey, Set<String> fields, Supplier<List<Row>> retrieve) {
+        if (cache == null)
+            return toRecords(retrieve.get(), fields);
+
+        if (cacheObjects) {
+            CacheKey objectsKey = CacheKey.of(rowsKey, (fields == null)? null : Set.copyOf(fields));
+            return cache.get(this.tableName, objectsKey, () -> toRecords(retrieve.get(), fields));
+        }
+
+        return toRecords(cache.get(this.tableName, rowsKey, retrieve::get), fields);
+    }
+
+    private List<T> toRecords(List<Row> rows, Set<String> fields) {
+        return rows.stream()
+            .map(row -> MarshallingService.parseObject(row, table.getTableClass(), fields))
+            .toList();
+    }
+
+    private <R> R cached(CacheKey key, Supplier<R> read) {
+        return (cache == null)? read.get() : cache.get(this.tableName, key, read::get);
+    }
+
+    /**
+     * Returns the number of records in the table. Doesn't read the table's rows.
+     * @return
+     */
+    public long count() {
+        return cached(CacheKey.of("count"), () -> AggregateService.count(table));
+    }
+
+    /**
+     * Returns the number of records with the value in the column. For indexed columns this is
+     * read from the size of the index, without reading any rows.
+     * 
+     * @param columnName name of the column in the table
+     * @param value that each counted record has for the provided column
+     * @return
+     */
+    public long countByColumn(String columnName, String value) {
+        return cached(CacheKey.of("countByColumn", columnName, value), () ->
+            AggregateService.countEquals(table, columnName, value)
+        );
+    }
+
+    /**
+     * Computes an aggregate (count, sum, min, max, avg) over a column of the table. This happens in the
+     * database as the table is scanned, so no records are made. Columns marked with
+     * {@link org.dava.api.annotations.indices.Columnar} are faster to aggregate.
+     * 
+     * @param function the aggregate to compute
+     * @param columnName name of the column, or null with COUNT to count every record
+     * @return the aggregate, or null for MIN, MAX and AVG if there are no values
+     */
+    public BigDecimal aggregate(AggregateFunction function, String columnName) {
+        return cached(CacheKey.of("aggregate", function, columnName), () ->
+            AggregateService.aggregate(table, function, columnName)
+        );
+    }
+
+    /**
+     * Computes an aggregate (count, sum, min, max, avg) over a column for each value of another column.
+     * Like 'SELECT groupByColumn, SUM(column) FROM table GROUP BY groupByColumn'
+     * 
+     * @param function the aggregate to compute
+     * @param columnName name of the column, or null with COUNT to count the records in each group
+     * @param groupByColumnName name of the column to group by
+     * @return the aggregate for each value of the group by column
+     */
+    public Map<String, BigDecimal> aggregateGroupBy(AggregateFunction function, String columnName, String groupByColumnName) {
+        return cached(CacheKey.of("aggregateGroupBy", function, columnName, groupByColumnName), () ->
+            AggregateService.aggregateGroupBy(table, function, columnName, groupByColumnName)
+        );
+    }
+
     /**
      * Performs a custom SQL style query. The sytax most closely resembles Postgresql but 
      * some features will probably be missing. 
@@ -143,7 +277,7 @@ public class Repository<T, ID> {
             Thread.currentThread().getStackTrace()
         );
 
-        return cache.get(this.tableName, Cache.hash(query, Cache.hashMap(params)), () -> {
+        return findCached(CacheKey.of("query", query, Map.copyOf(params)), null, () -> {
             
             Select select = SqlService.parse(query, table);
         
@@ -199,29 +333,24 @@ public class Repository<T, ID> {
      */
     public <Q> List<T> findByProvidedFields(Q objectWithSomeFields) {
 
-        return cache.get(this.tableName, Cache.hash("findByProvidedFields", Cache.hashList(getFieldNames(objectWithSomeFields))), () -> {
-            List<Condition> equals = new ArrayList<>();
+        Map<String, String> fieldValues = getFieldValues(objectWithSomeFields);
 
-            for (Field field : objectWithSomeFields.getClass().getFields()) {
-                equals.add(
-                    new Equals(field.getName(), MarshallingService.getFieldValue(objectWithSomeFields, field).toString())
-                );
-            }
+        return findCached(CacheKey.of("findByProvidedFields", fieldValues), null, () -> {
+            List<Condition> equals = new ArrayList<>();
+            fieldValues.forEach( (name, value) -> equals.add(new Equals(name, value)) );
 
-            Condition first = equals.remove(equals.size() - 1);
+            Condition first = equals.remove(0);
 
-            return first.retrieve(table, equals, null, null).stream()
-                .map(row -> MarshallingService.parseObject(row, table.getTableClass()))
-                .toList();
+            return first.retrieve(table, equals, null, null);
         });
     }
 
-    private List<String> getFieldNames(Object object) {
-        List<String> fieldNames = new ArrayList<>();
+    private Map<String, String> getFieldValues(Object object) {
+        Map<String, String> fieldValues = new LinkedHashMap<>();
         for (Field field : object.getClass().getFields()) {
-            fieldNames.add(field.getName());
+            fieldValues.put(field.getName(), MarshallingService.getFieldValue(object, field).toString());
         }
-        return fieldNames;
+        return fieldValues;
     }
 
 
@@ -235,21 +364,7 @@ public class Repository<T, ID> {
      * @param row
      */
     public void save(T row) {
-
-        cache.invalidate(tableName);
-
-        Map<String, List<Row>> tableNameToRows = MarshallingService.parseRow(row);
-
-        for (String tableName : tableNameToRows.keySet()) {
-            Table<?> tableOfRow = database.getTableByName(tableName);
-            Insert insert = new Insert(database, tableOfRow, tableOfRow.getRandomPartition());
-            insert.addToBatch(
-                tableNameToRows.get(tableName), true, new Batch()
-            );
-        }
-
-
-        
+        saveRows(MarshallingService.parseRow(row));
     }
 
     /**
@@ -262,8 +377,6 @@ public class Repository<T, ID> {
      * @param row
      */
     public void saveAll(List<T> rows) {
-        cache.invalidate(tableName);
-
         Map<String, List<Row>> tableNameToRows = new HashMap<>();
 
         for (T row : rows) {
@@ -281,14 +394,63 @@ public class Repository<T, ID> {
         saveRows(tableNameToRows);
     }
 
+    /**
+     * Loads lots of objects at once, for initial imports. Much faster than {@link #saveAll(List)}, see
+     * {@link BulkLoader}.
+     *
+     * <p> This isn't transactional like a save. If the load fails every object loaded is dropped, but it's
+     * meant to be run while nothing else is writing to the table. Objects with sub objects have to be saved.
+     *
+     * @return the number of objects loaded
+     */
+    public long bulkLoad(Iterator<T> records) {
+        Iterator<Row> rows = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                Map<String, List<Row>> rowMap = MarshallingService.parseRow(records.next());
+                if (rowMap.size() > 1)
+                    throw new DavaException(REPOSITORY_ERROR, "Objects with sub objects can't be bulk loaded into table: " + tableName, null);
+                return rowMap.get(tableName).get(0);
+            }
+        };
+
+        try {
+            return new BulkLoader(database, table).load(rows);
+        } finally {
+            invalidate(Set.of(tableName));
+        }
+    }
+
+    /**
+     * Loads the rows of a csv file, with the column names on the first line. See {@link #bulkLoad(Iterator)}.
+     *
+     * @return the number of rows loaded
+     */
+    public long bulkLoadCsv(String csvPath) {
+        try {
+            return new BulkLoader(database, table).loadCsv(csvPath);
+        } finally {
+            invalidate(Set.of(tableName));
+        }
+    }
+
     private void saveRows(Map<String, List<Row>> tableNameToRows) {
+        // rows are spread over each table's partitions and inserted in parallel
+        PartitionedInsert insert = new PartitionedInsert(database);
+        tableNameToRows.forEach( (tableName, rows) ->
+            insert.add(database.getTableByName(tableName), rows)
+        );
 
-        for (String tableName : tableNameToRows.keySet()) {
-            Table<?> tableOfRow = database.getTableByName(tableName);
-            Insert insert = new Insert(database, tableOfRow, tableOfRow.getRandomPartition());
-            insert.addToBatch(
-                tableNameToRows.get(tableName), true, new Batch()
-            );
+        try {
+            insert.execute(true);
+        } finally {
+            // sub objects are saved into their own tables, so those results are stale too
+            invalidate(tableNameToRows.keySet());
         }
     }
 
@@ -299,9 +461,6 @@ public class Repository<T, ID> {
      * @param cascade wether or not sub object (or other table references) should be deleted as well.
      */
     public void delete(ID primaryKey, boolean cascade) {
-
-        cache.invalidate(tableName);
-
         Equals equals = new Equals(MarshallingService.getPrimaryKeyField(table.getTableClass()).getName(), primaryKey.toString());
         List<Row> rows = equals.retrieve(table, List.of(), null, null);
 
@@ -314,9 +473,6 @@ public class Repository<T, ID> {
      * @param cascade wether or not sub object (or other table references) should be deleted as well.
      */
     public void deleteAll(List<ID> primaryKeys, boolean cascade) {
-
-        cache.invalidate(tableName);
-
         String primaryKeyFieldName = MarshallingService.getPrimaryKeyField(table.getTableClass()).getName();
         In in = new In(
             primaryKeys.stream()
@@ -330,16 +486,53 @@ public class Repository<T, ID> {
     }
 
     private void deleteRows(List<Row> rows, boolean cascade) {
+        Map<String, List<Row>> tableNameToRows = new HashMap<>();
+        if (cascade)
+            tableNameToRows.putAll(getRowsOfAllSubObjects(rows, table.getTableClass()));
+        tableNameToRows.put(tableName, rows);
 
-        Delete delete = new Delete(database, table);
-        delete.addToBatch(rows, true, new Batch());
-
-        if (cascade) {
-            Map<String, List<Row>> childRows = getRowsOfAllSubObjects(rows, null);
-            for (String tableName : childRows.keySet()) {
+        try {
+            tableNameToRows.forEach( (tableName, tableRows) -> {
                 Table<?> rowTable = database.getTableByName(tableName);
-                Delete childDelete = new Delete(database, rowTable);
-                childDelete.addToBatch(childRows.get(tableName), true, new Batch());
+                Map<String, Batch> batches = new Delete(database, rowTable).addToBatches(tableRows, true);
+                batches.values().forEach( batch -> executeDelete(rowTable, batch) );
+
+                // partitions that are now mostly empty rows get compacted in the background
+                batches.keySet().forEach( partition -> Compactor.scheduleIfBloated(database, rowTable, partition) );
+            });
+        } finally {
+            invalidate(tableNameToRows.keySet());
+        }
+    }
+
+    /**
+     * Executes a delete batch. The rows were read without the compaction lock, so if the compactor moved them
+     * since, the batch is stale and nothing was written. Then the rows are read again by primary key and the batch
+     * is built again.
+     */
+    private void executeDelete(Table<?> rowTable, Batch batch) {
+        String primaryKey = rowTable.getPrimaryKeyColumnName();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                batch.execute(rowTable, true);
+                return;
+            } catch (DavaException e) {
+                if (!Batch.isStale(e) || attempt >= Batch.STALE_RETRIES)
+                    throw e;
+
+                Set<String> primaryKeys = batch.getDeletedRows().stream()
+                    .map(row -> String.valueOf(row.getValue(primaryKey)))
+                    .collect(Collectors.toSet());
+                List<Row> rows = new In(primaryKeys, primaryKey).retrieve(rowTable, List.of(), null, null);
+                if (rows.isEmpty())
+                    return; // already deleted
+
+                Map<String, Batch> batches = new Delete(database, rowTable).addToBatches(rows, true);
+                if (batches.size() != 1) {
+                    batches.values().forEach( rebuilt -> executeDelete(rowTable, rebuilt) );
+                    return;
+                }
+                batch = batches.values().iterator().next();
             }
         }
     }
@@ -347,35 +540,35 @@ public class Repository<T, ID> {
     private Map<String, List<Row>> getRowsOfAllSubObjects(List<Row> rows, Class<?> tableClass) {
         Map<String, List<Row>> childRows = new HashMap<>();
 
-        for (Field field : tableClass.getFields()) {
+        for (Field field : tableClass.getDeclaredFields()) {
             Class<?> fieldType = field.getType();
             org.dava.api.annotations.Table tableAnnotation = fieldType.getAnnotation(org.dava.api.annotations.Table.class);
             if (tableAnnotation != null) {
+                // the parent row holds the primary key of the sub object in the field's column
+                Column column = field.getAnnotation(Column.class);
+                String columnName = (column == null || column.name().isEmpty())? field.getName() : column.name();
                 String primaryKeyFieldName = MarshallingService.getPrimaryKeyField(fieldType).getName();
 
                 Set<String> primaryKeys = rows.stream()
-                    .map(row -> row.getValue(primaryKeyFieldName).toString() )
+                    .map(row -> row.getValue(columnName))
+                    .filter(Objects::nonNull)
+                    .map(Object::toString)
                     .collect(Collectors.toSet());
+                if (primaryKeys.isEmpty())
+                    continue;
 
+                String tableName = (tableAnnotation.name().isEmpty())? fieldType.getSimpleName() : tableAnnotation.name();
                 In in = new In(primaryKeys, primaryKeyFieldName);
-                List<Row> newRows = in.retrieve(table, null, null, null);
+                List<Row> newRows = in.retrieve(database.getTableByName(tableName), List.of(), null, null);
 
                 // check all child rows to see if they have any children that are also in other tables
                 Map<String, List<Row>> childChildRows = getRowsOfAllSubObjects(newRows, fieldType);
-                for (String tableName : childChildRows.keySet()) {
-                    if (childRows.containsKey(tableName))
-                        childRows.get(tableName).addAll(childChildRows.get(tableName));
-                    else
-                        childRows.put(tableName, childChildRows.get(tableName));
-                        
-                }
+                childChildRows.forEach( (childTableName, childTableRows) ->
+                    childRows.computeIfAbsent(childTableName, key -> new ArrayList<>()).addAll(childTableRows)
+                );
 
                 // add all child rows to list
-                String tableName = tableAnnotation.name();
-                if (childRows.containsKey(tableName))
-                    childRows.get(tableName).addAll(newRows);
-                else
-                    childRows.put(tableName, newRows);
+                childRows.computeIfAbsent(tableName, key -> new ArrayList<>()).addAll(newRows);
             }
 
         }
@@ -383,7 +576,9 @@ public class Repository<T, ID> {
         return childRows;
     }
 
-
-
+    private void invalidate(Set<String> tableNames) {
+        if (cache != null)
+            tableNames.forEach(cache::invalidate);
+    }
 
 }
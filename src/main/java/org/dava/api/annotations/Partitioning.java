@@ -0,0 +1,19 @@
+package org.dava.api.annotations;
+
+/**
+ * How rows are spread over a table's partitions.
+ */
+public enum Partitioning {
+
+    /**
+     * Rows are spread evenly over the partitions that aren't full. Lookups have to check every partition.
+     */
+    SPREAD,
+
+    /**
+     * Rows go in the partition picked by hashing their primary key, so lookups by primary key only read one
+     * partition. The number of partitions is fixed when the table is made, so these tables aren't split
+     * when they get big.
+     */
+    PRIMARY_KEY_HASH
+}
@@ -0,0 +1,18 @@
+package org.dava.api.annotations;
+
+/**
+ * How rows are stored in a table's partition files.
+ */
+public enum RowFormat {
+
+    /**
+     * Comma separated text, one row per line. Easy to read and edit by hand.
+     */
+    CSV,
+
+    /**
+     * Fixed width numbers and dates, length prefixed strings and a null bitmap, one row per line.
+     * Much cheaper to read than CSV since nothing has to be parsed from text.
+     */
+    BINARY
+}
@@ -8,4 +8,29 @@ import java.lang.annotation.*;
 @Target(ElementType.TYPE)
 public @interface Table {
     String name() default "";
+
+    RowFormat format() default RowFormat.CSV;
+
+    /**
+     * Number of partitions a new table is made with. Each partition has its own table file and indices,
+     * and reads and writes run over the partitions in parallel. Existing tables keep the partitions they have.
+     */
+    int partitions() default 1;
+
+    /**
+     * Directories to put the table's partitions in, like directories on different disks. Partitions are placed
+     * in them in turn, and are linked to from the table's folder. If empty partitions are put in the table's folder.
+     */
+    String[] partitionDirectories() default {};
+
+    /**
+     * Size in bytes a partition's table file can grow to. Once all the partitions are this size, a new partition
+     * is added for new rows.
+     */
+    long maxPartitionSize() default Long.MAX_VALUE;
+
+    /**
+     * How rows are spread over the partitions
+     */
+    Partitioning partitioning() default Partitioning.SPREAD;
 }
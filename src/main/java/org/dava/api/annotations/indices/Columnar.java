@@ -0,0 +1,14 @@
+package org.dava.api.annotations.indices;
+
+import java.lang.annotation.*;
+
+/**
+ * Keeps the column in a columnar file next to each table partition, so aggregates over it (sum, min, max, count)
+ * can scan the column without reading the table's rows. Numeric columns are stored fixed width, other
+ * columns are dictionary encoded, so this is best for numbers and low cardinality columns.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Columnar {
+}
@@ -0,0 +1,25 @@
+package org.dava.api.annotations.indices;
+
+/**
+ * How an indexed column is stored on disk.
+ */
+public enum IndexType {
+
+    /**
+     * A folder with a file for every distinct value (numeric values are also split into median folders).
+     * Good for low cardinality columns.
+     */
+    FILE_PER_VALUE,
+
+    /**
+     * One b+tree file per column per partition. Good for high cardinality columns
+     * (ids, timestamps) which would otherwise make millions of tiny files.
+     */
+    BTREE,
+
+    /**
+     * One file per column per partition of sorted (number, route) blocks. Only for numeric and date columns,
+     * good for range queries (greater than, less than, before, after).
+     */
+    SORTED
+}
@@ -7,4 +7,6 @@ import java.lang.annotation.*;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.FIELD)
 public @interface Indexed {
+
+    IndexType type() default IndexType.FILE_PER_VALUE;
 }
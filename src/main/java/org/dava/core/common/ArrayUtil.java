@@ -41,6 +41,22 @@ public class ArrayUtil {
         return appendArrays(arrays, arraySize);
     }
 
+    public static byte[] appendArraysOfAnyLength(List<byte[]> arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+
+        byte[] newArray = new byte[length];
+        int index = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, newArray, index, array.length);
+            index += array.length;
+        }
+
+        return newArray;
+    }
+
     public static <T> T[] subRange(T[] array, int startIndex, int endIndex) {
         if (startIndex < 0 || endIndex > array.length || startIndex > endIndex) {
             throw new IllegalArgumentException("Invalid sub-range parameters.");
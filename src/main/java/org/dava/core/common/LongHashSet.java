@@ -0,0 +1,103 @@
+package org.dava.core.common;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs kept in one open addressing array, so adding and checking a value doesn't box it.
+ *
+ * <p> Only supports adding, since it's used for building up a set of values and then checking
+ * lots of values against it (like the offsets of routes to remove from an index).
+ */
+public class LongHashSet {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] values;
+    private int size;
+    private boolean containsEmpty; // EMPTY marks free slots, so it's tracked on it's own
+
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize * 2, 4) - 1) << 1;
+        values = new long[capacity];
+        Arrays.fill(values, EMPTY);
+    }
+
+
+    /**
+     * @return true if the value wasn't in the set already
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsEmpty)
+                return false;
+            containsEmpty = true;
+            size++;
+            return true;
+        }
+
+        int i = slot(value, values.length);
+        while (values[i] != EMPTY) {
+            if (values[i] == value)
+                return false;
+            i = (i + 1) & (values.length - 1);
+        }
+
+        values[i] = value;
+        size++;
+        if (size * 2 > values.length)
+            grow();
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY)
+            return containsEmpty;
+
+        int i = slot(value, values.length);
+        while (values[i] != EMPTY) {
+            if (values[i] == value)
+                return true;
+            i = (i + 1) & (values.length - 1);
+        }
+        return false;
+    }
+
+    private void grow() {
+        long[] old = values;
+        values = new long[old.length * 2];
+        Arrays.fill(values, EMPTY);
+        for (long value : old) {
+            if (value == EMPTY)
+                continue;
+
+            int i = slot(value, values.length);
+            while (values[i] != EMPTY)
+                i = (i + 1) & (values.length - 1);
+            values[i] = value;
+        }
+    }
+
+    private static int slot(long value, int capacity) {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+    }
+
+
+
+    /*
+        Getter Setter
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+}
@@ -0,0 +1,152 @@
+package org.dava.core.common;
+
+import java.util.Arrays;
+
+/**
+ * A map of longs to longs kept in two open addressing arrays, so looking up a key doesn't box it.
+ *
+ * <p> Like {@link LongHashSet}, but with removing. Removed slots are filled by moving later keys of the
+ * same probe run back, so lookups never have to step over removed keys.
+ */
+public class LongLongHashMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private boolean containsEmpty; // EMPTY marks free slots, so it's tracked on it's own
+    private long emptyValue;
+
+
+    public LongLongHashMap() {
+        this(16);
+    }
+
+    public LongLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize * 2, 4) - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+
+    public void put(long key, long value) {
+        if (key == EMPTY) {
+            if (!containsEmpty)
+                size++;
+            containsEmpty = true;
+            emptyValue = value;
+            return;
+        }
+
+        int i = slot(key, keys.length);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & (keys.length - 1);
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size * 2 > keys.length)
+            grow();
+    }
+
+    /**
+     * @return the key's value, or 'missing' if the key isn't in the map
+     */
+    public long get(long key, long missing) {
+        if (key == EMPTY)
+            return containsEmpty? emptyValue : missing;
+
+        int i = find(key);
+        return (i < 0)? missing : values[i];
+    }
+
+    /**
+     * @return the key's value, or 'missing' if the key wasn't in the map
+     */
+    public long remove(long key, long missing) {
+        if (key == EMPTY) {
+            if (!containsEmpty)
+                return missing;
+            containsEmpty = false;
+            size--;
+            return emptyValue;
+        }
+
+        int i = find(key);
+        if (i < 0)
+            return missing;
+
+        long removed = values[i];
+        size--;
+
+        // move keys after the hole back into it if their probe run passes through it
+        int hole = i;
+        int next = (hole + 1) & (keys.length - 1);
+        while (keys[next] != EMPTY) {
+            int home = slot(keys[next], keys.length);
+            boolean movable = (hole <= next)? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & (keys.length - 1);
+        }
+        keys[hole] = EMPTY;
+        return removed;
+    }
+
+    private int find(long key) {
+        int i = slot(key, keys.length);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key)
+                return i;
+            i = (i + 1) & (keys.length - 1);
+        }
+        return -1;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == EMPTY)
+                continue;
+
+            int i = slot(oldKeys[j], keys.length);
+            while (keys[i] != EMPTY)
+                i = (i + 1) & (keys.length - 1);
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int slot(long key, int capacity) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+    }
+
+
+
+    /*
+        Getter Setter
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+}
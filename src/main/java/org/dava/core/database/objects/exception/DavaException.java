@@ -1,7 +1,15 @@
 package org.dava.core.database.objects.exception;
 
 public class DavaException extends RuntimeException{
+
+    private final ExceptionType type;
+
     public DavaException(ExceptionType type, String message, Throwable cause) {
         super(type.name() + " " + message, cause);
+        this.type = type;
+    }
+
+    public ExceptionType getType() {
+        return type;
     }
 }
@@ -14,5 +14,8 @@ public enum ExceptionType {
     REPOSITORY_ERROR,
     BASE_IO_ERROR,
     LIMIT_ERROR,
-    CACHE_ERROR
+    CACHE_ERROR,
+    AGGREGATE_ERROR,
+    PARTITION_ERROR,
+    STALE_BATCH_ERROR
 }
@@ -0,0 +1,270 @@
+package org.dava.core.database.service;
+
+import org.dava.api.AggregateFunction;
+import org.dava.core.common.TypeUtil;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.structure.*;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+import static org.dava.core.database.objects.exception.ExceptionType.AGGREGATE_ERROR;
+
+/**
+ * Computes aggregates next to the table scan, so rows don't have to be retrieved and marshalled to count or sum them.
+ *
+ * <p> Where possible an aggregate is answered without reading rows at all:
+ * <ul>
+ *     <li> counting all rows uses each partition's size (kept in the empties file)
+ *     <li> counting rows with a value uses the size of the value's index file
+ *     <li> {@link org.dava.api.annotations.indices.Columnar} columns are scanned from the partition's
+ *          {@link ColumnarSidecar}
+ * </ul>
+ * Otherwise partitions are scanned in parallel, and each row is added to a {@link NumericAccumulator} (or a
+ * hash map of them by group for group by's) and then dropped. Rows are decoded lazily, so only the columns
+ * being aggregated are parsed.
+ */
+public class AggregateService {
+
+
+    /**
+     * @return the number of rows in the table
+     */
+    public static long count(Table<?> table) {
+        return table.getPartitions().parallelStream()
+            .mapToLong(partition -> {
+                // the size counts the column titles line
+                if (table.getMode() != Mode.LIGHT)
+                    return table.getSize(partition) - 1;
+                if (table.hasColumnarColumns())
+                    return ColumnarSidecar.of(table, partition).count(table);
+                return countRows(table, partition);
+            })
+            .sum();
+    }
+
+    /**
+     * @return the number of rows with the value in the column
+     */
+    public static long countEquals(Table<?> table, String columnName, String value) {
+        Column<?> column = getColumn(table, columnName);
+
+        if (column.isIndexed()) {
+            return readIndexLayout(table, () ->
+                table.getPartitionsFor(columnName, value).parallelStream()
+                    .mapToLong(partition ->
+                        BaseOperationService.getCountForIndexPath(
+                            Index.buildIndexPath(table, partition, columnName, value)
+                        )
+                    )
+                    .sum()
+            );
+        }
+
+        if (column.isColumnar() && !TypeUtil.isNumericClass(column.getType())) {
+            return table.getPartitions().parallelStream()
+                .mapToLong(partition ->
+                    ColumnarSidecar.of(table, partition).countByValue(table, columnName).getOrDefault(value, 0L)
+                )
+                .sum();
+        }
+
+        return table.getPartitions().parallelStream()
+            .mapToLong(partition -> {
+                long[] count = new long[1];
+                BaseOperationService.forEachRowInTablePartition(table, partition, row -> {
+                    Object rowValue = row.getValue(columnName);
+                    if (rowValue != null && rowValue.toString().equals(value))
+                        count[0]++;
+                    return true;
+                });
+                return count[0];
+            })
+            .sum();
+    }
+
+    /**
+     * Computes the aggregate over a column. The column can be null for COUNT to count all rows.
+     */
+    public static BigDecimal aggregate(Table<?> table, AggregateFunction function, String columnName) {
+        if (function == AggregateFunction.COUNT && columnName == null)
+            return BigDecimal.valueOf(count(table));
+
+        Column<?> column = getColumn(table, columnName);
+
+        if (function != AggregateFunction.COUNT && !TypeUtil.isNumericClass(column.getType()))
+            throw new DavaException(AGGREGATE_ERROR, function + " is only for numeric columns: " + table.getTableName() + "." + columnName, null);
+
+        if (function == AggregateFunction.COUNT && !TypeUtil.isNumericClass(column.getType())) {
+            long count = table.getPartitions().parallelStream()
+                .mapToLong(partition -> countValues(table, partition, column))
+                .sum();
+            return BigDecimal.valueOf(count);
+        }
+
+        NumericAccumulator total = new NumericAccumulator();
+        table.getPartitions().parallelStream()
+            .map(partition -> summarize(table, partition, column))
+            .toList()
+            .forEach(total::add);
+
+        return valueOf(function, total.toSummary());
+    }
+
+    /**
+     * Computes the aggregate over a column for each value of the group by column. Rows with a null group by value
+     * are under null. For COUNT the column can be null to count all rows in each group.
+     */
+    public static Map<String, BigDecimal> aggregateGroupBy(Table<?> table, AggregateFunction function, String columnName, String groupByColumnName) {
+        Column<?> groupByColumn = getColumn(table, groupByColumnName);
+        Column<?> column = (columnName == null)? null : getColumn(table, columnName);
+        if (function != AggregateFunction.COUNT && (column == null || !TypeUtil.isNumericClass(column.getType())))
+            throw new DavaException(AGGREGATE_ERROR, function + " is only for numeric columns: " + table.getTableName() + "." + columnName, null);
+
+        Map<String, BigDecimal> aggregates = new HashMap<>();
+
+        if (function == AggregateFunction.COUNT && (column == null || !TypeUtil.isNumericClass(column.getType()))) {
+            Map<String, Long> counts = new HashMap<>();
+            table.getPartitions().parallelStream()
+                .map(partition -> countGroups(table, partition, groupByColumn, column))
+                .toList()
+                .forEach(partitionCounts -> partitionCounts.forEach((group, count) -> counts.merge(group, count, Long::sum)));
+
+            counts.forEach((group, count) -> aggregates.put(group, BigDecimal.valueOf(count)));
+            return aggregates;
+        }
+
+        Map<String, NumericAccumulator> totals = new HashMap<>();
+        table.getPartitions().parallelStream()
+            .map(partition -> summarizeGroups(table, partition, groupByColumn, column))
+            .toList()
+            .forEach(partitionSummaries -> partitionSummaries.forEach((group, summary) ->
+                totals.computeIfAbsent(group, key -> new NumericAccumulator()).add(summary)
+            ));
+
+        totals.forEach((group, total) -> aggregates.put(group, valueOf(function, total.toSummary())));
+        return aggregates;
+    }
+
+
+
+    /*
+        Partition aggregates
+     */
+    private static long countRows(Table<?> table, String partition) {
+        long[] count = new long[1];
+        BaseOperationService.forEachRowInTablePartition(table, partition, row -> {
+            count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+    private static long countValues(Table<?> table, String partition, Column<?> column) {
+        if (column.isColumnar()) {
+            return ColumnarSidecar.of(table, partition).countByValue(table, column.getName()).entrySet().stream()
+                .filter(entry -> entry.getKey() != null)
+                .mapToLong(Map.Entry::getValue)
+                .sum();
+        }
+
+        long[] count = new long[1];
+        BaseOperationService.forEachRowInTablePartition(table, partition, row -> {
+            if (row.getValue(column.getName()) != null)
+                count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+    private static ColumnSummary summarize(Table<?> table, String partition, Column<?> column) {
+        if (column.isColumnar())
+            return ColumnarSidecar.of(table, partition).summarize(table, column.getName());
+
+        NumericAccumulator accumulator = new NumericAccumulator();
+        BaseOperationService.forEachRowInTablePartition(table, partition, row -> {
+            addNumber(accumulator, row.getValue(column.getName()));
+            return true;
+        });
+        return accumulator.toSummary();
+    }
+
+    /**
+     * Counts the rows in each group, only counting rows with a value in 'column' if it isn't null
+     */
+    private static Map<String, Long> countGroups(Table<?> table, String partition, Column<?> groupByColumn, Column<?> column) {
+        if (column == null && groupByColumn.isColumnar() && !TypeUtil.isNumericClass(groupByColumn.getType()))
+            return ColumnarSidecar.of(table, partition).countByValue(table, groupByColumn.getName());
+
+        Map<String, long[]> counts = new HashMap<>();
+        BaseOperationService.forEachRowInTablePartition(table, partition, row -> {
+            if (column == null || row.getValue(column.getName()) != null)
+                counts.computeIfAbsent(groupOf(row, groupByColumn), group -> new long[1])[0]++;
+            return true;
+        });
+
+        Map<String, Long> groupCounts = new HashMap<>();
+        counts.forEach((group, count) -> groupCounts.put(group, count[0]));
+        return groupCounts;
+    }
+
+    private static Map<String, ColumnSummary> summarizeGroups(Table<?> table, String partition, Column<?> groupByColumn, Column<?> column) {
+        if (groupByColumn.isColumnar() && !TypeUtil.isNumericClass(groupByColumn.getType()) && column.isColumnar())
+            return ColumnarSidecar.of(table, partition).summarizeGroupBy(table, groupByColumn.getName(), column.getName());
+
+        Map<String, NumericAccumulator> accumulators = new HashMap<>();
+        BaseOperationService.forEachRowInTablePartition(table, partition, row -> {
+            NumericAccumulator accumulator = accumulators.computeIfAbsent(groupOf(row, groupByColumn), group -> new NumericAccumulator());
+            addNumber(accumulator, row.getValue(column.getName()));
+            return true;
+        });
+
+        Map<String, ColumnSummary> summaries = new HashMap<>();
+        accumulators.forEach((group, accumulator) -> summaries.put(group, accumulator.toSummary()));
+        return summaries;
+    }
+
+
+
+    private static void addNumber(NumericAccumulator accumulator, Object value) {
+        if (value == null)
+            return;
+        accumulator.add( (value instanceof BigDecimal number)? number : new BigDecimal(value.toString()) );
+    }
+
+    private static String groupOf(Row row, Column<?> groupByColumn) {
+        Object value = row.getValue(groupByColumn.getName());
+        return (value == null)? null : value.toString();
+    }
+
+    private static BigDecimal valueOf(AggregateFunction function, ColumnSummary summary) {
+        return switch (function) {
+            case COUNT -> BigDecimal.valueOf(summary.getCount());
+            case SUM -> summary.getSum();
+            case MIN -> summary.getMin();
+            case MAX -> summary.getMax();
+            case AVG -> summary.getAverage();
+        };
+    }
+
+    private static Column<?> getColumn(Table<?> table, String columnName) {
+        Column<?> column = table.getColumn(columnName);
+        if (column == null)
+            throw new DavaException(AGGREGATE_ERROR, "No column named: " + table.getTableName() + "." + columnName, null);
+        return column;
+    }
+
+    private static <R> R readIndexLayout(Table<?> table, Supplier<R> read) {
+        Lock lock = table.getIndexLayoutLock().readLock();
+        lock.lock();
+        try {
+            return read.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -1,14 +1,19 @@
 package org.dava.core.database.service;
 
 
-import org.dava.core.common.ArrayUtil;
+import org.dava.api.annotations.Partitioning;
 import org.dava.core.common.Bundle;
+import org.dava.core.common.LongHashSet;
 import org.dava.core.common.TypeUtil;
 import org.dava.core.database.objects.dates.Date;
 import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.caching.IndexCache;
+import org.dava.core.database.service.fileaccess.FileStamp;
 import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.LineScanner;
 import org.dava.core.database.service.operations.common.EmptiesPackage;
 import org.dava.core.database.service.operations.common.WritePackage;
+import org.dava.core.database.service.operations.delete.IndexDelete;
 import org.dava.core.database.service.operations.insert.IndexWritePackage;
 import org.dava.core.database.service.structure.*;
 import org.dava.core.database.service.type.compression.TypeToByteUtil;
@@ -19,9 +24,11 @@ import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -38,13 +45,20 @@ public class BaseOperationService {
 
     public static FileUtil fileUtil = new FileUtil();
 
+    public static IndexCache indexCache = new IndexCache();
+
 
     /**
      * Adds values to an index. Also handles numeric count file updates.
      * 
-     * <p> Does not handle numeric repartitions. That's done in the Insert class as of 4/16/2024
+     * <p> Does not handle numeric repartitions. Those are done in the background by {@link IndexMaintenance}
      */
     public static void addToIndex(String folderPath, Object value, List<IndexWritePackage> indexWritePackages, boolean isUnique) {
+        if (Index.isSingleFileIndexPath(folderPath)) {
+            addToSingleFileIndex(folderPath, value, indexWritePackages, isUnique);
+            return;
+        }
+
         try {
 
             // make index file if it doesn't exist
@@ -68,10 +82,15 @@ public class BaseOperationService {
             }
 
             // write indices to index
-            fileUtil.writeBytes(
-                path,
-                (List<WritePackage>) (List<?>) indexWritePackages
-            );
+            indexCache.invalidate(path);
+            try {
+                fileUtil.writeBytes(
+                    path,
+                    (List<WritePackage>) (List<?>) indexWritePackages
+                );
+            } finally {
+                indexCache.invalidate(path);
+            }
         } catch (IOException e) {
             throw new DavaException(
                 BASE_IO_ERROR,
@@ -82,6 +101,163 @@ public class BaseOperationService {
     }
 
 
+    private static void addToSingleFileIndex(String indexFilePath, Object value, List<IndexWritePackage> indexWritePackages, boolean isUnique) {
+        SingleFileIndex index = Index.openSingleFileIndex(indexFilePath);
+        String key = value.toString();
+        if (isUnique && !index.get(key).isEmpty()) {
+            throw new DavaException(UNIQUE_CONSTRAINT_VIOLATION, "Row already exists with unique value or key: " + value, null);
+        }
+
+        SingleFileIndex.KeyType keyType = Index.getKeyType(indexWritePackages.get(0).getColumnType());
+        indexWritePackages.forEach( writePackage ->
+            index.insert(
+                key,
+                writePackage.getRoute().getOffsetInTable(),
+                writePackage.getRoute().getLengthInTable(),
+                keyType
+            )
+        );
+    }
+
+    /**
+     * Throws a unique constraint violation if a unique value of the rows is already in another of the table's
+     * partitions, or more than one of the rows have it.
+     *
+     * <p> Each partition's batch only checks it's own index when it writes (see {@link #addToIndex}), so rows spread
+     * over partitions have to be checked against the others before any of them are written.
+     */
+    public static void checkUniqueAcrossPartitions(Table<?> table, Map<String, List<Row>> partitionToRows) {
+        if (table.getPartitions().size() == 1)
+            return;
+
+        List<Column<?>> uniqueColumns = table.getColumnList().stream()
+            .filter(column -> column.isIndexed() && column.isUnique())
+            .toList();
+        if (uniqueColumns.isEmpty())
+            return;
+
+        Lock lock = table.getIndexLayoutLock().readLock();
+        lock.lock();
+        try {
+            for (Column<?> column : uniqueColumns) {
+                Set<String> values = new HashSet<>();
+                partitionToRows.forEach( (partition, rows) -> rows.forEach( row -> {
+                    Object rowValue = row.getValue(column.getName());
+                    if (rowValue == null)
+                        return;
+
+                    String value = Index.prepareValueForIndexName(rowValue, column).toString();
+                    if (!values.add(value))
+                        throw new DavaException(UNIQUE_CONSTRAINT_VIOLATION, "Rows being inserted have the same unique value or key: " + value, null);
+
+                    BigDecimal number = (Index.isNumericallyIndexed(column.getType()) && !column.hasSingleFileIndex())?
+                        Index.getNumericIndexValue(column, rowValue) : null;
+                    if (isInOtherPartition(table, partition, column, value, number))
+                        throw new DavaException(UNIQUE_CONSTRAINT_VIOLATION, "Row already exists with unique value or key: " + value, null);
+                }));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * True if the index for the column in any of the table's partitions other than 'partition' has the value.
+     *
+     * <p> 'value' is already prepared for index names and 'number' is the value the index's numeric folders are
+     * found by, or null if it doesn't have them. The caller holds the table's index layout lock.
+     */
+    public static boolean isInOtherPartition(Table<?> table, String partition, Column<?> column, String value, BigDecimal number) {
+        // a primary key can only ever be in it's own partition
+        if (table.getPartitioning() == Partitioning.PRIMARY_KEY_HASH && column.getName().equals(table.getPrimaryKeyColumnName()))
+            return false;
+
+        String databaseRoot = table.getDatabaseRoot();
+        for (String other : table.getPartitions()) {
+            if (other.equals(partition))
+                continue;
+
+            String folderPath;
+            if (column.hasSingleFileIndex())
+                folderPath = Index.buildSingleFileIndexPath(databaseRoot, table.getTableName(), other, column);
+            else if (number != null)
+                folderPath = Index.findIndexPathForNumber(
+                    databaseRoot, table.getTableName(), other, column.getName(), table.getNumericLeaves(other, column.getName()), number
+                );
+            else
+                folderPath = Index.buildColumnPath(databaseRoot, table.getTableName(), other, column.getName());
+
+            if (getCountForIndexPath(Index.indexPathBypass(folderPath, value)) > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the routes in 'indexDelete' from an index (deleting the index file if it's empty after)
+     *
+     * <p> File indices are rewritten in one pass (see {@link FileUtil#removeRecords}). Routes are matched by their
+     * offset in the table rather than where they were in the index file, since other deletes from the same index
+     * can move routes around after this delete was built.
+     */
+    public static void removeIndexRoutes(String indexPath, IndexDelete indexDelete) throws IOException {
+        if (Index.isSingleFileIndexPath(indexPath)) {
+            SingleFileIndex index = Index.openSingleFileIndex(indexPath);
+            String key = Index.getSingleFileIndexKey(indexPath);
+            RouteBuffer original = indexDelete.getOriginalRoutes();
+            indexDelete.getIndicesToDelete().stream().distinct().forEach( startByte -> {
+                int i = (int) (startByte / RouteBuffer.ROUTE_SIZE);
+                index.delete(key, original.getOffset(i), original.getLength(i));
+            });
+            return;
+        }
+
+        RouteBuffer original = indexDelete.getOriginalRoutes();
+        LongHashSet offsetsToRemove = new LongHashSet(indexDelete.getIndicesToDelete().size());
+        indexDelete.getIndicesToDelete().forEach( startByte ->
+            offsetsToRemove.add( original.getOffset((int) (startByte / RouteBuffer.ROUTE_SIZE)) )
+        );
+
+        indexCache.invalidate(indexPath);
+        try {
+            long newSize = fileUtil.removeRecords(
+                indexPath,
+                RouteBuffer.ROUTE_SIZE,
+                (bytes, start) -> offsetsToRemove.contains( RouteBuffer.decodeOffset(bytes, start) )
+            );
+            if (newSize == 0)
+                fileUtil.deleteFile(indexPath); // this is important as during rollbacks table counts are updated by the number of primary key index files
+        } finally {
+            indexCache.invalidate(indexPath);
+        }
+    }
+
+    /**
+     * Replaces all the routes in an index (used by rollbacks). File indices left empty are deleted.
+     */
+    public static void replaceIndexRoutes(Table<?> table, String indexPath, RouteBuffer routes) throws IOException {
+        if (Index.isSingleFileIndexPath(indexPath)) {
+            String fileName = Path.of(Index.getSingleFileIndexPath(indexPath)).getFileName().toString();
+            String columnName = fileName.substring(0, fileName.lastIndexOf('.'));
+            Index.openSingleFileIndex(indexPath).replace(
+                Index.getSingleFileIndexKey(indexPath),
+                routes,
+                Index.getKeyType(table.getColumn(columnName).getType())
+            );
+            return;
+        }
+
+        fileUtil.replaceFile(
+            indexPath,
+            routes.toBytes()
+        );
+        indexCache.invalidate(indexPath);
+
+        if (fileUtil.fileSize(indexPath) == 0)
+            fileUtil.deleteFile(indexPath);
+    }
+
+
     /**
      * Gets rows from the table from start to end row.
      *
@@ -91,21 +267,23 @@ public class BaseOperationService {
 
         Column<?> column = table.getColumn(columnName);
         if (column.isIndexed()) {
-            return table.getPartitions().parallelStream()
-                .flatMap(partition -> {
-                    String indexPath = Index.buildIndexPath(
-                        table,
-                        partition,
-                        columnName,
-                        value
-                    );
+            return readIndexLayout(table, () ->
+                table.getPartitionsFor(columnName, value).parallelStream()
+                    .flatMap(partition -> {
+                        String indexPath = Index.buildIndexPath(
+                            table,
+                            partition,
+                            columnName,
+                            value
+                        );
 
-                    return getRowsFromIndex(indexPath, table, partition, startRow, endRow);
-                })
-                .toList();
+                        return getRowsFromIndex(indexPath, table, partition, startRow, endRow);
+                    })
+                    .toList()
+            );
         }
         else {
-            return table.getPartitions().parallelStream()
+            return table.getPartitionsFor(columnName, value).parallelStream()
                 .flatMap(partition ->
                     getRowsFromTablePartitionWithoutIndicies(
                         table,
@@ -120,6 +298,26 @@ public class BaseOperationService {
 
     }
 
+    /**
+     * Runs a read of index files while holding the table's index layout read lock, so a numeric
+     * repartition can't move the folders being read (see {@link IndexMaintenance}).
+     *
+     * <p> The compaction read lock is taken first (the same order as Batch.execute), so the {@link Compactor}
+     * can't move the rows between reading their routes and reading the rows.
+     */
+    private static <R> R readIndexLayout(Table<?> table, Supplier<R> read) {
+        Lock compactionLock = table.getCompactionLock().readLock();
+        Lock lock = table.getIndexLayoutLock().readLock();
+        compactionLock.lock();
+        lock.lock();
+        try {
+            return read.get();
+        } finally {
+            lock.unlock();
+            compactionLock.unlock();
+        }
+    }
+
     /**
      * Get's rows in an index limited
      */
@@ -131,10 +329,7 @@ public class BaseOperationService {
             (endRow == null)? null : (int) (endRow - startRow) * 10
         ).getSecond();
 
-        List<String> lines = getLinesUsingRoutes(partition, table, routes);
-
-        return IntStream.range(0, lines.size())
-            .mapToObj(i -> new Row(lines.get(i), table, routes.get(i)));
+        return getRowsUsingRoutes(partition, table, routes).stream();
     }
 
 
@@ -146,22 +341,28 @@ public class BaseOperationService {
 
         Column<?> column = table.getColumn(columnName);
         if (column.isIndexed() && !allRows) {
-            return table.getPartitions().parallelStream()
-                .flatMap(partition -> {
-                    List<String> indexPaths = values.stream()
-                        .map(value ->
-                            Index.buildIndexPath(
-                                table,
-                                partition,
-                                columnName,
-                                value
+            return readIndexLayout(table, () ->
+                table.getPartitions().parallelStream()
+                    .flatMap(partition -> {
+                        // tables partitioned by primary key only have some of the keys in each partition
+                        List<String> indexPaths = values.stream()
+                            .filter(value -> table.getPartitionsFor(columnName, value).contains(partition))
+                            .map(value ->
+                                Index.buildIndexPath(
+                                    table,
+                                    partition,
+                                    columnName,
+                                    value
+                                )
                             )
-                        )
-                        .toList();
+                            .toList();
 
-                    return getRowsFromMultipleIndices(indexPaths, table, partition, startRow, endRow);
-                })
-                .toList();
+                        if (indexPaths.isEmpty())
+                            return Stream.empty();
+                        return getRowsFromMultipleIndices(indexPaths, table, partition, startRow, endRow);
+                    })
+                    .toList()
+            );
         }
         else {
             return table.getPartitions().parallelStream()
@@ -196,10 +397,7 @@ public class BaseOperationService {
             .distinct() // no duplicates, see Route class for equals method
             .toList();
 
-        List<String> lines = getLinesUsingRoutes(partition, table, routes);
-
-        return IntStream.range(0, lines.size())
-            .mapToObj(i -> new Row(lines.get(i), table, routes.get(i)));
+        return getRowsUsingRoutes(partition, table, routes).stream();
     }
 
     /**
@@ -222,50 +420,54 @@ public class BaseOperationService {
 
     /**
      * Get's rows in the table by partition, using the start and end row values. Doesn't use indices
+     *
+     * <p> The partition is streamed in chunks (see LineScanner), so only matching rows are kept in
+     * memory, and the scan stops as soon as 'endRow' matches have been found.
      */
     private static Stream<Row> getRowsFromTablePartitionWithoutIndicies(Table<?> table, String partition, Predicate<Row> filter, long startRow, Long endRow) {
-        try {
-            int end = (endRow == null)? Integer.MAX_VALUE : Math.toIntExact(endRow);
-            byte[] bytes = fileUtil.readBytes(
-                table.getTablePath(partition),
-                0,
-                null
-            );
+        int end = (endRow == null)? Integer.MAX_VALUE : Math.toIntExact(endRow);
+        List<Row> rows = new ArrayList<>();
 
-            if (bytes == null)
-                throw new IOException("Eof reached early");
+        forEachRowInTablePartition(table, partition, row -> {
+            if (filter.test(row))
+                rows.add(row);
 
-            List<String> tableRows = Arrays.stream(new String(
-                bytes,
-                StandardCharsets.UTF_8
-            ).split("\n"))
-            .toList();
+            return rows.size() < end;
+        });
 
-            int index = 1; // +1 for header line of table
-            long offset = tableRows.get(0).getBytes().length + 1;
-            List<Row> rows = new ArrayList<>();
-            while ( rows.size() < end && index < tableRows.size() ) {
-                String rowString = tableRows.get(index);
-                if (!rowString.equals( " ".repeat(rowString.length()) )) {
-                    Row row = new Row(
-                        rowString,
-                        table,
-                        new Route(
-                            partition,
-                            offset,
-                            rowString.getBytes(StandardCharsets.UTF_8).length + 1
-                        )
-                    );
-
-                    offset += rowString.getBytes(StandardCharsets.UTF_8).length + 1;
+        return (rows.size() < end)? rows.stream() : rows.subList((int) startRow, end).stream();
+    }
 
-                    if (filter.test(row))
-                        rows.add(row);
-                }
-                index++;
-            }
+    /**
+     * Passes each row in the partition to 'visitor' without keeping them, until it returns false. Doesn't use indices
+     *
+     * <p> Rows are decoded lazily (see {@link Row#of(byte[], int, int, Table, Route)}), so only the columns
+     * the visitor reads are parsed.
+     */
+    public static void forEachRowInTablePartition(Table<?> table, String partition, Predicate<Row> visitor) {
+        // the compactor can't truncate the file part way through the scan
+        Lock compactionLock = table.getCompactionLock().readLock();
+        compactionLock.lock();
+        try {
+            LineScanner scanner = new LineScanner(fileUtil, table.getMode().usesMemoryMappedReads());
+            scanner.scan(table.getTablePath(partition), (buffer, from, length, offset) -> {
+                if (offset == 0 || isWhitespace(buffer, from, length)) // skip header line of table and deleted rows
+                    return true;
+
+                Row row = Row.of(
+                    buffer,
+                    from,
+                    length,
+                    table,
+                    new Route(
+                        partition,
+                        offset,
+                        length + 1
+                    )
+                );
 
-            return (rows.size() < end)? rows.stream() : rows.subList((int) startRow, end).stream();
+                return visitor.test(row);
+            });
 
         } catch (IOException e) {
             throw new DavaException(
@@ -273,9 +475,19 @@ public class BaseOperationService {
                 "Error reading all lines from table: " + table.getTablePath(partition),
                 e
             );
+        } finally {
+            compactionLock.unlock();
         }
     }
 
+    private static boolean isWhitespace(byte[] buffer, int from, int length) {
+        for (int i = from; i < from + length; i++) {
+            if (buffer[i] != ' ')
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Get's rows comparing with a numeric value. (Either greater than or less than). Uses indices if possible
      * 
@@ -334,104 +546,113 @@ public class BaseOperationService {
         startRow = (startRow == null)? 0 : startRow;
         if (startRow != null && endRow != null) size = (endRow - startRow);
 
-        if (column.isIndexed() && !getAllRows) {
-
-            // get all the files in the root of the column folder for each table paritition (number folders or index files)
-            Deque<String> nextFiles = new ArrayDeque<>();
-            nextFiles.addAll(
-                table.getPartitions().parallelStream()
-                .flatMap(partition -> {
-                    String columnPath = Index.buildColumnPath(table.getDatabaseRoot(), table.getTableName(), partition, columnName);
-                    return Arrays.stream(fileUtil.listFiles(columnPath))
-                        .map(File::getPath)
-                        .filter(filePath -> {
-                            if (filePath.contains(".count")) return false;
-                            BigDecimal value = fileNameConverter.apply(filePath);
-                            return filter.test(value);
-                        });
-                })
-                .sorted(compareFileNames)
-                .toList()
-            );
+        if (column.hasSingleFileIndex() && !getAllRows) {
+            return getRowsComparingNumericSingleFile(table, columnName, filter, comparatorRows, startRow, endRow, descending);
+        }
+        else if (column.isIndexed() && !getAllRows) {
+            // the maintenance thread can't swap numeric folders while we walk them
+            Lock lock = table.getIndexLayoutLock().readLock();
+            lock.lock();
+            try {
+                // get all the files in the root of the column folder for each table paritition (number folders or index files)
+                Deque<String> nextFiles = new ArrayDeque<>();
+                nextFiles.addAll(
+                    table.getPartitions().parallelStream()
+                    .flatMap(partition -> {
+                        String columnPath = Index.buildColumnPath(table.getDatabaseRoot(), table.getTableName(), partition, columnName);
+                        return Arrays.stream(fileUtil.listFiles(columnPath))
+                            .map(File::getPath)
+                            .filter(filePath -> {
+                                if (filePath.contains(".count")) return false;
+                                BigDecimal value = fileNameConverter.apply(filePath);
+                                return filter.test(value);
+                            });
+                    })
+                    .sorted(compareFileNames)
+                    .toList()
+                );
             
-            // walk through the files, not parsing rows less than the start row
-            List<Row> rows = new ArrayList<>();
-            boolean done = false;
-            int count = 0;
-            int extra = 0;
-            while (!done) {
+                // walk through the files, not parsing rows less than the start row
+                List<Row> rows = new ArrayList<>();
+                boolean done = nextFiles.isEmpty(); // a folder that hasn't been repartitioned yet might have no matches
+                int count = 0;
+                int extra = 0;
+                while (!done) {
                 
-                String file = nextFiles.pop();
-                File[] files = fileUtil.listFilesIfDirectory(file);
-                if (files != null) {
-                    // since equal value folders could have overlapping sub files we need to drill down through all of them to get the files in order
-                    List<String> newFilesToExplore = Arrays.stream(files)
-                        .map(File::getPath)
-                        .filter(filePath -> {
-                            if (filePath.contains(".count")) return false;
-                            BigDecimal value = fileNameConverter.apply(filePath);
-                            return filter.test(value);
-                        })
-                        .collect(Collectors.toList());
-
-                    String next = nextFiles.peek();
-                    if (next != null) {
-                        while (compareFileNames.compare(file, next) == 0) {
-                            newFilesToExplore.add(next);
-                            nextFiles.pop();
-                            next = nextFiles.peek();
+                    String file = nextFiles.pop();
+                    File[] files = fileUtil.listFilesIfDirectory(file);
+                    if (files != null) {
+                        // since equal value folders could have overlapping sub files we need to drill down through all of them to get the files in order
+                        List<String> newFilesToExplore = Arrays.stream(files)
+                            .map(File::getPath)
+                            .filter(filePath -> {
+                                if (filePath.contains(".count")) return false;
+                                BigDecimal value = fileNameConverter.apply(filePath);
+                                return filter.test(value);
+                            })
+                            .collect(Collectors.toList());
+
+                        String next = nextFiles.peek();
+                        if (next != null) {
+                            while (compareFileNames.compare(file, next) == 0) {
+                                newFilesToExplore.add(next);
+                                nextFiles.pop();
+                                next = nextFiles.peek();
     
     
-                            File[] otherFiles = fileUtil.listFilesIfDirectory(next);
-                            if (otherFiles == null) {
-                                newFilesToExplore.add(next);
-                            }
-                            else {
-                                newFilesToExplore.addAll(
-                                    Arrays.stream(otherFiles)
-                                        .map(File::getPath)
-                                        .toList()   
-                                );
+                                File[] otherFiles = fileUtil.listFilesIfDirectory(next);
+                                if (otherFiles == null) {
+                                    newFilesToExplore.add(next);
+                                }
+                                else {
+                                    newFilesToExplore.addAll(
+                                        Arrays.stream(otherFiles)
+                                            .map(File::getPath)
+                                            .toList()   
+                                    );
+                                }
                             }
                         }
-                    }
                     
 
-                    // sort and add back into deque
-                    newFilesToExplore.sort(compareFileNames);
-                    nextFiles.addAll(newFilesToExplore);
-                }
-
-                // if we've made it to the start row start parsing rows
-                boolean isIndexFile = files == null;
-                if (isIndexFile) {
-                    if (count >= startRow) {
-                        String partition = Index.getParitionFromPath(table.getDatabaseRoot(), table.getTableName(), file);
-                        List<Row> newRows = getRowsFromIndex( file, table, partition, 0, null ).toList();
-                        rows.addAll( newRows );
-                        count += newRows.size();
+                        // sort and add back into deque
+                        newFilesToExplore.sort(compareFileNames);
+                        nextFiles.addAll(newFilesToExplore);
                     }
-                    else {
-                        count += getCountForIndexPath(file);
+
+                    // if we've made it to the start row start parsing rows
+                    boolean isIndexFile = files == null;
+                    if (isIndexFile) {
                         if (count >= startRow) {
-                            extra += (int) (count - startRow);
                             String partition = Index.getParitionFromPath(table.getDatabaseRoot(), table.getTableName(), file);
                             List<Row> newRows = getRowsFromIndex( file, table, partition, 0, null ).toList();
                             rows.addAll( newRows );
+                            count += newRows.size();
+                        }
+                        else {
+                            count += getCountForIndexPath(file);
+                            if (count >= startRow) {
+                                extra += (int) (count - startRow);
+                                String partition = Index.getParitionFromPath(table.getDatabaseRoot(), table.getTableName(), file);
+                                List<Row> newRows = getRowsFromIndex( file, table, partition, 0, null ).toList();
+                                rows.addAll( newRows );
+                            }
                         }
                     }
+                
+                    // check if we're done
+                    done = nextFiles.isEmpty() || (endRow != null && count >= endRow);
                 }
                 
-                // check if we're done
-                done = nextFiles.isEmpty() || (endRow != null && count >= endRow);
+                if (size == null) 
+                    size = rows.size() - startRow;
+                size = (extra + size > rows.size())? rows.size() : extra + size;
+
+                rows.sort(comparatorRows);
+                return rows.subList(extra, size.intValue());
+            } finally {
+                lock.unlock();
             }
-                
-            if (size == null) 
-                size = rows.size() - startRow;
-            size = (extra + size > rows.size())? rows.size() : extra + size;
-
-            rows.sort(comparatorRows);
-            return rows.subList(extra, size.intValue());
         }
         else {
             List<Row> rows = getRowsFromTableWithoutIndices(table, 0, null).stream()
@@ -446,6 +667,46 @@ public class BaseOperationService {
         }
     }
 
+    /**
+     * Range scan of each partition's btree or sorted index. Only the first 'endRow' matching entries of each partition
+     * are read, since the rows from startRow to endRow across all partitions have to be in those.
+     */
+    private static List<Row> getRowsComparingNumericSingleFile(
+        Table<?> table,
+        String columnName,
+        Predicate<BigDecimal> filter,
+        Comparator<Row> comparatorRows,
+        long startRow,
+        Long endRow,
+        boolean descending
+    ) {
+        long limit = (endRow == null)? Long.MAX_VALUE : endRow;
+
+        List<Row> rows = table.getPartitions().parallelStream()
+            .flatMap(partition -> {
+                String indexPath = Index.buildSingleFileIndexPath(table.getDatabaseRoot(), table.getTableName(), partition, table.getColumn(columnName));
+
+                RouteBuffer routeBuffer = new RouteBuffer();
+                Index.openSingleFileIndex(indexPath).scan(
+                    key -> filter.test(new BigDecimal(key)),
+                    descending,
+                    (key, offset, length) -> {
+                        routeBuffer.add(offset, length);
+                        return routeBuffer.size() < limit;
+                    }
+                );
+
+                List<Route> routes = routeBuffer.toRoutes(partition);
+                return getRowsUsingRoutes(partition, table, routes).stream();
+            })
+            .sorted(comparatorRows)
+            .collect(Collectors.toList());
+
+        int from = (int) Math.min(startRow, rows.size());
+        int to = (int) Math.min(limit, rows.size());
+        return rows.subList(from, to);
+    }
+
     /**
      * Get's all rows in the table from a partition. Doesn't use indices
      */
@@ -525,26 +786,55 @@ public class BaseOperationService {
      * If allLines is true then startByte and numBytes are ignored
      */
     public static Bundle<Long, List<Route>> getFileSizeAndRoutes(String filePath, String partition, Long startByte, Integer numBytes) {
+        Bundle<Long, RouteBuffer> bundle = getFileSizeAndRouteBuffer(filePath, startByte, numBytes);
+        return new Bundle<>(
+            bundle.getFirst(),
+            bundle.getSecond().toRoutes(partition)
+        );
+    }
+
+    /**
+     * Same as {@link #getFileSizeAndRoutes(String, String, Long, Integer)} but doesn't make a Route
+     * object for every entry. Use this when scanning through lots of routes.
+     *
+     * <p> Index files are read whole and cached in the IndexCache, later calls are served from the cache
+     * until the index is written to. Files too big to cache are only read from startByte to numBytes.
+     * The returned buffer may be shared, don't modify it.
+     */
+    public static Bundle<Long, RouteBuffer> getFileSizeAndRouteBuffer(String filePath, Long startByte, Integer numBytes) {
+        if (Index.isSingleFileIndexPath(filePath))
+            return getSingleFileIndexRouteBuffer(filePath, startByte, numBytes);
+
         try {
 
-            byte[] bytes;
-            long fileSize = fileUtil.fileSize(filePath);
+            long generation = indexCache.getGeneration();
+            FileStamp stamp = FileStamp.of(filePath);
+            long fileSize = (stamp == null)? 0L : stamp.size();
             if (fileSize == 0)
-                return new Bundle<>(0L, new ArrayList<>());
+                return new Bundle<>(0L, new RouteBuffer());
 
-            numBytes = Math.toIntExact(
-                (numBytes == null || fileSize < numBytes + startByte) ? fileSize - startByte : numBytes
-            );
-            bytes = (startByte > fileSize)? null : fileUtil.readBytes(filePath, startByte, numBytes);
-            if (bytes == null)
-                return new Bundle<>(fileSize, new ArrayList<>());
+            boolean ranged = startByte > 0 || (numBytes != null && numBytes < fileSize);
+            if (ranged && !indexCache.isCacheable(fileSize))
+                return new Bundle<>(fileSize, readRouteRange(filePath, fileSize, startByte, numBytes));
 
+            RouteBuffer routes = indexCache.get(filePath, stamp);
+            if (routes == null) {
+                byte[] bytes = fileUtil.readBytes(filePath, 0, Math.toIntExact(fileSize));
+                if (bytes == null)
+                    return new Bundle<>(fileSize, new RouteBuffer());
+
+                routes = RouteBuffer.parse(bytes);
+                indexCache.put(filePath, routes, stamp, generation);
+            }
+
+            if (startByte == 0 && (numBytes == null || numBytes >= fileSize))
+                return new Bundle<>(fileSize, routes);
+
+            int from = (int) Math.min(startByte / RouteBuffer.ROUTE_SIZE, routes.size());
+            int to = (numBytes == null)? routes.size() : (int) Math.min((startByte + numBytes) / RouteBuffer.ROUTE_SIZE, routes.size());
             return new Bundle<>(
                 fileSize,
-                Route.parseBytes(
-                    bytes,
-                    partition
-                )
+                routes.slice(from, Math.max(from, to))
             );
         } catch (IOException e) {
             throw new DavaException(
@@ -555,20 +845,90 @@ public class BaseOperationService {
         }
     }
 
+    /**
+     * Reads the whole routes from startByte to numBytes or the end of the file, without caching them
+     */
+    private static RouteBuffer readRouteRange(String filePath, long fileSize, long startByte, Integer numBytes) throws IOException {
+        long routesInFile = fileSize / RouteBuffer.ROUTE_SIZE;
+        long from = Math.min(startByte / RouteBuffer.ROUTE_SIZE, routesInFile);
+        long to = (numBytes == null)? routesInFile : Math.min((startByte + numBytes) / RouteBuffer.ROUTE_SIZE, routesInFile);
+        if (to <= from)
+            return new RouteBuffer();
+
+        byte[] bytes = fileUtil.readBytes(
+            filePath,
+            from * RouteBuffer.ROUTE_SIZE,
+            Math.toIntExact((to - from) * RouteBuffer.ROUTE_SIZE)
+        );
+        return (bytes == null)? new RouteBuffer() : RouteBuffer.parse(bytes);
+    }
+
+    /**
+     * Same as {@link #getFileSizeAndRouteBuffer(String, Long, Integer)} for a virtual single file index path,
+     * the size is the size the routes would be in an index file.
+     */
+    private static Bundle<Long, RouteBuffer> getSingleFileIndexRouteBuffer(String indexPath, Long startByte, Integer numBytes) {
+        RouteBuffer routes = Index.openSingleFileIndex(indexPath).get(Index.getSingleFileIndexKey(indexPath));
+        long size = (long) routes.size() * RouteBuffer.ROUTE_SIZE;
+
+        int from = (int) Math.min(startByte / RouteBuffer.ROUTE_SIZE, routes.size());
+        int to = (numBytes == null)? routes.size() : (int) Math.min((startByte + numBytes) / RouteBuffer.ROUTE_SIZE, routes.size());
+        return new Bundle<>(
+            size,
+            (from == 0 && to == routes.size())? routes : routes.slice(from, Math.max(from, to))
+        );
+    }
+
+    /**
+     * Reads the rows at the routes, in csv or binary format (see {@link Row#of(byte[], int, int, Table, Route)})
+     */
+    public static List<Row> getRowsUsingRoutes(String partition, Table<?> table, List<Route> routes) {
+
+        try {
+            List<Long> offsets = routes.stream()
+                .map(Route::getOffsetInTable)
+                .toList();
+            List<Long> lengths = routes.stream()
+                .map(Route::getLengthInTable)
+                .map(i -> (long) i)
+                .toList();
+
+            List<Object> reads = (table.getMode().usesMemoryMappedReads())?
+                fileUtil.readBytesMapped(table.getTablePath(partition), offsets, lengths)
+                : fileUtil.readBytes(table.getTablePath(partition), offsets, lengths);
+
+            return IntStream.range(0, reads.size())
+                .mapToObj(i -> {
+                    byte[] bytes = (byte[]) reads.get(i);
+                    return Row.of(bytes, 0, bytes.length, table, routes.get(i));
+                })
+                .toList();
+        } catch (IOException e) {
+            throw new DavaException(
+                BASE_IO_ERROR,
+                "Error reading table csv file for table: " + table.getTableName(),
+                e
+            );
+        }
+
+    }
+
     public static List<String> getLinesUsingRoutes(String partition, Table<?> table, List<Route> rows) {
 
         try {
-            return fileUtil.readBytes(
-                table.getTablePath(partition),
-                rows.stream()
-                    .map(Route::getOffsetInTable)
-                    .toList(),
-                rows.stream()
-                    .map(Route::getLengthInTable)
-                    .map(i -> (long) i)
-                    .toList()
-            )
-            .stream()
+            List<Long> offsets = rows.stream()
+                .map(Route::getOffsetInTable)
+                .toList();
+            List<Long> lengths = rows.stream()
+                .map(Route::getLengthInTable)
+                .map(i -> (long) i)
+                .toList();
+
+            List<Object> reads = (table.getMode().usesMemoryMappedReads())?
+                fileUtil.readBytesMapped(table.getTablePath(partition), offsets, lengths)
+                : fileUtil.readBytes(table.getTablePath(partition), offsets, lengths);
+
+            return reads.stream()
             .map(bytes -> new String((byte[]) bytes, StandardCharsets.UTF_8) )
             .toList();
         } catch (IOException e) {
@@ -582,6 +942,8 @@ public class BaseOperationService {
     }
 
     public static long getCountForIndexPath(String path) {
+        if (Index.isSingleFileIndexPath(path))
+            return Index.openSingleFileIndex(path).get(Index.getSingleFileIndexKey(path)).size();
         return fileUtil.fileSize(path) / 10;
     }
 
@@ -611,62 +973,6 @@ public class BaseOperationService {
 
     }
 
-    public static BigDecimal repartitionNumericIndex(String folderPath, BigDecimal defaultMedian) {
-        try {
-            String countFile = folderPath + "/c.count";
-            File[] files = fileUtil.listFiles(folderPath);
-
-            int step = files.length / 5;
-            List<BigDecimal> samples = IntStream.range(0, 5)
-                .mapToObj(i ->
-                    (files[i * step].getName().contains(".index")) ? new BigDecimal(files[i * step].getName().split("\\.")[0]) : defaultMedian
-                )
-                .sorted(BigDecimal::compareTo)
-                .toList();
-            BigDecimal median = samples.get(2);
-            fileUtil.createDirectoriesIfNotExist(folderPath + "/-" + median);
-            fileUtil.createDirectoriesIfNotExist(folderPath + "/+" + median);
-
-            List<File> lessThan = new ArrayList<>();
-            List<File> greaterThanOrEqual = new ArrayList<>();
-            Arrays.stream(files).forEach( file -> {
-                String fileName = file.getName();
-                if ( !fileName.contains(".count") ) { // looking at .index files and their respective .empties files
-                    BigDecimal numberValue = new BigDecimal(fileName.split("\\.")[0]);
-                    if ( numberValue.compareTo(median) < 0 ) {
-                        lessThan.add(file);
-                    }
-                    else {
-                        greaterThanOrEqual.add(file);
-                    }
-                }
-            });
-
-            String newUpperPath = folderPath + "/+" + median;
-            String newLowerPath = folderPath + "/-" + median;
-
-            // make copies of files in new partition folders
-            fileUtil.copyFilesToDirectory(lessThan, newLowerPath);
-            fileUtil.copyFilesToDirectory(greaterThanOrEqual, newUpperPath);
-
-            fileUtil.createFile(folderPath + "/-" + median + "/c.count", TypeToByteUtil.longToByteArray(lessThan.size()) );
-            fileUtil.createFile(folderPath + "/+" + median + "/c.count", TypeToByteUtil.longToByteArray(greaterThanOrEqual.size()) );
-
-            // delete original files
-            fileUtil.deleteFile(countFile);
-            for (File file : lessThan) {
-                fileUtil.deleteFile(file);
-            }
-            for (File file : greaterThanOrEqual) {
-                fileUtil.deleteFile(file);
-            }
-
-            return median;
-        } catch (IOException e) {
-            throw new DavaException(INDEX_CREATION_ERROR, "Repartition of numerical index failed: " + folderPath, e);
-        }
-    }
-
     public static long getNumericCount(String countFile) throws IOException {
         byte[] countBytes = fileUtil.readBytes(countFile, 0, 8);
         return (countBytes == null)? 0L :
@@ -684,30 +990,15 @@ public class BaseOperationService {
         Table meta data
      */
 
-    public static void popRoutes(String emptiesFile, List<Integer> startIndices) throws IOException {
-
-        if (startIndices.isEmpty())
-            return;
-
-        List<Long> startBytes = startIndices.stream()
-            .map(i -> 8 + i * 10L)
-            .collect(Collectors.toList());
-
-        fileUtil.popBytes(emptiesFile, 10, startBytes);
-    }
-
+    /**
+     * Reads the empty rows left in an empties file. Inserts and deletes use the table's
+     * {@link org.dava.core.database.service.structure.FreeSpace} instead, which only reads the file once.
+     *
+     * @return the empty rows, or null if there aren't any
+     */
     public static List<Route> getAllEmpties(String emptiesFile) throws IOException {
-        // TODO don't check for empties every time to avoid this costly file access
-        long fileSize = fileUtil.fileSize(emptiesFile);
-        if ( fileSize - 10 <= 8) {
-            return null;
-        }
-
-        byte[] bytes = fileUtil.readBytes(emptiesFile);
-        return Route.parseBytes(
-            ArrayUtil.subRange(bytes, 8, bytes.length),
-            null
-        );
+        List<Route> routes = FreeSpace.load(emptiesFile).getRoutes(null);
+        return (routes.isEmpty())? null : routes;
     }
 
 
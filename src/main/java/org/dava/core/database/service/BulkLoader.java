@@ -0,0 +1,598 @@
+package org.dava.core.database.service;
+
+import org.dava.api.annotations.Partitioning;
+import org.dava.core.common.logger.Logger;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.LineScanner;
+import org.dava.core.database.service.operations.insert.IndexWritePackage;
+import org.dava.core.database.service.structure.*;
+import org.dava.core.database.service.type.compression.TypeToByteUtil;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+import static org.dava.core.database.objects.exception.ExceptionType.BASE_IO_ERROR;
+import static org.dava.core.database.objects.exception.ExceptionType.UNIQUE_CONSTRAINT_VIOLATION;
+
+/**
+ * Loads lots of rows into a table at once, for initial imports. Much faster than inserting them, since none
+ * of the per row work of an {@link org.dava.core.database.service.operations.Insert} is done.
+ *
+ * <p> Rows are appended to the end of each partition's table file with big sequential writes, and nothing
+ * is written to the rollback log. While the rows are written, each indexed column's (index file, route) entries
+ * are sorted in runs of {@link #RUN_SIZE} and spilled to the partition's staging folder. Once every row is
+ * written the runs are merged, so each index is written in one pass in order, with all the routes for an
+ * index file written at once. Numeric folders that end up too big are repartitioned after the load, instead
+ * of during it.
+ *
+ * <p> Entries for numeric folder indices are spilled with their number instead of a folder, and the folder is
+ * found when the runs are merged, while holding the index layout lock. So a repartition before then doesn't
+ * leave entries pointing at a folder that was split.
+ *
+ * <p> If the load fails the partial load is dropped. The runs are merged again to remove the routes that were
+ * added to indices, and the table files are truncated back to where they were. A marker for the table, with
+ * where each partition started, means the same happens on restart if the load was stopped by a crash (see
+ * {@link #dropPartialLoad(Table)}). Deleting the marker commits the load into every partition at once.
+ *
+ * <p> This is meant to be run while nothing else is writing to the table.
+ */
+public class BulkLoader {
+
+    public static int RUN_SIZE = 200_000; // index entries sorted in memory before they're spilled as a run
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    public static FileUtil fileUtil = new FileUtil();
+
+    private static final Logger log = Logger.getLogger(BulkLoader.class.getName());
+
+    private final Database database;
+    private final Table<?> table;
+
+
+    public BulkLoader(Database database, Table<?> table) {
+        this.database = database;
+        this.table = table;
+    }
+
+
+    /**
+     * Loads the rows of a csv file. The first line is the names of the columns, in any order, and values
+     * are written the same way as in the table's csv files.
+     *
+     * @return the number of rows loaded
+     */
+    public long loadCsv(String csvPath) {
+        return load( tableLoad -> {
+            List<String> header = new ArrayList<>();
+            new LineScanner(fileUtil, false).scan(csvPath, (buffer, from, length, offset) -> {
+                String line = new String(buffer, from, length, StandardCharsets.UTF_8).trim();
+                if (line.isEmpty())
+                    return true;
+
+                List<String> values = Row.getValuesFromLine(line);
+                if (header.isEmpty()) {
+                    values.forEach( name -> header.add(name.trim()) );
+                    return true;
+                }
+
+                Map<String, Object> columnsToValues = new HashMap<>();
+                for (int i = 0; i < header.size() && i < values.size(); i++) {
+                    Column<?> column = table.getColumn(header.get(i));
+                    if (column != null)
+                        columnsToValues.put(column.getName(), Row.parseValue(column.getType(), values.get(i)));
+                }
+                tableLoad.add(new Row(columnsToValues, table.getTableName()));
+                return true;
+            });
+        });
+    }
+
+    /**
+     * Loads the rows, spreading them over the table's partitions like a
+     * {@link org.dava.core.database.service.operations.PartitionedInsert}.
+     *
+     * @return the number of rows loaded
+     */
+    public long load(Iterator<Row> rows) {
+        return load( tableLoad -> rows.forEachRemaining(tableLoad::add) );
+    }
+
+    private long load(RowSource source) {
+        TableLoad tableLoad = new TableLoad();
+
+        // the compactor can't move rows around while they're being loaded
+        Lock compactionLock = table.getCompactionLock().readLock();
+        compactionLock.lock();
+        try {
+            tableLoad.start();
+            source.addRows(tableLoad);
+            tableLoad.finish();
+            return tableLoad.count;
+        } catch (IOException | RuntimeException e) {
+            tableLoad.drop();
+            if (e instanceof DavaException davaException)
+                throw davaException;
+            throw new DavaException(BASE_IO_ERROR, "Error bulk loading rows into table: " + table.getTableName(), e);
+        } finally {
+            compactionLock.unlock();
+            if (database.getQueryCache() != null)
+                database.getQueryCache().invalidate(table.getTableName());
+        }
+    }
+
+    /**
+     * Undoes a load of the table that didn't finish. Does nothing if there isn't one.
+     *
+     * <p> For each partition in the table's marker, every route in the load's sorted runs is removed from its index,
+     * then the table file is truncated and the table size put back to what they were before the load.
+     */
+    public static void dropPartialLoad(Table<?> table) {
+        String markerPath = table.getBulkLoadMarkerPath();
+        try {
+            if (fileUtil.exists(markerPath)) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(fileUtil.readBytes(markerPath)));
+                int partitionCount = in.readInt();
+                for (int i = 0; i < partitionCount; i++) {
+                    dropPartition(table, in.readUTF(), in.readLong(), in.readLong());
+                }
+                fileUtil.deleteFile(markerPath);
+            }
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error dropping partial bulk load of table: " + table.getTableName(), e);
+        }
+
+        table.getPartitions().forEach( partition -> deleteStaging(table.getBulkLoadStagingPath(partition)) );
+    }
+
+    private static void dropPartition(Table<?> table, String partition, long startSize, long startRowCount) throws IOException {
+        String stagingPath = table.getBulkLoadStagingPath(partition);
+        if (table.getMode() != Mode.LIGHT && fileUtil.exists(stagingPath)) {
+            Lock lock = table.getIndexLayoutLock().readLock();
+            lock.lock();
+            try {
+                for (File columnFolder : fileUtil.getSubFolders(stagingPath)) {
+                    Column<?> column = table.getColumn(columnFolder.getName());
+                    if (column != null)
+                        new IndexRuns(columnFolder.getPath(), table, partition, column)
+                            .merge( (folderPath, group) -> removeFromIndex(folderPath, group, startSize) );
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (table.getMode() != Mode.LIGHT) {
+            table.setSize(partition, startRowCount);
+            ColumnarSidecar sidecar = (table.hasColumnarColumns())? ColumnarSidecar.of(table, partition) : null;
+            if (sidecar != null)
+                sidecar.invalidate();
+        }
+
+        String tablePath = table.getTablePath(partition);
+        if (fileUtil.fileSize(tablePath) > startSize)
+            fileUtil.truncate(tablePath, startSize);
+    }
+
+
+
+    @FunctionalInterface
+    private interface RowSource {
+        void addRows(TableLoad tableLoad) throws IOException;
+    }
+
+    /**
+     * One load, made up of a load into each partition rows can go in
+     */
+    private class TableLoad {
+
+        private final List<String> partitions = table.getInsertPartitions();
+        private final Map<String, PartitionLoad> loads = new LinkedHashMap<>();
+        private long count = 0;
+
+
+        /**
+         * Writes the table's marker first, with where each partition starts, so a crash part way through the load
+         * can be undone. It's written to a temp file and renamed, so it's never half written.
+         */
+        void start() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(partitions.size());
+            for (String partition : partitions) {
+                PartitionLoad load = new PartitionLoad(partition);
+                load.start();
+                loads.put(partition, load);
+
+                out.writeUTF(partition);
+                out.writeLong(load.offset);
+                out.writeLong(load.startRowCount);
+            }
+
+            String markerPath = table.getBulkLoadMarkerPath();
+            fileUtil.replaceFile(markerPath + ".tmp", bytes.toByteArray());
+            if (!fileUtil.renameFile(markerPath + ".tmp", markerPath))
+                throw new IOException("Couldn't write bulk load marker: " + markerPath);
+        }
+
+        void add(Row row) {
+            String partition = (table.getPartitioning() == Partitioning.PRIMARY_KEY_HASH && partitions.size() > 1)?
+                table.getPartitionForPrimaryKey(row.getValue(table.getPrimaryKeyColumnName()))
+                : partitions.get((int) (count % partitions.size()));
+
+            try {
+                loads.get(partition).add(row);
+            } catch (IOException e) {
+                throw new DavaException(BASE_IO_ERROR, "Error writing loaded rows to table: " + table.getTablePath(partition), e);
+            }
+            count++;
+        }
+
+        void finish() throws IOException {
+            for (PartitionLoad load : loads.values())
+                load.writeRows();
+            for (PartitionLoad load : loads.values())
+                load.buildIndices();
+            for (PartitionLoad load : loads.values())
+                load.finish();
+
+            // the load can't be dropped once the marker is gone, in any partition
+            fileUtil.deleteFile(table.getBulkLoadMarkerPath());
+            for (PartitionLoad load : loads.values())
+                deleteStaging(load.stagingPath);
+
+            // split any numeric folders the load filled
+            for (PartitionLoad load : loads.values())
+                load.scheduleRepartitions();
+        }
+
+        void drop() {
+            try {
+                dropPartialLoad(table);
+            } catch (RuntimeException e) {
+                log.error("Couldn't drop partial load of table " + table.getTableName() + ", it will be dropped on restart: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The rows and index entries loaded into one partition
+     */
+    private class PartitionLoad {
+
+        private final String partition;
+        private final String tablePath;
+        private final String stagingPath;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Map<String, IndexRuns> columnRuns = new HashMap<>();
+        private long offset;
+        private long rowCount;
+        private long startRowCount;
+
+
+        PartitionLoad(String partition) {
+            this.partition = partition;
+            this.tablePath = table.getTablePath(partition);
+            this.stagingPath = table.getBulkLoadStagingPath(partition);
+        }
+
+        void start() throws IOException {
+            deleteStaging(stagingPath);
+            fileUtil.createDirectoriesIfNotExist(stagingPath);
+
+            offset = fileUtil.fileSize(tablePath);
+            startRowCount = table.getSize(partition);
+        }
+
+        void add(Row row) throws IOException {
+            byte[] bytes = Row.toBytes(table, row.getColumnsToValues());
+            Route route = new Route(partition, offset, bytes.length);
+            buffer.write(bytes);
+            offset += bytes.length;
+            rowCount++;
+            if (buffer.size() >= WRITE_BUFFER_SIZE)
+                writeRows();
+
+            if (table.getMode() == Mode.LIGHT)
+                return;
+
+            for (Map.Entry<String, Object> columnValue : row.getColumnsToValues().entrySet()) {
+                Column<?> column = table.getColumn(columnValue.getKey());
+                if (column == null || !column.isIndexed())
+                    continue;
+
+                // numeric folders are found when the runs are merged, the folder layout could change before then
+                boolean numericFolders = IndexRuns.hasNumericFolders(column);
+                String folderPath = (numericFolders)?
+                    Index.buildColumnPath(database.getRootDirectory(), table.getTableName(), partition, column.getName())
+                    : Index.buildIndexRootPath(database.getRootDirectory(), table, partition, column, columnValue.getValue());
+                String number = (numericFolders)? Index.getNumericIndexValue(column, columnValue.getValue()).toPlainString() : "";
+                Object value = Index.prepareValueForIndexName(columnValue.getValue(), column);
+                columnRuns.computeIfAbsent(column.getName(), name -> new IndexRuns(stagingPath + "/" + name, table, partition, column))
+                    .add( new IndexEntry(folderPath, value.toString(), number, route.getOffsetInTable(), route.getLengthInTable()) );
+            }
+        }
+
+        void writeRows() throws IOException {
+            if (buffer.size() == 0)
+                return;
+
+            fileUtil.writeBytesAppend(tablePath, buffer.toByteArray());
+            buffer.reset();
+        }
+
+        /**
+         * One merge per indexed column, writing each index file once
+         */
+        void buildIndices() throws IOException {
+            // every entry is spilled before any index is written, so a failed load can always find them again
+            for (IndexRuns runs : columnRuns.values())
+                runs.spill();
+
+            Lock lock = table.getIndexLayoutLock().readLock();
+            lock.lock();
+            try {
+                for (Map.Entry<String, IndexRuns> entry : columnRuns.entrySet()) {
+                    Column<?> column = table.getColumn(entry.getKey());
+                    entry.getValue().merge( (folderPath, group) -> addToIndex(table, partition, column, folderPath, group) );
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void finish() {
+            if (table.getMode() != Mode.LIGHT) {
+                table.setSize(partition, startRowCount + rowCount);
+
+                ColumnarSidecar sidecar = (table.hasColumnarColumns())? ColumnarSidecar.of(table, partition) : null;
+                if (sidecar != null)
+                    sidecar.invalidate();
+            }
+        }
+
+        void scheduleRepartitions() {
+            columnRuns.values().forEach( runs ->
+                runs.getNumericFolders().forEach( folderPath -> IndexMaintenance.scheduleRepartitionIfFull(table, partition, folderPath) )
+            );
+        }
+    }
+
+    private static void addToIndex(Table<?> table, String partition, Column<?> column, String folderPath, List<IndexEntry> group) {
+        IndexEntry first = group.get(0);
+        if (column.isUnique() && group.size() > 1)
+            throw new DavaException(UNIQUE_CONSTRAINT_VIOLATION, "Rows being loaded have the same unique value or key: " + first.value, null);
+
+        // partitions are merged one at a time, so this also finds values loaded into the partitions merged before
+        BigDecimal number = (first.number.isEmpty())? null : new BigDecimal(first.number);
+        if (column.isUnique() && BaseOperationService.isInOtherPartition(table, partition, column, first.value, number))
+            throw new DavaException(UNIQUE_CONSTRAINT_VIOLATION, "Row already exists with unique value or key: " + first.value, null);
+
+        List<IndexWritePackage> writePackages = group.stream()
+            .map(entry -> new IndexWritePackage(new Route(null, entry.offset, entry.length), column, entry.value, folderPath))
+            .toList();
+        BaseOperationService.addToIndex(folderPath, first.value, writePackages, column.isUnique());
+    }
+
+    private static void removeFromIndex(String folderPath, List<IndexEntry> group, long startSize) throws IOException {
+        IndexEntry first = group.get(0);
+        if (Index.isSingleFileIndexPath(folderPath)) {
+            SingleFileIndex index = Index.openSingleFileIndex(folderPath);
+            group.forEach( entry -> index.delete(entry.value, entry.offset, entry.length) );
+            return;
+        }
+
+        String indexPath = Index.indexPathBypass(folderPath, first.value);
+        if (!fileUtil.exists(indexPath))
+            return;
+
+        BaseOperationService.indexCache.invalidate(indexPath);
+        try {
+            long newSize = fileUtil.removeRecords(
+                indexPath,
+                RouteBuffer.ROUTE_SIZE,
+                (bytes, start) -> RouteBuffer.decodeOffset(bytes, start) >= startSize
+            );
+            if (newSize == 0)
+                fileUtil.deleteFile(indexPath);
+        } finally {
+            BaseOperationService.indexCache.invalidate(indexPath);
+        }
+    }
+
+    /**
+     * Numeric count files hold the number of index files in the folder. They're counted again after a load
+     * instead of being kept up to date for each new index file.
+     */
+    private static void recountNumericFolder(String folderPath) throws IOException {
+        if (!fileUtil.exists(folderPath))
+            return;
+
+        File[] files = fileUtil.listFiles(folderPath);
+        long count = (files == null)? 0 : Arrays.stream(files).filter(file -> file.getName().endsWith(".index")).count();
+        fileUtil.replaceFile(folderPath + "/c.count", TypeToByteUtil.longToByteArray(count));
+    }
+
+    private static void deleteStaging(String stagingPath) {
+        try {
+            if (fileUtil.exists(stagingPath))
+                fileUtil.deleteDirectory(stagingPath);
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error deleting bulk load staging folder: " + stagingPath, e);
+        }
+    }
+
+
+
+    /**
+     * A route to add to an index file (or a key of a single file index). For numeric folder indices the folder
+     * path is the column's folder, and the number is used to find the folder in it when merging.
+     */
+    private static class IndexEntry {
+
+        private static final Comparator<IndexEntry> ORDER = Comparator
+            .comparing((IndexEntry entry) -> entry.folderPath)
+            .thenComparing(entry -> entry.value)
+            .thenComparingLong(entry -> entry.offset);
+
+        private final String folderPath;
+        private final String value;
+        private final String number; // empty unless the index has numeric folders
+        private final long offset;
+        private final int length;
+
+
+        IndexEntry(String folderPath, String value, String number, long offset, int length) {
+            this.folderPath = folderPath;
+            this.value = value;
+            this.number = number;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean sameIndex(IndexEntry other) {
+            return folderPath.equals(other.folderPath) && value.equals(other.value);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(folderPath);
+            out.writeUTF(value);
+            out.writeUTF(number);
+            out.writeLong(offset);
+            out.writeInt(length);
+        }
+
+        static IndexEntry read(DataInputStream in) throws IOException {
+            try {
+                return new IndexEntry(in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), in.readInt());
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface GroupVisitor {
+        void visit(String folderPath, List<IndexEntry> group) throws IOException;
+    }
+
+    /**
+     * The sorted runs of one column's index entries, an external merge sort split into spilling and merging
+     */
+    private static class IndexRuns {
+
+        private final String folder;
+        private final Table<?> table;
+        private final String partition;
+        private final String columnName;
+        private final boolean numericFolders; // numeric folders have a count file to keep up to date
+        private final List<IndexEntry> entries = new ArrayList<>();
+        private final Set<String> folders = new LinkedHashSet<>(); // numeric folders entries were added to
+        private int runCount;
+
+
+        IndexRuns(String folder, Table<?> table, String partition, Column<?> column) {
+            this.folder = folder;
+            this.table = table;
+            this.partition = partition;
+            this.columnName = column.getName();
+            this.numericFolders = hasNumericFolders(column);
+        }
+
+        static boolean hasNumericFolders(Column<?> column) {
+            return Index.isNumericallyIndexed(column.getType()) && !column.hasSingleFileIndex();
+        }
+
+        void add(IndexEntry entry) throws IOException {
+            entries.add(entry);
+            if (entries.size() >= RUN_SIZE)
+                spill();
+        }
+
+        void spill() throws IOException {
+            if (entries.isEmpty())
+                return;
+
+            entries.sort(IndexEntry.ORDER);
+            fileUtil.createDirectoriesIfNotExist(folder);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(folder + "/" + runCount++ + ".run")))) {
+                for (IndexEntry entry : entries)
+                    entry.write(out);
+            }
+            entries.clear();
+        }
+
+        /**
+         * Passes the entries for each index file, and the folder it's in, to the visitor in order. Then recounts the
+         * numeric folders. Numeric folders are found from the current folder layout, so call this holding the index
+         * layout lock.
+         */
+        void merge(GroupVisitor visitor) throws IOException {
+            File[] runFiles = fileUtil.listFiles(folder);
+            if (runFiles == null)
+                return;
+
+            List<DataInputStream> inputs = new ArrayList<>();
+            PriorityQueue<Map.Entry<IndexEntry, DataInputStream>> heads = new PriorityQueue<>(Map.Entry.comparingByKey(IndexEntry.ORDER));
+            try {
+                for (File runFile : runFiles) {
+                    if (!runFile.getName().endsWith(".run"))
+                        continue;
+
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile)));
+                    inputs.add(in);
+                    IndexEntry head = IndexEntry.read(in);
+                    if (head != null)
+                        heads.add(Map.entry(head, in));
+                }
+
+                List<IndexEntry> group = new ArrayList<>();
+                while (!heads.isEmpty()) {
+                    Map.Entry<IndexEntry, DataInputStream> head = heads.poll();
+                    IndexEntry entry = head.getKey();
+                    IndexEntry next = IndexEntry.read(head.getValue());
+                    if (next != null)
+                        heads.add(Map.entry(next, head.getValue()));
+
+                    if (!group.isEmpty() && !group.get(0).sameIndex(entry)) {
+                        visitor.visit(folderFor(group.get(0)), group);
+                        group = new ArrayList<>();
+                    }
+                    group.add(entry);
+                }
+                if (!group.isEmpty())
+                    visitor.visit(folderFor(group.get(0)), group);
+
+                for (String numericFolder : folders)
+                    recountNumericFolder(numericFolder);
+            } finally {
+                for (DataInputStream in : inputs)
+                    in.close();
+            }
+        }
+
+        private String folderFor(IndexEntry entry) {
+            if (!numericFolders)
+                return entry.folderPath;
+
+            String folderPath = Index.findIndexPathForNumber(
+                table.getDatabaseRoot(),
+                table.getTableName(),
+                partition,
+                columnName,
+                table.getNumericLeaves(partition, columnName),
+                new BigDecimal(entry.number)
+            );
+            folders.add(folderPath);
+            return folderPath;
+        }
+
+        Set<String> getNumericFolders() {
+            return folders;
+        }
+    }
+
+}
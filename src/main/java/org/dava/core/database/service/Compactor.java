@@ -0,0 +1,321 @@
+package org.dava.core.database.service;
+
+import org.dava.core.common.logger.Logger;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.LineScanner;
+import org.dava.core.database.service.operations.Delete;
+import org.dava.core.database.service.operations.Insert;
+import org.dava.core.database.service.operations.common.Batch;
+import org.dava.core.database.service.structure.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.dava.core.database.objects.exception.ExceptionType.BASE_IO_ERROR;
+
+/**
+ * Background compaction of table partitions. Deleted rows are overwritten with whitespace and left in the
+ * file (see {@link FreeSpace}), so a partition that had lots of rows deleted is mostly holes that full scans
+ * still read over.
+ *
+ * <p> Compaction moves rows from the end of the file into empty rows before them, a few rows at a time. Each
+ * move is a normal delete and insert in one batch, so indices, columnar sidecars, the empties journal and the
+ * rollback log are all updated the same as any other write. Once the rows at the end are moved, the file
+ * is truncated after the last row left.
+ *
+ * <p> Moves don't begin a transaction in the rollback log, they're logged as part of the partition's last one. So
+ * rolling back still undoes the last user write, after putting the rows the compactor moved since back where they
+ * were (the space after them that was truncated is made empty rows again).
+ *
+ * <p> Partitions with an insert that may still be rolled back are left alone (see {@link Table#holdCompaction}),
+ * rolling back needs the rows the insert wrote to be where it wrote them.
+ *
+ * <p> Each step holds the table's compaction write lock while it runs. Writes and row reads wait for a step
+ * to finish, but a step is only {@link #MOVE_STEP} rows. Batches built before a step fail when executed
+ * (rows they write over may have moved) and need to be built again.
+ */
+public class Compactor {
+
+    public static double BLOAT_THRESHOLD = 0.5; // share of the file that's empty rows before compacting
+    public static long MIN_FILE_SIZE = 16L * 1024 * 1024; // smaller files aren't worth compacting
+    private static final int MOVE_STEP = 256; // rows moved while holding the compaction lock
+    private static final long STEP_PAUSE_MILLIS = 5; // time given to other writers between steps
+    private static final long LOCK_WAIT_SECONDS = 10;
+    private static final int VERIFY_CHUNK_SIZE = 1024 * 1024;
+
+    public static FileUtil fileUtil = new FileUtil();
+
+    private static final Logger log = Logger.getLogger(Compactor.class.getName());
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dava-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+
+    /**
+     * Queues a compaction of the partition if enough of it is empty rows. Does nothing if it's already queued.
+     */
+    public static void scheduleIfBloated(Database database, Table<?> table, String partition) {
+        if (table.getMode() == Mode.LIGHT)
+            return;
+        if (fileUtil.fileSize(table.getTablePath(partition)) < MIN_FILE_SIZE || table.getBloat(partition) < BLOAT_THRESHOLD)
+            return;
+
+        String tablePath = table.getTablePath(partition);
+        if (pending.add(tablePath)) {
+            executor.execute( () -> {
+                try {
+                    long reclaimed = compact(database, table, partition);
+                    log.info("Compacted " + tablePath + ", reclaimed " + reclaimed + " bytes");
+                } catch (Exception e) {
+                    log.error("Compaction failed for " + tablePath + ": " + e.getMessage());
+                } finally {
+                    synchronized (pending) {
+                        pending.remove(tablePath);
+                        pending.notifyAll();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Blocks until all queued compactions are done. Call before deleting or replacing database files.
+     */
+    public static void awaitIdle() {
+        synchronized (pending) {
+            while (!pending.isEmpty()) {
+                try {
+                    pending.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves rows at the end of the partition into empty rows before them, then truncates the file after the
+     * last row. Runs on the calling thread.
+     *
+     * @return the number of bytes the table file shrank by
+     */
+    public static long compact(Database database, Table<?> table, String partition) {
+        if (table.getMode() == Mode.LIGHT)
+            return 0;
+
+        String tablePath = table.getTablePath(partition);
+        long startSize = fileUtil.fileSize(tablePath);
+
+        // split empties leave smaller empties behind, which the next pass can fill
+        long reclaimed;
+        do {
+            long passStart = fileUtil.fileSize(tablePath);
+            compactPass(database, table, partition);
+            reclaimed = passStart - fileUtil.fileSize(tablePath);
+        } while (reclaimed > 0);
+
+        return startSize - fileUtil.fileSize(tablePath);
+    }
+
+    /**
+     * The last rows in the file are paired with the first empties in the file they fit in, until the two meet
+     */
+    private static void compactPass(Database database, Table<?> table, String partition) {
+        String tablePath = table.getTablePath(partition);
+        FreeSpace freeSpace = table.getFreeSpace(partition);
+
+        // routes of the rows and empties, in file order
+        RouteBuffer rows = new RouteBuffer();
+        BaseOperationService.forEachRowInTablePartition(table, partition, row -> {
+            rows.add(row.getLocationInTable());
+            return true;
+        });
+        RouteBuffer empties = freeSpace.getRoutesByOffset();
+
+        int last = rows.size() - 1; // last row that hasn't been moved
+        int nextEmpty = 0;
+        long movedEnd = headerEnd(table, partition); // end of the last empty rows were moved into
+        boolean moving = true;
+        while (moving && last >= 0) {
+            Lock lock = table.getCompactionLock().writeLock();
+            if (!tryLock(lock))
+                return;
+            try {
+                // an insert that may still be rolled back needs the rows it wrote where they are
+                if (table.isCompactionHeld(partition))
+                    return;
+
+                // rows could have been deleted or moved by other writes since the scan, so they're read again
+                int stepEnd = Math.max(last - MOVE_STEP, -1);
+                List<Route> candidates = new ArrayList<>();
+                for (int i = last; i > stepEnd; i--)
+                    candidates.add(new Route(partition, rows.getOffset(i), rows.getLength(i)));
+                List<Object> reads = fileUtil.readBytes(
+                    tablePath,
+                    candidates.stream().map(Route::getOffsetInTable).toList(),
+                    candidates.stream().map(route -> (long) route.getLengthInTable()).toList()
+                );
+
+                List<Row> toMove = new ArrayList<>();
+                List<Route> targets = new ArrayList<>();
+                for (int i = 0; i < candidates.size() && moving; i++) {
+                    Route route = candidates.get(i);
+                    byte[] bytes = (byte[]) reads.get(i);
+                    if (!isRow(bytes)) {
+                        last--;
+                        continue;
+                    }
+
+                    Route target = null;
+                    while (target == null && nextEmpty < empties.size() && empties.getOffset(nextEmpty) < route.getOffsetInTable()) {
+                        // empties too small for this row are left, rows are usually close to the same length
+                        if (empties.getLength(nextEmpty) >= route.getLengthInTable())
+                            target = freeSpace.takeAt(empties.getOffset(nextEmpty), empties.getLength(nextEmpty));
+                        nextEmpty++;
+                    }
+                    if (target == null) {
+                        moving = false;
+                        break;
+                    }
+
+                    toMove.add(Row.of(bytes, 0, bytes.length, table, route));
+                    targets.add(target);
+                    movedEnd = Math.max(movedEnd, target.getOffsetInTable() + target.getLengthInTable());
+                    last--;
+                }
+
+                if (!toMove.isEmpty())
+                    moveRows(database, table, partition, toMove, targets);
+            } catch (IOException e) {
+                throw new DavaException(BASE_IO_ERROR, "Error reading rows to compact from table: " + tablePath, e);
+            } finally {
+                lock.unlock();
+            }
+
+            pause();
+        }
+
+        long end = (last >= 0)? Math.max(rows.getOffset(last) + rows.getLength(last), movedEnd) : movedEnd;
+        truncateEmptyTail(table, partition, end);
+    }
+
+
+
+    private static void moveRows(Database database, Table<?> table, String partition, List<Row> rows, List<Route> empties) {
+        List<Row> copies = rows.stream()
+            .map(Row::copy)
+            .toList();
+
+        Batch batch;
+        try {
+            batch = new Delete(database, table).addToBatch(rows, true, new Batch());
+            new Insert(database, table, partition).intoEmpties(empties).addToBatch(copies, false, batch);
+        } catch (RuntimeException e) {
+            table.getFreeSpace(partition).release(empties);
+            throw e;
+        }
+
+        // added to the partition's last transaction, rolling that back undoes the moves first. If it fails before
+        // writing anything it gives back the empty rows itself
+        batch.execute(table, false);
+        table.incrementCompactionGeneration(partition);
+    }
+
+    /**
+     * A whole row, not whitespace or part of a row written since the scan
+     */
+    private static boolean isRow(byte[] bytes) {
+        if (bytes == null || bytes.length == 0 || bytes[bytes.length - 1] != '\n')
+            return false;
+
+        boolean whitespace = true;
+        for (int i = 0; i < bytes.length - 1; i++) {
+            if (bytes[i] == '\n')
+                return false;
+            if (bytes[i] != ' ')
+                whitespace = false;
+        }
+        return !whitespace;
+    }
+
+    /**
+     * Truncates the table file at 'end', if everything after it is still empty rows
+     */
+    private static void truncateEmptyTail(Table<?> table, String partition, long end) {
+        String tablePath = table.getTablePath(partition);
+        Lock lock = table.getCompactionLock().writeLock();
+        if (!tryLock(lock))
+            return;
+        try {
+            long fileSize = fileUtil.fileSize(tablePath);
+            if (table.isCompactionHeld(partition) || end >= fileSize || !isEmptyRows(tablePath, end, fileSize))
+                return;
+
+            table.getFreeSpace(partition).truncate(end);
+            fileUtil.truncate(tablePath, end);
+            table.incrementCompactionGeneration(partition);
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error truncating compacted table file: " + tablePath, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isEmptyRows(String tablePath, long from, long to) throws IOException {
+        for (long position = from; position < to; position += VERIFY_CHUNK_SIZE) {
+            int length = (int) Math.min(VERIFY_CHUNK_SIZE, to - position);
+            byte[] bytes = fileUtil.readBytes(tablePath, position, length);
+            if (bytes == null)
+                return false;
+            for (byte b : bytes) {
+                if (b != ' ' && b != '\n')
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static long headerEnd(Table<?> table, String partition) {
+        long[] end = new long[1];
+        try {
+            new LineScanner(fileUtil, false).scan(table.getTablePath(partition), (buffer, from, length, offset) -> {
+                end[0] = length + 1;
+                return false;
+            });
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error reading header of table: " + table.getTablePath(partition), e);
+        }
+        return end[0];
+    }
+
+    private static boolean tryLock(Lock lock) {
+        try {
+            return lock.tryLock(LOCK_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(STEP_PAUSE_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+package org.dava.core.database.service;
+
+import org.dava.core.common.HashUtil;
+import org.dava.core.common.logger.Logger;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileStamp;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.structure.Database;
+import org.dava.core.database.service.structure.Index;
+import org.dava.core.database.service.structure.Table;
+import org.dava.core.database.service.type.compression.TypeToByteUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+import static org.dava.core.database.objects.exception.ExceptionType.INDEX_CREATION_ERROR;
+
+/**
+ * Background maintenance for indices. Right now that's repartitioning numeric index folders that
+ * have more than {@link BaseOperationService#NUMERIC_PARTITION_SIZE} index files.
+ *
+ * <p> A repartition used to happen inside the insert that filled the folder, copying every file while
+ * the insert waited. Now Batch.execute just queues the folder here, and a single maintenance thread
+ * builds the new '-median' and '+median' folders off to the side (in the partition's staging folder)
+ * a few files at a time. Readers and writers keep using the old folder the whole time.
+ *
+ * <p> The switch over happens while holding the table's index layout write lock, which blocks readers
+ * and writers of the table's indices for a moment. Any files that changed while copying are copied
+ * again, then the old folder is renamed into the staging folder and the new one renamed into its place.
+ * Batches built before the switch find their new index paths with {@link Index#relocateNumericIndexPath}.
+ *
+ * <p> Each repartition is logged to the partition's numeric rollback file as 'N:folder;staging' until it's
+ * done. See {@link Rollback#handleNumericRepartitionFailure(Table, String)} for recovering after a crash.
+ *
+ * <p> Jobs belong to the database their table is in. {@link Database#close()} stops that database's jobs
+ * and waits for them, so its folders can be deleted or replaced after. A job that finds it's folders gone
+ * stops without recreating them.
+ */
+public class IndexMaintenance {
+
+    private static final int COPY_STEP = 64; // files copied before letting other maintenance run
+
+    public static FileUtil fileUtil = new FileUtil();
+
+    private static final Logger log = Logger.getLogger(IndexMaintenance.class.getName());
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dava-index-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<String, String> pending = new ConcurrentHashMap<>(); // folder -> database root
+    private static final Set<String> closing = ConcurrentHashMap.newKeySet(); // database roots
+
+
+    /**
+     * Queues a repartition of a numeric index folder if it has too many index files. Does nothing if the
+     * folder has already been repartitioned or is already queued.
+     */
+    public static void scheduleRepartitionIfFull(Table<?> table, String partition, String folderPath) {
+        String countFile = folderPath + "/c.count";
+        if (!fileUtil.exists(countFile))
+            return;
+
+        try {
+            if (BaseOperationService.getNumericCount(countFile) <= BaseOperationService.NUMERIC_PARTITION_SIZE)
+                return;
+        } catch (IOException e) {
+            throw new DavaException(INDEX_CREATION_ERROR, "Error reading count for numeric index partition: " + countFile, e);
+        }
+
+        String databaseRoot = table.getDatabaseRoot();
+        if (closing.contains(databaseRoot))
+            return;
+
+        if (pending.putIfAbsent(folderPath, databaseRoot) == null)
+            executor.execute(new RepartitionJob(table, partition, folderPath));
+    }
+
+    /**
+     * Blocks until all queued maintenance is done. Call before deleting or replacing database files.
+     */
+    public static void awaitIdle() {
+        awaitIdle(null);
+    }
+
+    /**
+     * Blocks until the queued maintenance of one database is done, or of every database if 'databaseRoot'
+     * is null.
+     */
+    public static void awaitIdle(String databaseRoot) {
+        synchronized (pending) {
+            while (pending.values().stream().anyMatch(root -> databaseRoot == null || root.equals(databaseRoot))) {
+                try {
+                    pending.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the queued maintenance of a database and waits for any job that's running. Repartitions that
+     * haven't switched over yet are dropped, the old folders are left as they were.
+     */
+    public static void close(String databaseRoot) {
+        closing.add(databaseRoot);
+        try {
+            awaitIdle(databaseRoot);
+        } finally {
+            closing.remove(databaseRoot);
+        }
+    }
+
+    /**
+     * Finishes or undoes a repartition that stopped part way. If the old folder was already moved out, the
+     * new folder is complete and is moved into place, otherwise the new folder is thrown away.
+     */
+    public static void recoverRepartition(String folderPath, String stagingPath) throws IOException {
+        String newFolder = stagingPath + "/new";
+        if (!fileUtil.exists(folderPath) && fileUtil.exists(newFolder)) {
+            if (!fileUtil.renameFile(newFolder, folderPath))
+                throw new IOException("Couldn't move repartitioned folder back into place: " + folderPath);
+        }
+        if (fileUtil.exists(stagingPath))
+            fileUtil.deleteDirectory(stagingPath);
+    }
+
+
+
+    /**
+     * Repartition of one folder, split into steps that each run as a separate task on the maintenance thread.
+     */
+    private static class RepartitionJob implements Runnable {
+
+        private final Table<?> table;
+        private final String partition;
+        private final String folderPath;
+        private final String stagingPath;
+
+        private Object folderKey;
+        private BigDecimal median;
+        private List<File> toCopy;
+        private int copied = 0;
+        private final Map<String, FileStamp> copiedStamps = new HashMap<>();
+
+
+        RepartitionJob(Table<?> table, String partition, String folderPath) {
+            this.table = table;
+            this.partition = partition;
+            this.folderPath = folderPath;
+            this.stagingPath = table.getRepartitionStagingPath(partition) + "/"
+                + HashUtil.hashToUUID(folderPath.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void run() {
+            boolean done = true;
+            if (folderGone()) {
+                // the database was deleted or replaced under the job, so there's nothing to clean up
+                finish(false);
+                return;
+            }
+
+            try {
+                if (closing.contains(table.getDatabaseRoot()))
+                    abandon();
+                else if (toCopy == null)
+                    done = !start();
+                else if (copied < toCopy.size())
+                    done = !copyStep();
+                else
+                    switchOver();
+            } catch (Exception e) {
+                if (folderGone()) {
+                    finish(false);
+                    return;
+                }
+
+                log.error("Numeric index repartition failed for " + folderPath + ": " + e.getMessage());
+                try {
+                    recoverRepartition(folderPath, stagingPath);
+                } catch (IOException recoveryException) {
+                    log.error("Couldn't clean up failed repartition, it will be recovered on restart: " + folderPath);
+                    finish(false);
+                    return;
+                }
+            }
+
+            if (done)
+                finish(true);
+            else
+                executor.execute(this);
+        }
+
+        /**
+         * True if the folder being repartitioned, or the staging folder once copying started, isn't there
+         */
+        private boolean folderGone() {
+            return !fileUtil.exists(folderPath) || (toCopy != null && !fileUtil.exists(stagingPath + "/new"));
+        }
+
+        /**
+         * Drops the copies made so far. The old folder is still in place until the switch over.
+         */
+        private void abandon() throws IOException {
+            if (toCopy != null && fileUtil.exists(stagingPath))
+                fileUtil.deleteDirectory(stagingPath);
+        }
+
+        /**
+         * @return false if there's nothing to do
+         */
+        private boolean start() throws IOException {
+            File[] files = fileUtil.listFiles(folderPath);
+            FileStamp folderStamp = FileStamp.of(folderPath);
+            if (files == null || folderStamp == null)
+                return false;
+
+            toCopy = Arrays.stream(files)
+                .filter(file -> file.getName().endsWith(".index"))
+                .toList();
+            boolean alreadyRepartitioned = Arrays.stream(files).anyMatch(File::isDirectory);
+            if (alreadyRepartitioned || toCopy.size() <= Math.max(BaseOperationService.NUMERIC_PARTITION_SIZE, 1))
+                return false;
+
+            folderKey = folderStamp.fileKey();
+            median = chooseMedian(toCopy);
+
+            if (fileUtil.exists(stagingPath))
+                fileUtil.deleteDirectory(stagingPath);
+            fileUtil.createDirectoriesIfNotExist(lowerPath());
+            fileUtil.createDirectoriesIfNotExist(upperPath());
+            logRepartition(table.getNumericRollbackPath(partition), "N:" + folderPath + ";" + stagingPath + "\n");
+            return true;
+        }
+
+        /**
+         * @return true if there's more to do
+         */
+        private boolean copyStep() throws IOException {
+            int end = Math.min(copied + COPY_STEP, toCopy.size());
+            for (; copied < end; copied++) {
+                copyToStaging(toCopy.get(copied));
+            }
+            return true;
+        }
+
+        private void switchOver() throws IOException {
+            Lock lock = table.getIndexLayoutLock().writeLock();
+            lock.lock();
+            try {
+                // the folder could have been deleted or replaced while we were copying
+                FileStamp folderStamp = FileStamp.of(folderPath);
+                if (folderStamp == null || !Objects.equals(folderStamp.fileKey(), folderKey))
+                    throw new IOException("Numeric index folder changed during repartition: " + folderPath);
+
+                // copy anything written since it was copied, and drop anything deleted
+                File[] files = fileUtil.listFiles(folderPath);
+                Set<String> current = new HashSet<>();
+                for (File file : files) {
+                    if (!file.getName().endsWith(".index"))
+                        continue;
+
+                    current.add(file.getName());
+                    if (!Objects.equals(copiedStamps.get(file.getName()), FileStamp.of(file.getPath())))
+                        copyToStaging(file);
+                }
+                for (String name : copiedStamps.keySet()) {
+                    if (!current.contains(name))
+                        fileUtil.deleteFile(stagingFolderFor(name) + "/" + name);
+                }
+
+                writeCount(lowerPath());
+                writeCount(upperPath());
+
+                // swap the folders
+                FileUtil.channelPool.invalidateDirectory(folderPath);
+                BaseOperationService.indexCache.invalidateFolder(folderPath);
+                if (!fileUtil.renameFile(folderPath, stagingPath + "/old"))
+                    throw new IOException("Couldn't move numeric index folder out for repartition: " + folderPath);
+                if (!fileUtil.renameFile(stagingPath + "/new", folderPath))
+                    throw new IOException("Couldn't move repartitioned numeric index folder into place: " + folderPath);
+
+                table.splitColumnLeaf(partition, Index.getColumnNameFromPath(table.getDatabaseRoot(), table.getTableName(), folderPath), folderPath, median);
+            } finally {
+                lock.unlock();
+            }
+
+            fileUtil.deleteDirectory(stagingPath);
+        }
+
+        private void copyToStaging(File file) throws IOException {
+            FileStamp stamp = FileStamp.of(file.getPath());
+            if (stamp == null)
+                return; // deleted since listing, handled at the switch over
+
+            fileUtil.copyFilesToDirectory(List.of(file), stagingFolderFor(file.getName()));
+            copiedStamps.put(file.getName(), stamp);
+        }
+
+        private void writeCount(String folder) throws IOException {
+            File[] files = fileUtil.listFiles(folder);
+            long count = (files == null)? 0 : Arrays.stream(files).filter(file -> file.getName().endsWith(".index")).count();
+            fileUtil.deleteFile(folder + "/c.count");
+            fileUtil.createFile(folder + "/c.count", TypeToByteUtil.longToByteArray(count));
+        }
+
+        private void finish(boolean clearLog) {
+            if (clearLog) {
+                try {
+                    removeLoggedRepartition(table.getNumericRollbackPath(partition), "N:" + folderPath + ";" + stagingPath);
+                } catch (IOException e) {
+                    log.error("Couldn't clear numeric rollback log for " + folderPath + ": " + e.getMessage());
+                }
+            }
+
+            synchronized (pending) {
+                pending.remove(folderPath);
+                pending.notifyAll();
+            }
+        }
+
+        private String stagingFolderFor(String fileName) {
+            BigDecimal value = new BigDecimal(fileName.replace(".index", ""));
+            return (value.compareTo(median) < 0)? lowerPath() : upperPath();
+        }
+
+        private String lowerPath() {
+            return stagingPath + "/new/-" + median;
+        }
+
+        private String upperPath() {
+            return stagingPath + "/new/+" + median;
+        }
+    }
+
+    /**
+     * The middle value of the index files, so both new folders get half
+     */
+    private static BigDecimal chooseMedian(List<File> indexFiles) {
+        List<BigDecimal> values = indexFiles.stream()
+            .map(file -> new BigDecimal(file.getName().replace(".index", "")))
+            .sorted()
+            .toList();
+        return values.get(values.size() / 2);
+    }
+
+    private static synchronized void logRepartition(String numericRollbackPath, String line) throws IOException {
+        fileUtil.writeBytesAppend(numericRollbackPath, line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static synchronized void removeLoggedRepartition(String numericRollbackPath, String line) throws IOException {
+        if (!fileUtil.exists(numericRollbackPath))
+            return;
+
+        String remaining = Arrays.stream(fileUtil.readFile(numericRollbackPath).split("\n"))
+            .filter(logged -> !logged.isBlank() && !logged.equals(line))
+            .map(logged -> logged + "\n")
+            .collect(Collectors.joining());
+        fileUtil.replaceFile(numericRollbackPath, remaining.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
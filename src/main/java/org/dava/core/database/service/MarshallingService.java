@@ -134,8 +134,8 @@ public class MarshallingService {
     }
 
     public static <T> Field getPrimaryKeyField(Class<T> tableClass) {
-        for (Field field : tableClass.getFields()) {
-            Annotation primaryKeyAnnotation = tableClass.getAnnotation(PrimaryKey.class);
+        for (Field field : tableClass.getDeclaredFields()) {
+            Annotation primaryKeyAnnotation = field.getAnnotation(PrimaryKey.class);
 
             if (primaryKeyAnnotation != null) 
                 return field;
@@ -192,15 +192,26 @@ public class MarshallingService {
 
 
     public static <T> T parseObject(Row row, Class<T> tableClass) {
+        return parseObject(row, tableClass, null);
+    }
+
+    /**
+     * Makes a table object from a row, only setting the fields in the projection. Rows read from a table
+     * are decoded lazily, so columns that aren't in the projection are never parsed.
+     *
+     * @param projection names of the fields to set, or null for all of them
+     */
+    public static <T> T parseObject(Row row, Class<T> tableClass, Set<String> projection) {
         
         T object;
         try {
             Constructor<?> defaultConstructor = tableClass.getDeclaredConstructor();
             object = safeCast(defaultConstructor.newInstance(), tableClass);
-
-            Map<String, Object> rowValues = row.getColumnsToValues();
         
             for (Field field : tableClass.getFields()) {
+                if (projection != null && !projection.contains(field.getName()))
+                    continue;
+
                 boolean originalAccessibility = field.canAccess(object);
 
                 try {
@@ -208,7 +219,7 @@ public class MarshallingService {
 
                     field.set(
                         object, 
-                        rowValues.get(field.getName())
+                        row.getValue(field.getName())
                     );
                 } finally {
                     // Restore the original accessibility status
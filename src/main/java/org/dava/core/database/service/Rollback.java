@@ -2,7 +2,9 @@ package org.dava.core.database.service;
 
 import org.dava.core.database.objects.exception.DavaException;
 import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.WriteAheadLog;
 import org.dava.core.database.service.operations.common.Batch;
+import org.dava.core.database.service.structure.ColumnarSidecar;
 import org.dava.core.database.service.structure.Table;
 
 import java.io.File;
@@ -22,106 +24,162 @@ public class Rollback {
 
 
     public void rollback(Table<?> table, String partition, String rollbackPath) {
-        List<Batch> batches = parse(rollbackPath, table, partition);
+        rollback(table, partition, parse(rollbackPath, table, partition));
+    }
 
+    /**
+     * Undoes batches that were executed on the partition, oldest first in the list
+     */
+    public void rollback(Table<?> table, String partition, List<Batch> batches) {
         // undo the batches in chronological order
+        batches = new ArrayList<>(batches);
         Collections.reverse(batches);
 
         batches.stream()
             .forEach(batch -> {
                 batch.rollback(table, partition);
             });
+
+        // rebuilt from the restored table the next time it's used
+        if (table.hasColumnarColumns())
+            ColumnarSidecar.of(table, partition).invalidate();
     }
 
 
+    /**
+     * Reads the batches in the current transaction of a partition's rollback log, oldest first. Logs written
+     * by older versions (text separated by '--') are still read.
+     */
     public static List<Batch> parse(String rollbackPath, Table<?> table, String partition) {
 
         try {
-            
-            List<String> batches = new ArrayList<>( 
-                List.of(
-                    new String(
-                        fileUtil.readBytes(rollbackPath), StandardCharsets.UTF_8
-                    ).split("--")
-                )
-            );
+            byte[] bytes = fileUtil.readBytes(rollbackPath);
 
-            // remove the last empty value from the split
-            // (this also ensure that failures during logging the rollback string are not attempted to rollback)
-            batches.remove(batches.size()-1);
+            if (WriteAheadLog.isWriteAheadLog(bytes)) {
+                // torn or corrupt records at the end are left out of this
+                return WriteAheadLog.readLastTransaction(bytes).stream()
+                    .map( record -> Batch.readRollbackRecord(record, table, partition) )
+                    .collect(Collectors.toList());
+            }
 
-            return batches.stream()
-                .map( batchString -> {
-                    List<String> lines = List.of(batchString.split("\n"));
-                    return Batch.parse(lines, table, partition);
-                })
-                .collect(Collectors.toList());
+            return parseText(bytes, table, partition);
 
         } catch (IOException e) {
             throw new DavaException(ROLLBACK_ERROR, "Error parsing rollback file: " + rollbackPath, e);
         }
     }
 
+    private static List<Batch> parseText(byte[] bytes, Table<?> table, String partition) {
+        List<String> batches = new ArrayList<>(
+            List.of(
+                new String(bytes, StandardCharsets.UTF_8).split("--")
+            )
+        );
+
+        // remove the last empty value from the split
+        // (this also ensure that failures during logging the rollback string are not attempted to rollback)
+        batches.remove(batches.size()-1);
+
+        return batches.stream()
+            .map( batchString -> {
+                List<String> lines = List.of(batchString.split("\n"));
+                return Batch.parse(lines, table, partition);
+            })
+            .collect(Collectors.toList());
+    }
+
 
+    /**
+     * Finishes or undoes numeric repartitions that were interrupted by a crash, using the 'N:' lines in the
+     * partition's numeric rollback file. The file is emptied afterwards.
+     *
+     * <p> Repartitions done by {@link IndexMaintenance} are logged as 'N:folder;staging'. Those are built off to the
+     * side and swapped in with two renames, so recovering is just finishing or undoing the swap. Lines without a staging
+     * folder are from repartitions that were done in place by older versions, and are recovered by comparing the
+     * files in the folder and its new sub folders.
+     */
     public static void handleNumericRepartitionFailure(Table<?> table, String partition) {
-        // on rollback after a crash, if not all were moved, delete all in new partitions, else delete all in current partition
-        // NOTE: this goes through every repartition in the rollback file, so if multiple repartitions occured in a transaction,
-        // then they'll all be checked again
-        List<String> lines = new ArrayList<>();
+        String numericRollbackPath = table.getNumericRollbackPath(partition);
+        if (!fileUtil.exists(numericRollbackPath))
+            return;
+
+        List<String> lines;
         try {
             lines = List.of(
                 new String(
-                    fileUtil.readBytes(table.getNumericRollbackPath(partition)), StandardCharsets.UTF_8
+                    fileUtil.readBytes(numericRollbackPath), StandardCharsets.UTF_8
                 ).split("\n")
             );
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            throw new DavaException(ROLLBACK_ERROR, "Error reading numeric rollback file: " + numericRollbackPath, e);
         }
 
         try {
             for (String line : lines) {
-                String folderPath = line.split(":")[1];
-                File[] files = fileUtil.listFiles(folderPath);
-                List<File> filesInNewPartitions = new ArrayList<>();
-                List<File> filesInCurrent = new ArrayList<>();
-                List<File> directories = new ArrayList<>();
-                for (File file : files) {
-                    if (!file.isDirectory()) {
-                        filesInCurrent.add(file);
-                    }
-                    else {
-                        directories.add(file);
-                        filesInNewPartitions.addAll(
-                            List.of(fileUtil.listFiles(file.getPath()))
-                        );
-                    }
-                }
-
-                // if all were moved, delete files in current partition
-                // filesInNewPartitions.size() should be filesInCurrent.size() + 1 if moved (since we have another count file now)
-                // if all were moved and some were deleted from current, then we can safely delete all in current
+                if (!line.startsWith("N:"))
+                    continue;
 
-                if (directories.size() == 2 && filesInCurrent.isEmpty()) {
-                    // don't do anything since this repartition was successful
-                }
-                else if (filesInNewPartitions.size() >= filesInCurrent.size() + 1) {
-                    for (File file : filesInCurrent) {
-                        fileUtil.deleteFile(file);
-                    }
+                String entry = line.substring(2);
+                int split = entry.indexOf(';');
+                if (split == -1) {
+                    recoverInPlaceRepartition(entry);
                 }
                 else {
-                    for (File file : filesInNewPartitions) {
-                        fileUtil.deleteFile(file);
-                    }
-                    for (File file : directories) {
-                        fileUtil.deleteFile(file);
-                    }
+                    String folderPath = entry.substring(0, split);
+                    BaseOperationService.indexCache.invalidateFolder(folderPath);
+                    IndexMaintenance.recoverRepartition(folderPath, entry.substring(split + 1));
                 }
             }
+
+            fileUtil.replaceFile(numericRollbackPath, new byte[0]);
         } catch (IOException e) {
             throw new DavaException(ROLLBACK_ERROR, "Error in rolling back repartition that failed during previous operation", e);
         }
 
     }
 
+    private static void recoverInPlaceRepartition(String folderPath) throws IOException {
+        // on rollback after a crash, if not all were moved, delete all in new partitions, else delete all in current partition
+        BaseOperationService.indexCache.invalidateFolder(folderPath);
+        File[] files = fileUtil.listFiles(folderPath);
+        if (files == null)
+            return;
+
+        List<File> filesInNewPartitions = new ArrayList<>();
+        List<File> filesInCurrent = new ArrayList<>();
+        List<File> directories = new ArrayList<>();
+        for (File file : files) {
+            if (!file.isDirectory()) {
+                filesInCurrent.add(file);
+            }
+            else {
+                directories.add(file);
+                filesInNewPartitions.addAll(
+                    List.of(fileUtil.listFiles(file.getPath()))
+                );
+            }
+        }
+
+        // if all were moved, delete files in current partition
+        // filesInNewPartitions.size() should be filesInCurrent.size() + 1 if moved (since we have another count file now)
+        // if all were moved and some were deleted from current, then we can safely delete all in current
+
+        if (directories.size() == 2 && filesInCurrent.isEmpty()) {
+            // don't do anything since this repartition was successful
+        }
+        else if (filesInNewPartitions.size() >= filesInCurrent.size() + 1) {
+            for (File file : filesInCurrent) {
+                fileUtil.deleteFile(file);
+            }
+        }
+        else {
+            for (File file : filesInNewPartitions) {
+                fileUtil.deleteFile(file);
+            }
+            for (File file : directories) {
+                fileUtil.deleteFile(file);
+            }
+        }
+    }
+
 }
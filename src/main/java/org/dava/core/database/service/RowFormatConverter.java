@@ -0,0 +1,97 @@
+package org.dava.core.database.service;
+
+import org.dava.api.annotations.RowFormat;
+import org.dava.core.common.ArrayUtil;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.LineScanner;
+import org.dava.core.database.service.operations.Update;
+import org.dava.core.database.service.operations.common.Batch;
+import org.dava.core.database.service.operations.common.WritePackage;
+import org.dava.core.database.service.structure.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.dava.core.database.objects.exception.ExceptionType.BASE_IO_ERROR;
+
+/**
+ * Rewrites the rows of a table partition in the table's current {@link RowFormat}.
+ *
+ * <p> Rows in either format can be read from the same partition file, so changing a table's
+ * format (with {@code @Table(format = ...)}) works right away: new rows are written in the new
+ * format and old rows are still read fine. This converts the old rows so the whole partition gets
+ * the faster (or readable) format.
+ *
+ * <p> A row whose new encoding fits in the space of the old one is rewritten in place, padded with
+ * spaces, so index routes and empties don't change. Rows that don't fit are moved with an update (a delete
+ * and insert in one batch), which updates the indices for them. In light mode the file is just rewritten.
+ *
+ * <p> This is meant to be run while nothing else is writing to the table.
+ */
+public class RowFormatConverter {
+
+    public static FileUtil fileUtil = new FileUtil();
+
+
+    /**
+     * Converts every row in the partition that isn't in the table's row format
+     *
+     * @return the number of rows converted
+     */
+    public static long convert(Database database, Table<?> table, String partition) {
+        try {
+            if (table.getMode() == Mode.LIGHT)
+                return rewriteLightModePartition(table, partition);
+
+            boolean toBinary = table.getRowFormat() == RowFormat.BINARY;
+            List<WritePackage> inPlace = new ArrayList<>();
+            List<Row> toMove = new ArrayList<>();
+
+            new LineScanner(fileUtil, table.getMode().usesMemoryMappedReads()).scan(table.getTablePath(partition), (buffer, from, length, offset) -> {
+                if (offset == 0 || length == 0 || buffer[from] == ' ' || BinaryRow.isBinary(buffer, from, length) == toBinary)
+                    return true; // header, deleted rows, and rows already in the right format
+
+                Route route = new Route(partition, offset, length + 1);
+                Row row = Row.of(buffer, from, length, table, route);
+                byte[] padded = Row.toBytesPadded(table, row.getColumnsToValues(), route.getLengthInTable());
+
+                if (padded != null && BinaryRow.isBinary(padded, 0, padded.length) == toBinary)
+                    inPlace.add( new WritePackage(offset, padded) );
+                else
+                    toMove.add(row);
+                return true;
+            });
+
+            fileUtil.writeBytes(table.getTablePath(partition), inPlace);
+
+            if (!toMove.isEmpty()) {
+                List<Row> newRows = toMove.stream()
+                    .map(row -> new Row(row.getColumnsToValues(), table.getTableName()))
+                    .toList();
+                new Update(database, table)
+                    .addToBatch(toMove, newRows, true, new Batch())
+                    .execute(table, true);
+            }
+
+            return inPlace.size() + toMove.size();
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error converting row format of table: " + table.getTablePath(partition), e);
+        }
+    }
+
+    private static long rewriteLightModePartition(Table<?> table, String partition) {
+        List<Row> rows = BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition);
+        byte[] rowBytes = ArrayUtil.appendArraysOfAnyLength(
+            rows.stream()
+                .map(row -> Row.toBytes(table, row.getColumnsToValues()))
+                .toList()
+        );
+
+        table.rewriteTableCsv(partition, rowBytes);
+
+        return rows.size();
+    }
+
+}
@@ -1,22 +1,60 @@
 package org.dava.core.database.service.caching;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Class for maintaining a cache of time sensitive operations.
+ *
+ * <p> Entries are spread over lock striped segments by key, so concurrent reads of different keys don't wait on
+ * each other. Each segment is a segmented LRU: new entries go in a probation section, and move to a protected
+ * section when they're used again. Entries are evicted from probation first, so one off reads (like a scan of
+ * a big table) don't push out entries that are read over and over.
+ *
+ * <p> The cache is bounded by weight instead of the number of entries. A result's weight is the number of
+ * elements in it for collections and maps, and 1 for anything else.
+ *
+ * <p> Invalidating a resource just bumps its generation. Entries from older generations are never returned, and
+ * are dropped when they're next looked up or evicted.
+ *
+ * <p> Concurrent misses on the same key are loaded once, the other callers wait for that load.
  */
 public class Cache {
 
-    private static final int MAX_CACHE_SIZE = 1000000;
-    private static final int MAX_RESOURCE_SIZE = 1000;
+    public static final long DEFAULT_MAX_WEIGHT = 1000000;
 
-    
-    private final Object lock = new Object(); // this is just a semaphore that helps prevent threads from using the map below at the same time
-    private Map<String, Map<String, Object>> pathCache = new HashMap<>();
+    private static final int SEGMENTS = 16;
+    private static final double PROTECTED_SHARE = 0.8; // of each segment's weight
+
+    private final Segment[] segments;
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>(); // by resource
+    private final AtomicLong epoch = new AtomicLong(); // bumped when the whole cache is invalidated
+    private final Map<LoadKey, CompletableFuture<Object>> loads = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    public Cache() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    public Cache(long maxWeight) {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(Math.max(maxWeight / SEGMENTS, 1));
+    }
 
 
     /**
@@ -39,6 +77,9 @@ public class Cache {
      * invalidate each operation individually. Somehow you'd have to keep track of which operations where
      * on what resource. This way you can just invalidate the resource and all operations tied to it at once.
      *
+     * <p> Null results aren't cached. If another thread is already loading the same operation, this waits for
+     * its result instead of calling 'resourceCall'.
+     *
      *
      * @param resourceName name for this resource in the cache. You'll use this when you call 'write'
      *                     to invalidate the cache for this resource
@@ -50,41 +91,60 @@ public class Cache {
      * @return the result of the lambda function or whatever was in the cache.
      */
     public <T, E extends Exception> T get(String resourceName, String operationHash, CheckedSupplier<T, E> resourceCall) throws E {
+        return load(resourceName, operationHash, resourceCall);
+    }
+
+    /**
+     * Same as {@link #get(String, String, CheckedSupplier)}, but with a structured key for the operation, which is
+     * much cheaper to make and look up than hashing the params into a string.
+     */
+    public <T, E extends Exception> T get(String resourceName, CacheKey operationKey, CheckedSupplier<T, E> resourceCall) throws E {
+        return load(resourceName, operationKey, resourceCall);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T, E extends Exception> T load(String resourceName, Object operationKey, CheckedSupplier<T, E> resourceCall) throws E {
+        Key key = new Key(resourceName, operationKey);
+        long generation = generation(resourceName).get();
+        long epochAtRead = epoch.get();
 
         // check if in cache
-        synchronized (lock){
-            Map<String, Object> resource = pathCache.get(resourceName);
-            if (resource != null) {
-                T storedResult = (T) resource.get(operationHash);
-                if (storedResult != null)
-                    return storedResult;
-            }
+        Segment segment = segments[Math.floorMod(key.hashCode(), SEGMENTS)];
+        Object cached = segment.get(key, generation, epochAtRead);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return (T) cached;
         }
-        
-        // call the provided lambda if no entry was in the cache
-        T result = resourceCall.get();
-
-        // make a resource if needed, and put the value in the resource
-        synchronized (lock){ 
-            Map<String, Object> resource = pathCache.get(resourceName);
-            if (resource != null) {
-                resource.put(operationHash, result);
-                // handle cache getting too big
-                if (resource.size() > MAX_RESOURCE_SIZE) invalidate(resourceName);
-            }
-            else {
-                Map<String, Object> resourceMap = new HashMap<>();
-                resourceMap.put(operationHash, result);
-                pathCache.put(resourceName, resourceMap);
+        misses.incrementAndGet();
+
+        // wait for a load that's already happening (loads from before an invalidation aren't shared)
+        LoadKey loadKey = new LoadKey(key, generation, epochAtRead);
+        CompletableFuture<Object> load = new CompletableFuture<>();
+        CompletableFuture<Object> existingLoad = loads.putIfAbsent(loadKey, load);
+        if (existingLoad != null) {
+            try {
+                return (T) existingLoad.join();
+            } catch (CompletionException | CancellationException e) {
+                // the other load failed, try it here so the caller gets the exception
+                return resourceCall.get();
             }
         }
 
-        // handle cache getting too big
-        if (pathCache.size() > MAX_CACHE_SIZE) {
-            invalidateCacheAll();
-        }
+        // call the provided lambda if no entry was in the cache
+        try {
+            T result = resourceCall.get();
+
+            // a write during the call may have made the result stale
+            if (result != null && generation(resourceName).get() == generation && epoch.get() == epochAtRead)
+                segment.put(key, new Entry(result, weigh(result), generation, epochAtRead));
 
-        return result;
+            load.complete(result);
+            return result;
+        } finally {
+            loads.remove(loadKey, load);
+            if (!load.isDone())
+                load.cancel(false);
+        }
     }
 
     /**
@@ -93,26 +153,197 @@ public class Cache {
      *                     run.
      */
     public void invalidate(String resourceName) {
-        synchronized (lock){
-            pathCache.remove(resourceName);
-        }
+        generation(resourceName).incrementAndGet();
     }
 
     /**
      * resets this cache, invalidating all resources
      */
     public void invalidateCacheAll() {
-        synchronized (lock){
-            pathCache.clear();
+        epoch.incrementAndGet();
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the total weight of the entries in the cache, including ones that were invalidated but not dropped yet
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments)
+            weight += segment.getWeight();
+        return weight;
+    }
+
+
+    private AtomicLong generation(String resourceName) {
+        return generations.computeIfAbsent(resourceName, name -> new AtomicLong());
+    }
+
+    private static long weigh(Object value) {
+        if (value instanceof Collection<?> collection)
+            return 1L + collection.size();
+        if (value instanceof Map<?, ?> map)
+            return 1L + map.size();
+        return 1L;
+    }
+
+
+    private record Key(String resourceName, Object operationKey) {}
+
+    private record LoadKey(Key key, long generation, long epoch) {}
+
+    private record Entry(Object value, long weight, long generation, long epoch) {}
+
+    /**
+     * One stripe of the cache, a segmented LRU
+     */
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true); // access order for LRU eviction
+        private final LinkedHashMap<Key, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxWeight;
+        private final long maxProtectedWeight;
+        private long probationWeight = 0;
+        private long protectedWeight = 0;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.maxProtectedWeight = (long) (maxWeight * PROTECTED_SHARE);
+        }
+
+        private Object get(Key key, long generation, long epoch) {
+            lock.lock();
+            try {
+                Entry entry = protectedEntries.get(key);
+                if (entry != null) {
+                    if (isCurrent(entry, generation, epoch))
+                        return entry.value;
+                    protectedEntries.remove(key);
+                    protectedWeight -= entry.weight;
+                    return null;
+                }
+
+                entry = probation.remove(key);
+                if (entry == null)
+                    return null;
+                probationWeight -= entry.weight;
+                if (!isCurrent(entry, generation, epoch))
+                    return null;
+
+                // used again, so protect it
+                protectedEntries.put(key, entry);
+                protectedWeight += entry.weight;
+                demoteProtected();
+                return entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void put(Key key, Entry entry) {
+            if (entry.weight > maxWeight)
+                return;
+
+            lock.lock();
+            try {
+                Entry old = protectedEntries.remove(key);
+                if (old != null)
+                    protectedWeight -= old.weight;
+                old = probation.remove(key);
+                if (old != null)
+                    probationWeight -= old.weight;
+
+                probation.put(key, entry);
+                probationWeight += entry.weight;
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear() {
+            lock.lock();
+            try {
+                probation.clear();
+                protectedEntries.clear();
+                probationWeight = 0;
+                protectedWeight = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long getWeight() {
+            lock.lock();
+            try {
+                return probationWeight + protectedWeight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Moves the least recently used protected entries back to probation while protected is too big
+         */
+        private void demoteProtected() {
+            Iterator<Map.Entry<Key, Entry>> iterator = protectedEntries.entrySet().iterator();
+            while (protectedWeight > maxProtectedWeight && iterator.hasNext()) {
+                Map.Entry<Key, Entry> eldest = iterator.next();
+                iterator.remove();
+                protectedWeight -= eldest.getValue().weight;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationWeight += eldest.getValue().weight;
+            }
+            evict();
+        }
+
+        /**
+         * Evicts the least recently used entries, from probation first, until the segment fits
+         */
+        private void evict() {
+            Iterator<Map.Entry<Key, Entry>> iterator = probation.entrySet().iterator();
+            while (probationWeight + protectedWeight > maxWeight && iterator.hasNext()) {
+                probationWeight -= iterator.next().getValue().weight;
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+
+            iterator = protectedEntries.entrySet().iterator();
+            while (probationWeight + protectedWeight > maxWeight && iterator.hasNext()) {
+                protectedWeight -= iterator.next().getValue().weight;
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        private static boolean isCurrent(Entry entry, long generation, long epoch) {
+            return entry.generation == generation && entry.epoch == epoch;
         }
     }
 
+
+
     /**
      * Utility functions for creating a hash from a list of method params. Good for use in Cache.read()
      * call.
      * 
      * After testing this function is slower than just concatenating strings, but it almost always won't
-     * have significant overhead unless called repeatedly. (sub 1ms)
+     * have significant overhead unless called repeatedly. (sub 1ms) For keys made on every call use
+     * {@link CacheKey} instead.
      */
     public static String hash(Object operationName) {
         StringBuilder stringBuilder = new StringBuilder(operationName.toString());
@@ -136,7 +367,7 @@ public class Cache {
 
     public static <T> String hashMap(Map<T, T> paramMap) {
         StringBuilder stringBuilder = new StringBuilder();
-        for (Entry<T, T> entry : paramMap.entrySet()) {
+        for (Map.Entry<T, T> entry : paramMap.entrySet()) {
             stringBuilder
                 .append(entry.getKey())
                 .append(entry.getValue());
@@ -0,0 +1,48 @@
+package org.dava.core.database.service.caching;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Key for an operation in the {@link Cache}, made of the operation's name and its params.
+ *
+ * <p> The key just holds on to the params and compares them with equals, so nothing has to be turned into a
+ * string or hashed with MD5 like {@link Cache#hash(Object, Object)}. The 64 bit hash is worked out once when the
+ * key is made. Params should be immutable, or at least not changed after the key is made.
+ *
+ * <p> Collections and maps compare by their contents, so a set of fields or a map of query params can be used as is.
+ */
+public record CacheKey(long hash, List<Object> parts) {
+
+    public static CacheKey of(Object... parts) {
+        long hash = 0x9E3779B97F4A7C15L;
+        for (Object part : parts)
+            hash = mix(hash * 31 + ((part == null)? 0 : part.hashCode()));
+
+        // the varargs array is only referenced here
+        return new CacheKey(hash, Collections.unmodifiableList(Arrays.asList(parts)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        return o instanceof CacheKey other && hash == other.hash && parts.equals(other.parts);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Spreads the bits of the hash around (the finalizer from SplitMix64), so similar params don't make similar hashes
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+
+}
@@ -0,0 +1,203 @@
+package org.dava.core.database.service.caching;
+
+import org.dava.core.database.service.fileaccess.FileStamp;
+import org.dava.core.database.service.structure.RouteBuffer;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of decoded index files, keyed by index path.
+ *
+ * <p> Hot indices (like primary keys being looked up over and over) would otherwise be read and
+ * decoded from disk on every query. The cache is bounded by the approximate number of bytes the
+ * cached routes take up in memory, evicting the least recently used index files first.
+ *
+ * <p> Anything that writes to an index file has to invalidate it here (BaseOperationService.addToIndex,
+ * Batch.execute, rollbacks, numeric repartitions). As a guard, each entry also remembers the size, modified
+ * time and file key (inode) the index file had when it was read, and is dropped if any of those change.
+ * That also covers index files being deleted or recreated outside of those code paths. A read that started
+ * before an invalidation isn't cached.
+ *
+ * <p> Cached RouteBuffers are shared between callers, so they must not be modified.
+ */
+public class IndexCache {
+
+    public static final long DEFAULT_CAPACITY_BYTES = 64L * 1024 * 1024;
+
+    private static final int ENTRY_OVERHEAD_BYTES = 128; // key, map entry, buffer object
+
+    private final long capacityBytes;
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // access order for LRU eviction
+    private long weight = 0;
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    public IndexCache() {
+        this(DEFAULT_CAPACITY_BYTES);
+    }
+
+    public IndexCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+
+    /**
+     * Gets the cached routes for an index file.
+     *
+     * @param stamp the index file's current stamp, see {@link FileStamp#of(String)}
+     * @return the cached routes or null on a miss
+     */
+    public RouteBuffer get(String indexPath, FileStamp stamp) {
+        synchronized (lock) {
+            Entry entry = entries.get(indexPath);
+            if (entry != null && entry.stamp.equals(stamp)) {
+                hits.incrementAndGet();
+                return entry.routes;
+            }
+            if (entry != null)
+                remove(indexPath);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Call before reading an index file you plan to cache, and pass the result to {@link #put}.
+     */
+    public long getGeneration() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    /**
+     * Caches the routes read from an index file, unless something was invalidated since
+     * 'generationAtRead' (the read might have seen a half written file).
+     *
+     * @param stamp stamp of the file taken before it was read
+     */
+    public void put(String indexPath, RouteBuffer routes, FileStamp stamp, long generationAtRead) {
+        long entryWeight = weigh(routes);
+        if (!fitsEntry(entryWeight))
+            return;
+
+        synchronized (lock) {
+            if (generation != generationAtRead)
+                return;
+
+            remove(indexPath);
+            entries.put(indexPath, new Entry(routes, stamp));
+            weight += entryWeight;
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (weight > capacityBytes && iterator.hasNext()) {
+                Map.Entry<String, Entry> eldest = iterator.next();
+                weight -= weigh(eldest.getValue().routes);
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * False if the routes of an index file this size would be too big to cache, so there's no point
+     * reading the whole file to cache it.
+     */
+    public boolean isCacheable(long fileSize) {
+        return fitsEntry(ENTRY_OVERHEAD_BYTES + (fileSize / RouteBuffer.ROUTE_SIZE) * (Long.BYTES + Integer.BYTES));
+    }
+
+    private boolean fitsEntry(long entryWeight) {
+        return entryWeight <= capacityBytes / 4;
+    }
+
+    public void invalidate(String indexPath) {
+        synchronized (lock) {
+            generation++;
+            remove(indexPath);
+        }
+    }
+
+    /**
+     * Invalidates every index file under a folder (like a numeric index folder being repartitioned).
+     */
+    public void invalidateFolder(String folderPath) {
+        String prefix = Path.of(folderPath).normalize() + "/";
+        synchronized (lock) {
+            generation++;
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                if (Path.of(entry.getKey()).normalize().toString().startsWith(prefix)) {
+                    weight -= weigh(entry.getValue().routes);
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (lock) {
+            generation++;
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    private void remove(String indexPath) {
+        Entry removed = entries.remove(indexPath);
+        if (removed != null)
+            weight -= weigh(removed.routes);
+    }
+
+    private static long weigh(RouteBuffer routes) {
+        return ENTRY_OVERHEAD_BYTES + (long) routes.size() * (Long.BYTES + Integer.BYTES);
+    }
+
+
+
+    /*
+        Metrics
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getWeightBytes() {
+        synchronized (lock) {
+            return weight;
+        }
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+
+
+    private record Entry(RouteBuffer routes, FileStamp stamp) {}
+
+}
@@ -0,0 +1,264 @@
+package org.dava.core.database.service.fileaccess;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of open FileChannels keyed by file path.
+ *
+ * <p> A single insert touches the same table csv, empties file and index files many
+ * times. Opening and closing a RandomAccessFile for each of those calls costs far more
+ * than the bytes being read or written, so FileUtil borrows channels from this pool instead.
+ *
+ * <p> Handles are reference counted. When the pool grows past its capacity the least
+ * recently used handle is evicted, but the channel is only closed once every borrower
+ * has released it. Any operation that deletes, renames or replaces a file must call
+ * {@link #invalidate(String)} (FileUtil does this for you) so the next borrower opens
+ * the new file rather than a stale handle to the old one.
+ *
+ * <p> Handles are looked up by the path string exactly as the caller passed it, since
+ * normalizing every path costs about as much as the read itself. Invalidation compares
+ * normalized paths, so it still finds a handle however its path was spelled.
+ *
+ * <p> Operations that depend on the file's length lock the file's path with {@link Handle#lock()}, not the
+ * handle. A handle that was evicted or invalidated can still be in use while a new handle for the same
+ * path is opened, and both have to take the same lock.
+ *
+ * <p> Files under the database root are expected to only be modified through FileUtil
+ * while the database is running. Replacing one of them externally (rather than editing it
+ * in place) leaves a stale handle in this pool until it's evicted.
+ */
+public class FileChannelPool {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final int PATH_LOCK_STRIPES = 64;
+
+    private static final OpenOption[] OPEN_OPTIONS = { StandardOpenOption.READ, StandardOpenOption.WRITE };
+    private static final OpenOption[] CREATE_OPTIONS = { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE };
+
+    private final int capacity;
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true); // access order for LRU eviction, keyed by raw path
+    private final AtomicLong opens = new AtomicLong();
+    private final Object[] pathLocks = new Object[PATH_LOCK_STRIPES]; // paths can share a lock, it's only held for one file operation
+
+
+    public FileChannelPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FileChannelPool(int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < pathLocks.length; i++)
+            pathLocks[i] = new Object();
+    }
+
+
+    /**
+     * Borrows an open channel for the file. Callers should release it with try-with-resources.
+     *
+     * @param filePath path of the file to open
+     * @param create if true the file is created when it doesn't exist, otherwise a
+     *               NoSuchFileException is thrown (matching RandomAccessFile "r" mode)
+     */
+    public Handle acquire(String filePath, boolean create) throws IOException {
+        synchronized (lock) {
+            Handle handle = handles.get(filePath);
+            if (handle != null) {
+                handle.references++;
+                return handle;
+            }
+        }
+
+        // open outside the lock so slow opens don't block other threads
+        FileChannel channel = FileChannel.open(Path.of(filePath), create? CREATE_OPTIONS : OPEN_OPTIONS);
+        opens.incrementAndGet();
+
+        List<Handle> toClose = new ArrayList<>();
+        Handle handle;
+        synchronized (lock) {
+            handle = handles.get(filePath);
+            if (handle != null) {
+                // another thread opened it while we were opening, use theirs
+                toClose.add( new Handle(this, channel, null, null) );
+            }
+            else {
+                String key = key(filePath);
+                handle = new Handle(this, channel, key, pathLock(key));
+                handles.put(filePath, handle);
+                evictIfNeeded(toClose);
+            }
+            handle.references++;
+        }
+
+        closeAll(toClose);
+        return handle;
+    }
+
+    /**
+     * Drops the handle for a file. Call before a file is deleted, renamed or replaced.
+     */
+    public void invalidate(String filePath) {
+        String key = key(filePath);
+        invalidateMatching(handleKey -> handleKey.equals(key));
+    }
+
+    /**
+     * Drops the handles for every file under a directory.
+     */
+    public void invalidateDirectory(String directoryPath) {
+        String prefix = key(directoryPath) + "/";
+        invalidateMatching(handleKey -> handleKey.startsWith(prefix));
+    }
+
+    /**
+     * Closes every idle handle and drops the rest (they'll close when released).
+     */
+    public void invalidateAll() {
+        List<Handle> toClose = new ArrayList<>();
+        synchronized (lock) {
+            handles.values().forEach(handle -> retire(handle, toClose));
+            handles.clear();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Number of files opened by this pool since it was created. Handy for measuring how
+     * many opens an operation costs.
+     */
+    public long getOpenCount() {
+        return opens.get();
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return handles.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    private void invalidateMatching(Predicate<String> matches) {
+        List<Handle> toClose = new ArrayList<>();
+        synchronized (lock) {
+            Iterator<Handle> iterator = handles.values().iterator();
+            while (iterator.hasNext()) {
+                Handle handle = iterator.next();
+                if (matches.test(handle.key)) {
+                    iterator.remove();
+                    retire(handle, toClose);
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    private void evictIfNeeded(List<Handle> toClose) {
+        Iterator<Handle> iterator = handles.values().iterator();
+        while (handles.size() > capacity && iterator.hasNext()) {
+            Handle eldest = iterator.next();
+            iterator.remove();
+            retire(eldest, toClose);
+        }
+    }
+
+    private void retire(Handle handle, List<Handle> toClose) {
+        handle.retired = true;
+        if (handle.references == 0)
+            toClose.add(handle);
+    }
+
+    private void release(Handle handle) {
+        boolean close;
+        synchronized (lock) {
+            handle.references--;
+            close = handle.retired && handle.references == 0;
+        }
+        if (close)
+            closeAll(List.of(handle));
+    }
+
+    private static void closeAll(List<Handle> handles) {
+        for (Handle handle : handles) {
+            try {
+                handle.channel.close();
+            } catch (IOException e) {
+                // nothing useful to do, the handle is no longer reachable
+            }
+        }
+    }
+
+    private Object pathLock(String key) {
+        return pathLocks[Math.floorMod(key.hashCode(), pathLocks.length)];
+    }
+
+    private static String key(String filePath) {
+        return Path.of(filePath).toAbsolutePath().normalize().toString();
+    }
+
+
+
+    /**
+     * A borrowed channel. Closing the handle releases it back to the pool, it doesn't
+     * close the underlying channel.
+     *
+     * <p> Operations that depend on the current file length (appends, pops, truncates, read-modify-write)
+     * should synchronize on {@link #lock()} so concurrent callers don't interleave.
+     */
+    public static class Handle implements AutoCloseable {
+        private final FileChannelPool pool;
+        private final FileChannel channel;
+        private final String key; // normalized absolute path
+        private final Object lock;
+        private int references;
+        private boolean retired;
+        private MappedFile mappedFile;
+
+        private Handle(FileChannelPool pool, FileChannel channel, String key, Object lock) {
+            this.pool = pool;
+            this.channel = channel;
+            this.key = key;
+            this.lock = lock;
+        }
+
+        public FileChannel channel() {
+            return channel;
+        }
+
+        /**
+         * Lock for the handle's path, shared with every other handle for the same file
+         */
+        public Object lock() {
+            return lock;
+        }
+
+        /**
+         * Memory mapping of the file, created on first use and dropped with the handle.
+         * Hold {@link #lock()} while using it.
+         */
+        MappedFile mappedFile() {
+            if (mappedFile == null)
+                mappedFile = new MappedFile();
+            return mappedFile;
+        }
+
+        @Override
+        public void close() {
+            pool.release(this);
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package org.dava.core.database.service.fileaccess;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identifies a version of a file. If a file is written to, replaced or deleted its stamp changes,
+ * so caches can check a stamp (one stat call) instead of re-reading the file.
+ *
+ * @param size size of the file in bytes
+ * @param modifiedNanos last modified time
+ * @param fileKey the file's inode (or equivalent) so replaced files are noticed
+ */
+public record FileStamp(long size, long modifiedNanos, Object fileKey) {
+
+    /**
+     * Reads the size, modified time and file key of a file in one call.
+     *
+     * @return the stamp, or null if the file doesn't exist
+     */
+    public static FileStamp of(String filePath) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Path.of(filePath), BasicFileAttributes.class);
+            return new FileStamp(
+                attributes.size(),
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                attributes.fileKey()
+            );
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+}
@@ -4,6 +4,8 @@ import org.dava.core.database.service.operations.common.WritePackage;
 import org.dava.core.database.service.type.compression.TypeToByteUtil;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -11,14 +13,21 @@ import java.util.*;
 
 public class FileUtil {
 
+    /**
+     * Open file handles shared by every FileUtil. See FileChannelPool for why.
+     */
+    public static FileChannelPool channelPool = new FileChannelPool();
+
 
 
     public void writeObjectToFile(String destinationPath, Object object) throws IOException {
-        try ( ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(destinationPath)) ) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( ObjectOutputStream oos = new ObjectOutputStream(bytes) ) {
             oos.writeObject(object);
         }
 
-        
+        // through the pool, so the file isn't truncated under a mapping without holding the file's lock
+        replaceFile(destinationPath, bytes.toByteArray());
     }
 
     public <T> T readObjectFromFile(String filePath, Class<T> objectType) throws IOException {
@@ -42,14 +51,14 @@ public class FileUtil {
 
     public byte[] readBytes(String filePath) throws IOException {
 
-        File file = new File(filePath);
-
-        FileInputStream fileInputStream = new FileInputStream(file);
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, false)) {
+            FileChannel channel = handle.channel();
 
-        byte[] fileContent = fileInputStream.readAllBytes();
-        fileInputStream.close();
+            ByteBuffer buffer = ByteBuffer.allocate( Math.toIntExact(channel.size()) );
+            read(channel, buffer, 0);
 
-        return fileContent;
+            return (buffer.hasRemaining())? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+        }
     }
 
     public String readFile(String filePath, long startByte, int numBytes) throws IOException {
@@ -59,31 +68,30 @@ public class FileUtil {
     }
 
     public byte[] readBytes(String filePath, long startByte, Integer numBytes) throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(filePath, "r")) {
-            raf.seek(startByte); // Set the file pointer to the desired position
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, false)) {
+            FileChannel channel = handle.channel();
 
-            int bytesToRead = (numBytes == null)? (int) raf.length() : numBytes;
-            byte[] buffer = new byte[bytesToRead];
-            int bytesRead = raf.read(buffer); // Read the specified number of bytes
+            int bytesToRead = (numBytes == null)? (int) channel.size() : numBytes;
+            ByteBuffer buffer = ByteBuffer.allocate(bytesToRead);
+            int bytesRead = read(channel, buffer, startByte); // Read the specified number of bytes
 
-            return (bytesRead != -1)? buffer : null;
+            return (bytesRead != -1)? buffer.array() : null;
         }
 
     }
 
     public List<Object> readBytes(String filePath, List<Long> startBytes, List<Long> numBytes) throws IOException {
 
-        try (RandomAccessFile raf = new RandomAccessFile(filePath, "r")) {
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, false)) {
+            FileChannel channel = handle.channel();
 
             List<Object> reads = new ArrayList<>();
             for (int i = 0; i < startBytes.size(); i++) {
-                raf.seek( startBytes.get(i) ); // Set the file pointer to the desired position
-
                 Long num = numBytes.get(i);
 
-                byte[] buffer = new byte[ Math.toIntExact(num) ];
-                int bytesRead = raf.read(buffer); // Read the specified number of bytes
-                Object readBytes = (bytesRead != -1)? buffer : null;
+                ByteBuffer buffer = ByteBuffer.allocate( Math.toIntExact(num) );
+                int bytesRead = read(channel, buffer, startBytes.get(i)); // Read the specified number of bytes
+                Object readBytes = (bytesRead != -1)? buffer.array() : null;
 
                 reads.add(
                     readBytes
@@ -96,6 +104,42 @@ public class FileUtil {
 
     }
 
+    /**
+     * Same as {@link #readBytes(String, long, Integer)} but reads through a memory mapping of the file.
+     * Best for files that are read far more often than they're written, like table csv files.
+     */
+    public byte[] readBytesMapped(String filePath, long startByte, Integer numBytes) throws IOException {
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, false)) {
+            synchronized (handle.lock()) {
+                FileChannel channel = handle.channel();
+
+                int bytesToRead = (numBytes == null)? (int) channel.size() : numBytes;
+                return handle.mappedFile().read(channel, startByte, bytesToRead);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #readBytes(String, List, List)} but reads through a memory mapping of the file.
+     */
+    public List<Object> readBytesMapped(String filePath, List<Long> startBytes, List<Long> numBytes) throws IOException {
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, false)) {
+            synchronized (handle.lock()) {
+                FileChannel channel = handle.channel();
+                MappedFile mappedFile = handle.mappedFile();
+
+                List<Object> reads = new ArrayList<>();
+                for (int i = 0; i < startBytes.size(); i++) {
+                    reads.add(
+                        mappedFile.read(channel, startBytes.get(i), Math.toIntExact(numBytes.get(i)))
+                    );
+                }
+
+                return reads;
+            }
+        }
+    }
+
     public String readLine(String filePath, long startByte) throws IOException {
         RandomAccessFile raf = new RandomAccessFile(filePath, "r");
         raf.seek(startByte); // Set the file pointer to the desired position
@@ -108,43 +152,35 @@ public class FileUtil {
     }
 
     public void writeFile(String desitnationPath, String fileContents) throws IOException {
-
-        FileOutputStream fileOutputStream;
-        fileOutputStream = new FileOutputStream(desitnationPath);
-
-        fileOutputStream.write(fileContents.getBytes(StandardCharsets.UTF_8));
-        fileOutputStream.close();
-        
+        // through the pool, so it's truncate holds the file's lock like every other write
+        replaceFile(desitnationPath, fileContents.getBytes(StandardCharsets.UTF_8));
     }
 
     public void writeBytes(String filePath, long position, byte[] data) throws IOException {
 
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            // Move to the desired position in the file
-            file.seek(position);
-
-            // Write data at the current position
-            file.write(data);
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            // Write data at the desired position
+            write(handle.channel(), data, position);
         }
     }
 
     public void changeCount(String filePath, long position, long change, int countByteLength) throws IOException {
 
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            // Move to the desired position in the file
-            file.seek(position);
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            FileChannel channel = handle.channel();
 
-            // read the current count
-            byte[] buffer = new byte[countByteLength];
-            int bytesRead = file.read(buffer);
+            synchronized (handle.lock()) {
+                // read the current count
+                ByteBuffer buffer = ByteBuffer.allocate(countByteLength);
+                read(channel, buffer, position);
 
-            long newCount = TypeToByteUtil.byteArrayToLong(buffer) + change;
+                long newCount = TypeToByteUtil.byteArrayToLong(buffer.array()) + change;
 
-            byte[] newCountbytes = TypeToByteUtil.longToByteArray(newCount);
+                byte[] newCountbytes = TypeToByteUtil.longToByteArray(newCount);
 
-            // Write data at the current position
-            file.seek(position);
-            file.write(newCountbytes);
+                // Write data at the same position
+                write(channel, newCountbytes, position);
+            }
         }
     }
 
@@ -154,20 +190,17 @@ public class FileUtil {
      */
     public void writeBytes(String filePath, List<WritePackage> writePackages) throws IOException {
 
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            writePackages.forEach( writePackage -> {
-                    try {
-                        // Move to the desired position in the file
-                        long offset = (writePackage.getOffsetInTable() == null)? file.length() : writePackage.getOffsetInTable();
-                        file.seek(offset);
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            FileChannel channel = handle.channel();
 
-                        // Write data at the current position
-                        file.write( writePackage.getData() );
+            synchronized (handle.lock()) {
+                for (WritePackage writePackage : writePackages) {
+                    // null offsets go on the end of the file
+                    long offset = (writePackage.getOffsetInTable() == null)? channel.size() : writePackage.getOffsetInTable();
 
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+                    write(channel, writePackage.getData(), offset);
+                }
+            }
         }
     }
 
@@ -178,74 +211,85 @@ public class FileUtil {
      */
     public void writeBytesIfPossible(String filePath, List<WritePackage> writePackages) throws IOException {
 
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            long fileSize = file.length();
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            FileChannel channel = handle.channel();
 
-            writePackages.forEach( writePackage -> {
-                try {
-                    // Move to the desired position in the file
-                    long offset = (writePackage.getOffsetInTable() == null)? file.length() : writePackage.getOffsetInTable();
+            synchronized (handle.lock()) {
+                long fileSize = channel.size();
 
-                    if (offset < fileSize) {
-                        file.seek(offset);
+                for (WritePackage writePackage : writePackages) {
+                    // null offsets go on the end of the file
+                    long offset = (writePackage.getOffsetInTable() == null)? channel.size() : writePackage.getOffsetInTable();
 
-                        // Write data at the current position
-                        file.write( writePackage.getData() );
+                    if (offset < fileSize) {
+                        write(channel, writePackage.getData(), offset);
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
-            });
+            }
         }
     }
 
     public void writeFileAppend(String filePath, String data) throws IOException {
-
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            file.seek(file.length());
-            file.write(data.getBytes());
-        }
+        writeBytesAppend(filePath, data.getBytes());
     }
 
     public void writeBytesAppend(String filePath, byte[] data) throws IOException {
 
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            file.seek(file.length());
-            file.write(data);
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            FileChannel channel = handle.channel();
+
+            synchronized (handle.lock()) {
+                write(channel, data, channel.size());
+            }
         }
     }
 
     public void replaceFile(String filePath, byte[] data) throws IOException {
 
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            file.setLength( 0 );
-            file.write(data);
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            FileChannel channel = handle.channel();
+
+            synchronized (handle.lock()) {
+                channel.truncate(0);
+                write(channel, data, 0);
+            }
         }
     }
 
     public void replaceFile(String filePath, List<WritePackage> writePackages) throws IOException {
 
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            file.setLength( 0 );
-            writePackages.forEach( writePackage -> {
-                try {
-                    // Move to the desired position in the file
-                    long offset = (writePackage.getOffsetInTable() == null)? file.length() : writePackage.getOffsetInTable();
-                    file.seek(offset);
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            FileChannel channel = handle.channel();
 
-                    // Write data at the current position
-                    file.write( writePackage.getData() );
+            synchronized (handle.lock()) {
+                channel.truncate(0);
+                for (WritePackage writePackage : writePackages) {
+                    // null offsets go on the end of the file
+                    long offset = (writePackage.getOffsetInTable() == null)? channel.size() : writePackage.getOffsetInTable();
 
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    write(channel, writePackage.getData(), offset);
                 }
-            });
+            }
+        }
+    }
+
+    /**
+     * Flushes writes to the file through to the disk. Does nothing if the file doesn't exist.
+     */
+    public void force(String filePath) throws IOException {
+        if (!exists(filePath))
+            return;
+
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, false)) {
+            handle.channel().force(false);
         }
     }
 
     public void truncate(String filePath, Long newSizeInBytes) throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            file.setLength( newSizeInBytes );
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            synchronized (handle.lock()) {
+                setLength(handle.channel(), newSizeInBytes);
+            }
         }
     }
 
@@ -269,6 +313,8 @@ public class FileUtil {
             Path sourcePath = sourceFile.toPath();
             Path destinationPath = destinationDir.toPath().resolve(sourceFile.getName());
 
+            channelPool.invalidate(sourcePath.toString());
+            channelPool.invalidate(destinationPath.toString());
             Files.move(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
         }
 
@@ -289,6 +335,7 @@ public class FileUtil {
             Path sourcePath = sourceFile.toPath();
             Path destinationPath = destinationDir.toPath().resolve(sourceFile.getName());
 
+            channelPool.invalidate(destinationPath.toString());
             Files.copy(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
         }
 
@@ -311,6 +358,11 @@ public class FileUtil {
         return success;
     }
 
+    public void createSymbolicLink(String linkPath, String targetPath) throws IOException {
+        channelPool.invalidate(linkPath);
+        Files.createSymbolicLink(Paths.get(linkPath), Paths.get(targetPath).toAbsolutePath());
+    }
+
     public boolean renameFile(String oldFilePath, String newFilePath) {
 
         File oldFile = new File(oldFilePath);
@@ -318,6 +370,8 @@ public class FileUtil {
 
         boolean success = false;
         if (oldFile.exists()) {
+            channelPool.invalidate(oldFilePath);
+            channelPool.invalidate(newFilePath);
             success = oldFile.renameTo(newFile);
         }
 
@@ -336,42 +390,49 @@ public class FileUtil {
         return file.length();
     }
 
-    public long popBytes(String filePath, int bytesToPop, List<Long> startBytes) throws IOException { //, boolean setFirst8BytesAsSizeOfThisFile
-
-        File file = new File(filePath);
-        startBytes.sort(Long::compareTo);
-
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-
-            while (!startBytes.isEmpty()) {
-                // pop empties off the bottom of the file, if they're on the list
-                long startByteToRemove = startBytes.get(startBytes.size() - 1);
-                startBytes = startBytes.subList(0, startBytes.size() - 1);
+    /**
+     * Removes fixed size records from a file in one pass. The file is read once, the records that are
+     * kept are shifted down over the removed ones (keeping their order), and everything after the first
+     * removed record is written back with one write before truncating.
+     *
+     * @param remove given the file's bytes and the start of a record, true if the record should be removed
+     * @return the new size of the file
+     */
+    public long removeRecords(String filePath, int recordSize, RecordFilter remove) throws IOException {
+        try (FileChannelPool.Handle handle = channelPool.acquire(filePath, true)) {
+            FileChannel channel = handle.channel();
+
+            synchronized (handle.lock()) {
+                long size = channel.size();
+                ByteBuffer buffer = ByteBuffer.allocate( Math.toIntExact(size) );
+                read(channel, buffer, 0);
+                byte[] bytes = buffer.array();
+
+                int kept = 0;
+                int firstRemoved = -1;
+                int end = bytes.length - bytes.length % recordSize;
+                for (int record = 0; record < end; record += recordSize) {
+                    if (remove.test(bytes, record)) {
+                        if (firstRemoved == -1)
+                            firstRemoved = record;
+                        continue;
+                    }
 
-                if ( startByteToRemove == raf.length() - bytesToPop) {
-                    raf.setLength(raf.length() - bytesToPop);
-                }
-                else {
-                    // otherwise switch with last row and pop.
-
-                    // get lastRow
-                    long endStartByte = raf.length() - bytesToPop;
-                    raf.seek(endStartByte);
-                    byte[] endBuffer = new byte[bytesToPop];
-                    int endBytesRead = raf.read(endBuffer);
-                    byte[] endData = (endBytesRead != -1)? endBuffer : null;
-
-                    // switch the two
-                    raf.seek(startByteToRemove);
-                    raf.write(endData);
-
-                    // truncate the end bytes off the file
-                    raf.setLength(raf.length() - bytesToPop);
+                    if (kept != record)
+                        System.arraycopy(bytes, record, bytes, kept, recordSize);
+                    kept += recordSize;
                 }
+                if (firstRemoved == -1)
+                    return size;
 
-            }
+                // a partial record at the end is left as is
+                System.arraycopy(bytes, end, bytes, kept, bytes.length - end);
+                int newSize = kept + bytes.length - end;
 
-            return raf.length();
+                write(channel, Arrays.copyOfRange(bytes, firstRemoved, newSize), firstRemoved);
+                channel.truncate(newSize);
+                return newSize;
+            }
         }
     }
 
@@ -381,6 +442,7 @@ public class FileUtil {
         if (exists(filePath)) {
             Path path = Paths.get(filePath);
             if (!Files.isDirectory(path)) {
+                channelPool.invalidate(filePath);
                 Files.delete(path);
                 success = true;
             }
@@ -392,6 +454,7 @@ public class FileUtil {
 
     public boolean deleteFile(File file) throws IOException {
 
+        channelPool.invalidate(file.getPath());
         boolean success = file.delete();
 
         
@@ -400,6 +463,7 @@ public class FileUtil {
 
     public void deleteDirectory(String directoryPath) throws IOException {
 
+        channelPool.invalidateDirectory(directoryPath);
         Path path = Paths.get(directoryPath);
         Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE, new FileVisitor<>() {
             @Override
@@ -426,6 +490,48 @@ public class FileUtil {
 
 
 
+    /*
+        Channel helpers. Positional reads and writes don't move the channel's position, so
+        pooled channels can be shared between threads.
+     */
+
+    /**
+     * Reads until the buffer is full or the end of the file is reached.
+     * @return number of bytes read, or -1 if the position was already at the end of the file
+     */
+    private static int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position + total);
+            if (bytesRead == -1)
+                return (total == 0)? -1 : total;
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    private static void write(FileChannel channel, byte[] data, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Same as RandomAccessFile.setLength, FileChannel.truncate can't grow a file.
+     */
+    private static void setLength(FileChannel channel, long newLength) throws IOException {
+        long size = channel.size();
+        if (newLength < size) {
+            channel.truncate(newLength);
+        }
+        else if (newLength > size) {
+            write(channel, new byte[1], newLength - 1);
+        }
+    }
+
+
+
     /*
            TODO action below require us to invalidate the entire cache in some of the methods above,
                 decide if we should be smarter about which cache entries to invalidate.
@@ -533,4 +639,16 @@ public class FileUtil {
     }
 
 
+
+
+    @FunctionalInterface
+    public interface RecordFilter {
+
+        /**
+         * @param bytes the file's bytes
+         * @param start where the record starts in 'bytes'
+         */
+        boolean test(byte[] bytes, int start);
+    }
+
 }
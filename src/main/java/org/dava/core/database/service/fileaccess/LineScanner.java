@@ -0,0 +1,107 @@
+package org.dava.core.database.service.fileaccess;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads a file line by line in fixed size chunks, without ever holding the whole file in memory.
+ *
+ * <p> Lines are handed to the visitor as a range of a shared buffer along with the line's offset
+ * in the file, so a line only gets copied if the visitor decides to keep it. Lines that cross a
+ * chunk boundary are carried over into the next chunk.
+ *
+ * <p> Only the bytes in the file when the scan starts are read.
+ */
+public class LineScanner {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final FileUtil fileUtil;
+    private final int chunkSize;
+    private final boolean memoryMapped;
+
+
+    public LineScanner(FileUtil fileUtil, boolean memoryMapped) {
+        this(fileUtil, memoryMapped, DEFAULT_CHUNK_SIZE);
+    }
+
+    public LineScanner(FileUtil fileUtil, boolean memoryMapped, int chunkSize) {
+        this.fileUtil = fileUtil;
+        this.memoryMapped = memoryMapped;
+        this.chunkSize = chunkSize;
+    }
+
+
+    /**
+     * Calls the visitor for each line in the file (not including the '\n'), stopping early if the
+     * visitor returns false. A final line without a trailing '\n' is still visited.
+     */
+    public void scan(String filePath, LineVisitor visitor) throws IOException {
+        long fileSize = fileUtil.fileSize(filePath);
+
+        byte[] carry = new byte[0]; // start of a line that didn't fit in the last chunk
+        int carryLength = 0;
+        long lineOffset = 0;
+        long position = 0;
+        while (position < fileSize) {
+            int toRead = (int) Math.min(chunkSize, fileSize - position);
+            byte[] chunk = (memoryMapped)?
+                fileUtil.readBytesMapped(filePath, position, toRead)
+                : fileUtil.readBytes(filePath, position, toRead);
+            if (chunk == null)
+                throw new IOException("Eof reached early");
+            position += toRead;
+
+            int lineStart = 0;
+            for (int i = 0; i < toRead; i++) {
+                if (chunk[i] != '\n')
+                    continue;
+
+                boolean keepGoing;
+                if (carryLength > 0) {
+                    carry = append(carry, carryLength, chunk, lineStart, i - lineStart);
+                    carryLength += i - lineStart;
+                    keepGoing = visitor.visit(carry, 0, carryLength, lineOffset);
+                    carryLength = 0;
+                }
+                else {
+                    keepGoing = visitor.visit(chunk, lineStart, i - lineStart, lineOffset);
+                }
+                if (!keepGoing)
+                    return;
+
+                lineOffset = position - toRead + i + 1;
+                lineStart = i + 1;
+            }
+
+            carry = append(carry, carryLength, chunk, lineStart, toRead - lineStart);
+            carryLength += toRead - lineStart;
+        }
+
+        if (carryLength > 0)
+            visitor.visit(carry, 0, carryLength, lineOffset);
+    }
+
+    private static byte[] append(byte[] carry, int carryLength, byte[] chunk, int from, int length) {
+        if (carryLength + length > carry.length)
+            carry = Arrays.copyOf(carry, Math.max(carryLength + length, carry.length * 2));
+        System.arraycopy(chunk, from, carry, carryLength, length);
+        return carry;
+    }
+
+
+
+    @FunctionalInterface
+    public interface LineVisitor {
+
+        /**
+         * @param buffer buffer holding the line, only valid until this method returns
+         * @param from start of the line in the buffer
+         * @param length length of the line in bytes, not including the '\n'
+         * @param offsetInFile where the line starts in the file
+         * @return false to stop scanning
+         */
+        boolean visit(byte[] buffer, int from, int length, long offsetInFile);
+    }
+
+}
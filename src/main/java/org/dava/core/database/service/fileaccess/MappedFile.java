@@ -0,0 +1,94 @@
+package org.dava.core.database.service.fileaccess;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read only memory mapping of a file, split into fixed size segments.
+ *
+ * <p> A single MappedByteBuffer can't be larger than 2GB and can't grow with the file,
+ * so the file is mapped in segments. When the file grows only the last (partial) segment
+ * and any new segments are mapped, existing segments are kept. If the file shrinks
+ * (truncated by a rollback or a pop) every segment is dropped and the file is remapped,
+ * since touching a page past the end of a file crashes the jvm rather than throwing.
+ *
+ * <p> Reads copy straight out of the page cache without a system call, so a route lookup
+ * is just an offset into a segment.
+ *
+ * <p> Instances live on a {@link FileChannelPool.Handle} and are dropped with it when the file is
+ * invalidated. Callers must hold {@link FileChannelPool.Handle#lock()} while reading. That lock is per
+ * path, and every FileUtil write that can shrink a file (truncate, replaceFile, writeFile, removeRecords)
+ * holds it too, so a file can't shrink between the size check and the read. That holds even when the
+ * truncate goes through a newer handle for the same file, since every handle of a path shares its lock.
+ */
+class MappedFile {
+
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long mappedSize = 0;
+
+
+    /**
+     * Reads bytes from the file, remapping first if the file size changed.
+     *
+     * @return the bytes read, or null if start is at or past the end of the file (same as RandomAccessFile)
+     */
+    byte[] read(FileChannel channel, long start, int length) throws IOException {
+        remapIfNeeded(channel);
+
+        if (length == 0)
+            return new byte[0];
+        if (start >= mappedSize)
+            return null;
+
+        byte[] buffer = new byte[length];
+        int available = (int) Math.min(length, mappedSize - start);
+        int copied = 0;
+        while (copied < available) {
+            long position = start + copied;
+            MappedByteBuffer segment = segments.get( (int) (position / SEGMENT_SIZE) );
+            int offsetInSegment = (int) (position % SEGMENT_SIZE);
+
+            int toCopy = Math.min(available - copied, segment.limit() - offsetInSegment);
+            segment.get(offsetInSegment, buffer, copied, toCopy);
+            copied += toCopy;
+        }
+
+        return buffer;
+    }
+
+    long getMappedSize() {
+        return mappedSize;
+    }
+
+    private void remapIfNeeded(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == mappedSize)
+            return;
+
+        if (size < mappedSize) {
+            segments.clear();
+            mappedSize = 0;
+        }
+
+        // drop the last partial segment, it's remapped at its new size below
+        if (!segments.isEmpty() && segments.get(segments.size() - 1).limit() < SEGMENT_SIZE) {
+            segments.remove(segments.size() - 1);
+        }
+
+        long position = (long) segments.size() * SEGMENT_SIZE;
+        while (position < size) {
+            long length = Math.min(SEGMENT_SIZE, size - position);
+            segments.add(
+                channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+            );
+            position += length;
+        }
+        mappedSize = size;
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.dava.core.database.service.fileaccess;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer pool of fixed size pages for page based files (like b+tree indices).
+ *
+ * <p> Pages are cached by file path and page number, and the least recently used pages are evicted
+ * once the pool is full. The pool is write through, callers write a page to disk and then put it here,
+ * so evicting a page never needs to write anything.
+ *
+ * <p> Cached pages are shared, callers must copy a page before changing it.
+ */
+public class PageCache {
+
+    public static final int DEFAULT_CAPACITY_PAGES = 4096;
+
+    private final int capacityPages;
+    private final Object lock = new Object();
+    private final LinkedHashMap<PageKey, byte[]> pages = new LinkedHashMap<>(16, 0.75f, true); // access order for LRU eviction
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+
+    public PageCache() {
+        this(DEFAULT_CAPACITY_PAGES);
+    }
+
+    public PageCache(int capacityPages) {
+        this.capacityPages = capacityPages;
+    }
+
+
+    /**
+     * @return the cached page or null if it isn't cached
+     */
+    public byte[] get(String filePath, int pageNumber) {
+        byte[] page;
+        synchronized (lock) {
+            page = pages.get(new PageKey(filePath, pageNumber));
+        }
+        if (page == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return page;
+    }
+
+    public void put(String filePath, int pageNumber, byte[] page) {
+        synchronized (lock) {
+            pages.put(new PageKey(filePath, pageNumber), page);
+
+            Iterator<PageKey> iterator = pages.keySet().iterator();
+            while (pages.size() > capacityPages && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops every page of a file. Call when the file is deleted or changed outside the pool.
+     */
+    public void invalidateFile(String filePath) {
+        synchronized (lock) {
+            pages.keySet().removeIf(key -> key.filePath.equals(filePath));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (lock) {
+            pages.clear();
+        }
+    }
+
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return pages.size();
+        }
+    }
+
+
+    private record PageKey(String filePath, int pageNumber) {}
+
+}
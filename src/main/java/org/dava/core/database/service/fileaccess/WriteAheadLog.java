@@ -0,0 +1,267 @@
+package org.dava.core.database.service.fileaccess;
+
+import org.dava.core.common.ArrayUtil;
+import org.dava.core.common.logger.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append only rollback log for a table partition, with group commit.
+ *
+ * <p> Each batch logs its rollback information here before it touches the table or its indices. A record
+ * is framed as [payload length (4 bytes)][crc32 (4 bytes)][type (1 byte)][payload]. A record that was only
+ * partly written when the process died fails its checksum (or is too short), so reading stops there. Such a
+ * record belongs to a batch that never got to write anything, so there is nothing to undo for it.
+ *
+ * <p> A {@link #BEGIN} record starts a new transaction. Rolling back undoes the batches after the last
+ * BEGIN record, which is what replacing the old text rollback file used to do. The log is only truncated
+ * when a transaction begins and the log has grown past {@link #checkpointBytes}.
+ *
+ * <p> How hard a commit waits for the disk is set with {@link #durability}:
+ * <ul>
+ *     <li> NONE: records are written to the file, and the OS flushes them whenever it likes
+ *     <li> PER_COMMIT: a commit returns once its record has been forced to disk. Threads committing at the same
+ *          time share one force() call, the first one to get there forces for everything appended so far while
+ *          the rest wait for it
+ *     <li> INTERVAL: a background thread forces every log with unforced records every {@link #syncIntervalMillis}
+ * </ul>
+ */
+public class WriteAheadLog {
+
+    public enum Durability {
+        NONE,
+        PER_COMMIT,
+        INTERVAL
+    }
+
+    public static final byte BEGIN = 1;
+    public static final byte BATCH = 2;
+
+    private static final int MAGIC = 0x44574C31; // 'DWL1'
+    private static final int HEADER_SIZE = 4;
+    private static final int FRAME_HEADER_SIZE = 9;
+
+    public static Durability durability = Durability.PER_COMMIT;
+    public static long syncIntervalMillis = 100;
+    public static long checkpointBytes = 1024 * 1024;
+
+    public static FileUtil fileUtil = new FileUtil();
+
+    private static final Logger log = Logger.getLogger(WriteAheadLog.class.getName());
+
+    private static final Map<String, WriteAheadLog> logs = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService syncer;
+
+
+    private final String path;
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private boolean headerChecked = false;
+
+    // sequence numbers of records appended and forced, only ever go up
+    private volatile long appended = 0;
+    private long forced = 0;
+    private boolean forcing = false;
+
+
+    private WriteAheadLog(String path) {
+        this.path = path;
+    }
+
+    /**
+     * The log for a rollback path, there's one shared instance per path so concurrent batches can be committed together
+     */
+    public static WriteAheadLog of(String path) {
+        return logs.computeIfAbsent(path, WriteAheadLog::new);
+    }
+
+
+    /**
+     * Appends a record and commits it
+     *
+     * @param beginTransaction if true the record starts a new transaction, otherwise it's added to the current one
+     */
+    public void log(byte[] payload, boolean beginTransaction) throws IOException {
+        commit( append(payload, beginTransaction) );
+    }
+
+    /**
+     * Appends a record without waiting for it to be on disk. Use {@link #commit(long)} for that.
+     *
+     * @return the sequence number of the record
+     */
+    public long append(byte[] payload, boolean beginTransaction) throws IOException {
+        byte[] frames = (beginTransaction)?
+            ArrayUtil.appendArray( frame(BEGIN, new byte[0]), frame(BATCH, payload) )
+            : frame(BATCH, payload);
+
+        synchronized (appendLock) {
+            long size = fileUtil.fileSize(path);
+            if (size == 0 || !hasHeader(size) || (beginTransaction && size > checkpointBytes)) {
+                fileUtil.replaceFile(path, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).array());
+                headerChecked = true;
+            }
+
+            fileUtil.writeBytesAppend(path, frames);
+            appended++;
+            return appended;
+        }
+    }
+
+    /**
+     * Waits until the record with the sequence number is as durable as {@link #durability} asks for
+     */
+    public void commit(long sequence) throws IOException {
+        switch (durability) {
+            case NONE -> {}
+            case INTERVAL -> startSyncer();
+            case PER_COMMIT -> force(sequence);
+        }
+    }
+
+    /**
+     * Forces the log to disk unless another thread's force already covered the sequence number
+     */
+    private void force(long sequence) throws IOException {
+        while (true) {
+            long target;
+            synchronized (syncLock) {
+                while (forcing && forced < sequence) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for rollback log to be forced: " + path, e);
+                    }
+                }
+                if (forced >= sequence)
+                    return;
+
+                // lead this group, everything appended so far goes in the same force
+                forcing = true;
+                target = appended;
+            }
+
+            boolean success = false;
+            try {
+                fileUtil.force(path);
+                success = true;
+            } finally {
+                synchronized (syncLock) {
+                    forcing = false;
+                    if (success)
+                        forced = Math.max(forced, target);
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean hasHeader(long size) throws IOException {
+        if (headerChecked)
+            return true;
+
+        // older versions logged text, that's replaced on the first write
+        headerChecked = size >= HEADER_SIZE && isWriteAheadLog(fileUtil.readBytes(path, 0, HEADER_SIZE));
+        return headerChecked;
+    }
+
+    private static void startSyncer() {
+        if (syncer != null)
+            return;
+
+        synchronized (WriteAheadLog.class) {
+            if (syncer != null)
+                return;
+
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dava-wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(WriteAheadLog::forceAll, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void forceAll() {
+        logs.values().forEach(wal -> {
+            try {
+                long appended = wal.appended;
+                boolean behind;
+                synchronized (wal.syncLock) {
+                    behind = wal.forced < appended;
+                }
+                if (behind)
+                    wal.force(appended);
+            } catch (IOException e) {
+                log.error("Couldn't force rollback log: " + wal.path + ": " + e.getMessage());
+            }
+        });
+    }
+
+
+
+    /**
+     * @return true if the bytes start with a write ahead log header (rather than an old text rollback log)
+     */
+    public static boolean isWriteAheadLog(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && ByteBuffer.wrap(bytes, 0, HEADER_SIZE).getInt() == MAGIC;
+    }
+
+    /**
+     * Reads the payloads of the batch records in the last transaction of a log, oldest first. Reading stops at the
+     * first record that's cut off or fails its checksum.
+     */
+    public static List<byte[]> readLastTransaction(byte[] bytes) {
+        List<byte[]> payloads = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(HEADER_SIZE);
+
+        while (buffer.remaining() >= FRAME_HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            byte type = buffer.get();
+            if (length < 0 || length > buffer.remaining())
+                break;
+
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (checksum != checksum(type, payload))
+                break;
+
+            if (type == BEGIN)
+                payloads.clear();
+            else if (type == BATCH)
+                payloads.add(payload);
+        }
+
+        return payloads;
+    }
+
+
+    private static byte[] frame(byte type, byte[] payload) {
+        return ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length)
+            .putInt(payload.length)
+            .putInt(checksum(type, payload))
+            .put(type)
+            .put(payload)
+            .array();
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+}
@@ -6,6 +6,7 @@ import org.dava.core.common.TypeUtil;
 import org.dava.core.database.objects.exception.DavaException;
 import org.dava.core.database.service.BaseOperationService;
 import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.WriteAheadLog;
 import org.dava.core.database.service.operations.common.Batch;
 import org.dava.core.database.service.operations.common.WritePackage;
 import org.dava.core.database.service.operations.delete.CountChange;
@@ -13,13 +14,11 @@ import org.dava.core.database.service.operations.delete.IndexDelete;
 import org.dava.core.database.service.structure.*;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
 import static org.dava.core.database.objects.exception.ExceptionType.*;
 
@@ -50,52 +49,79 @@ public class Delete {
      * @param replaceRollbackFile
      */
     public Batch addToBatch(List<Row> rows, boolean replaceRollbackFile, Batch existingBatch) {
-        AtomicBoolean existingBatchIncorporated = new AtomicBoolean(false);
-
-        Map<String, Batch> deleteBatchesByPartition = table.getPartitions().parallelStream()
-            .map(partition -> {
-                Batch batch = new Batch();
-                synchronized (existingBatchIncorporated) {
-                    if (!existingBatchIncorporated.get()) {
-                        batch = existingBatch;
-                        existingBatchIncorporated.set(true);
-                    }
-                }
+        Map<String, List<Row>> rowsByPartition = groupByPartition(rows);
+        if (rowsByPartition.size() > 1)
+            throw new DavaException(
+                PARTITION_ERROR,
+                "Rows to delete are in " + rowsByPartition.size() + " partitions of table: " + table.getTableName()
+                    + ", each partition needs its own batch (see Delete.addToBatches)",
+                null
+            );
 
-                batch.setDeletedRows(rows);
+        String partition = (rowsByPartition.isEmpty())? table.getPartitions().get(0) : rowsByPartition.keySet().iterator().next();
+        return buildBatch(partition, rowsByPartition.getOrDefault(partition, List.of()), existingBatch);
+    }
 
-                // for light mode we store all the rows in the table
-                if(table.getMode() == Mode.LIGHT) {
-                    batch.setAllRows(
-                        BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(
-                            table,
-                            partition
-                        )
-                    );
-                }
+    /**
+     * Same as {@link #addToBatch(List, boolean, Batch)}, but for rows from any of the table's partitions. Each
+     * partition with rows to delete gets its own batch, which are built in parallel.
+     *
+     * @return the batch for each partition
+     */
+    public Map<String, Batch> addToBatches(List<Row> rows, boolean replaceRollbackFile) {
+        return groupByPartition(rows).entrySet().parallelStream()
+            .map(entry -> Map.entry(entry.getKey(), buildBatch(entry.getKey(), entry.getValue(), new Batch())))
+            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
 
-                // TODO, on light mode neither of these should be needed
-                // determine old table size
-                long tableSize = table.getSize(partition);
-                batch.setOldTableSize(tableSize);
+    private Map<String, List<Row>> groupByPartition(List<Row> rows) {
+        Map<String, List<Row>> rowsByPartition = new LinkedHashMap<>();
+        rows.forEach( row ->
+            rowsByPartition.computeIfAbsent(row.getLocationInTable().getPartition(), key -> new ArrayList<>()).add(row)
+        );
+        return rowsByPartition;
+    }
 
-                // determine old table empties file size
-                long emptiesSize = fileUtil.fileSize(table.emptiesFilePath(partition));
-                batch.setOldEmptiesSize(emptiesSize);
+    private Batch buildBatch(String partition, List<Row> rows, Batch batch) {
+        batch.setPartition(partition);
+        batch.setDeletedRows(rows);
+
+        // for light mode we store all the rows in the table
+        if(table.getMode() == Mode.LIGHT) {
+            batch.setAllRows(
+                BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(
+                    table,
+                    partition
+                )
+            );
+        }
 
+        // TODO, on light mode neither of these should be needed
+        // determine old table size
+        long tableSize = table.getSize(partition);
+        batch.setOldTableSize(tableSize);
 
-                // determine all indices that point to the row and determine changes to indices (routes and file deletes)
-                // determine changes to numeric count files
-                Bundle< Map<String, CountChange>, Map<String, IndexDelete> > data = collectIndexData(rows, partition);
-                batch.setNumericCountFileChanges(data.getFirst());
-                batch.setIndexPathToInvalidRoutes(data.getSecond());
+        // determine old table empties file size
+        long emptiesSize = fileUtil.fileSize(table.emptiesFilePath(partition));
+        batch.setOldEmptiesSize(emptiesSize);
 
-                return Map.entry(partition, batch);
-            })
-            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
 
-        return existingBatch;
-        // execute(deleteBatchesByPartition, replaceRollbackFile);
+        // determine all indices that point to the row and determine changes to indices (routes and file deletes)
+        // determine changes to numeric count files
+        Bundle< Map<String, CountChange>, Map<String, IndexDelete> > data;
+        Lock lock = table.getIndexLayoutLock().readLock();
+        lock.lock();
+        try {
+            batch.recordIndexLayoutVersion(table.getIndexLayoutVersion());
+            batch.recordCompactionGeneration(table.getCompactionGeneration(partition));
+            data = collectIndexData(rows, partition);
+        } finally {
+            lock.unlock();
+        }
+        batch.setNumericCountFileChanges(data.getFirst());
+        batch.setIndexPathToInvalidRoutes(data.getSecond());
+
+        return batch;
     }
 
     private void execute(Map<String, Batch> deleteBatchesByPartition, boolean replaceRollbackFile) {
@@ -103,12 +129,8 @@ public class Delete {
         table.getPartitions().parallelStream().forEach( partition -> {
             try {
                 Batch batch = deleteBatchesByPartition.get(partition);
-                String rollback = batch.makeRollbackString(table, partition);
-
-                if (replaceRollbackFile)
-                    fileUtil.replaceFile(table.getRollbackPath(partition), rollback.getBytes() );
-                else
-                    fileUtil.writeBytesAppend(table.getRollbackPath(partition), rollback.getBytes() );
+                WriteAheadLog.of( table.getRollbackPath(partition) )
+                    .log( batch.makeRollbackRecord(table), replaceRollbackFile );
 
             } catch (IOException e) {
                 throw new DavaException(ROLLBACK_ERROR, "Error writing to rollback log", e);
@@ -128,7 +150,7 @@ public class Delete {
     private void performDelete(Batch batch, String partition) {
         // whitespace rows in table and add routes to empties
         List<WritePackage> overwritePackages = new ArrayList<>();
-        List<Object> emptiesWrites = new ArrayList<>();
+        List<Route> emptiesWrites = new ArrayList<>();
         batch.getDeletedRows().forEach( row -> {
             Route location = row.getLocationInTable();
             byte[] whitespaceBytes = Table.getWhitespaceBytes(location.getLengthInTable());
@@ -136,9 +158,7 @@ public class Delete {
                 new WritePackage(location.getOffsetInTable(), whitespaceBytes)
             );
 
-            emptiesWrites.add(
-                location.getRouteAsBytes()
-            );
+            emptiesWrites.add(location);
         });
 
         try {
@@ -147,10 +167,7 @@ public class Delete {
                 overwritePackages
             );
 
-            fileUtil.writeBytesAppend(
-                table.emptiesFilePath(partition),
-                ArrayUtil.appendArrays(emptiesWrites, 10)
-            );
+            table.getFreeSpace(partition).free(emptiesWrites);
         } catch (IOException e) {
             throw new DavaException(BASE_IO_ERROR, "Error deleting rows from table", e);
         }
@@ -165,9 +182,7 @@ public class Delete {
                     String indexPath = entry.getKey();
                     IndexDelete indexDelete = entry.getValue();
 
-                    long newSize = fileUtil.popBytes(indexPath, 10, indexDelete.getIndicesToDelete());
-                    if (newSize == 0)
-                        fileUtil.deleteFile(indexPath); // this is important as during rollbacks table counts are updated by the number of primary key index files
+                    BaseOperationService.removeIndexRoutes(indexPath, indexDelete);
 
                 } catch (IOException e) {
                     throw new DavaException(BASE_IO_ERROR, "Error updating indices after delete", e);
@@ -176,8 +191,10 @@ public class Delete {
 
         // update numeric count files
         batch.getNumericCountFileChanges().forEach( (countFile, countChange) -> {
-            String folderPath = countFile.replace("/c.count", "");
-            BaseOperationService.updateNumericCountFile(folderPath, countChange.getChange());
+            if (fileUtil.exists(countFile)) {
+                String folderPath = countFile.replace("/c.count", "");
+                BaseOperationService.updateNumericCountFile(folderPath, countChange.getChange());
+            }
         });
 
     }
@@ -190,31 +207,24 @@ public class Delete {
             .map( row -> Row.serialize(table, row.getColumnsToValues()) )
             .toList();
 
-        String rows = BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(
-            table,
-            partition
-        ).stream()
-            .map(row -> Row.serialize(table, row.getColumnsToValues()))
-            .filter( row ->
-                 deleteRows.stream()
-                    .map( deleteRow -> !row.equals(deleteRow) )
-                    .reduce(Boolean::logicalAnd)
-                    .orElse(true)
-            )
-            .collect(Collectors.joining("\n")) + "\n";
-
-        // delete the old file and write all rows back
-        String tablePath = table.getTablePath(partition);
-        try {
-            fileUtil.deleteFile(tablePath);
-
-            table.initTableCsv(partition);
-
-            long offset = fileUtil.fileSize(tablePath);
-            fileUtil.writeBytes(tablePath, offset, rows.getBytes(StandardCharsets.UTF_8));
-        } catch (IOException e) {
-            throw new DavaException(BASE_IO_ERROR, "Failed trying to delete and recreate table", e);
-        }
+        byte[] rows = ArrayUtil.appendArraysOfAnyLength(
+            BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(
+                table,
+                partition
+            ).stream()
+                .filter( row -> {
+                    String serialized = Row.serialize(table, row.getColumnsToValues());
+                    return deleteRows.stream()
+                        .map( deleteRow -> !serialized.equals(deleteRow) )
+                        .reduce(Boolean::logicalAnd)
+                        .orElse(true);
+                })
+                .map( row -> Row.toBytes(table, row.getColumnsToValues()) )
+                .toList()
+        );
+
+        // write all rows back over the old ones
+        table.rewriteTableCsv(partition, rows);
     }
 
     private Bundle<Map<String, CountChange>, Map<String, IndexDelete>> collectIndexData(List<Row> rows, String partition) {
@@ -234,22 +244,23 @@ public class Delete {
                         entry.getValue()
                     );
 
-                    Bundle<Long, List<Route>> bundle = BaseOperationService.getFileSizeAndRoutes(
+                    RouteBuffer lines = BaseOperationService.getFileSizeAndRouteBuffer(
                         indexPath,
-                        partition,
                         0L,
                         null
-                    );
+                    ).getSecond();
 
                     // figure out which routes (ordered) should be deleted
-                    List<Route> lines = bundle.getSecond();
-                    List<Long> startBytesOfRoutesToDelete = LongStream.range(0, lines.size())
-                        .filter(i -> lines.get((int)i).equals(row.getLocationInTable()))
-                        .boxed()
-                        .map(i -> i * 10)
-                        .toList();
-
-                    if (TypeUtil.isNumericClass(column.getType())) {
+                    Route location = row.getLocationInTable();
+                    long offset = location.getOffsetInTable();
+                    int length = location.getLengthInTable();
+                    List<Long> startBytesOfRoutesToDelete = new ArrayList<>();
+                    for (int i = 0; i < lines.size(); i++) {
+                        if (lines.getOffset(i) == offset && lines.getLength(i) == length)
+                            startBytesOfRoutesToDelete.add( (long) i * RouteBuffer.ROUTE_SIZE );
+                    }
+
+                    if (TypeUtil.isNumericClass(column.getType()) && !column.hasSingleFileIndex()) {
 
                         if (numericIndexPathToIndicesLeft.containsKey(indexPath)) {
                             Integer numLeft = numericIndexPathToIndicesLeft.get(indexPath);
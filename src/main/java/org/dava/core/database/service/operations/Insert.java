@@ -1,24 +1,15 @@
 package org.dava.core.database.service.operations;
 
-import org.dava.core.database.objects.exception.DavaException;
-import org.dava.core.database.service.BaseOperationService;
-import org.dava.core.database.service.Rollback;
 import org.dava.core.database.service.fileaccess.FileUtil;
 import org.dava.core.database.service.operations.common.Batch;
 import org.dava.core.database.service.operations.common.EmptiesPackage;
-import org.dava.core.database.service.operations.common.WritePackage;
 import org.dava.core.database.service.operations.delete.CountChange;
 import org.dava.core.database.service.operations.insert.IndexWritePackage;
 import org.dava.core.database.service.operations.insert.RowWritePackage;
 import org.dava.core.database.service.structure.*;
 
-import java.io.IOException;
-import java.math.BigDecimal;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
 import java.util.*;
-
-import static org.dava.core.database.objects.exception.ExceptionType.*;
+import java.util.concurrent.locks.Lock;
 
 
 public class Insert {
@@ -33,6 +24,8 @@ public class Insert {
 //    private Logger log = Logger.getLogger(Insert.class.getName());
 
     private EmptiesPackage rowEmpties;
+    private FreeSpace freeSpace;
+    private Iterator<Route> targetEmpties;
 
     public Insert(Database database, Table<?> table, String partition) {
         this.database = database;
@@ -42,6 +35,16 @@ public class Insert {
     }
 
 
+    /**
+     * Puts each row in the matching empty row, instead of finding one with {@link FreeSpace#take(int)}. The
+     * empties must already be taken from the partition's free space and be big enough for their row. Used
+     * by the Compactor to move rows to empties it picked.
+     */
+    public Insert intoEmpties(List<Route> empties) {
+        this.targetEmpties = empties.iterator();
+        return this;
+    }
+
     /**
      * Inserts a list of rows into the table and partition provided when creating the insert.
      * 
@@ -56,190 +59,86 @@ public class Insert {
      * @param replaceRollbackFile
      */
     public Batch addToBatch(List<Row> rows, boolean replaceRollbackFile, Batch batch) {
-        // TODO instead of using one partition, use multiple to be able to do all this in parallel
-
-        this.rowEmpties = table.getEmptyRows(partition);
+        // inserting into several partitions in parallel is done with PartitionedInsert
+        batch.setPartition(partition);
+        batch.recordCompactionGeneration(table.getCompactionGeneration(partition));
+        this.rowEmpties = new EmptiesPackage();
+        this.freeSpace = (table.getMode() != Mode.LIGHT)? table.getFreeSpace(partition) : null;
 
         // make write packages
         List<RowWritePackage> rowWritePackages = makeWritePackages(rows);
 
-        // build batch
-        groupIndexWrites(batch, database, table, rowWritePackages);
+        // build batch (numeric index paths depend on the folder layout, so hold it until the version is recorded)
+        Lock lock = table.getIndexLayoutLock().readLock();
+        lock.lock();
+        try {
+            batch.recordIndexLayoutVersion(table.getIndexLayoutVersion());
+            groupIndexWrites(batch, database, table, rowWritePackages);
+        } finally {
+            lock.unlock();
+        }
         if (table.getMode() != Mode.LIGHT) {
             batch.setUsedTableEmtpies(this.rowEmpties);
         }
         batch.setRowsWritten(rowWritePackages);
         batch.setOldTableSize( table.getSize(partition) );
 
-        // repartition numeric indices (this is a write, but is done safely, repartitions aren't rolled back)
-        try {
-            Map<String, List<IndexWritePackage>> updatedWritePackages =
-                repartitionNumericIndices(table, partition, batch, replaceRollbackFile);
-                batch.setIndexPathToIndicesWritten(updatedWritePackages);
-        } catch(Exception e) {
-            // the repartition fails itself, then we determine how to finish it (can undo what was done or finish it)
-            Rollback.handleNumericRepartitionFailure(table, partition);
-        }
-        
-        // build and log rollback
-        logRollback(batch.makeRollbackString(table, partition), table.getRollbackPath(partition), replaceRollbackFile);
-
+        // the rollback is logged when the batch is executed
         return batch;
-        // perform insert
-        // performInsert(batch);
-    }
-
-    private void logRollback(String logString, String rollbackLogPath, boolean replaceRollbackFile) {
-        try {
-            
-            if (replaceRollbackFile)
-                fileUtil.replaceFile(rollbackLogPath, logString.getBytes(StandardCharsets.UTF_8) );
-            else
-                fileUtil.writeBytesAppend(rollbackLogPath, logString.getBytes(StandardCharsets.UTF_8) );
-        } catch (IOException e) {
-            throw new DavaException(ROLLBACK_ERROR, "Error writing to rollback log", e);
-        }
-    }
-
-    private void performInsert(Batch insertBatch) {
-
-        // add to table
-        addToTable(table, partition, insertBatch.getRowsWritten(), insertBatch.getOldTableSize());
-
-        // add indexes
-        batchWriteToIndices(insertBatch.getIndexPathToIndicesWritten());
-
-        // remove used empties from tables
-        try {
-            BaseOperationService.popRoutes(
-                table.emptiesFilePath(partition),
-                insertBatch.getUsedTableEmtpies().getUsedEmpties()
-                    .values()
-                    .stream().flatMap(Collection::stream)
-                    .map(Empty::getIndex)
-                    .toList()
-            );
-        } catch (IOException e) {
-            throw new DavaException(
-                BASE_IO_ERROR,
-                "Error removing empty in table meta file: " + table.emptiesFilePath(partition),
-                e
-            );
-        }
-
-        // reinit table leaves if a numeric repartition occurred
-        if (!insertBatch.getNumericCountFileChanges().isEmpty()) {
-            table.initColumnLeaves();
-        }
-    }
-
-    private Map<String, List<IndexWritePackage>> repartitionNumericIndices(Table<?> table, String partition, Batch insertBatch, boolean replaceRollbackFile) {
-        Set<String> foldersToRepartition = new HashSet<>();
-
-        // get the repartitions and log rollback for that
-        StringBuilder repartitionRollbackString = new StringBuilder();
-        insertBatch.getNumericCountFileChanges().forEach((folderPath, count) -> {
-
-            String countFile = folderPath + "/c.count";
-            long currentCount = BaseOperationService.getCountFromCountFile(countFile);
-            if (currentCount + count.getChange() > BaseOperationService.NUMERIC_PARTITION_SIZE) {
-                repartitionRollbackString.append("N:").append(folderPath).append("\n");
-                foldersToRepartition.add(folderPath);
-            }
-        });
-        logRollback(repartitionRollbackString.toString(), table.getNumericRollbackPath(partition), replaceRollbackFile);
-
-
-
-        // determine folders to repartition
-        Map<String, List<String>> folderPathToIndexPaths = new HashMap<>();
-        insertBatch.getIndexPathToIndicesWritten().forEach( (indexPath, writePackages) -> {
-            IndexWritePackage firstPackage = writePackages.get(0);
-            if( Index.isNumericallyIndexed(firstPackage.getColumnType()) ) {
-                String folderPath = firstPackage.getFolderPath();
-                List<String> indexPaths = folderPathToIndexPaths.get(folderPath);
-                if (indexPaths == null) {
-                    folderPathToIndexPaths.put(
-                        folderPath,
-                        new ArrayList<>(List.of(indexPath))
-                    );
-                }
-                else {
-                    indexPaths.add(indexPath);
-                }
-            }
-
-        });
-
-        foldersToRepartition.forEach(folderPath -> {
-            List<String> affectedIndexPaths = folderPathToIndexPaths.get(folderPath);
-            if (affectedIndexPaths != null) {
-                BigDecimal defaultMedian = new BigDecimal(
-                    Path.of( affectedIndexPaths.get(0) ).getFileName().toString()
-                        .replace(".index", "").replace("+", "").replace("-", "")
-                );
-                
-                // actual repartition takes place
-                BigDecimal median = BaseOperationService.repartitionNumericIndex(folderPath, defaultMedian);
-                insertBatch.setNumericRepartitionOccured(true);
-
-                affectedIndexPaths.forEach(indexPath -> {
-                    List<IndexWritePackage> writePackages = insertBatch.getIndexPathToIndicesWritten().get(indexPath);
-
-                    insertBatch.getIndexPathToIndicesWritten().remove(indexPath);
-                    
-                    BigDecimal numericValue = new BigDecimal( writePackages.get(0).getValue().toString() );
-
-                    StringBuilder newIndexPathBD = new StringBuilder(folderPath);
-                    if ( median.compareTo(numericValue) > 0 ) {
-                        newIndexPathBD.append("/-").append(median);
-                    }
-                    else {
-                        newIndexPathBD.append("/+").append(median);
-                    }
-                    writePackages.forEach( writePackage -> writePackage.setFolderPath(newIndexPathBD.toString()) );
-                    newIndexPathBD.append("/").append(numericValue).append(".index");
-
-                    String newIndexPath = newIndexPathBD.toString();
-                    insertBatch.getIndexPathToIndicesWritten().put(newIndexPath, writePackages);
-                });
-            }
-        });
-
-        return insertBatch.getIndexPathToIndicesWritten();
     }
 
-
     /*
         Non-transaction (no write) helper methods
      */
     private List<RowWritePackage> makeWritePackages(List<Row> rows) {
         return rows.stream()
             .map(row ->{
-                String rowString = Row.serialize(table, row.getColumnsToValues()) + "\n";
-                byte[] bytes = rowString.getBytes(StandardCharsets.UTF_8);
+                byte[] bytes = Row.toBytes(table, row.getColumnsToValues());
+
+                Route empty;
+                if (targetEmpties != null)
+                    empty = targetEmpties.next();
+                else
+                    empty = (freeSpace == null)? null : freeSpace.take(bytes.length);
+                if (empty == null) {
+                    Route route = new Route(partition, tableSize, bytes.length);
+                    tableSize += bytes.length;
+                    return new RowWritePackage(route, row, bytes);
+                }
 
-                Long offset;
-                int lengthInTable = bytes.length;
-                if (rowEmpties.contains(lengthInTable)) {
-                    offset = rowEmpties.getEmptyRemember(lengthInTable).getRoute().getOffsetInTable();
+                rowEmpties.addTakenEmpty(new Route(partition, empty.getOffsetInTable(), empty.getLengthInTable()));
+
+                // split the empty row if there's enough left over, otherwise fill it
+                Route remainder = FreeSpace.remainder(empty, bytes.length);
+                if (remainder != null) {
+                    remainder.setPartition(partition);
+                    rowEmpties.addSplitRemainder(remainder);
                 }
-                else {
-                    offset = tableSize;
-                    tableSize += lengthInTable;
+                else if (empty.getLengthInTable() > bytes.length) {
+                    bytes = padBytes(bytes, empty.getLengthInTable());
                 }
 
                 Route route = new Route(
                     partition,
-                    offset,
-                    lengthInTable
+                    empty.getOffsetInTable(),
+                    bytes.length
                 );
+                rowEmpties.addUsedEmpty(new Empty(-1, route));
 
                 return new RowWritePackage(route, row, bytes);
             })
             .toList();
     }
 
+    /**
+     * Pads the row with spaces before it's ending new line (rows are trimmed when read)
+     */
+    private static byte[] padBytes(byte[] bytes, int length) {
+        byte[] padded = Table.getWhitespaceBytes(length);
+        System.arraycopy(bytes, 0, padded, 0, bytes.length - 1);
+        return padded;
+    }
+
     private void groupIndexWrites(Batch batch, Database database, Table<?> table, List<RowWritePackage> writePackages) {
         Map<String, CountChange> countUpdates = new HashMap<>();
         Set<String> countedIndexPaths = new HashSet<>();
@@ -261,7 +160,7 @@ public class Insert {
                     String indexPath = Index.indexPathBypass(folderPath, value);
 
                     // determine if we're planning on making new indices in a numeric repartition
-                    if ( Index.isNumericallyIndexed(column.getType()) && !fileUtil.exists(indexPath) && !countedIndexPaths.contains(indexPath)) {
+                    if ( Index.isNumericallyIndexed(column.getType()) && !column.hasSingleFileIndex() && !fileUtil.exists(indexPath) && !countedIndexPaths.contains(indexPath)) {
                         CountChange count = countUpdates.get(folderPath);
                         countUpdates.put(
                             folderPath,
@@ -287,45 +186,4 @@ public class Insert {
         batch.setNumericCountFileChanges(countUpdates);
     }
 
-
-
-    /*
-        Transactions (methods that write to files and need to be rolled back on failure)
-     */
-    private void batchWriteToIndices(Map<String, List<IndexWritePackage>> indexWritePackages) {
-
-        indexWritePackages.forEach( (indexPath, indexPackages) -> {
-                IndexWritePackage first = indexPackages.get(0);
-                String folderPath = first.getFolderPath();
-                Object value = first.getValue();
-                Column<?> column = table.getColumn(first.getColumnName());
-                BaseOperationService.addToIndex(folderPath, value, indexPackages, column.isUnique());
-            });
-    }
-
-    private void addToTable(Table<?> table, String partition, List<RowWritePackage> writePackages, long oldTableSize) {
-        String path = table.getTablePath(partition);
-        try {
-
-            fileUtil.writeBytes(
-                path,
-                (List<WritePackage>) (List<?>) writePackages
-            );
-
-            // update table row count in empties
-            long newSize = oldTableSize + writePackages.size();
-            table.setSize(partition, newSize);
-
-        } catch (IOException e) {
-            throw new DavaException(
-                BASE_IO_ERROR,
-                "Error writing row to: " + path,
-                e
-            );
-        }
-    }
-
-
-
-
 }
@@ -0,0 +1,179 @@
+package org.dava.core.database.service.operations;
+
+import org.dava.api.annotations.Partitioning;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.BaseOperationService;
+import org.dava.core.database.service.Rollback;
+import org.dava.core.database.service.operations.common.Batch;
+import org.dava.core.database.service.structure.Database;
+import org.dava.core.database.service.structure.Row;
+import org.dava.core.database.service.structure.Table;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.dava.core.database.objects.exception.ExceptionType.ROLLBACK_ERROR;
+
+
+/**
+ * Inserts rows into one or more tables, spreading each table's rows over all of its partitions.
+ *
+ * <p> Each partition gets it's own {@link Insert} and {@link Batch}, which are built and executed in parallel. Since
+ * partitions have their own table file, empties, indices and rollback log, the batches don't share anything. So
+ * with partitions on different disks, inserting scales with the number of partitions.
+ *
+ * <p> The whole insert is atomic. If any partition's batch fails, the rest are waited for, then every batch that
+ * was executed (including the one that failed) is rolled back before the exception is thrown.
+ */
+public class PartitionedInsert {
+
+    private final Database database;
+    private final Map<Table<?>, List<Row>> tableToRows = new LinkedHashMap<>();
+
+
+    public PartitionedInsert(Database database) {
+        this.database = database;
+    }
+
+
+    /**
+     * Adds rows to insert into the table when this is executed
+     */
+    public PartitionedInsert add(Table<?> table, List<Row> rows) {
+        tableToRows.computeIfAbsent(table, key -> new ArrayList<>()).addAll(rows);
+        return this;
+    }
+
+    /**
+     * Builds and executes a batch for each partition the rows were spread over.
+     *
+     * <p> If 'replaceRollbackFile' is false, then each partition's rollback information is appended to it's rollback
+     * log, putting this insert in a transaction with the last operation on that partition.
+     */
+    public void execute(boolean replaceRollbackFile) {
+        List<PartitionBatch> partitionBatches = new ArrayList<>();
+        tableToRows.forEach( (table, rows) -> {
+            Map<String, List<Row>> partitionToRows = shard(table, rows);
+
+            // each batch only checks it's own partition's indices for unique values
+            BaseOperationService.checkUniqueAcrossPartitions(table, partitionToRows);
+            partitionToRows.forEach( (partition, partitionRows) ->
+                partitionBatches.add(new PartitionBatch(table, partition, partitionRows))
+            );
+        });
+
+        // the compactor can't move the rows a batch wrote until it's known it won't be rolled back
+        partitionBatches.forEach( partitionBatch -> partitionBatch.table.holdCompaction(partitionBatch.partition) );
+        try {
+            // every batch is waited for before rolling back, so none are still writing or yet to start
+            List<CompletableFuture<Void>> futures = partitionBatches.stream()
+                .map( partitionBatch -> CompletableFuture.runAsync(() -> executeBatch(partitionBatch, replaceRollbackFile)) )
+                .toList();
+
+            RuntimeException failure = null;
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    RuntimeException cause = (e.getCause() instanceof RuntimeException runtimeException)?
+                        runtimeException : e;
+                    if (failure == null)
+                        failure = cause;
+                    else if (failure != cause)
+                        failure.addSuppressed(cause);
+                }
+            }
+
+            if (failure != null) {
+                rollback(
+                    partitionBatches.stream()
+                        .filter(partitionBatch -> partitionBatch.batch != null)
+                        .toList(),
+                    failure
+                );
+                throw failure;
+            }
+        } finally {
+            partitionBatches.forEach( partitionBatch -> partitionBatch.table.releaseCompactionHold(partitionBatch.partition) );
+        }
+    }
+
+    /**
+     * Builds and executes the partition's batch. If the compactor moved rows in the partition after the batch was
+     * built, the batch is stale and nothing was written, so it's built again from the new empty rows.
+     */
+    private void executeBatch(PartitionBatch partitionBatch, boolean replaceRollbackFile) {
+        for (int attempt = 0; ; attempt++) {
+            Batch batch = new Insert(database, partitionBatch.table, partitionBatch.partition)
+                .addToBatch(partitionBatch.rows, replaceRollbackFile, new Batch());
+
+            partitionBatch.batch = batch;
+            try {
+                batch.execute(partitionBatch.table, replaceRollbackFile);
+                return;
+            } catch (RuntimeException e) {
+                // a batch that failed before writing anything gave back it's empty rows, and has nothing to roll back
+                if (!batch.isStarted())
+                    partitionBatch.batch = null;
+
+                if (!(e instanceof DavaException davaException) || !Batch.isStale(davaException) || attempt >= Batch.STALE_RETRIES)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Splits the rows over the table's partitions. Rows go to the partition for their primary key if the table is
+     * partitioned by primary key, and otherwise evenly over the partitions that aren't full.
+     */
+    private static Map<String, List<Row>> shard(Table<?> table, List<Row> rows) {
+        List<String> partitions = table.getInsertPartitions();
+        if (partitions.size() == 1)
+            return Map.of(partitions.get(0), rows);
+
+        if (table.getPartitioning() == Partitioning.PRIMARY_KEY_HASH) {
+            Map<String, List<Row>> partitionToRows = new LinkedHashMap<>();
+            rows.forEach( row -> {
+                String partition = table.getPartitionForPrimaryKey(row.getValue(table.getPrimaryKeyColumnName()));
+                partitionToRows.computeIfAbsent(partition, key -> new ArrayList<>()).add(row);
+            });
+            return partitionToRows;
+        }
+
+        Map<String, List<Row>> partitionToRows = new LinkedHashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            String partition = partitions.get(i % partitions.size());
+            partitionToRows.computeIfAbsent(partition, key -> new ArrayList<>()).add(rows.get(i));
+        }
+        return partitionToRows;
+    }
+
+    private static void rollback(Collection<PartitionBatch> started, RuntimeException cause) {
+        started.parallelStream()
+            .forEach( partitionBatch -> {
+                try {
+                    new Rollback().rollback(partitionBatch.table, partitionBatch.partition, List.of(partitionBatch.batch));
+                } catch (RuntimeException e) {
+                    cause.addSuppressed(
+                        new DavaException(ROLLBACK_ERROR, "Error rolling back insert into partition: " + partitionBatch.partition, e)
+                    );
+                }
+            });
+    }
+
+
+    private static class PartitionBatch {
+        private final Table<?> table;
+        private final String partition;
+        private final List<Row> rows;
+        private volatile Batch batch; // set once it's built, right before it's executed
+
+        private PartitionBatch(Table<?> table, String partition, List<Row> rows) {
+            this.table = table;
+            this.partition = partition;
+            this.rows = rows;
+        }
+    }
+
+}
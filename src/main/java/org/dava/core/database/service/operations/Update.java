@@ -1,28 +1,74 @@
 package org.dava.core.database.service.operations;
 
 import java.util.List;
+import java.util.Objects;
 
+import org.dava.api.annotations.Partitioning;
+import org.dava.core.database.objects.exception.DavaException;
 import org.dava.core.database.service.operations.common.Batch;
 import org.dava.core.database.service.structure.Database;
 import org.dava.core.database.service.structure.Row;
 import org.dava.core.database.service.structure.Table;
 
+import static org.dava.core.database.objects.exception.ExceptionType.PARTITION_ERROR;
+
 public class Update {
 
+    private Database database;
+    private Table<?> table;
     private Delete delete;
-    private Insert insert;
 
 
     public Update(Database database, Table<?> table) {
+        this.database = database;
+        this.table = table;
         delete = new Delete(database, table);
-        insert = new Insert(database, table, table.getRandomPartition());
     }
     
 
+    /**
+     * Deletes the old rows and inserts the new ones in one batch. A batch is for one partition, so the new rows go
+     * in the partition the old rows were deleted from.
+     *
+     * <p> Throws a PARTITION_ERROR if the old rows are in more than one partition, or if the table is partitioned
+     * by primary key and a new row's primary key belongs in another partition.
+     */
     public Batch addToBatch(List<Row> oldRows, List<Row> newRows,  boolean replaceRollbackFile, Batch existingBatch) {
+        String partition = partitionFor(oldRows, newRows);
+
         existingBatch = delete.addToBatch(oldRows, replaceRollbackFile, existingBatch);
-        existingBatch = insert.addToBatch(newRows, replaceRollbackFile, existingBatch);
+        existingBatch = new Insert(database, table, partition).addToBatch(newRows, replaceRollbackFile, existingBatch);
 
         return existingBatch;
     }
+
+    private String partitionFor(List<Row> oldRows, List<Row> newRows) {
+        List<String> partitions = oldRows.stream()
+            .map(row -> row.getLocationInTable().getPartition())
+            .distinct()
+            .toList();
+        if (partitions.size() > 1)
+            throw new DavaException(
+                PARTITION_ERROR,
+                "Rows to update in table " + table.getTableName() + " are in partitions " + partitions + ", update each partition on it's own",
+                null
+            );
+
+        String partition = (partitions.isEmpty())? null : partitions.get(0);
+        if (table.getPartitioning() == Partitioning.PRIMARY_KEY_HASH) {
+            for (Row row : newRows) {
+                String rowPartition = table.getPartitionForPrimaryKey(row.getValue(table.getPrimaryKeyColumnName()));
+                if (partition == null)
+                    partition = rowPartition;
+                else if (!Objects.equals(partition, rowPartition))
+                    throw new DavaException(
+                        PARTITION_ERROR,
+                        "Updated rows in table " + table.getTableName() + " would move to another partition, since it's partitioned by primary key",
+                        null
+                    );
+            }
+        }
+
+        return (partition == null)? table.getRandomPartition() : partition;
+    }
 }
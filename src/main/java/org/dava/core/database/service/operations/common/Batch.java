@@ -3,7 +3,9 @@ package org.dava.core.database.service.operations.common;
 import org.dava.core.common.ArrayUtil;
 import org.dava.core.database.objects.exception.DavaException;
 import org.dava.core.database.service.BaseOperationService;
+import org.dava.core.database.service.IndexMaintenance;
 import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.WriteAheadLog;
 import org.dava.core.database.service.operations.delete.CountChange;
 import org.dava.core.database.service.operations.delete.IndexDelete;
 import org.dava.core.database.service.operations.insert.IndexWritePackage;
@@ -11,10 +13,15 @@ import org.dava.core.database.service.operations.insert.RowWritePackage;
 import org.dava.core.database.service.structure.*;
 import org.dava.core.database.service.type.compression.TypeToByteUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -23,6 +30,8 @@ import static org.dava.core.database.objects.exception.ExceptionType.*;
 
 public class Batch {
 
+    public static final int STALE_RETRIES = 10; // times a stale batch is built again before giving up
+
 
     // insert
     private EmptiesPackage usedTableEmtpies;
@@ -39,7 +48,9 @@ public class Batch {
     private String partition;
     private Long oldTableSize;
     private Map<String, CountChange> numericCountFileChanges;
-    private boolean numericRepartitionOccured;
+    private Long indexLayoutVersion; // layout the index paths were built with
+    private Long compactionGeneration; // compaction generation of the partition the routes were built with
+    private volatile boolean started;
 
 
     public FileUtil fileUtil = new FileUtil();
@@ -170,23 +181,21 @@ public class Batch {
                 String[] subs = line.split(";");
                 String indexPath = subs[0].substring(3);
 
+                RouteBuffer originalRoutes = new RouteBuffer(subs.length);
+                for (int i = 1; i < subs.length; i++) {
+                    String nums = subs[i].substring(2);
+                    int comma = nums.indexOf(',');
+                    originalRoutes.add(
+                        Long.parseLong(nums, 0, comma, 10),
+                        Integer.parseInt(nums, comma + 1, nums.length(), 10)
+                    );
+                }
+
                 indexPathToInvalidRoutes.put(
                     indexPath,
                     new IndexDelete(
                         new ArrayList<>(),
-                        IntStream.range(1, subs.length)
-                            .mapToObj( i -> {
-                                String nums = subs[i].substring(2);
-                                Long offset = Long.parseLong(nums.split(",")[0]);
-                                Integer length = Integer.parseInt(nums.split(",")[1]);
-
-                                return new Route(
-                                    null,
-                                    offset,
-                                    length
-                                );
-                            })
-                            .toList()
+                        originalRoutes
                     )
                 );
             }
@@ -221,6 +230,102 @@ public class Batch {
     }
 
 
+    /**
+     * Reads a batch logged with {@link #makeRollbackRecord(Table)} so it can be rolled back
+     */
+    public static Batch readRollbackRecord(byte[] record, Table<?> table, String partition) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        Batch batch = new Batch();
+
+        try {
+            int indexCount = in.readInt();
+            for (int i = 0; i < indexCount; i++) {
+                String indexPath = readString(in);
+                int routeCount = in.readInt();
+                List<IndexWritePackage> writePackages = new ArrayList<>(routeCount);
+                for (int j = 0; j < routeCount; j++) {
+                    writePackages.add( new IndexWritePackage(readRoute(in, null), null, null, null) );
+                }
+                batch.indexPathToIndicesWritten.put(indexPath, writePackages);
+            }
+
+            int emptyCount = in.readInt();
+            List<Empty> empties = new ArrayList<>(emptyCount);
+            for (int i = 0; i < emptyCount; i++) {
+                empties.add( new Empty(-1, readRoute(in, null)) );
+            }
+            batch.usedTableEmtpies.setRollbackEmpties(empties);
+
+            int rowsWrittenCount = in.readInt();
+            for (int i = 0; i < rowsWrittenCount; i++) {
+                Route route = readRoute(in, null);
+                batch.rowsWritten.add( new RowWritePackage(route, new Row(readString(in), table, null), null) );
+            }
+
+            int removedCount = in.readInt();
+            for (int i = 0; i < removedCount; i++) {
+                Route route = (in.readBoolean())? readRoute(in, partition) : null;
+                batch.deletedRows.add( new Row(readString(in), table, route) );
+            }
+
+            batch.oldTableSize = readOptionalLong(in);
+            batch.oldEmptiesSize = readOptionalLong(in);
+
+            int invalidatedCount = in.readInt();
+            for (int i = 0; i < invalidatedCount; i++) {
+                String indexPath = readString(in);
+                int routeCount = in.readInt();
+                RouteBuffer originalRoutes = new RouteBuffer(routeCount);
+                for (int j = 0; j < routeCount; j++) {
+                    originalRoutes.add(in.readLong(), in.readInt());
+                }
+                batch.indexPathToInvalidRoutes.put(indexPath, new IndexDelete(new ArrayList<>(), originalRoutes));
+            }
+
+            int countChanges = in.readInt();
+            for (int i = 0; i < countChanges; i++) {
+                String countFilePath = readString(in);
+                batch.numericCountFileChanges.put(countFilePath, new CountChange(in.readLong(), 0L));
+            }
+        } catch (IOException e) {
+            throw new DavaException(ROLLBACK_ERROR, "Error reading rollback record", e);
+        }
+
+        return batch;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeRoute(DataOutputStream out, Route route) throws IOException {
+        out.writeLong(route.getOffsetInTable());
+        out.writeInt(route.getLengthInTable());
+    }
+
+    private static Route readRoute(DataInputStream in, String partition) throws IOException {
+        return new Route(partition, in.readLong(), in.readInt());
+    }
+
+    private static void writeOptionalLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeLong(value);
+    }
+
+    private static Long readOptionalLong(DataInputStream in) throws IOException {
+        return (in.readBoolean())? in.readLong() : null;
+    }
+
+
     public void addIndexWritePackage(String indexPath, IndexWritePackage writePackage) {
         if ( indexPathToIndicesWritten.containsKey(indexPath ) ) {
             indexPathToIndicesWritten.get(indexPath).add(writePackage);
@@ -236,7 +341,10 @@ public class Batch {
     }
 
     /**
-     * Keys in Rollback String:
+     * Readable form of the rollback information. Older versions logged this to the rollback file, now
+     * {@link #makeRollbackRecord(Table)} is logged instead, but logs in this format can still be parsed.
+     *
+     * <p> Keys in Rollback String:
      * - I: index that has been added
      * - E: used empties route
      * - N: numeric repartition
@@ -334,13 +442,14 @@ public class Batch {
         // indices to delete
         indexPathToInvalidRoutes.forEach((indexPath, indexDelete) -> {
             builder.append("ID:").append(indexPath).append(";");
-            indexDelete.getOriginalRoutes().forEach(route -> {
+            RouteBuffer routes = indexDelete.getOriginalRoutes();
+            for (int i = 0; i < routes.size(); i++) {
                 builder.append("R:")
-                    .append(route.getOffsetInTable())
+                    .append(routes.getOffset(i))
                     .append(",")
-                    .append(route.getLengthInTable())
+                    .append(routes.getLength(i))
                     .append(";");
-            });
+            }
             // use the route above to remove lines from table. Then search for route in index and whitespace the route there
             builder.append("\n");
         });
@@ -360,33 +469,117 @@ public class Batch {
         return builder.toString();
     }
 
-    //TODO maybe split up this giant rollback method
+    /**
+     * The same rollback information as {@link #makeRollbackString(Table, String)}, in the binary form logged to
+     * the partition's {@link WriteAheadLog}. Read back with {@link #readRollbackRecord(byte[], Table, String)}.
+     */
+    public byte[] makeRollbackRecord(Table<?> table) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            // indices added
+            out.writeInt(indexPathToIndicesWritten.size());
+            for (Map.Entry<String, List<IndexWritePackage>> entry : indexPathToIndicesWritten.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (IndexWritePackage writePackage : entry.getValue()) {
+                    writeRoute(out, writePackage.getRoute());
+                }
+            }
+
+            // used empties
+            List<Empty> usedEmpties = usedTableEmtpies.getUsedEmpties().values().stream()
+                .flatMap(List::stream)
+                .toList();
+            out.writeInt(usedEmpties.size());
+            for (Empty empty : usedEmpties) {
+                writeRoute(out, empty.getRoute());
+            }
+
+            // rows written
+            out.writeInt(rowsWritten.size());
+            for (RowWritePackage rowWritePackage : rowsWritten) {
+                writeRoute(out, rowWritePackage.getRoute());
+                writeString(out, Row.serialize(table, rowWritePackage.getRow().getColumnsToValues()));
+            }
+
+            // rows removed
+            List<Row> removedRows = (table.getMode() == Mode.LIGHT)? allRows : deletedRows;
+            out.writeInt(removedRows.size());
+            for (Row row : removedRows) {
+                out.writeBoolean(row.getLocationInTable() != null);
+                if (row.getLocationInTable() != null)
+                    writeRoute(out, row.getLocationInTable());
+                writeString(out, Row.serialize(table, row.getColumnsToValues()));
+            }
+
+            // table and empties sizes
+            writeOptionalLong(out, oldTableSize);
+            writeOptionalLong(out, oldEmptiesSize);
+
+            // indices deleted from
+            out.writeInt(indexPathToInvalidRoutes.size());
+            for (Map.Entry<String, IndexDelete> entry : indexPathToInvalidRoutes.entrySet()) {
+                writeString(out, entry.getKey());
+                RouteBuffer routes = entry.getValue().getOriginalRoutes();
+                out.writeInt(routes.size());
+                for (int i = 0; i < routes.size(); i++) {
+                    out.writeLong(routes.getOffset(i));
+                    out.writeInt(routes.getLength(i));
+                }
+            }
+
+            // old count file values
+            out.writeInt(numericCountFileChanges.size());
+            for (Map.Entry<String, CountChange> entry : numericCountFileChanges.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue().getOldCount());
+            }
+        } catch (IOException e) {
+            throw new DavaException(ROLLBACK_ERROR, "Error building rollback record", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
     public void rollback(Table<?> table, String partition) {
 
+        // numeric index folders may have been repartitioned since these paths were logged
+        Lock compactionLock = table.getCompactionLock().readLock();
+        Lock lock = table.getIndexLayoutLock().readLock();
+        compactionLock.lock();
+        lock.lock();
+        try {
+            performRollback(table, partition);
+        } finally {
+            lock.unlock();
+            compactionLock.unlock();
+        }
+    }
+
+    //TODO maybe split up this giant rollback method
+    private void performRollback(Table<?> table, String partition) {
+        relocateIndexPaths(table);
 
         // INSERT delete indices referring to rows
         indexPathToIndicesWritten.forEach((indexPath, writePackages) -> {
             try {
-                List<Route> routes = new ArrayList<>(
-                    BaseOperationService.getFileSizeAndRoutes(indexPath, partition, 0L, 10).getSecond()
-                );
-                routes.removeAll(
+                RouteBuffer routes = BaseOperationService.getFileSizeAndRouteBuffer(indexPath, 0L, null).getSecond();
+                RouteBuffer written = RouteBuffer.of(
                     writePackages.stream()
                         .map(IndexWritePackage::getRoute)
                         .toList()
                 );
+                written.sort();
 
-                fileUtil.replaceFile(
-                    indexPath,
-                    routes.stream().map(route -> new WritePackage(
-                        route.getOffsetInTable(),
-                        route.getRouteAsBytes()
-                    ))
-                    .toList()
-                );
+                RouteBuffer remaining = new RouteBuffer(routes.size());
+                for (int i = 0; i < routes.size(); i++) {
+                    if (!written.containsSorted(routes.getOffset(i), routes.getLength(i)))
+                        remaining.add(routes.getOffset(i), routes.getLength(i));
+                }
 
-                if (fileUtil.fileSize(indexPath) == 0)
-                    fileUtil.deleteFile(indexPath);
+                BaseOperationService.replaceIndexRoutes(table, indexPath, remaining);
 
             } catch (IOException e) {
                 throw new DavaException(ROLLBACK_ERROR, "Error updating indices undoing insert", e);
@@ -426,9 +619,7 @@ public class Batch {
                 );
                 // all rows from before delete
                 for (Row row : allRowsWithoutThoseToDelete) {
-                    String line = Row.serialize(table, row.getColumnsToValues());
-                    line += "\n";
-                    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                    byte[] bytes = Row.toBytes(table, row.getColumnsToValues());
                     writePackages.add(
                         new WritePackage(
                             offset,
@@ -438,9 +629,8 @@ public class Batch {
                     offset += bytes.length;
                 }
 
-                fileUtil.deleteFile(table.getTablePath(partition));
-
-                fileUtil.writeBytes(
+                // truncated in place, since a partition placed on another disk is a link to the file
+                fileUtil.replaceFile(
                     table.getTablePath(partition),
                     writePackages
                 );
@@ -471,22 +661,8 @@ public class Batch {
                 whitespacePackagesFromEmtpies
             );
 
-            if (!whitespacePackagesFromEmtpies.isEmpty()) {
-                List<Route> empties = BaseOperationService.getAllEmpties(table.emptiesFilePath(partition));
-                if (empties != null)
-                    emptyRoutes.addAll( empties );
-
-                fileUtil.writeBytes(
-                    table.emptiesFilePath(partition),
-                    8L,
-                    ArrayUtil.appendArrays(
-                        emptyRoutes.stream()
-                            .map(route -> (Object) route.getRouteAsBytes())
-                            .toList(),
-                        10
-                    )
-                );
-            }
+            if (!whitespacePackagesFromEmtpies.isEmpty())
+                table.getFreeSpace(partition).free( new ArrayList<>(emptyRoutes) );
 
         } catch (IOException e) {
             throw new DavaException(ROLLBACK_ERROR, "Error undoing insert", e);
@@ -500,40 +676,55 @@ public class Batch {
         try {
             
             if (table.getMode() != Mode.LIGHT) {
-                List<WritePackage> writePackages = deletedRows.stream()
-                .map(row -> {
-                    Route route = row.getLocationInTable();
-                    String rowString = Row.serialize(table, row.getColumnsToValues()) + "\n";
-                    byte[] bytes = rowString.getBytes(StandardCharsets.UTF_8);
+                List<WritePackage> writePackages = new ArrayList<>(
+                    deletedRows.stream()
+                    .map(row -> {
+                        // written back in the space it was deleted from, in whichever format fits there
+                        Route route = row.getLocationInTable();
+                        byte[] padded = Row.toBytesPadded(table, row.getColumnsToValues(), route.getLengthInTable());
+                        byte[] bytes = (padded == null)? Row.toBytes(table, row.getColumnsToValues()) : padded;
+
+                        return new WritePackage(
+                            route.getOffsetInTable(),
+                            bytes
+                        );
+                    })
+                    .toList()
+                );
 
-                    return new WritePackage(
-                        route.getOffsetInTable(),
-                        bytes
-                    );
-                })
-                .toList();
+                // rows moved by the compactor go back past where it truncated the file, what was between them was empty rows
+                List<Route> gaps = gapsPastEndOfFile(table, partition);
+                gaps.forEach( gap -> writePackages.add(
+                    new WritePackage(gap.getOffsetInTable(), Table.getWhitespaceBytes(gap.getLengthInTable()))
+                ));
 
                 fileUtil.writeBytes(
                     table.getTablePath(partition),
                     writePackages
                 );
+                if (!gaps.isEmpty())
+                    table.getFreeSpace(partition).free(gaps);
             }
             else if (deletedRows.size() > 0) {
                 // if light mode, all the rows are logged in the rollback log before the delete is performed. So we just write
                 // back out whatever was logged
-                fileUtil.deleteFile(
-                    table.getTablePath(partition)
-                );
-
-                table.initTableCsv(partition);
+                // the file is truncated in place, since a partition placed on another disk is a link to it
+                byte[] columnTitles = table.makeColumnTitles().getBytes(StandardCharsets.UTF_8);
                 AtomicReference<Long> offset = new AtomicReference<>(
-                    fileUtil.fileSize(table.getTablePath(partition))
+                    (long) columnTitles.length
+                );
+                List<WritePackage> writePackages = new ArrayList<>(
+                    List.of(
+                        new WritePackage(
+                            0L,
+                            columnTitles
+                        )
+                    )
                 );
-                List<WritePackage> writePackages = deletedRows.stream()
+                deletedRows.stream()
                 .map(row -> {
                     Route route = row.getLocationInTable();
-                    String rowString = Row.serialize(table, row.getColumnsToValues()) + "\n";
-                    byte[] bytes = rowString.getBytes(StandardCharsets.UTF_8);
+                    byte[] bytes = Row.toBytes(table, row.getColumnsToValues());
 
                     if (table.getMode() == Mode.LIGHT) { // light mode these routes won't be valid so we need to append instead
                         route.setOffsetInTable(offset.get());
@@ -545,9 +736,9 @@ public class Batch {
                         bytes
                     );
                 })
-                .toList();
+                .forEach(writePackages::add);
 
-                fileUtil.writeBytes(
+                fileUtil.replaceFile(
                     table.getTablePath(partition),
                     writePackages
                 );
@@ -562,9 +753,14 @@ public class Batch {
         if (oldTableSize != null) {
             table.setSize(partition, oldTableSize);
         }
-        if (oldEmptiesSize != null) {
+        if (oldEmptiesSize != null && table.getMode() != Mode.LIGHT && !deletedRows.isEmpty()) {
+            // the empties file is a journal, so the deleted rows are journaled as used again instead of truncating it
             try {
-                fileUtil.truncate(table.emptiesFilePath(partition), oldEmptiesSize);
+                table.getFreeSpace(partition).markUsed(
+                    deletedRows.stream()
+                        .map(Row::getLocationInTable)
+                        .toList()
+                );
             } catch (IOException e) {
                 throw new DavaException(ROLLBACK_ERROR, "Error rolling back empties file after failed delete", e);
             }
@@ -573,28 +769,18 @@ public class Batch {
         // DELETE add back index routes pointing to deleted rows
         indexPathToInvalidRoutes.forEach( (indexPath, indexDelete) -> {
             try {
-                Set<Route> routes = new HashSet<>(
-                    BaseOperationService.getFileSizeAndRoutes(indexPath, partition, 0L, 10).getSecond()
-                );
-                routes.addAll(
-                    indexDelete.getOriginalRoutes()
-                );
-
-                List<IndexWritePackage> indexWrites = routes.stream()
-                    .map(route -> {
-                        return new IndexWritePackage(
-                            route,
-                            null,
-                            null,
-                            indexPath
-                        );
-                    })
-                    .toList();
+                // original routes, plus any routes added since (shouldn't be any)
+                RouteBuffer routes = indexDelete.getOriginalRoutes().copy();
+                RouteBuffer sortedOriginal = indexDelete.getOriginalRoutes().copy();
+                sortedOriginal.sort();
+
+                RouteBuffer current = BaseOperationService.getFileSizeAndRouteBuffer(indexPath, 0L, null).getSecond();
+                for (int i = 0; i < current.size(); i++) {
+                    if (!sortedOriginal.containsSorted(current.getOffset(i), current.getLength(i)))
+                        routes.add(current.getOffset(i), current.getLength(i));
+                }
 
-                fileUtil.writeBytes(
-                    indexPath,
-                    (List<WritePackage>) (List<?>) indexWrites
-                );
+                BaseOperationService.replaceIndexRoutes(table, indexPath, routes);
             } catch (IOException e) {
                 throw new DavaException(ROLLBACK_ERROR, "Error rolling back index file after failed delete: " + indexPath, e);
             }
@@ -603,15 +789,79 @@ public class Batch {
     }
 
 
+    /**
+     * The space between the end of the table file and the deleted rows that are past it
+     */
+    private List<Route> gapsPastEndOfFile(Table<?> table, String partition) {
+        long end = fileUtil.fileSize(table.getTablePath(partition));
+        List<Route> gaps = new ArrayList<>();
+        List<Route> routes = deletedRows.stream()
+            .map(Row::getLocationInTable)
+            .sorted(Comparator.comparingLong(Route::getOffsetInTable))
+            .toList();
+        for (Route route : routes) {
+            if (route.getOffsetInTable() > end)
+                gaps.add(new Route(partition, end, (int) (route.getOffsetInTable() - end)));
+            end = Math.max(end, route.getOffsetInTable() + route.getLengthInTable());
+        }
+        return gaps;
+    }
+
+
     public void execute(Table<?> table, boolean replaceRollbackFile) {
-        this.partition = table.getRandomPartition();
-        logRollback(table, replaceRollbackFile);
+        // the compactor can't move rows or truncate the table file while this batch writes
+        Lock compactionLock = table.getCompactionLock().readLock();
+        compactionLock.lock();
+        try {
+            performExecute(table, replaceRollbackFile);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private void performExecute(Table<?> table, boolean replaceRollbackFile) {
+        // inserts and deletes set the partition they were built for
+        if (partition == null)
+            partition = table.getRandomPartition();
+
+        try {
+            // rows this batch writes over or appends may have been moved by the compactor since it was built
+            boolean writesRows = !rowsWritten.isEmpty() || !deletedRows.isEmpty();
+            if (writesRows && table.getMode() != Mode.LIGHT && compactionGeneration != null
+                    && compactionGeneration != table.getCompactionGeneration(partition)) {
+                throw new DavaException(
+                    STALE_BATCH_ERROR,
+                    "Partition " + partition + " of table " + table.getTableName() + " was compacted since this batch was built, build it again",
+                    null
+                );
+            }
+
+            // and rows being deleted could have been moved after they were read, but before the batch was built
+            if (!deletedRows.isEmpty() && table.getMode() != Mode.LIGHT && !deletedRowsAreInPlace(table)) {
+                throw new DavaException(
+                    STALE_BATCH_ERROR,
+                    "Rows being deleted from partition " + partition + " of table " + table.getTableName() + " have moved since they were read, read them again",
+                    null
+                );
+            }
+            logRollback(table, replaceRollbackFile);
+        } catch (RuntimeException e) {
+            // nothing was written, so the empty rows an insert took are given back
+            releaseEmpties(table);
+            throw e;
+        }
+        started = true;
 
 
 
         // add new rows, and delete rows to delete
         String tablePath = table.getTablePath(partition);
         long newTableSize = 0L;
+
+        // a columnar sidecar isn't rebuilt while rows are written, it'd miss or double count them
+        ColumnarSidecar sidecar = (table.hasColumnarColumns())? ColumnarSidecar.of(table, partition) : null;
+        if (sidecar != null)
+            sidecar.getUpdateLock().lock();
         try {
 
             if (table.getMode() == Mode.LIGHT) {
@@ -628,73 +878,196 @@ public class Batch {
             // update table row count in empties
             table.setSize(partition, newTableSize);
 
+            if (sidecar != null) {
+                // light mode deletes rewrite the table, so the rows' offsets have all changed
+                if (table.getMode() == Mode.LIGHT && !deletedRows.isEmpty())
+                    sidecar.invalidate();
+                else
+                    sidecar.update(table, rowsWritten, deletedRows);
+            }
+
         } catch (IOException e) {
             throw new DavaException(
                 BASE_IO_ERROR,
                 "Error writing rows or deleteing rows in table at: " + tablePath,
                 e
             );
+        } finally {
+            if (sidecar != null)
+                sidecar.getUpdateLock().unlock();
         }
 
         // update indices (if not light mode)
         if (table.getMode() != Mode.LIGHT) {
+            Lock lock = table.getIndexLayoutLock().readLock();
+            lock.lock();
+            try {
+                // numeric index folders may have been repartitioned since this batch was built
+                if (indexLayoutVersion == null || indexLayoutVersion != table.getIndexLayoutVersion())
+                    relocateIndexPaths(table);
 
-            // update numeric count files
-            if (!numericRepartitionOccured) {
+                // update numeric count files (a repartitioned folder has no count file, the new ones were counted when it was split)
                 numericCountFileChanges.forEach( (countFile, countChange) -> {
-                    String folderPath = countFile.replace("/c.count", "");
-                    BaseOperationService.updateNumericCountFile(folderPath, countChange.getChange());
+                    if (fileUtil.exists(countFile)) {
+                        String folderPath = countFile.replace("/c.count", "");
+                        BaseOperationService.updateNumericCountFile(folderPath, countChange.getChange());
+                    }
                 });
+
+                // remove indices that were deleted
+                indexPathToInvalidRoutes.entrySet().parallelStream()
+                    .forEach( entry -> {
+                        try {
+                            String indexPath = entry.getKey();
+                            IndexDelete indexDelete = entry.getValue();
+
+                            BaseOperationService.removeIndexRoutes(indexPath, indexDelete);
+
+                        } catch (IOException e) {
+                            throw new DavaException(BASE_IO_ERROR, "Error updating indices after delete", e);
+                        }
+                    });
+
+
+                // add indices or new rows
+                indexPathToIndicesWritten.forEach( (indexPath, indexPackages) -> {
+                    IndexWritePackage first = indexPackages.get(0);
+                    String folderPath = first.getFolderPath();
+                    Object value = first.getValue();
+                    Column<?> column = table.getColumn(first.getColumnName());
+                    BaseOperationService.addToIndex(folderPath, value, indexPackages, column.isUnique());
+                });
+            } finally {
+                lock.unlock();
             }
-            
 
-            // reinit table leaves if a numeric repartition occurred
-            if (!numericCountFileChanges.isEmpty()) {
-                table.initColumnLeaves();
+            // split any numeric folders that are now too big
+            scheduleNumericRepartitions(table);
+        }
+
+
+    }
+
+    /**
+     * True if each deleted row's route still has the row with the same primary key. Called while holding the
+     * compaction lock, so nothing can move them after.
+     */
+    private boolean deletedRowsAreInPlace(Table<?> table) {
+        String tablePath = table.getTablePath(partition);
+        String primaryKey = table.getPrimaryKeyColumnName();
+        try {
+            List<Object> reads = fileUtil.readBytes(
+                tablePath,
+                deletedRows.stream().map(row -> row.getLocationInTable().getOffsetInTable()).toList(),
+                deletedRows.stream().map(row -> (long) row.getLocationInTable().getLengthInTable()).toList()
+            );
+
+            for (int i = 0; i < deletedRows.size(); i++) {
+                byte[] bytes = (byte[]) reads.get(i);
+                if (bytes == null || bytes.length == 0 || bytes[0] == ' ' || bytes[bytes.length - 1] != '\n')
+                    return false; // deleted, or part of a longer row
+
+                Row row = deletedRows.get(i);
+                Row current = Row.of(bytes, 0, bytes.length, table, row.getLocationInTable());
+                if (!String.valueOf(current.getValue(primaryKey)).equals(String.valueOf(row.getValue(primaryKey))))
+                    return false;
             }
+            return true;
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error reading rows to delete from table: " + tablePath, e);
+        } catch (DavaException e) {
+            return false; // something other than a whole row is there now
+        }
+    }
 
-            // remove indices that were deleted
-            indexPathToInvalidRoutes.entrySet().parallelStream()
-                .forEach( entry -> {
-                    // XXX replace this popBytes call with one that popbytes multiple bytes in one file read.
-                    try {
-                        String indexPath = entry.getKey();
-                        IndexDelete indexDelete = entry.getValue();
+    /**
+     * Gives back the empty rows an insert took when it was built, for a batch that failed before writing anything
+     * (like one that was stale, see {@link #isStale(DavaException)}). Empty rows the compactor truncated off the
+     * end of the file since are journaled as gone instead.
+     */
+    private void releaseEmpties(Table<?> table) {
+        List<Route> taken = usedTableEmtpies.getTakenEmpties();
+        if (table.getMode() == Mode.LIGHT || partition == null || taken.isEmpty())
+            return;
 
-                        long newSize = fileUtil.popBytes(indexPath, 10, indexDelete.getIndicesToDelete());
-                        if (newSize == 0)
-                            fileUtil.deleteFile(indexPath); // this is important as during rollbacks table counts are updated by the number of primary key index files
+        long fileSize = fileUtil.fileSize(table.getTablePath(partition));
+        Map<Boolean, List<Route>> inFile = taken.stream()
+            .collect(Collectors.partitioningBy(route -> route.getOffsetInTable() + route.getLengthInTable() <= fileSize));
 
-                    } catch (IOException e) {
-                        throw new DavaException(BASE_IO_ERROR, "Error updating indices after delete", e);
-                    }
+        FreeSpace freeSpace = table.getFreeSpace(partition);
+        freeSpace.release(inFile.get(true));
+        try {
+            freeSpace.markUsed(inFile.get(false));
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error giving back empty rows of table: " + table.getTablePath(partition), e);
+        }
+    }
+
+    /**
+     * True once the batch has got past it's checks and logged it's rollback, after which it may have written
+     * something and has to be rolled back if it fails
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * True if the batch failed because the compactor moved rows it would have written over or deleted. Nothing
+     * was written, and it should be built again (reading the rows again for a delete).
+     */
+    public static boolean isStale(DavaException e) {
+        return e.getType() == STALE_BATCH_ERROR;
+    }
+
+    /**
+     * Moves index paths (and the folder paths in their write packages) to where they are in the current numeric folder layout
+     */
+    private void relocateIndexPaths(Table<?> table) {
+        Map<String, List<IndexWritePackage>> relocatedWrites = new HashMap<>();
+        indexPathToIndicesWritten.forEach( (indexPath, writePackages) -> {
+            String newIndexPath = Index.relocateNumericIndexPath(table, indexPath);
+            if (!newIndexPath.equals(indexPath)) {
+                String newFolderPath = newIndexPath.substring(0, newIndexPath.lastIndexOf('/'));
+                writePackages.forEach( writePackage -> {
+                    if (writePackage.getFolderPath() != null)
+                        writePackage.setFolderPath(newFolderPath);
                 });
+            }
+            relocatedWrites.computeIfAbsent(newIndexPath, path -> new ArrayList<>()).addAll(writePackages);
+        });
+        indexPathToIndicesWritten = relocatedWrites;
 
-            
-            // add indices or new rows
-            indexPathToIndicesWritten.forEach( (indexPath, indexPackages) -> {
-                IndexWritePackage first = indexPackages.get(0);
-                String folderPath = first.getFolderPath();
-                Object value = first.getValue();
-                Column<?> column = table.getColumn(first.getColumnName());
-                BaseOperationService.addToIndex(folderPath, value, indexPackages, column.isUnique());
-            });
-        }
-        
-        
+        Map<String, IndexDelete> relocatedDeletes = new HashMap<>();
+        indexPathToInvalidRoutes.forEach( (indexPath, indexDelete) ->
+            relocatedDeletes.put(Index.relocateNumericIndexPath(table, indexPath), indexDelete)
+        );
+        indexPathToInvalidRoutes = relocatedDeletes;
+
+        indexLayoutVersion = table.getIndexLayoutVersion();
+    }
+
+    private void scheduleNumericRepartitions(Table<?> table) {
+        Set<String> folders = new HashSet<>();
+        indexPathToIndicesWritten.forEach( (indexPath, writePackages) -> {
+            Column<?> column = writePackages.get(0).getColumn();
+            if (Index.isNumericallyIndexed(column.getType()) && !column.hasSingleFileIndex())
+                folders.add(writePackages.get(0).getFolderPath());
+        });
+
+        folders.forEach( folderPath ->
+            IndexMaintenance.scheduleRepartitionIfFull(
+                table,
+                Index.getParitionFromPath(table.getDatabaseRoot(), table.getTableName(), folderPath),
+                folderPath
+            )
+        );
     }
 
 
     private void logRollback(Table<?> table, boolean replaceRollbackFile) {
         try {
-
-            String rollbackLogPath = table.getRollbackPath(partition);
-            String logString = makeRollbackString(table, partition);
-            
-            if (replaceRollbackFile)
-                fileUtil.replaceFile(rollbackLogPath, logString.getBytes(StandardCharsets.UTF_8) );
-            else
-                fileUtil.writeBytesAppend(rollbackLogPath, logString.getBytes(StandardCharsets.UTF_8) );
+            WriteAheadLog.of( table.getRollbackPath(partition) )
+                .log( makeRollbackRecord(table), replaceRollbackFile );
         } catch (IOException e) {
             throw new DavaException(ROLLBACK_ERROR, "Error writing to rollback log", e);
         }
@@ -723,17 +1096,14 @@ public class Batch {
                 .toList()
         );
 
-        String newRowsAsString = allNewRows.stream()
-            .map(row -> Row.serialize(table, row.getColumnsToValues()))
-            .collect(Collectors.joining("\n")) + "\n";
-
-        // delete the old file and write all rows back
-        fileUtil.deleteFile(tablePath);
-
-        table.initTableCsv(partition);
+        byte[] newRowBytes = ArrayUtil.appendArraysOfAnyLength(
+            allNewRows.stream()
+                .map(row -> Row.toBytes(table, row.getColumnsToValues()))
+                .toList()
+        );
 
-        long offset = fileUtil.fileSize(tablePath);
-        fileUtil.writeBytes(tablePath, offset, newRowsAsString.getBytes(StandardCharsets.UTF_8));
+        // write all rows back over the old ones
+        table.rewriteTableCsv(partition, newRowBytes);
 
         // return new table size
         return allNewRows.size();
@@ -753,7 +1123,7 @@ public class Batch {
     private long writeInsertsAndWhitespaceDeletesAndEmpties(Table<?> table, String tablePath) throws IOException {
         // collect rows to write, and rows to whitespace out or 'delete'
         List<WritePackage> writePackages = new ArrayList<>();
-        List<Object> emptiesWrites = new ArrayList<>();
+        List<Route> emptiesWrites = new ArrayList<>();
 
         // add insert rows
         writePackages.addAll(rowsWritten);
@@ -766,9 +1136,7 @@ public class Batch {
                 new WritePackage(location.getOffsetInTable(), whitespaceBytes)
             );
 
-            emptiesWrites.add(
-                location.getRouteAsBytes()
-            );
+            emptiesWrites.add(location);
         });
 
         fileUtil.writeBytes(
@@ -776,23 +1144,18 @@ public class Batch {
             writePackages
         );
 
-        // write empties to empties file
-        fileUtil.writeBytesAppend(
-            table.emptiesFilePath(partition),
-            ArrayUtil.appendArrays(emptiesWrites, 10)
-        );
-
-
-        // remove used empties from tables
+        // journal used empties, and write new empties (and what's left of split empties) to the empties file
+        FreeSpace freeSpace = table.getFreeSpace(partition);
+        emptiesWrites.addAll(usedTableEmtpies.getSplitRemainders());
         try {
-            BaseOperationService.popRoutes(
-                table.emptiesFilePath(partition),
+            freeSpace.markUsed(
                 usedTableEmtpies.getUsedEmpties()
                     .values()
                     .stream().flatMap(Collection::stream)
-                    .map(Empty::getIndex)
+                    .map(Empty::getRoute)
                     .toList()
             );
+            freeSpace.free(emptiesWrites);
         } catch (IOException e) {
             throw new DavaException(
                 BASE_IO_ERROR,
@@ -902,12 +1265,28 @@ public class Batch {
         this.oldTableSize = oldTableSize;
     }
 
-    public boolean isNumericRepartitionOccured() {
-        return numericRepartitionOccured;
+    public Long getIndexLayoutVersion() {
+        return indexLayoutVersion;
+    }
+
+    /**
+     * Keeps the oldest version recorded, since an insert and a delete can share a batch
+     */
+    public void recordIndexLayoutVersion(long indexLayoutVersion) {
+        if (this.indexLayoutVersion == null || indexLayoutVersion < this.indexLayoutVersion)
+            this.indexLayoutVersion = indexLayoutVersion;
     }
 
-    public void setNumericRepartitionOccured(boolean numericRepartitionOccured) {
-        this.numericRepartitionOccured = numericRepartitionOccured;
+    public Long getCompactionGeneration() {
+        return compactionGeneration;
+    }
+
+    /**
+     * Keeps the oldest generation recorded, like {@link #recordIndexLayoutVersion(long)}
+     */
+    public void recordCompactionGeneration(long compactionGeneration) {
+        if (this.compactionGeneration == null || compactionGeneration < this.compactionGeneration)
+            this.compactionGeneration = compactionGeneration;
     }
 
     public FileUtil getFileUtil() {
@@ -4,63 +4,50 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import org.dava.core.database.service.structure.Empty;
 import org.dava.core.database.service.structure.Route;
 
 public class EmptiesPackage {
 
-    private Map<Integer, List<Empty>> remainingEmpties;
     private Map<Integer, List<Empty>> usedEmpties;
     private List<Empty> rollbackEmpties;
+    private List<Route> splitRemainders;
+    private List<Route> takenEmpties;
 
 
 
     /**
-     * Object that contains a map of empty rows which can be
-     * queried for by row length
+     * Object that contains the empty rows used by an insert (taken from
+     * the table's {@link org.dava.core.database.service.structure.FreeSpace}),
+     * grouped by row length
      */
     public EmptiesPackage() {
-        remainingEmpties = new HashMap<>();
         usedEmpties = new HashMap<>();
+        splitRemainders = new ArrayList<>();
+        takenEmpties = new ArrayList<>();
     }
 
-    public void addEmpty(Empty empty) {
-        if(remainingEmpties.containsKey(empty.getRoute().getLengthInTable())) {
-            remainingEmpties.get(empty.getRoute().getLengthInTable()).add(empty);
-        }
-        else {
-            remainingEmpties.put(empty.getRoute().getLengthInTable(), new ArrayList<>( List.of(empty) ));
-        }
+    /**
+     * Adds an empty row used by the insert. The route is the part of the empty row the inserted row takes up.
+     */
+    public void addUsedEmpty(Empty empty) {
+        usedEmpties.computeIfAbsent(empty.getRoute().getLengthInTable(), key -> new ArrayList<>())
+            .add(empty);
     }
 
-    public boolean contains(int desiredLength) {
-        return remainingEmpties.containsKey(desiredLength);
+    /**
+     * Adds the space left over from an empty row that was split, which becomes an empty row once the insert is executed
+     */
+    public void addSplitRemainder(Route remainder) {
+        splitRemainders.add(remainder);
     }
 
-    public Empty getEmptyRemember(int desiredLength) {
-        if (remainingEmpties.containsKey(desiredLength)) {
-            List<Empty> empties = remainingEmpties.get(desiredLength);
-            Empty empty = empties.get(0);
-            empties = empties.subList(1, empties.size());
-
-            if (!empties.isEmpty()) {
-                remainingEmpties.put(desiredLength, empties);
-            }
-            else {
-                remainingEmpties.remove(desiredLength);
-            }
-
-            if(usedEmpties.containsKey(desiredLength)) {
-                usedEmpties.get(desiredLength).add(empty);
-            }
-            else {
-                usedEmpties.put(desiredLength, new ArrayList<>( List.of(empty) ));
-            }
-            return empty;
-        }
-        return null;
+    /**
+     * Adds a whole empty row as it was taken from the free space, before any split
+     */
+    public void addTakenEmpty(Route empty) {
+        takenEmpties.add(empty);
     }
 
 
@@ -72,7 +59,23 @@ public class EmptiesPackage {
         return usedEmpties;
     }
 
+    public List<Route> getSplitRemainders() {
+        return splitRemainders;
+    }
+
+    public List<Route> getTakenEmpties() {
+        return takenEmpties;
+    }
+
+    /**
+     * The empty rows to give back on a rollback. Read from the rollback log, or for a batch that was just
+     * executed (and is being rolled back in memory) the empty rows it used.
+     */
     public List<Empty> getRollbackEmpties() {
+        if (rollbackEmpties == null)
+            return usedEmpties.values().stream()
+                .flatMap(List::stream)
+                .toList();
         return rollbackEmpties;
     }
 
@@ -80,14 +83,4 @@ public class EmptiesPackage {
         this.rollbackEmpties = rollbackEmpties;
     }
 
-    public String getRemaingingEmptiesString() {
-        return remainingEmpties.values().stream()
-            .map( empties ->
-                empties.stream().map(empty ->
-                     empty.getRoute().getOffsetInTable() + ":" + empty.getRoute().getLengthInTable()
-                )
-                .collect(Collectors.joining(";"))
-            )
-            .collect(Collectors.joining("\n"));
-    }
 }
@@ -3,14 +3,14 @@ package org.dava.core.database.service.operations.delete;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.dava.core.database.service.structure.Route;
+import org.dava.core.database.service.structure.RouteBuffer;
 
 public class IndexDelete {
     private List<Long> indicesToDelete;
 
-    private List<Route> originalRoutes;
+    private RouteBuffer originalRoutes;
 
-    public IndexDelete(List<Long> indicesToDelete, List<Route> originalRoutes) {
+    public IndexDelete(List<Long> indicesToDelete, RouteBuffer originalRoutes) {
         this.indicesToDelete = new ArrayList<>(indicesToDelete);
         this.originalRoutes = originalRoutes;
     }
@@ -23,7 +23,7 @@ public class IndexDelete {
         return indicesToDelete;
     }
 
-    public List<Route> getOriginalRoutes() {
+    public RouteBuffer getOriginalRoutes() {
         return originalRoutes;
     }
 }
@@ -0,0 +1,743 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.core.common.HashUtil;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.WriteAheadLog;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static org.dava.core.database.objects.exception.ExceptionType.INDEX_CREATION_ERROR;
+import static org.dava.core.database.objects.exception.ExceptionType.INDEX_READ_ERROR;
+
+/**
+ * Page based B+tree index stored in one file per column per partition.
+ *
+ * <p> The default index layout makes a file for every distinct value in a column, which for high
+ * cardinality columns means millions of tiny files. Here every (value, route) pair is an entry in
+ * a sorted tree of fixed size pages instead. Leaves are linked in both directions for range scans.
+ *
+ * <p> File layout, every page is {@value #PAGE_SIZE} bytes:
+ *    - page 0: [4 bytes magic][4 bytes root page][4 bytes page count][1 byte key type]
+ *    - node header: [1 byte type][2 bytes entry count][1 unused][4 bytes next leaf][4 bytes previous leaf][4 unused]
+ *    - leaf: header then entries of [1 byte key length][63 bytes key][10 bytes route]
+ *    - internal: header then [4 bytes child] ([entry][4 bytes child])...
+ *
+ * <p> Internal separators are whole entries (key and route), so the entries for a single value can span
+ * several leaves. Numeric keys are the number in an exact order preserving encoding (see {@link #encodeNumber(BigDecimal)}),
+ * so the tree is sorted numerically and scans get the number back. String keys longer than 63 bytes are hashed like long
+ * index file names are.
+ *
+ * <p> An insert that writes more than one page (a split, or creating the tree) logs the new pages to a journal next to
+ * the index before writing any of them, and marks the journal done after. If the process dies part way through, the
+ * pages are written again from the journal when the index is next opened, so the tree is never left half split.
+ *
+ * <p> Deletes just remove the entry from its leaf, pages aren't merged.
+ */
+public class BTreeIndex extends PagedIndex {
+
+    private static final int KEY_SIZE = 64;
+    private static final int MAX_KEY_BYTES = KEY_SIZE - 1;
+    private static final int ENTRY_SIZE = KEY_SIZE + RouteBuffer.ROUTE_SIZE;
+    private static final int HEADER_SIZE = 16;
+    private static final int LEAF_CAPACITY = (PAGE_SIZE - HEADER_SIZE) / ENTRY_SIZE;
+    private static final int INTERNAL_CAPACITY = (PAGE_SIZE - HEADER_SIZE - 4) / (ENTRY_SIZE + 4);
+    private static final int MAX_DIGITS = (MAX_KEY_BYTES - 6) * 2; // sign, exponent, and terminator bytes, two digits a byte
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    private static final int MAGIC = 0x44425431;
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final int NO_PAGE = -1;
+
+    private static final byte NEGATIVE = 0x40;
+    private static final byte ZERO = (byte) 0x80;
+    private static final byte POSITIVE = (byte) 0xC0;
+
+    private static final Map<String, BTreeIndex> openIndices = new ConcurrentHashMap<>();
+
+    private KeyType keyType;
+    private int root = NO_PAGE;
+    private int pageCount = 0;
+    private Map<Integer, byte[]> pendingPages; // pages written by the insert in progress, see writePendingPages()
+
+
+    private BTreeIndex(String filePath) {
+        super(filePath);
+    }
+
+    /**
+     * Gets the index for a file. The file doesn't have to exist yet, an empty index acts like
+     * it has no entries until something is inserted.
+     */
+    public static BTreeIndex of(String filePath) {
+        return openIndices.computeIfAbsent(filePath, path -> {
+            BTreeIndex index = new BTreeIndex(path);
+            index.recover();
+            return index;
+        });
+    }
+
+
+    /*
+        Operations
+     */
+
+    @Override
+    public synchronized void insert(String value, long offset, int length, KeyType type) {
+        pendingPages = new LinkedHashMap<>();
+        boolean written = false;
+        try {
+            refresh();
+            if (root == NO_PAGE)
+                create(type);
+
+            byte[] key = encodeKey(value);
+            if (key == null)
+                throw new DavaException(
+                    INDEX_CREATION_ERROR,
+                    "Value '" + value + "' can't be a key in btree index: " + filePath + ", numbers can have at most " + MAX_DIGITS + " digits",
+                    null
+                );
+
+            Split split = insert(root, key, offset, length);
+            if (split != null) {
+                byte[] newRoot = newPage(INTERNAL);
+                putInt(newRoot, HEADER_SIZE, root);
+                System.arraycopy(split.separator, 0, newRoot, internalEntryAt(0), ENTRY_SIZE);
+                putInt(newRoot, internalEntryAt(0) + ENTRY_SIZE, split.rightPage);
+                setCount(newRoot, 1);
+
+                int newRootPage = allocatePage();
+                writePage(newRootPage, newRoot);
+                root = newRootPage;
+                writeMeta();
+            }
+            writePendingPages();
+            written = true;
+            restamp();
+        } catch (IOException e) {
+            throw new DavaException(INDEX_CREATION_ERROR, "Error writing to btree index: " + filePath, e);
+        } finally {
+            pendingPages = null;
+            if (!written)
+                unload(); // the root and page count may have changed for pages that weren't written
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(String value, long offset, int length) {
+        try {
+            refresh();
+            if (root == NO_PAGE)
+                return false;
+
+            byte[] key = encodeKey(value);
+            if (key == null)
+                return false;
+
+            int pageNumber = root;
+            byte[] page = readPage(pageNumber);
+            while (page[0] == INTERNAL) {
+                pageNumber = getInt(page, childAt(page, key, offset, length, false));
+                page = readPage(pageNumber);
+            }
+
+            int count = getCount(page);
+            int position = lowerBound(page, count, key, offset, length, false);
+            if (position == count || compareEntry(page, leafEntryAt(position), key, offset, length, false) != 0)
+                return false;
+
+            byte[] updated = page.clone();
+            System.arraycopy(page, leafEntryAt(position + 1), updated, leafEntryAt(position), (count - position - 1) * ENTRY_SIZE);
+            setCount(updated, count - 1);
+            writePage(pageNumber, updated);
+            restamp();
+            return true;
+        } catch (IOException e) {
+            throw new DavaException(INDEX_CREATION_ERROR, "Error deleting from btree index: " + filePath, e);
+        }
+    }
+
+    /**
+     * Gets every route for a value, in route order.
+     */
+    @Override
+    public synchronized RouteBuffer get(String value) {
+        try {
+            refresh();
+            RouteBuffer routes = new RouteBuffer();
+            if (root == NO_PAGE)
+                return routes;
+
+            byte[] key = encodeKey(value);
+            if (key == null)
+                return routes;
+
+            byte[] page = readPage(root);
+            while (page[0] == INTERNAL) {
+                page = readPage(getInt(page, childAt(page, key, 0, 0, true)));
+            }
+
+            int position = lowerBound(page, getCount(page), key, 0, 0, true);
+            while (true) {
+                int count = getCount(page);
+                for (int i = position; i < count; i++) {
+                    int at = leafEntryAt(i);
+                    if (compareKeys(page, at, key) != 0)
+                        return routes;
+                    routes.add(RouteBuffer.decodeOffset(page, at + KEY_SIZE), RouteBuffer.decodeLength(page, at + KEY_SIZE));
+                }
+
+                int next = getInt(page, 4);
+                if (next == NO_PAGE)
+                    return routes;
+                page = readPage(next);
+                position = 0;
+            }
+        } catch (IOException e) {
+            throw new DavaException(INDEX_READ_ERROR, "Error reading btree index: " + filePath, e);
+        }
+    }
+
+    /**
+     * The tree is only descended to the first leaf with matching entries, and the scan stops at
+     * the first non match after that.
+     */
+    @Override
+    public synchronized void scan(Predicate<String> matches, boolean descending, EntryVisitor visitor) {
+        try {
+            refresh();
+            if (root == NO_PAGE)
+                return;
+
+            String first = edgeValue(false);
+            String last = edgeValue(true);
+            if (first == null)
+                return;
+
+            boolean firstMatches = matches.test(first);
+            boolean lastMatches = matches.test(last);
+            if (!firstMatches && !lastMatches)
+                return;
+
+            // find the leaf to start from
+            int pageNumber;
+            if (firstMatches && lastMatches || firstMatches != descending) {
+                pageNumber = edgeLeaf(descending);
+            }
+            else {
+                // seek to the boundary, for ascending scans it's the first match, for descending the last
+                pageNumber = root;
+                byte[] page = readPage(pageNumber);
+                while (page[0] == INTERNAL) {
+                    int child = 0;
+                    for (int i = getCount(page) - 1; i >= 0; i--) {
+                        boolean separatorMatches = matches.test(readValue(page, internalEntryAt(i)));
+                        if (separatorMatches == descending) {
+                            child = i + 1;
+                            break;
+                        }
+                    }
+                    pageNumber = getInt(page, (child == 0)? HEADER_SIZE : internalEntryAt(child - 1) + ENTRY_SIZE);
+                    page = readPage(pageNumber);
+                }
+            }
+
+            boolean matching = false;
+            while (pageNumber != NO_PAGE) {
+                byte[] page = readPage(pageNumber);
+                int count = getCount(page);
+                for (int j = 0; j < count; j++) {
+                    int at = leafEntryAt( (descending)? count - 1 - j : j );
+                    String value = readValue(page, at);
+                    if (!matches.test(value)) {
+                        if (matching)
+                            return;
+                        continue;
+                    }
+                    matching = true;
+
+                    boolean keepGoing = visitor.visit(
+                        value,
+                        RouteBuffer.decodeOffset(page, at + KEY_SIZE),
+                        RouteBuffer.decodeLength(page, at + KEY_SIZE)
+                    );
+                    if (!keepGoing)
+                        return;
+                }
+                pageNumber = getInt(page, (descending)? 8 : 4);
+            }
+        } catch (IOException e) {
+            throw new DavaException(INDEX_READ_ERROR, "Error scanning btree index: " + filePath, e);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return edgeValueUnchecked() == null;
+    }
+
+
+
+    /*
+        Tree helpers
+     */
+
+    private record Split(byte[] separator, int rightPage) {}
+
+    private Split insert(int pageNumber, byte[] key, long offset, int length) throws IOException {
+        byte[] page = readPage(pageNumber);
+        int count = getCount(page);
+
+        if (page[0] == LEAF) {
+            int position = lowerBound(page, count, key, offset, length, false);
+            byte[] entry = makeEntry(key, offset, length);
+
+            if (count < LEAF_CAPACITY) {
+                byte[] updated = page.clone();
+                System.arraycopy(page, leafEntryAt(position), updated, leafEntryAt(position + 1), (count - position) * ENTRY_SIZE);
+                System.arraycopy(entry, 0, updated, leafEntryAt(position), ENTRY_SIZE);
+                setCount(updated, count + 1);
+                writePage(pageNumber, updated);
+                return null;
+            }
+
+            // split the leaf in half
+            byte[] all = new byte[(count + 1) * ENTRY_SIZE];
+            System.arraycopy(page, leafEntryAt(0), all, 0, position * ENTRY_SIZE);
+            System.arraycopy(entry, 0, all, position * ENTRY_SIZE, ENTRY_SIZE);
+            System.arraycopy(page, leafEntryAt(position), all, (position + 1) * ENTRY_SIZE, (count - position) * ENTRY_SIZE);
+            int leftCount = (count + 1) / 2;
+            int rightCount = count + 1 - leftCount;
+
+            int rightPageNumber = allocatePage();
+            int oldNext = getInt(page, 4);
+
+            byte[] left = newPage(LEAF);
+            System.arraycopy(all, 0, left, HEADER_SIZE, leftCount * ENTRY_SIZE);
+            setCount(left, leftCount);
+            putInt(left, 4, rightPageNumber);
+            putInt(left, 8, getInt(page, 8));
+
+            byte[] right = newPage(LEAF);
+            System.arraycopy(all, leftCount * ENTRY_SIZE, right, HEADER_SIZE, rightCount * ENTRY_SIZE);
+            setCount(right, rightCount);
+            putInt(right, 4, oldNext);
+            putInt(right, 8, pageNumber);
+
+            writePage(rightPageNumber, right);
+            if (oldNext != NO_PAGE) {
+                byte[] nextPage = readPage(oldNext).clone();
+                putInt(nextPage, 8, rightPageNumber);
+                writePage(oldNext, nextPage);
+            }
+            writePage(pageNumber, left);
+            writeMeta();
+
+            return new Split(Arrays.copyOfRange(all, leftCount * ENTRY_SIZE, (leftCount + 1) * ENTRY_SIZE), rightPageNumber);
+        }
+
+        // internal node
+        int childPointer = childAt(page, key, offset, length, false);
+        Split split = insert(getInt(page, childPointer), key, offset, length);
+        if (split == null)
+            return null;
+
+        int position = (childPointer == HEADER_SIZE)? 0 : (childPointer - HEADER_SIZE - 4) / (ENTRY_SIZE + 4) + 1;
+        int slot = ENTRY_SIZE + 4;
+        if (count < INTERNAL_CAPACITY) {
+            byte[] updated = page.clone();
+            System.arraycopy(page, internalEntryAt(position), updated, internalEntryAt(position + 1), (count - position) * slot);
+            System.arraycopy(split.separator, 0, updated, internalEntryAt(position), ENTRY_SIZE);
+            putInt(updated, internalEntryAt(position) + ENTRY_SIZE, split.rightPage);
+            setCount(updated, count + 1);
+            writePage(pageNumber, updated);
+            return null;
+        }
+
+        // split the internal node, the middle separator moves up
+        byte[] all = new byte[(count + 1) * slot];
+        System.arraycopy(page, internalEntryAt(0), all, 0, position * slot);
+        System.arraycopy(split.separator, 0, all, position * slot, ENTRY_SIZE);
+        putInt(all, position * slot + ENTRY_SIZE, split.rightPage);
+        System.arraycopy(page, internalEntryAt(position), all, (position + 1) * slot, (count - position) * slot);
+        int middle = (count + 1) / 2;
+
+        byte[] left = newPage(INTERNAL);
+        putInt(left, HEADER_SIZE, getInt(page, HEADER_SIZE));
+        System.arraycopy(all, 0, left, internalEntryAt(0), middle * slot);
+        setCount(left, middle);
+
+        byte[] right = newPage(INTERNAL);
+        putInt(right, HEADER_SIZE, getInt(all, middle * slot + ENTRY_SIZE));
+        System.arraycopy(all, (middle + 1) * slot, right, internalEntryAt(0), (count - middle) * slot);
+        setCount(right, count - middle);
+
+        int rightPageNumber = allocatePage();
+        writePage(rightPageNumber, right);
+        writePage(pageNumber, left);
+        writeMeta();
+
+        return new Split(Arrays.copyOfRange(all, middle * slot, middle * slot + ENTRY_SIZE), rightPageNumber);
+    }
+
+    /**
+     * @return the position in the page of the child pointer to follow
+     */
+    private int childAt(byte[] page, byte[] key, long offset, int length, boolean lowestRoute) {
+        // number of separators <= target
+        int low = 0;
+        int high = getCount(page);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareEntry(page, internalEntryAt(mid), key, offset, length, lowestRoute) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return (low == 0)? HEADER_SIZE : internalEntryAt(low - 1) + ENTRY_SIZE;
+    }
+
+    /**
+     * @return position of the first entry >= target
+     */
+    private int lowerBound(byte[] page, int count, byte[] key, long offset, int length, boolean lowestRoute) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareEntry(page, leafEntryAt(mid), key, offset, length, lowestRoute) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Compares the entry at 'at' to the target. If 'lowestRoute' the target is before every entry with the same key.
+     */
+    private int compareEntry(byte[] page, int at, byte[] key, long offset, int length, boolean lowestRoute) {
+        int compare = compareKeys(page, at, key);
+        if (compare != 0)
+            return compare;
+        if (lowestRoute)
+            return 1;
+
+        long entryOffset = RouteBuffer.decodeOffset(page, at + KEY_SIZE);
+        if (entryOffset != offset)
+            return Long.compare(entryOffset, offset);
+        return Integer.compare(RouteBuffer.decodeLength(page, at + KEY_SIZE), length);
+    }
+
+    private int compareKeys(byte[] page, int at, byte[] key) {
+        int entryLength = page[at] & 0xFF;
+        return Arrays.compareUnsigned(page, at + 1, at + 1 + entryLength, key, 0, key.length);
+    }
+
+    private String readValue(byte[] page, int at) {
+        int length = page[at] & 0xFF;
+        if (keyType == KeyType.NUMERIC)
+            return decodeNumber(page, at + 1, length);
+        return new String(page, at + 1, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the key for the value, or null if it can't be a key (a number with too many digits to fit)
+     */
+    private byte[] encodeKey(String value) {
+        if (keyType == KeyType.NUMERIC) {
+            try {
+                return encodeNumber(new BigDecimal(value));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY_BYTES)
+            bytes = HashUtil.hashToUUID(bytes).getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+
+    /**
+     * Encodes the number so comparing the bytes (unsigned) orders the numbers exactly. The layout is
+     * [sign][4 byte exponent][digits], where the number is 0.digits x 10^exponent and the digits are
+     * packed two a byte as digit + 1, so a shorter run of digits sorts before a longer one it starts.
+     * For negative numbers everything after the sign is flipped, and a 0xFF byte on the end puts the
+     * shorter run after the longer one. Zero is [sign][4 byte scale].
+     *
+     * <p> The scale is kept ('10' and '10.0' are different keys next to each other), so the value read back
+     * is the same as the one inserted, like with index file names.
+     *
+     * @return the key, or null if the number has more than {@value #MAX_DIGITS} digits
+     */
+    static byte[] encodeNumber(BigDecimal number) {
+        if (number.signum() == 0) {
+            return ByteBuffer.allocate(5)
+                .put(ZERO)
+                .putInt(number.scale() ^ Integer.MIN_VALUE)
+                .array();
+        }
+
+        String digits = number.unscaledValue().abs().toString();
+        long exponent = (long) digits.length() - number.scale();
+        if (digits.length() > MAX_DIGITS || exponent != (int) exponent)
+            return null;
+
+        boolean negative = number.signum() < 0;
+        byte[] key = new byte[5 + (digits.length() + 1) / 2 + ((negative)? 1 : 0)];
+        key[0] = (negative)? NEGATIVE : POSITIVE;
+        putInt(key, 1, (int) exponent ^ Integer.MIN_VALUE);
+        for (int i = 0; i < digits.length(); i++) {
+            int nibble = digits.charAt(i) - '0' + 1;
+            key[5 + i / 2] |= (byte) ((i % 2 == 0)? nibble << 4 : nibble);
+        }
+
+        if (negative) {
+            for (int i = 1; i < key.length - 1; i++) {
+                key[i] = (byte) ~key[i];
+            }
+            key[key.length - 1] = (byte) 0xFF;
+        }
+        return key;
+    }
+
+    /**
+     * The number encoded with {@link #encodeNumber(BigDecimal)}, as a plain string
+     */
+    static String decodeNumber(byte[] bytes, int from, int length) {
+        if (bytes[from] == ZERO)
+            return BigDecimal.ZERO.setScale(getInt(bytes, from + 1) ^ Integer.MIN_VALUE).toPlainString();
+
+        boolean negative = bytes[from] == NEGATIVE;
+        byte[] body = Arrays.copyOfRange(bytes, from + 1, from + ((negative)? length - 1 : length));
+        if (negative) {
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) ~body[i];
+            }
+        }
+
+        int exponent = getInt(body, 0) ^ Integer.MIN_VALUE;
+        StringBuilder digits = new StringBuilder();
+        for (int i = 4; i < body.length; i++) {
+            int high = (body[i] >> 4) & 0xF;
+            int low = body[i] & 0xF;
+            digits.append((char) ('0' + high - 1));
+            if (low != 0)
+                digits.append((char) ('0' + low - 1));
+        }
+
+        BigDecimal number = new BigDecimal(new BigInteger(digits.toString()), digits.length() - exponent);
+        return ((negative)? number.negate() : number).toPlainString();
+    }
+
+    private static byte[] makeEntry(byte[] key, long offset, int length) {
+        byte[] entry = new byte[ENTRY_SIZE];
+        entry[0] = (byte) key.length;
+        System.arraycopy(key, 0, entry, 1, key.length);
+        RouteBuffer.encode(offset, length, entry, KEY_SIZE);
+        return entry;
+    }
+
+    /**
+     * First or last leaf in the tree
+     */
+    private int edgeLeaf(boolean last) throws IOException {
+        int pageNumber = root;
+        byte[] page = readPage(pageNumber);
+        while (page[0] == INTERNAL) {
+            int count = getCount(page);
+            pageNumber = getInt(page, (last && count > 0)? internalEntryAt(count - 1) + ENTRY_SIZE : HEADER_SIZE);
+            page = readPage(pageNumber);
+        }
+        return pageNumber;
+    }
+
+    /**
+     * Smallest or largest value in the tree, or null if there are no entries
+     */
+    private String edgeValue(boolean last) throws IOException {
+        int pageNumber = edgeLeaf(last);
+        while (pageNumber != NO_PAGE) {
+            byte[] page = readPage(pageNumber);
+            int count = getCount(page);
+            if (count > 0)
+                return readValue(page, leafEntryAt( (last)? count - 1 : 0 ));
+            pageNumber = getInt(page, (last)? 8 : 4);
+        }
+        return null;
+    }
+
+    private String edgeValueUnchecked() {
+        try {
+            refresh();
+            return (root == NO_PAGE)? null : edgeValue(false);
+        } catch (IOException e) {
+            throw new DavaException(INDEX_READ_ERROR, "Error reading btree index: " + filePath, e);
+        }
+    }
+
+
+
+    /*
+        Page helpers
+     */
+
+    /**
+     * While an insert is in progress pages are written to {@link #pendingPages}, and read from there first
+     */
+    @Override
+    protected byte[] readPage(int pageNumber) throws IOException {
+        byte[] page = (pendingPages == null)? null : pendingPages.get(pageNumber);
+        return (page == null)? super.readPage(pageNumber) : page;
+    }
+
+    @Override
+    protected void writePage(int pageNumber, byte[] page) throws IOException {
+        if (pendingPages == null)
+            super.writePage(pageNumber, page);
+        else
+            pendingPages.put(pageNumber, page);
+    }
+
+    /**
+     * Writes the insert's pages. A single page is just written, more than one is logged to the journal first, so
+     * they're all written or none are.
+     */
+    private void writePendingPages() throws IOException {
+        if (pendingPages.size() <= 1) {
+            for (Map.Entry<Integer, byte[]> page : pendingPages.entrySet()) {
+                super.writePage(page.getKey(), page.getValue());
+            }
+            return;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(pendingPages.size() * (4 + PAGE_SIZE));
+        pendingPages.forEach( (pageNumber, page) -> record.putInt(pageNumber).put(page) );
+        WriteAheadLog journal = WriteAheadLog.of(filePath + JOURNAL_EXTENSION);
+        journal.log(record.array(), true);
+
+        for (Map.Entry<Integer, byte[]> page : pendingPages.entrySet()) {
+            super.writePage(page.getKey(), page.getValue());
+        }
+        finishJournal(journal);
+    }
+
+    /**
+     * Writes pages from a journal left by an insert that didn't finish. If the journal's last record was cut off,
+     * none of it's pages were written, so there's nothing to do.
+     */
+    private void recover() {
+        String journalPath = filePath + JOURNAL_EXTENSION;
+        try {
+            if (!fileUtil.exists(journalPath))
+                return;
+
+            byte[] bytes = fileUtil.readBytes(journalPath);
+            if (bytes == null || !WriteAheadLog.isWriteAheadLog(bytes))
+                return;
+
+            List<byte[]> records = WriteAheadLog.readLastTransaction(bytes);
+            if (records.stream().allMatch(record -> record.length == 0))
+                return; // finished
+
+            if (fileUtil.exists(filePath)) {
+                for (byte[] record : records) {
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    while (buffer.remaining() >= 4 + PAGE_SIZE) {
+                        int pageNumber = buffer.getInt();
+                        byte[] page = new byte[PAGE_SIZE];
+                        buffer.get(page);
+                        fileUtil.writeBytes(filePath, (long) pageNumber * PAGE_SIZE, page);
+                    }
+                }
+                pageCache.invalidateFile(filePath);
+            }
+            finishJournal(WriteAheadLog.of(journalPath));
+        } catch (IOException e) {
+            throw new DavaException(INDEX_READ_ERROR, "Error recovering btree index from it's journal: " + filePath, e);
+        }
+    }
+
+    /**
+     * Marks the journal's pages as written, with an empty transaction, once they're on disk
+     */
+    private void finishJournal(WriteAheadLog journal) throws IOException {
+        if (WriteAheadLog.durability != WriteAheadLog.Durability.NONE)
+            fileUtil.force(filePath);
+        journal.log(new byte[0], true);
+    }
+
+    @Override
+    protected void reset() {
+        root = NO_PAGE;
+        pageCount = 0;
+    }
+
+    @Override
+    protected void load(byte[] meta) {
+        if (getInt(meta, 0) != MAGIC)
+            throw notAnIndex();
+
+        root = getInt(meta, 4);
+        pageCount = getInt(meta, 8);
+        keyType = KeyType.values()[meta[12]];
+    }
+
+    private void create(KeyType type) throws IOException {
+        keyType = type;
+        pageCount = 1;
+        root = allocatePage();
+        writePage(root, newPage(LEAF));
+        writeMeta();
+    }
+
+    private void writeMeta() throws IOException {
+        byte[] meta = new byte[PAGE_SIZE];
+        putInt(meta, 0, MAGIC);
+        putInt(meta, 4, root);
+        putInt(meta, 8, pageCount);
+        meta[12] = (byte) keyType.ordinal();
+        writePage(0, meta);
+    }
+
+    private int allocatePage() {
+        return pageCount++;
+    }
+
+    private static byte[] newPage(byte type) {
+        byte[] page = new byte[PAGE_SIZE];
+        page[0] = type;
+        putInt(page, 4, NO_PAGE);
+        putInt(page, 8, NO_PAGE);
+        return page;
+    }
+
+    private static int leafEntryAt(int i) {
+        return HEADER_SIZE + i * ENTRY_SIZE;
+    }
+
+    private static int internalEntryAt(int i) {
+        return HEADER_SIZE + 4 + i * (ENTRY_SIZE + 4);
+    }
+
+    private static int getCount(byte[] page) {
+        return ((page[1] & 0xFF) << 8) | (page[2] & 0xFF);
+    }
+
+    private static void setCount(byte[] page, int count) {
+        page[1] = (byte) (count >> 8);
+        page[2] = (byte) count;
+    }
+
+}
@@ -0,0 +1,290 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.core.common.TypeUtil;
+import org.dava.core.database.objects.dates.BasicDateTime;
+import org.dava.core.database.objects.dates.Date;
+import org.dava.core.database.objects.dates.OffsetDate;
+import org.dava.core.database.objects.dates.ZonedDate;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes rows for tables using {@link org.dava.api.annotations.RowFormat#BINARY}.
+ *
+ * <p> A row is [marker][null bitmap][fields], with fields in column order and null fields left out:
+ * <ul>
+ *     <li> numbers: scale (1 byte) and unscaled value (8 bytes). Numbers too big for that are stored
+ *          as text after an {@link #OVERSIZED} scale byte
+ *     <li> dates: epoch seconds (8 bytes) and nanos (4 bytes), then the offset in seconds (4 bytes)
+ *          for offset dates or the zone id for zoned dates
+ *     <li> everything else: length (4 bytes) and UTF-8 bytes
+ * </ul>
+ *
+ * <p> Binary rows are still lines, so the table's line scanning, whitespaced deletes and reuse of empties
+ * all work the same as for csv. Any '\n' byte in the encoded row is escaped (as are escape bytes) so the
+ * only '\n' is the one ending the row. Unused space after a row (like csv's trailing spaces) is ignored.
+ *
+ * <p> Every binary row starts with {@link #MARKER}, which csv rows never do, so rows in either format can
+ * be read from the same file (see {@link Row#of(byte[], int, int, Table, Route)}).
+ */
+public class BinaryRow {
+
+    public static final byte MARKER = 0x01;
+
+    private static final byte ESCAPE = 0x1B;
+    private static final byte ESCAPED_NEWLINE = 0x01;
+    private static final byte ESCAPED_ESCAPE = 0x02;
+    private static final byte OVERSIZED = Byte.MIN_VALUE;
+
+
+    public static boolean isBinary(byte[] buffer, int from, int length) {
+        return length > 0 && buffer[from] == MARKER;
+    }
+
+    /**
+     * @return the encoded row, ending with '\n'
+     */
+    public static byte[] encode(Table<?> table, Map<String, Object> columnsToValues) {
+        List<Column<?>> columns = table.getColumnList();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        byte[] nulls = new byte[(columns.size() + 7) / 8];
+        buffer = ensureCapacity(buffer, 1 + nulls.length);
+        buffer.put(MARKER);
+        for (int i = 0; i < columns.size(); i++) {
+            if (columnsToValues.get(columns.get(i).getName()) == null)
+                nulls[i / 8] |= (byte) (1 << (i % 8));
+        }
+        buffer.put(nulls);
+
+        for (Column<?> column : columns) {
+            Object value = columnsToValues.get(column.getName());
+            if (value == null)
+                continue;
+
+            Class<?> type = column.getType();
+            if (TypeUtil.isNumericClass(type)) {
+                buffer = putNumber(buffer, (value instanceof BigDecimal bd)? bd : new BigDecimal(value.toString()));
+            }
+            else if (Date.isDateSupportedDateType(type)) {
+                buffer = putDate(buffer, type, value.toString());
+            }
+            else {
+                buffer = putString(buffer, value.toString());
+            }
+        }
+
+        return escape(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Decodes a row written by {@link #encode(Table, Map)}. The range can include the ending '\n' and any padding.
+     */
+    public static Map<String, Object> decode(Table<?> table, byte[] bytes, int from, int length) {
+        byte[] row = unescape(bytes, from, length);
+        int[] offsets = fieldOffsets(table, row);
+
+        List<Column<?>> columns = table.getColumnList();
+        Map<String, Object> columnsToValues = new HashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            Column<?> column = columns.get(i);
+            columnsToValues.put(column.getName(), decodeField(column, row, offsets[i]));
+        }
+        return columnsToValues;
+    }
+
+    /**
+     * Finds where each field starts in an unescaped row (see {@link #unescape(byte[], int, int)}) without
+     * decoding any of them.
+     *
+     * @return the offset of each column's field in column order, or -1 for null fields
+     */
+    static int[] fieldOffsets(Table<?> table, byte[] row) {
+        List<Column<?>> columns = table.getColumnList();
+        int nullsStart = 1; // after the marker
+        int position = nullsStart + (columns.size() + 7) / 8;
+        ByteBuffer buffer = ByteBuffer.wrap(row);
+
+        int[] offsets = new int[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            if ((row[nullsStart + i / 8] & (1 << (i % 8))) != 0) {
+                offsets[i] = -1;
+                continue;
+            }
+            offsets[i] = position;
+
+            Class<?> type = columns.get(i).getType();
+            if (TypeUtil.isNumericClass(type)) {
+                position = (row[position] == OVERSIZED)? position + 5 + buffer.getInt(position + 1) : position + 9;
+            }
+            else if (Date.isDateSupportedDateType(type)) {
+                position += 12;
+                if (type == OffsetDateTime.class)
+                    position += 4;
+                else if (type == ZonedDateTime.class)
+                    position += 4 + buffer.getInt(position);
+            }
+            else {
+                position += 4 + buffer.getInt(position);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Decodes one field of an unescaped row, at an offset from {@link #fieldOffsets(Table, byte[])}
+     */
+    static Object decodeField(Column<?> column, byte[] row, int offset) {
+        if (offset < 0)
+            return null;
+
+        ByteBuffer buffer = ByteBuffer.wrap(row);
+        buffer.position(offset);
+
+        Class<?> type = column.getType();
+        if (TypeUtil.isNumericClass(type))
+            return getNumber(buffer);
+        if (Date.isDateSupportedDateType(type))
+            return getDate(buffer, type);
+        return getString(buffer);
+    }
+
+    /**
+     * Undoes {@link #escape(byte[], int)}, copying the row out of the buffer
+     */
+    static byte[] unescape(byte[] bytes, int from, int length) {
+        int escapes = 0;
+        for (int i = from; i < from + length; i++) {
+            if (bytes[i] == ESCAPE)
+                escapes++;
+        }
+        if (escapes == 0)
+            return Arrays.copyOfRange(bytes, from, from + length);
+
+        byte[] unescaped = new byte[length - escapes];
+        int position = 0;
+        for (int i = from; i < from + length; i++) {
+            byte b = bytes[i];
+            if (b == ESCAPE) {
+                i++;
+                b = (bytes[i] == ESCAPED_NEWLINE)? (byte) '\n' : ESCAPE;
+            }
+            unescaped[position++] = b;
+        }
+        return unescaped;
+    }
+
+
+
+    private static ByteBuffer putNumber(ByteBuffer buffer, BigDecimal value) {
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < 64 && value.scale() > OVERSIZED && value.scale() <= Byte.MAX_VALUE) {
+            buffer = ensureCapacity(buffer, 9);
+            return buffer.put((byte) value.scale()).putLong(unscaled.longValue());
+        }
+
+        buffer = ensureCapacity(buffer, 1);
+        buffer.put(OVERSIZED);
+        return putString(buffer, value.toString());
+    }
+
+    private static BigDecimal getNumber(ByteBuffer buffer) {
+        byte scale = buffer.get();
+        if (scale == OVERSIZED)
+            return new BigDecimal(getString(buffer));
+
+        return BigDecimal.valueOf(buffer.getLong(), scale);
+    }
+
+    private static ByteBuffer putDate(ByteBuffer buffer, Class<?> type, String value) {
+        buffer = ensureCapacity(buffer, 16);
+        if (type == OffsetDateTime.class) {
+            OffsetDateTime date = OffsetDateTime.parse(value);
+            return putInstant(buffer, date.toInstant()).putInt(date.getOffset().getTotalSeconds());
+        }
+        if (type == ZonedDateTime.class) {
+            ZonedDateTime date = ZonedDateTime.parse(value);
+            return putString(putInstant(buffer, date.toInstant()), date.getZone().getId());
+        }
+
+        LocalDateTime date = LocalDateTime.parse(value);
+        return putInstant(buffer, date.toInstant(ZoneOffset.UTC));
+    }
+
+    private static Date<?> getDate(ByteBuffer buffer, Class<?> type) {
+        long seconds = buffer.getLong();
+        int nanos = buffer.getInt();
+        Instant instant = Instant.ofEpochSecond(seconds, nanos);
+
+        if (type == OffsetDateTime.class) {
+            OffsetDateTime date = OffsetDateTime.ofInstant(instant, ZoneOffset.ofTotalSeconds(buffer.getInt()));
+            return OffsetDate.of(date);
+        }
+        if (type == ZonedDateTime.class) {
+            ZonedDateTime date = ZonedDateTime.ofInstant(instant, ZoneId.of(getString(buffer)));
+            return new ZonedDate(date.withZoneSameInstant(ZoneOffset.UTC).getYear(), date.toString(), date);
+        }
+
+        LocalDateTime date = LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+        return new BasicDateTime(date.getYear(), date.toString(), date);
+    }
+
+    private static ByteBuffer putInstant(ByteBuffer buffer, Instant instant) {
+        return buffer.putLong(instant.getEpochSecond()).putInt(instant.getNano());
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer = ensureCapacity(buffer, 4 + bytes.length);
+        return buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed)
+            return buffer;
+
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        bigger.put(buffer.array(), 0, buffer.position());
+        return bigger;
+    }
+
+    /**
+     * Escapes '\n' and escape bytes, and adds the ending '\n'
+     */
+    private static byte[] escape(byte[] bytes, int length) {
+        ByteArrayOutputStream escaped = new ByteArrayOutputStream(length + 8);
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
+            if (b == '\n') {
+                escaped.write(ESCAPE);
+                escaped.write(ESCAPED_NEWLINE);
+            }
+            else if (b == ESCAPE) {
+                escaped.write(ESCAPE);
+                escaped.write(ESCAPED_ESCAPE);
+            }
+            else {
+                escaped.write(b);
+            }
+        }
+        escaped.write('\n');
+        return escaped.toByteArray();
+    }
+
+}
@@ -1,17 +1,31 @@
 package org.dava.core.database.service.structure;
 
+import org.dava.api.annotations.indices.IndexType;
+
 public class Column<T> {
     private final String name;
     private final Class<T> type;
     private final boolean isIndexed;
     private final boolean isUnique;
+    private final IndexType indexType;
+    private final boolean isColumnar;
 
 
     public Column(String name, Class<T> type, boolean isIndexed, boolean isUnique) {
+        this(name, type, isIndexed, isUnique, IndexType.FILE_PER_VALUE);
+    }
+
+    public Column(String name, Class<T> type, boolean isIndexed, boolean isUnique, IndexType indexType) {
+        this(name, type, isIndexed, isUnique, indexType, false);
+    }
+
+    public Column(String name, Class<T> type, boolean isIndexed, boolean isUnique, IndexType indexType, boolean isColumnar) {
         this.name = name;
         this.type = type;
         this.isIndexed = isIndexed;
         this.isUnique = isUnique;
+        this.indexType = indexType;
+        this.isColumnar = isColumnar;
     }
 
     public String getName() {
@@ -30,6 +44,24 @@ public class Column<T> {
         return isUnique;
     }
 
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * True if the column is kept in the partition's columnar sidecar, see {@link ColumnarSidecar}
+     */
+    public boolean isColumnar() {
+        return isColumnar;
+    }
+
+    /**
+     * True if the column's index is a single file (a btree or sorted index) instead of a file per value
+     */
+    public boolean hasSingleFileIndex() {
+        return isIndexed && indexType != IndexType.FILE_PER_VALUE;
+    }
+
 
     @Override
     public String toString() {
@@ -38,6 +70,8 @@ public class Column<T> {
             ", type=" + type +
             ", isIndexed=" + isIndexed +
             ", isUnique=" + isUnique +
+            ", indexType=" + indexType +
+            ", isColumnar=" + isColumnar +
             '}';
     }
 }
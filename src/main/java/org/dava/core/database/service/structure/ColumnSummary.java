@@ -0,0 +1,61 @@
+package org.dava.core.database.service.structure;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Count, sum, min and max of the non null values of a numeric column
+ */
+public class ColumnSummary {
+
+    private final long count;
+    private final BigDecimal sum;
+    private final BigDecimal min;
+    private final BigDecimal max;
+
+
+    public ColumnSummary(long count, BigDecimal sum, BigDecimal min, BigDecimal max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return the average, or null if there are no values
+     */
+    public BigDecimal getAverage() {
+        return (count == 0)? null : sum.divide(BigDecimal.valueOf(count), MathContext.DECIMAL64);
+    }
+
+
+
+    /*
+        Getter Setter
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public BigDecimal getSum() {
+        return sum;
+    }
+
+    public BigDecimal getMin() {
+        return min;
+    }
+
+    public BigDecimal getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnSummary{" +
+            "count=" + count +
+            ", sum=" + sum +
+            ", min=" + min +
+            ", max=" + max +
+            '}';
+    }
+}
@@ -0,0 +1,676 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.api.annotations.indices.Columnar;
+import org.dava.core.common.LongLongHashMap;
+import org.dava.core.common.TypeUtil;
+import org.dava.core.common.logger.Logger;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.LineScanner;
+import org.dava.core.database.service.operations.common.WritePackage;
+import org.dava.core.database.service.operations.insert.RowWritePackage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import static org.dava.core.database.objects.exception.ExceptionType.BASE_IO_ERROR;
+import static org.dava.core.database.objects.exception.ExceptionType.INDEX_READ_ERROR;
+
+/**
+ * Column files kept next to a table partition, so a column can be aggregated without reading and parsing rows.
+ *
+ * <p> Every {@link Columnar} column gets a file in the partition's columnar folder with an entry per row, in the
+ * order the rows were added:
+ * <ul>
+ *     <li> numeric columns are fixed width: scale (1 byte) and unscaled value (8 bytes). Numbers too big for that
+ *          are kept in the column's dictionary and the entry holds their code
+ *     <li> other columns are dictionary encoded: a code (4 bytes) per row, and a '.dict' file with each distinct
+ *          value (in code order)
+ * </ul>
+ * 'rows.offsets' has the offset in the table file of each entry's row, and 'rows.deleted' is a bitmap of
+ * the entries whose rows have been deleted. Entries are only counted once their offset is written, so column
+ * files that are longer than that (from a batch that was cut off) are trimmed when the sidecar is loaded.
+ * The live entry of each row offset is kept in memory once the first delete reads it, so deletes only
+ * write the bitmap bytes they change.
+ *
+ * <p> The sidecar is built from the table the first time it's used, and after that {@link
+ * org.dava.core.database.service.operations.common.Batch#execute(Table, boolean)} keeps it up to date. It can
+ * always be built again from the table, so rollbacks and light mode deletes (which rewrite the whole table file)
+ * just throw it away.
+ */
+public class ColumnarSidecar {
+
+    public static FileUtil fileUtil = new FileUtil();
+    public static int entriesPerRead = 1024 * 1024;
+    public static double rebuildDeletedFraction = 0.5; // rebuild once this much of the sidecar is deleted rows
+
+    private static final Logger log = Logger.getLogger(ColumnarSidecar.class.getName());
+
+    private static final Map<String, ColumnarSidecar> sidecars = new ConcurrentHashMap<>();
+
+    private static final byte NULL_SCALE = Byte.MIN_VALUE;
+    private static final byte OVERSIZED = Byte.MIN_VALUE + 1;
+    private static final int NUMERIC_WIDTH = 9;
+    private static final int CODE_WIDTH = 4;
+    private static final int NULL_CODE = -1;
+
+
+    private final String folder;
+    private final String partition;
+    private final ReentrantReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+    private final Map<String, Dictionary> dictionaries = new HashMap<>();
+    private String verifiedSchema; // schema of the files on disk once they've been checked
+    private LongLongHashMap liveEntries; // row offset -> entry of the row, loaded on the first delete
+    private boolean needsRebuild = false;
+
+
+    private ColumnarSidecar(String folder, String partition) {
+        this.folder = folder;
+        this.partition = partition;
+    }
+
+    public static ColumnarSidecar of(Table<?> table, String partition) {
+        return sidecars.computeIfAbsent(table.getColumnarPath(partition), folder -> new ColumnarSidecar(folder, partition));
+    }
+
+
+    /**
+     * Held by batches while they write rows and update the sidecar, so the sidecar isn't rebuilt from the table part
+     * way through (which would leave out or double count the batch's rows)
+     */
+    public Lock getUpdateLock() {
+        return rebuildLock.readLock();
+    }
+
+    /**
+     * Adds entries for rows a batch wrote, and marks the rows it deleted. Does nothing if the sidecar
+     * hasn't been built yet, since it'll read the rows from the table when it is.
+     */
+    public synchronized void update(Table<?> table, List<RowWritePackage> rowsWritten, List<Row> deletedRows) {
+        try {
+            if (!isBuilt(table))
+                return;
+
+            if (!deletedRows.isEmpty()) {
+                markDeleted(
+                    deletedRows.stream()
+                        .mapToLong(row -> row.getLocationInTable().getOffsetInTable())
+                        .toArray()
+                );
+            }
+
+            if (!rowsWritten.isEmpty()) {
+                append(
+                    table,
+                    rowsWritten.stream().map(RowWritePackage::getRow).toList(),
+                    rowsWritten.stream().mapToLong(RowWritePackage::getOffsetInTable).toArray()
+                );
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Columnar sidecar update failed, it'll be rebuilt: " + folder + ": " + e.getMessage());
+            invalidate();
+        }
+    }
+
+    /**
+     * Throws away the sidecar, it's built again from the table the next time it's used
+     */
+    public synchronized void invalidate() {
+        verifiedSchema = null;
+        liveEntries = null;
+        dictionaries.clear();
+        try {
+            // without the schema file the rest isn't read
+            fileUtil.deleteFile(schemaPath());
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error removing columnar sidecar: " + folder, e);
+        }
+    }
+
+    /**
+     * @return the number of rows in the partition
+     */
+    public long count(Table<?> table) {
+        ensureBuilt(table);
+        synchronized (this) {
+            try {
+                long entries = entryCount();
+                return entries - countDeleted(readDeleted(entries), entries);
+            } catch (IOException e) {
+                throw new DavaException(BASE_IO_ERROR, "Error reading columnar sidecar: " + folder, e);
+            }
+        }
+    }
+
+    /**
+     * Count, sum, min and max of a numeric column's values in the partition
+     */
+    public ColumnSummary summarize(Table<?> table, String columnName) {
+        Column<?> column = getColumnarColumn(table, columnName);
+        if (!TypeUtil.isNumericClass(column.getType()))
+            throw new DavaException(INDEX_READ_ERROR, "Column isn't numeric: " + table.getTableName() + "." + columnName, null);
+
+        ensureBuilt(table);
+        synchronized (this) {
+            try {
+                long entries = entryCount();
+                byte[] deleted = readDeleted(entries);
+                Dictionary dictionary = getDictionary(column);
+                NumericAccumulator accumulator = new NumericAccumulator();
+
+                for (long start = 0; start < entries; start += entriesPerRead) {
+                    int count = (int) Math.min(entriesPerRead, entries - start);
+                    ByteBuffer values = ByteBuffer.wrap(readEntries(column, start, count));
+
+                    for (int i = 0; i < count; i++) {
+                        long entry = start + i;
+                        if ((deleted[(int) (entry >>> 3)] & (1 << (entry & 7))) != 0)
+                            continue;
+
+                        int position = i * NUMERIC_WIDTH;
+                        byte scale = values.get(position);
+                        if (scale == NULL_SCALE)
+                            continue;
+
+                        long unscaled = values.getLong(position + 1);
+                        if (scale == OVERSIZED)
+                            accumulator.add(new BigDecimal(dictionary.values.get((int) unscaled)));
+                        else
+                            accumulator.add(unscaled, scale);
+                    }
+                }
+
+                checkDeletedFraction(deleted, entries);
+                return accumulator.toSummary();
+            } catch (IOException e) {
+                throw new DavaException(BASE_IO_ERROR, "Error reading columnar sidecar: " + folder, e);
+            }
+        }
+    }
+
+    /**
+     * Counts the rows in the partition with each value of a non numeric column. Null values are
+     * counted under null.
+     */
+    public Map<String, Long> countByValue(Table<?> table, String columnName) {
+        Column<?> column = getColumnarColumn(table, columnName);
+        if (TypeUtil.isNumericClass(column.getType()))
+            throw new DavaException(INDEX_READ_ERROR, "Column is numeric: " + table.getTableName() + "." + columnName, null);
+
+        ensureBuilt(table);
+        synchronized (this) {
+            try {
+                long entries = entryCount();
+                byte[] deleted = readDeleted(entries);
+                Dictionary dictionary = getDictionary(column);
+                long[] counts = new long[dictionary.values.size() + 1]; // nulls counted in the last one
+
+                for (long start = 0; start < entries; start += entriesPerRead) {
+                    int count = (int) Math.min(entriesPerRead, entries - start);
+                    ByteBuffer codes = ByteBuffer.wrap(readEntries(column, start, count));
+
+                    for (int i = 0; i < count; i++) {
+                        long entry = start + i;
+                        if ((deleted[(int) (entry >>> 3)] & (1 << (entry & 7))) != 0)
+                            continue;
+
+                        int code = codes.getInt(i * CODE_WIDTH);
+                        counts[(code == NULL_CODE)? counts.length - 1 : code]++;
+                    }
+                }
+
+                Map<String, Long> valueCounts = new HashMap<>();
+                for (int code = 0; code < counts.length; code++) {
+                    if (counts[code] > 0)
+                        valueCounts.put((code == counts.length - 1)? null : dictionary.values.get(code), counts[code]);
+                }
+
+                checkDeletedFraction(deleted, entries);
+                return valueCounts;
+            } catch (IOException e) {
+                throw new DavaException(BASE_IO_ERROR, "Error reading columnar sidecar: " + folder, e);
+            }
+        }
+    }
+
+
+
+    /**
+     * Count, sum, min and max of a numeric column's values for each value of a non numeric column in
+     * the partition. Groups are accumulated in an array by dictionary code, so rows are never made.
+     */
+    public Map<String, ColumnSummary> summarizeGroupBy(Table<?> table, String groupByColumnName, String columnName) {
+        Column<?> groupByColumn = getColumnarColumn(table, groupByColumnName);
+        Column<?> column = getColumnarColumn(table, columnName);
+        if (TypeUtil.isNumericClass(groupByColumn.getType()))
+            throw new DavaException(INDEX_READ_ERROR, "Column is numeric: " + table.getTableName() + "." + groupByColumnName, null);
+        if (!TypeUtil.isNumericClass(column.getType()))
+            throw new DavaException(INDEX_READ_ERROR, "Column isn't numeric: " + table.getTableName() + "." + columnName, null);
+
+        ensureBuilt(table);
+        synchronized (this) {
+            try {
+                long entries = entryCount();
+                byte[] deleted = readDeleted(entries);
+                Dictionary groups = getDictionary(groupByColumn);
+                Dictionary dictionary = getDictionary(column);
+                NumericAccumulator[] accumulators = new NumericAccumulator[groups.values.size() + 1]; // nulls in the last one
+
+                for (long start = 0; start < entries; start += entriesPerRead) {
+                    int count = (int) Math.min(entriesPerRead, entries - start);
+                    ByteBuffer codes = ByteBuffer.wrap(readEntries(groupByColumn, start, count));
+                    ByteBuffer values = ByteBuffer.wrap(readEntries(column, start, count));
+
+                    for (int i = 0; i < count; i++) {
+                        long entry = start + i;
+                        if ((deleted[(int) (entry >>> 3)] & (1 << (entry & 7))) != 0)
+                            continue;
+
+                        int code = codes.getInt(i * CODE_WIDTH);
+                        int group = (code == NULL_CODE)? accumulators.length - 1 : code;
+                        NumericAccumulator accumulator = accumulators[group];
+                        if (accumulator == null) {
+                            accumulator = new NumericAccumulator();
+                            accumulators[group] = accumulator;
+                        }
+
+                        int position = i * NUMERIC_WIDTH;
+                        byte scale = values.get(position);
+                        if (scale == NULL_SCALE)
+                            continue;
+
+                        long unscaled = values.getLong(position + 1);
+                        if (scale == OVERSIZED)
+                            accumulator.add(new BigDecimal(dictionary.values.get((int) unscaled)));
+                        else
+                            accumulator.add(unscaled, scale);
+                    }
+                }
+
+                Map<String, ColumnSummary> summaries = new HashMap<>();
+                for (int group = 0; group < accumulators.length; group++) {
+                    if (accumulators[group] != null)
+                        summaries.put((group == accumulators.length - 1)? null : groups.values.get(group), accumulators[group].toSummary());
+                }
+
+                checkDeletedFraction(deleted, entries);
+                return summaries;
+            } catch (IOException e) {
+                throw new DavaException(BASE_IO_ERROR, "Error reading columnar sidecar: " + folder, e);
+            }
+        }
+    }
+
+
+
+    /*
+        Building and checking the files
+     */
+    private void ensureBuilt(Table<?> table) {
+        synchronized (this) {
+            if (!needsRebuild && isBuilt(table))
+                return;
+        }
+
+        // wait for batches writing rows to finish, so the table doesn't change while it's read
+        Lock lock = rebuildLock.writeLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                if (needsRebuild || !isBuilt(table))
+                    rebuild(table);
+            }
+        } catch (IOException e) {
+            throw new DavaException(BASE_IO_ERROR, "Error building columnar sidecar: " + folder, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks the sidecar's files match the table's columnar columns, and trims any entries that were
+     * written without their row offsets
+     */
+    private boolean isBuilt(Table<?> table) {
+        String schema = makeSchema(table);
+        if (schema.equals(verifiedSchema) && fileUtil.exists(schemaPath()))
+            return true;
+
+        verifiedSchema = null;
+        liveEntries = null;
+        dictionaries.clear();
+        try {
+            if (!fileUtil.exists(schemaPath()) || !schema.equals(fileUtil.readFile(schemaPath())))
+                return false;
+
+            long entries = entryCount();
+            trimTo(offsetsPath(), entries * 8);
+            if (fileUtil.fileSize(deletedPath()) < bitmapSize(entries))
+                return false;
+
+            for (Column<?> column : getColumnarColumns(table)) {
+                String path = columnPath(column);
+                long size = entries * entryWidth(column);
+                if (!fileUtil.exists(path) || !fileUtil.exists(dictionaryPath(column)) || fileUtil.fileSize(path) < size)
+                    return false;
+                trimTo(path, size);
+            }
+        } catch (IOException e) {
+            log.error("Columnar sidecar couldn't be read, it'll be rebuilt: " + folder + ": " + e.getMessage());
+            return false;
+        }
+
+        verifiedSchema = schema;
+        return true;
+    }
+
+    private void rebuild(Table<?> table) throws IOException {
+        verifiedSchema = null;
+        liveEntries = null;
+        needsRebuild = false;
+        dictionaries.clear();
+
+        if (fileUtil.exists(folder))
+            fileUtil.deleteDirectory(folder);
+        fileUtil.createDirectoriesIfNotExist(folder);
+        fileUtil.createFile(offsetsPath());
+        fileUtil.createFile(deletedPath());
+        for (Column<?> column : getColumnarColumns(table)) {
+            fileUtil.createFile(columnPath(column));
+            fileUtil.createFile(dictionaryPath(column));
+        }
+
+        List<Row> rows = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        IOException[] appendError = new IOException[1];
+
+        new LineScanner(fileUtil, table.getMode().usesMemoryMappedReads()).scan(table.getTablePath(partition), (buffer, from, length, offset) -> {
+            if (offset == 0 || length == 0 || buffer[from] == ' ')
+                return true; // header and deleted rows
+
+            rows.add( Row.of(buffer, from, length, table, new Route(partition, offset, length + 1)) );
+            offsets.add(offset);
+            if (rows.size() < entriesPerRead)
+                return true;
+
+            try {
+                append(table, rows, offsets.stream().mapToLong(Long::longValue).toArray());
+            } catch (IOException e) {
+                appendError[0] = e;
+                return false;
+            }
+            rows.clear();
+            offsets.clear();
+            return true;
+        });
+        if (appendError[0] != null)
+            throw appendError[0];
+        append(table, rows, offsets.stream().mapToLong(Long::longValue).toArray());
+
+        // written last, the files aren't used without it
+        String schema = makeSchema(table);
+        fileUtil.writeFile(schemaPath(), schema);
+        verifiedSchema = schema;
+    }
+
+    private void checkDeletedFraction(byte[] deleted, long entries) {
+        if (entries > 0 && countDeleted(deleted, entries) > entries * rebuildDeletedFraction)
+            needsRebuild = true;
+    }
+
+    private void trimTo(String path, long size) throws IOException {
+        if (fileUtil.fileSize(path) > size)
+            fileUtil.truncate(path, size);
+    }
+
+
+
+    /*
+        Writing entries
+     */
+    private void append(Table<?> table, List<Row> rows, long[] offsets) throws IOException {
+        if (rows.isEmpty())
+            return;
+
+        long entries = entryCount();
+
+        for (Column<?> column : getColumnarColumns(table)) {
+            Dictionary dictionary = getDictionary(column);
+            boolean numeric = TypeUtil.isNumericClass(column.getType());
+            ByteBuffer buffer = ByteBuffer.allocate(rows.size() * entryWidth(column));
+            ByteArrayOutputStream newValues = new ByteArrayOutputStream();
+
+            for (Row row : rows) {
+                Object value = row.getValue(column.getName());
+                if (numeric)
+                    putNumber(buffer, value, dictionary, newValues);
+                else
+                    buffer.putInt( (value == null)? NULL_CODE : dictionary.code(value.toString(), newValues) );
+            }
+
+            if (newValues.size() > 0) {
+                fileUtil.writeBytesAppend(dictionaryPath(column), newValues.toByteArray());
+                dictionary.loadedBytes += newValues.size();
+            }
+            fileUtil.writeBytesAppend(columnPath(column), buffer.array());
+        }
+
+        long bitmapGrowth = bitmapSize(entries + rows.size()) - fileUtil.fileSize(deletedPath());
+        if (bitmapGrowth > 0)
+            fileUtil.writeBytesAppend(deletedPath(), new byte[(int) bitmapGrowth]);
+
+        // written last, the entries don't count until their offsets are written
+        ByteBuffer offsetBytes = ByteBuffer.allocate(offsets.length * 8);
+        for (long offset : offsets)
+            offsetBytes.putLong(offset);
+        fileUtil.writeBytesAppend(offsetsPath(), offsetBytes.array());
+
+        if (liveEntries != null) {
+            for (int i = 0; i < offsets.length; i++)
+                liveEntries.put(offsets[i], entries + i);
+        }
+    }
+
+    private static void putNumber(ByteBuffer buffer, Object value, Dictionary dictionary, ByteArrayOutputStream newValues) {
+        if (value == null) {
+            buffer.put(NULL_SCALE).putLong(0L);
+            return;
+        }
+
+        BigDecimal number = (value instanceof BigDecimal bd)? bd : new BigDecimal(value.toString());
+        BigInteger unscaled = number.unscaledValue();
+        if (unscaled.bitLength() < 64 && number.scale() > OVERSIZED && number.scale() <= Byte.MAX_VALUE)
+            buffer.put((byte) number.scale()).putLong(unscaled.longValue());
+        else
+            buffer.put(OVERSIZED).putLong(dictionary.code(number.toString(), newValues));
+    }
+
+    /**
+     * Sets the deleted bit of the live entry for each row offset
+     */
+    private void markDeleted(long[] offsets) throws IOException {
+        if (liveEntries == null)
+            liveEntries = loadLiveEntries();
+
+        Map<Integer, Byte> changedBytes = new TreeMap<>();
+        for (long offset : offsets) {
+            long entry = liveEntries.remove(offset, -1);
+            if (entry < 0)
+                continue;
+
+            int byteIndex = (int) (entry >>> 3);
+            Byte current = changedBytes.get(byteIndex);
+            if (current == null)
+                current = fileUtil.readBytes(deletedPath(), byteIndex, 1)[0];
+            changedBytes.put(byteIndex, (byte) (current | (1 << (entry & 7))));
+        }
+
+        if (changedBytes.isEmpty())
+            return;
+
+        fileUtil.writeBytes(
+            deletedPath(),
+            changedBytes.entrySet().stream()
+                .map(entry -> new WritePackage((long) entry.getKey(), new byte[]{ entry.getValue() }))
+                .collect(Collectors.toList())
+        );
+    }
+
+    /**
+     * Reads the offset of every entry that isn't deleted. Later entries win, a row offset is only reused
+     * once the row there was deleted.
+     */
+    private LongLongHashMap loadLiveEntries() throws IOException {
+        long entries = entryCount();
+        byte[] deleted = readDeleted(entries);
+        LongLongHashMap live = new LongLongHashMap((int) Math.min(entries, Integer.MAX_VALUE / 2));
+
+        for (long start = 0; start < entries; start += entriesPerRead) {
+            int count = (int) Math.min(entriesPerRead, entries - start);
+            ByteBuffer offsets = ByteBuffer.wrap(fileUtil.readBytes(offsetsPath(), start * 8, count * 8));
+
+            for (int i = 0; i < count; i++) {
+                long entry = start + i;
+                if ((deleted[(int) (entry >>> 3)] & (1 << (entry & 7))) == 0)
+                    live.put(offsets.getLong(i * 8), entry);
+            }
+        }
+        return live;
+    }
+
+
+
+    /*
+        Reading
+     */
+    private long entryCount() {
+        return fileUtil.fileSize(offsetsPath()) / 8;
+    }
+
+    private byte[] readDeleted(long entries) throws IOException {
+        int size = bitmapSize(entries);
+        return (size == 0)? new byte[0] : fileUtil.readBytes(deletedPath(), 0, size);
+    }
+
+    private byte[] readEntries(Column<?> column, long start, int count) throws IOException {
+        int width = entryWidth(column);
+        return fileUtil.readBytes(columnPath(column), start * width, count * width);
+    }
+
+    private static long countDeleted(byte[] deleted, long entries) {
+        long count = 0;
+        for (int i = 0; i < bitmapSize(entries); i++)
+            count += Integer.bitCount(deleted[i] & 0xff);
+        return count;
+    }
+
+    private Dictionary getDictionary(Column<?> column) throws IOException {
+        String path = dictionaryPath(column);
+        Dictionary dictionary = dictionaries.computeIfAbsent(column.getName(), name -> new Dictionary());
+        if (dictionary.loadedBytes != fileUtil.fileSize(path))
+            dictionary.load((fileUtil.fileSize(path) == 0)? new byte[0] : fileUtil.readBytes(path));
+        return dictionary;
+    }
+
+    private static Column<?> getColumnarColumn(Table<?> table, String columnName) {
+        Column<?> column = table.getColumn(columnName);
+        if (column == null || !column.isColumnar())
+            throw new DavaException(INDEX_READ_ERROR, "Column isn't columnar: " + table.getTableName() + "." + columnName, null);
+        return column;
+    }
+
+    private static List<Column<?>> getColumnarColumns(Table<?> table) {
+        return table.getColumnList().stream()
+            .filter(Column::isColumnar)
+            .toList();
+    }
+
+    private static String makeSchema(Table<?> table) {
+        return getColumnarColumns(table).stream()
+            .map(column -> column.getName() + ":" + column.getType().getName())
+            .collect(Collectors.joining("\n"));
+    }
+
+    private static int entryWidth(Column<?> column) {
+        return TypeUtil.isNumericClass(column.getType())? NUMERIC_WIDTH : CODE_WIDTH;
+    }
+
+    private static int bitmapSize(long entries) {
+        return (int) ((entries + 7) / 8);
+    }
+
+    private String schemaPath() {
+        return folder + "/sidecar.schema";
+    }
+
+    private String offsetsPath() {
+        return folder + "/rows.offsets";
+    }
+
+    private String deletedPath() {
+        return folder + "/rows.deleted";
+    }
+
+    private String columnPath(Column<?> column) {
+        return folder + "/" + column.getName() + ".col";
+    }
+
+    private String dictionaryPath(Column<?> column) {
+        return folder + "/" + column.getName() + ".dict";
+    }
+
+
+
+    /**
+     * Distinct values of a column, stored as [length (4 bytes)][UTF-8 bytes] in code order
+     */
+    private static class Dictionary {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> codes = new HashMap<>();
+        private long loadedBytes = -1;
+
+        private void load(byte[] bytes) {
+            values.clear();
+            codes.clear();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length > buffer.remaining())
+                    break; // cut off, written again by the next append
+                String value = new String(bytes, buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+                codes.put(value, values.size());
+                values.add(value);
+            }
+            loadedBytes = bytes.length;
+        }
+
+        /**
+         * @return the value's code, adding it to 'newValues' if it's a new value
+         */
+        private int code(String value, ByteArrayOutputStream newValues) {
+            Integer code = codes.get(value);
+            if (code != null)
+                return code;
+
+            code = values.size();
+            codes.put(value, code);
+            values.add(value);
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            newValues.writeBytes(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            newValues.writeBytes(bytes);
+            return code;
+        }
+    }
+
+}
@@ -1,10 +1,14 @@
 package org.dava.core.database.service.structure;
 
 import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.Compactor;
+import org.dava.core.database.service.IndexMaintenance;
+import org.dava.core.database.service.caching.Cache;
 import org.dava.core.database.service.fileaccess.FileUtil;
 
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -19,22 +23,28 @@ public class Database {
 
     private Map<String, Table<?>> tables;
 
+    private Cache queryCache;
+    private boolean cachingObjects;
+
 
     public Database(String rootDirectory, List<Class<?>> tableClasses, List<Mode> tableModes) {
-        
-        this.rootDirectory = rootDirectory;
-        this.tables = IntStream.range(0, tableClasses.size())
-            .mapToObj(i -> new Table<>(tableClasses.get(i), rootDirectory, tableModes.get(i), 0L))
-            .collect(Collectors.toMap(Table::getTableName, obj -> obj));
+        this(rootDirectory, tableClasses, tableModes, 0L);
     }
 
     public Database(String rootDirectory, List<Class<?>> tableClasses, List<Mode> tableModes, long seed) {
+        this(rootDirectory, tableClasses, tableModes, seed, new Cache(), false);
+    }
+
+    private Database(String rootDirectory, List<Class<?>> tableClasses, List<Mode> tableModes, long seed,
+                     Cache queryCache, boolean cachingObjects) {
         
         this.rootDirectory = rootDirectory;
         this.tables = IntStream.range(0, tableClasses.size())
             .mapToObj(i -> new Table<>(tableClasses.get(i), rootDirectory, tableModes.get(i), seed))
             .collect(Collectors.toMap(Table::getTableName, obj -> obj));
 
+        this.queryCache = queryCache;
+        this.cachingObjects = cachingObjects;
     }
 
 
@@ -74,6 +84,16 @@ public class Database {
         }
     }
 
+    /**
+     * Stops background maintenance of this database's tables and waits for anything already running,
+     * so the database folder can be deleted or replaced. Queued index repartitions are dropped and
+     * scheduled again by the next insert that fills the folder.
+     */
+    public void close() {
+        IndexMaintenance.close(rootDirectory);
+        Compactor.awaitIdle();
+    }
+
     public Table<?> getTableByName(String name) {
         if (tables.containsKey(name)) {
             return tables.get(name);
@@ -94,6 +114,17 @@ public class Database {
         return rootDirectory;
     }
 
+    /**
+     * The cache shared by every repository of this database, or null if query results aren't cached
+     */
+    public Cache getQueryCache() {
+        return queryCache;
+    }
+
+    public boolean isCachingObjects() {
+        return cachingObjects;
+    }
+
 
 
     public static class Builder {
@@ -101,6 +132,8 @@ public class Database {
         private List<Class<?>> tableClasses;
         private List<Mode> tableModes;
         private long randomSeed;
+        private Cache queryCache = new Cache();
+        private boolean cachingObjects = false;
 
         /**
          * This builder is used to set up Dava database. This builder
@@ -112,10 +145,16 @@ public class Database {
          *                      your database should be created. Under
          *                      this each table will have its own folder.
          *                      NEVER modify table folders UNLESS the table
-         *                      is run in LIGHT mode.
+         *                      is run in LIGHT mode. Repository reads are
+         *                      cached by default, so even then changes made
+         *                      outside the database aren't seen until the
+         *                      table is next saved to or deleted from through
+         *                      a repository, see {@link #withoutQueryCache()}.
          */
         public Builder(String rootDirectory) {
             this.builderRootDirectory = rootDirectory;
+            this.tableClasses = new ArrayList<>();
+            this.tableModes = new ArrayList<>();
             this.randomSeed = 0L;
         }
 
@@ -129,13 +168,19 @@ public class Database {
          *                      your database should be created. Under
          *                      this each table will have its own folder.
          *                      NEVER modify table folders UNLESS the table
-         *                      is run in LIGHT mode.
+         *                      is run in LIGHT mode. Repository reads are
+         *                      cached by default, so even then changes made
+         *                      outside the database aren't seen until the
+         *                      table is next saved to or deleted from through
+         *                      a repository, see {@link #withoutQueryCache()}.
          * @param randomSeed each table that is partitioned has a random
          *                   generator to select a random partition used
          *                   on
          */
         public Builder(String rootDirectory, long randomSeed) {
             this.builderRootDirectory = rootDirectory;
+            this.tableClasses = new ArrayList<>();
+            this.tableModes = new ArrayList<>();
             this.randomSeed = randomSeed;
         }
 
@@ -149,8 +194,40 @@ public class Database {
             return this;
         }
 
+        /**
+         * Caches the results of repository reads, up to about 'maxWeight' rows. Saves and deletes
+         * through a repository clear the results of every table they touch, including the tables
+         * of sub objects. Query results are cached by default (up to {@link Cache#DEFAULT_MAX_WEIGHT} rows),
+         * including for databases made with the Database constructors.
+         */
+        public Builder withQueryCache(long maxWeight) {
+            this.queryCache = new Cache(maxWeight);
+            return this;
+        }
+
+        /**
+         * Turns off caching for repository reads, so every read goes to the table files. Use this
+         * if the table folders are modified by something other than this database (like editing the
+         * csv files of a LIGHT mode table). With the cache on, those changes aren't seen by reads that
+         * were cached before them.
+         */
+        public Builder withoutQueryCache() {
+            this.queryCache = null;
+            return this;
+        }
+
+        /**
+         * If true, repositories cache the records they return instead of the rows they're made from.
+         * This skips making the records again on each read, but the same record objects are returned
+         * to every caller, so they must NOT be modified.
+         */
+        public Builder cachingObjects(boolean cachingObjects) {
+            this.cachingObjects = cachingObjects;
+            return this;
+        }
+
         public Database build() {
-            return new Database(builderRootDirectory, tableClasses, tableModes, randomSeed);
+            return new Database(builderRootDirectory, tableClasses, tableModes, randomSeed, queryCache, cachingObjects);
         }
     }
 
@@ -0,0 +1,439 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.core.database.service.fileaccess.FileUtil;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The empty rows (whitespaced out slots) of a table partition that new rows can be written into.
+ *
+ * <p> Empty rows are kept in memory in size classes by length, each a stack of primitive offsets, so
+ * taking an empty row doesn't need to read the empties file. The empties file is loaded once, and after
+ * that is only appended to. It's a journal of 10 byte route records after the 8 byte table size:
+ *    - [6 bytes offset][4 bytes length] an empty row was made (by a delete or a rollback)
+ *    - [6 bytes offset][4 bytes -length] the empty row at the offset was used by an insert
+ *
+ * <p> Files from before the journal only have the first kind of record, so they load the same way. Since the
+ * journal only grows, {@link #compactJournal()} rewrites it with just the empty rows left. That's done when
+ * the table starts up.
+ *
+ * <p> Empty rows are taken from memory when an insert is built, and journaled as used when the insert
+ * is executed. If the insert fails before it writes anything, or is thrown away and built again, the empty rows
+ * it took are given back with {@link #release(List)}.
+ *
+ * <p> Rows don't have to be the same length as the empty row they go in. The smallest empty row they fit
+ * in is taken, and if there's enough space left over it's split, with the rest made a new empty row when
+ * the insert is executed (see {@link #remainder(Route, int)}). Otherwise the row is padded with spaces
+ * to fill the empty row.
+ */
+public class FreeSpace {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    /**
+     * Empty rows with less than this left over after a row is put in them aren't split, since
+     * rows rarely fit in what would be left
+     */
+    public static final int MIN_SPLIT_LENGTH = 16;
+
+    private final String emptiesFile;
+    private final NavigableMap<Integer, SizeClass> sizeClasses = new TreeMap<>();
+    private final OffsetMap freeOffsets = new OffsetMap();
+    private long freeBytes;
+    private long journalRecords;
+
+    // metrics
+    private long takes;
+    private long reuses;
+    private long splits;
+    private long paddedBytes;
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    private FreeSpace(String emptiesFile) {
+        this.emptiesFile = emptiesFile;
+    }
+
+    /**
+     * Reads the empties file, replaying the journal into memory.
+     */
+    public static FreeSpace load(String emptiesFile) throws IOException {
+        FreeSpace freeSpace = new FreeSpace(emptiesFile);
+        freeSpace.replay();
+        return freeSpace;
+    }
+
+    private void replay() throws IOException {
+        if (!fileUtil.exists(emptiesFile) || fileUtil.fileSize(emptiesFile) <= HEADER_SIZE)
+            return;
+
+        byte[] bytes = fileUtil.readBytes(emptiesFile);
+        int records = (bytes.length - HEADER_SIZE) / RouteBuffer.ROUTE_SIZE;
+        for (int i = 0; i < records; i++) {
+            int index = HEADER_SIZE + i * RouteBuffer.ROUTE_SIZE;
+            long offset = RouteBuffer.decodeOffset(bytes, index);
+            int length = RouteBuffer.decodeLength(bytes, index);
+
+            if (length > 0)
+                addFree(offset, length);
+            else
+                removeFree(offset);
+        }
+        journalRecords = records;
+    }
+
+
+    /**
+     * Takes the smallest empty row that's at least 'length' long.
+     *
+     * @return the route of the whole empty row, or null if there isn't one big enough
+     */
+    public synchronized Route take(int length) {
+        takes++;
+
+        Map.Entry<Integer, SizeClass> entry = sizeClasses.ceilingEntry(length);
+        while (entry != null) {
+            int emptyLength = entry.getKey();
+            SizeClass sizeClass = entry.getValue();
+            while (sizeClass.size > 0) {
+                long offset = sizeClass.pop();
+
+                // offsets used or made a different length since being pushed are skipped
+                if (freeOffsets.get(offset) == emptyLength) {
+                    removeFree(offset);
+                    reuses++;
+                    if (emptyLength - length >= MIN_SPLIT_LENGTH)
+                        splits++;
+                    else
+                        paddedBytes += emptyLength - length;
+
+                    return new Route(null, offset, emptyLength);
+                }
+            }
+
+            sizeClasses.remove(emptyLength);
+            entry = sizeClasses.higherEntry(emptyLength);
+        }
+
+        return null;
+    }
+
+    /**
+     * Takes a particular empty row, if it's still empty and still 'length' long. Used by the Compactor,
+     * which picks empties by where they are in the file rather than by size.
+     *
+     * @return the route of the empty row, or null if it's been used
+     */
+    public synchronized Route takeAt(long offset, int length) {
+        if (freeOffsets.get(offset) != length)
+            return null;
+
+        removeFree(offset);
+        return new Route(null, offset, length);
+    }
+
+    /**
+     * The space left in an empty row taken with {@link #take(int)} after a row of 'length' is put in it, or null if
+     * the empty row shouldn't be split and the row should be padded to fill it instead.
+     *
+     * <p> The left over space is already whitespace ending in a new line, so it's an empty row as is. It should
+     * be given to {@link #free(List)} once the row is written, and not before, since it's only an empty row in the
+     * journal after that.
+     */
+    public static Route remainder(Route empty, int length) {
+        int left = empty.getLengthInTable() - length;
+        if (left < MIN_SPLIT_LENGTH)
+            return null;
+
+        return new Route(empty.getPartition(), empty.getOffsetInTable() + length, left);
+    }
+
+    /**
+     * Journals rows taken by an insert as used. Routes that aren't empty rows in memory (already
+     * taken by {@link #take(int)}) are taken as well. A used row can be shorter than the empty row
+     * at it's offset, if the empty row was split.
+     */
+    public synchronized void markUsed(List<Route> routes) throws IOException {
+        if (routes.isEmpty())
+            return;
+
+        byte[] records = new byte[routes.size() * RouteBuffer.ROUTE_SIZE];
+        for (int i = 0; i < routes.size(); i++) {
+            Route route = routes.get(i);
+            removeFree(route.getOffsetInTable());
+            RouteBuffer.encode(route.getOffsetInTable(), -route.getLengthInTable(), records, i * RouteBuffer.ROUTE_SIZE);
+        }
+
+        fileUtil.writeBytesAppend(emptiesFile, records);
+        journalRecords += routes.size();
+    }
+
+    /**
+     * Adds empty rows, journaling them. Routes that are already empty rows are skipped, so rolling back
+     * something twice doesn't make two copies of the same empty row.
+     */
+    public synchronized void free(List<Route> routes) throws IOException {
+        RouteBuffer added = new RouteBuffer(routes.size());
+        for (Route route : routes) {
+            if (freeOffsets.get(route.getOffsetInTable()) == route.getLengthInTable())
+                continue;
+
+            addFree(route.getOffsetInTable(), route.getLengthInTable());
+            added.add(route.getOffsetInTable(), route.getLengthInTable());
+        }
+
+        if (added.size() == 0)
+            return;
+
+        fileUtil.writeBytesAppend(emptiesFile, added.toBytes());
+        journalRecords += added.size();
+    }
+
+    /**
+     * Gives back empty rows that were taken but never used. Nothing is journaled, since they're still empty rows
+     * in the journal. Routes at an offset that's already an empty row in memory are skipped.
+     */
+    public synchronized void release(List<Route> routes) {
+        for (Route route : routes) {
+            if (freeOffsets.get(route.getOffsetInTable()) == 0)
+                addFree(route.getOffsetInTable(), route.getLengthInTable());
+        }
+    }
+
+    /**
+     * Takes every empty row at or after 'end', so the table file can be truncated there. Journals them
+     * as used, since they won't be in the file any more.
+     */
+    public synchronized void truncate(long end) throws IOException {
+        RouteBuffer removed = new RouteBuffer();
+        freeOffsets.forEach( (offset, length) -> {
+            if (offset >= end)
+                removed.add(offset, length);
+        });
+        markUsed(removed.toRoutes(null));
+    }
+
+    /**
+     * Rewrites the empties file with only the empty rows left, if most of the journal is rows that were
+     * used since. This isn't safe while the partition is being written to.
+     */
+    public synchronized void compactJournal() throws IOException {
+        if (journalRecords < COMPACT_MIN_RECORDS || journalRecords < 2L * freeOffsets.size())
+            return;
+
+        byte[] header = fileUtil.readBytes(emptiesFile, 0, HEADER_SIZE);
+        byte[] records = getRouteBuffer().toBytes();
+
+        byte[] compacted = Arrays.copyOf(header, HEADER_SIZE + records.length);
+        System.arraycopy(records, 0, compacted, HEADER_SIZE, records.length);
+
+        // written to the side and swapped in, so a crash leaves one whole file or the other
+        String compactPath = emptiesFile + ".compact";
+        fileUtil.replaceFile(compactPath, compacted);
+        fileUtil.renameFile(compactPath, emptiesFile);
+
+        journalRecords = freeOffsets.size();
+    }
+
+
+    private void addFree(long offset, int length) {
+        int oldLength = freeOffsets.put(offset, length);
+        if (oldLength > 0)
+            freeBytes -= oldLength;
+        freeBytes += length;
+
+        sizeClasses.computeIfAbsent(length, key -> new SizeClass()).push(offset);
+    }
+
+    private void removeFree(long offset) {
+        // offsets stay in their size class, and are skipped when popped
+        int length = freeOffsets.get(offset);
+        if (length != 0) {
+            freeOffsets.remove(offset);
+            freeBytes -= length;
+        }
+    }
+
+
+
+    /*
+        Getter Setter
+     */
+
+    /**
+     * Every empty row, in no particular order.
+     */
+    public synchronized List<Route> getRoutes(String partition) {
+        return getRouteBuffer().toRoutes(partition);
+    }
+
+    /**
+     * The empty rows sorted by where they are in the table file
+     */
+    public synchronized RouteBuffer getRoutesByOffset() {
+        RouteBuffer routes = getRouteBuffer();
+        routes.sort();
+        return routes;
+    }
+
+    private RouteBuffer getRouteBuffer() {
+        RouteBuffer routes = new RouteBuffer(freeOffsets.size());
+        freeOffsets.forEach(routes::add);
+        return routes;
+    }
+
+    public synchronized int getEmptyCount() {
+        return freeOffsets.size();
+    }
+
+    public synchronized long getFreeBytes() {
+        return freeBytes;
+    }
+
+    public synchronized long getJournalRecords() {
+        return journalRecords;
+    }
+
+    /**
+     * The share of {@link #take(int)} calls that found an empty row, since the table was loaded
+     */
+    public synchronized double getReuseRate() {
+        return (takes == 0)? 0 : (double) reuses / takes;
+    }
+
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    public synchronized long getSplits() {
+        return splits;
+    }
+
+    /**
+     * Bytes of spaces rows were padded with to fill empty rows, since the table was loaded
+     */
+    public synchronized long getPaddedBytes() {
+        return paddedBytes;
+    }
+
+
+
+    /**
+     * Stack of offsets of empty rows with the same length
+     */
+    private static class SizeClass {
+        private long[] offsets = new long[8];
+        private int size;
+
+        private void push(long offset) {
+            if (size == offsets.length)
+                offsets = Arrays.copyOf(offsets, size * 2);
+            offsets[size++] = offset;
+        }
+
+        private long pop() {
+            return offsets[--size];
+        }
+    }
+
+    /**
+     * Open addressing map from offset to length, with lengths of 0 meaning no entry
+     */
+    private static class OffsetMap {
+        private long[] keys = new long[16];
+        private int[] values = new int[16];
+        private int size;
+
+        private int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); values[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return values[i];
+            }
+            return 0;
+        }
+
+        private int put(long key, int value) {
+            if ((size + 1) * 2 > keys.length)
+                resize();
+
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            for (; values[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    int old = values[i];
+                    values[i] = value;
+                    return old;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+            return 0;
+        }
+
+        private void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (values[i] != 0 && keys[i] != key)
+                i = (i + 1) & mask;
+            if (values[i] == 0)
+                return;
+
+            // shift back following entries so probing doesn't stop at the hole
+            int hole = i;
+            for (int j = (hole + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                boolean movable = (hole <= j)? (home <= hole || home > j) : (home <= hole && home > j);
+                if (movable) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            values[hole] = 0;
+            size--;
+        }
+
+        private void forEach(RouteConsumer consumer) {
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != 0)
+                    consumer.accept(keys[i], values[i]);
+            }
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0)
+                    put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RouteConsumer {
+        void accept(long offset, int length);
+    }
+
+}
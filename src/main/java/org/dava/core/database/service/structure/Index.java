@@ -1,5 +1,6 @@
 package org.dava.core.database.service.structure;
 
+import org.dava.api.annotations.indices.IndexType;
 import org.dava.core.common.HashUtil;
 import org.dava.core.common.TypeUtil;
 import org.dava.core.database.objects.dates.Date;
@@ -8,7 +9,6 @@ import org.dava.core.database.service.fileaccess.FileUtil;
 
 import static org.dava.core.common.Checks.safeCast;
 
-import java.io.File;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
@@ -19,6 +19,8 @@ import java.util.stream.Collectors;
 
 public class Index {
 
+    public static final String BTREE_EXTENSION = ".btree";
+    public static final String SORTED_EXTENSION = ".sorted";
 
 
     public static String buildIndexPath(Table<?> table, String partition, String columnName, Object value) {
@@ -38,90 +40,131 @@ public class Index {
         return folderPath + "/" + preparedValueForIndexName + ".index";
     }
 
+    /**
+     * Gets the folder that index files for the value are in. For single file indices this is the index
+     * file instead, and index paths built from it are virtual paths into it (see {@link #isSingleFileIndexPath(String)})
+     */
     public static String buildIndexRootPath(String databaseRoot, Table<?> table, String partition, Column<?> column, Object value) {
+        if ( column.hasSingleFileIndex() ) {
+            return buildSingleFileIndexPath(databaseRoot, table.getTableName(), partition, column);
+        }
         if ( Index.isNumericallyIndexed(column.getType()) ) {
-            List<File> columnLeaves = table.getLeafList(partition, column.getName());
-            BigDecimal valueBd = null;
-
-            if ( value instanceof Date<?> || Date.isDateSupportedDateType(column.getType()) ) {
-                Date<?> date = (value instanceof Date<?> dateFromValue)? dateFromValue : Date.ofOrLocalDateOnFailure(value.toString(), column.getType());
-                valueBd = date.getMillisecondsSinceTheEpoch();
-            }
-            else {
-                valueBd = new BigDecimal( value.toString() );
-            }
-
+            NumericLeaves columnLeaves = table.getNumericLeaves(partition, column.getName());
             return findIndexPathForNumber(
                 databaseRoot,
                 table.getTableName(),
                 partition,
                 column.getName(),
                 columnLeaves,
-                valueBd
+                getNumericIndexValue(column, value)
             );
         }
         return buildColumnPath(databaseRoot, table.getTableName(), partition, column.getName());
     }
 
+    /**
+     * The number a value is placed by in a numeric index, for dates the milliseconds since the epoch
+     */
+    public static BigDecimal getNumericIndexValue(Column<?> column, Object value) {
+        if ( value instanceof Date<?> || Date.isDateSupportedDateType(column.getType()) ) {
+            Date<?> date = (value instanceof Date<?> dateFromValue)? dateFromValue : Date.ofOrLocalDateOnFailure(value.toString(), column.getType());
+            return date.getMillisecondsSinceTheEpoch();
+        }
+        return new BigDecimal( value.toString() );
+    }
+
     public static String buildIndexYearFolderForDate(Table<?> table, String partition, String columnName, String year) {
         return buildColumnPath(table.getDatabaseRoot(), table.getTableName(), partition, columnName) + "/" + year;
     }
 
-    public static String findIndexPathForNumber(String databaseRoot, String tableName, String partition, String columnName, List<File> columnLeaves, BigDecimal value) {
-
-        String columnPath = buildColumnPath(databaseRoot, tableName, partition, columnName);
-        if (columnLeaves.isEmpty())
-            return columnPath;
-
-        List<String> leaves = columnLeaves.stream()
-            .map(File::getPath)
-            .toList();
-
-        StringBuilder correctPath = null;
-        boolean done = false;
-        while(!done) {
-            String path = leaves.get(0);
-            path = path.replace(columnPath, "");
-            if (path.length() > 0) {
-                path = path.substring(1);
-                StringBuilder pathSoFar = new StringBuilder(columnPath);
-                for (String folder : path.split("/")) {
-                    pathSoFar.append("/").append(folder);
-                    BigDecimal folderBd = new BigDecimal(folder.substring(1));
-
-                    boolean correctFolderSoFar = ( folderBd.compareTo(value) > 0 && folder.contains("-") )
-                        || ( folderBd.compareTo(value) <= 0 && folder.contains("+") );
-
-                    if (!correctFolderSoFar) {
-                        leaves = leaves.stream()
-                            .filter(leaf -> !leaf.contains(pathSoFar.toString()))
-                            .toList();
-                        done = false;
-                        break;
-                    }
-                    else {
-                        done = true;
-                        correctPath = pathSoFar;
-                    }
-                }
-            }
-            else {
-                return columnPath;
-            }
-        }
+    public static String findIndexPathForNumber(String databaseRoot, String tableName, String partition, String columnName, NumericLeaves columnLeaves, BigDecimal value) {
+        if (columnLeaves == null)
+            return buildColumnPath(databaseRoot, tableName, partition, columnName);
 
-        return correctPath.toString();
+        return columnLeaves.find(value);
     }
 
     public static String buildColumnPath(String databaseRoot, String tableName, String partition, String columnName) {
         return databaseRoot + "/" + tableName + "/META_" + partition + "/" + columnName;
     }
 
+    public static String buildSingleFileIndexPath(String databaseRoot, String tableName, String partition, Column<?> column) {
+        String extension = (column.getIndexType() == IndexType.SORTED)? SORTED_EXTENSION : BTREE_EXTENSION;
+        return buildColumnPath(databaseRoot, tableName, partition, column.getName()) + extension;
+    }
+
+    /**
+     * Index paths for single file indices look like '.../META_partition/column.btree/value.index'
+     */
+    public static boolean isSingleFileIndexPath(String indexPath) {
+        return indexPath.endsWith(BTREE_EXTENSION) || indexPath.contains(BTREE_EXTENSION + "/")
+            || indexPath.endsWith(SORTED_EXTENSION) || indexPath.contains(SORTED_EXTENSION + "/");
+    }
+
+    /**
+     * Opens the single file index a (virtual) index path points into
+     */
+    public static SingleFileIndex openSingleFileIndex(String indexPath) {
+        String filePath = getSingleFileIndexPath(indexPath);
+        return (filePath.endsWith(SORTED_EXTENSION))? SortedNumericIndex.of(filePath) : BTreeIndex.of(filePath);
+    }
+
+    public static String getSingleFileIndexPath(String indexPath) {
+        return (indexPath.endsWith(BTREE_EXTENSION) || indexPath.endsWith(SORTED_EXTENSION))?
+            indexPath : indexPath.substring(0, indexPath.lastIndexOf('/'));
+    }
+
+    public static String getSingleFileIndexKey(String indexPath) {
+        String fileName = indexPath.substring(indexPath.lastIndexOf('/') + 1);
+        return fileName.substring(0, fileName.length() - ".index".length());
+    }
+
+    public static SingleFileIndex.KeyType getKeyType(Class<?> columnType) {
+        return (isNumericallyIndexed(columnType))? SingleFileIndex.KeyType.NUMERIC : SingleFileIndex.KeyType.STRING;
+    }
+
     public static String getParitionFromPath(String databaseRoot, String tableName, String path) {
         String pathStart = databaseRoot + "/" + tableName;
         return path.replace(pathStart, "").split("/")[1].replace("META_", "");
     }
 
+    public static String getColumnNameFromPath(String databaseRoot, String tableName, String path) {
+        String pathStart = databaseRoot + "/" + tableName;
+        return path.replace(pathStart, "").split("/")[2];
+    }
+
+    /**
+     * Finds where a numeric index file is now, in case its folder was repartitioned since the path was built.
+     * Other index paths are returned as is.
+     */
+    public static String relocateNumericIndexPath(Table<?> table, String indexPath) {
+        if (isSingleFileIndexPath(indexPath))
+            return indexPath;
+
+        String partition = getParitionFromPath(table.getDatabaseRoot(), table.getTableName(), indexPath);
+        String columnName = getColumnNameFromPath(table.getDatabaseRoot(), table.getTableName(), indexPath);
+        Column<?> column = table.getColumn(columnName);
+        if (column == null || !isNumericallyIndexed(column.getType()))
+            return indexPath;
+
+        String fileName = indexPath.substring(indexPath.lastIndexOf('/') + 1);
+        BigDecimal value;
+        try {
+            value = new BigDecimal(fileName.replace(".index", ""));
+        } catch (NumberFormatException e) {
+            return indexPath;
+        }
+
+        return findIndexPathForNumber(
+            table.getDatabaseRoot(),
+            table.getTableName(),
+            partition,
+            columnName,
+            table.getNumericLeaves(partition, columnName),
+            value
+        ) + "/" + fileName;
+    }
+
 
 
     public static Object prepareValueForIndexName(Object value, Column<?> column) {
@@ -138,6 +181,10 @@ public class Index {
                 ).getMillisecondsSinceTheEpoch();
         }
 
+        // single file numeric indices order the whole number, and don't make a file for it
+        if (column.hasSingleFileIndex() && isNumericallyIndexed(column.getType()))
+            return value;
+
         // limit file name less than 255 bytes for ext4 file system
         String strValue = value.toString();
         if (strValue.length() > 50  || strValue.contains(";")) {
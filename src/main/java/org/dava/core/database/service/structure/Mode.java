@@ -11,20 +11,20 @@ public enum Mode {
     /**
      * Trades slower insertion/update times for faster queries.
      */
-    INDEX_ALL,
+    INDEX_ALL(true),
 
     /**
      * Balance between insertion/update time and queries. This mode
      * only indexes columns that are queried.
      */
-    STORAGE_SENSITIVE,
+    STORAGE_SENSITIVE(true),
 
     /**
      * Fast insertion and access by the table's primary key. Ideal if
      * you won't perform complex queries, or want to specify which
      * columns should be indexed.
      */
-    MANUAL,
+    MANUAL(true),
 
     /**
      * Lighting insertion, very slow access. Basically just operates
@@ -33,5 +33,22 @@ public enum Mode {
      * small tables were you'd like to directly modify the csv file. Or if
      * you want instant insertion and don't mind slow access (weird)
      */
-    LIGHT;
+    LIGHT(false);
+
+
+    private final boolean memoryMappedReads;
+
+    Mode(boolean memoryMappedReads) {
+        this.memoryMappedReads = memoryMappedReads;
+    }
+
+    /**
+     * Whether rows are read from the table csv through a memory mapping rather than
+     * plain file reads. Mapping is faster for repeated reads but holds on to address space
+     * and page cache, which isn't worth it for LIGHT tables (those are also the only tables that
+     * might be edited outside of Dava).
+     */
+    public boolean usesMemoryMappedReads() {
+        return memoryMappedReads;
+    }
 }
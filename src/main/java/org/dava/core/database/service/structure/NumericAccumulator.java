@@ -0,0 +1,114 @@
+package org.dava.core.database.service.structure;
+
+import java.math.BigDecimal;
+
+/**
+ * Count, sum, min and max of numbers as they're scanned. Sums with longs while the values and their scales
+ * fit, and switches to BigDecimal if they don't, so most columns are summed without making any objects.
+ */
+public class NumericAccumulator {
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private long count = 0;
+    private long sum, min, max;
+    private int scale;
+    private BigDecimal bigSum, bigMin, bigMax; // set once the longs overflow
+
+
+    /**
+     * Adds the number unscaled * 10^-scale
+     */
+    public void add(long unscaled, int valueScale) {
+        if (bigSum == null) {
+            try {
+                addExact(unscaled, valueScale);
+                count++;
+                return;
+            } catch (ArithmeticException e) {
+                switchToBigDecimal();
+            }
+        }
+        add(BigDecimal.valueOf(unscaled, valueScale));
+    }
+
+    public void add(BigDecimal value) {
+        if (bigSum == null && count > 0)
+            switchToBigDecimal();
+
+        bigSum = (bigSum == null)? value : bigSum.add(value);
+        bigMin = (bigMin == null || value.compareTo(bigMin) < 0)? value : bigMin;
+        bigMax = (bigMax == null || value.compareTo(bigMax) > 0)? value : bigMax;
+        count++;
+    }
+
+    /**
+     * Adds the numbers of another summary, like one from another partition
+     */
+    public void add(ColumnSummary summary) {
+        if (summary.getCount() == 0)
+            return;
+
+        if (bigSum == null)
+            switchToBigDecimal();
+
+        bigSum = (bigSum == null)? summary.getSum() : bigSum.add(summary.getSum());
+        bigMin = (bigMin == null || summary.getMin().compareTo(bigMin) < 0)? summary.getMin() : bigMin;
+        bigMax = (bigMax == null || summary.getMax().compareTo(bigMax) > 0)? summary.getMax() : bigMax;
+        count += summary.getCount();
+    }
+
+    public ColumnSummary toSummary() {
+        if (count == 0)
+            return new ColumnSummary(0, BigDecimal.ZERO, null, null);
+        if (bigSum != null)
+            return new ColumnSummary(count, bigSum, bigMin, bigMax);
+        return new ColumnSummary(count, BigDecimal.valueOf(sum, scale), BigDecimal.valueOf(min, scale), BigDecimal.valueOf(max, scale));
+    }
+
+
+    private void addExact(long unscaled, int valueScale) {
+        if (count == 0) {
+            sum = min = max = unscaled;
+            scale = valueScale;
+            return;
+        }
+
+        long newSum = sum, newMin = min, newMax = max;
+        int newScale = scale;
+        if (valueScale < scale) {
+            unscaled = rescale(unscaled, scale - valueScale);
+        }
+        else if (valueScale > scale) {
+            newSum = rescale(sum, valueScale - scale);
+            newMin = rescale(min, valueScale - scale);
+            newMax = rescale(max, valueScale - scale);
+            newScale = valueScale;
+        }
+
+        sum = Math.addExact(newSum, unscaled);
+        min = Math.min(newMin, unscaled);
+        max = Math.max(newMax, unscaled);
+        scale = newScale;
+    }
+
+    private void switchToBigDecimal() {
+        if (count > 0) {
+            bigSum = BigDecimal.valueOf(sum, scale);
+            bigMin = BigDecimal.valueOf(min, scale);
+            bigMax = BigDecimal.valueOf(max, scale);
+        }
+    }
+
+    private static long rescale(long value, int scaleIncrease) {
+        if (scaleIncrease >= POWERS_OF_TEN.length)
+            throw new ArithmeticException("Can't rescale by " + scaleIncrease);
+        return Math.multiplyExact(value, POWERS_OF_TEN[scaleIncrease]);
+    }
+
+}
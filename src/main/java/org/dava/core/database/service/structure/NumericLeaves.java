@@ -0,0 +1,141 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.core.database.service.fileaccess.FileUtil;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The leaf folders of a numeric index column, sorted by the smallest value each one holds.
+ *
+ * <p> Numeric index folders are split into '-median' (values less than the median) and '+median' (values greater
+ * than or equal to the median) folders when they get too big, so every leaf holds one range of values, and together
+ * the leaves cover every number. That means the leaf for a value is just the one with the largest lower bound
+ * at or below the value, which is a floor lookup here instead of walking the folder names.
+ *
+ * <p> Leaves are replaced one at a time with {@link #split(String, BigDecimal)} when a repartition happens, so the
+ * folders are only scanned when the table starts up.
+ */
+public class NumericLeaves {
+
+    private final String columnPath;
+    private final ConcurrentSkipListMap<BigDecimal, Leaf> leaves = new ConcurrentSkipListMap<>();
+    private volatile Leaf lowest; // the leaf with no lower bound
+
+    private record Leaf(String path, BigDecimal upperBound) {}
+
+
+    public NumericLeaves(String columnPath) {
+        this.columnPath = columnPath;
+        this.lowest = new Leaf(columnPath, null);
+    }
+
+    /**
+     * Reads the leaves from the folders under the column folder
+     */
+    public static NumericLeaves scan(String columnPath, FileUtil fileUtil) {
+        NumericLeaves numericLeaves = new NumericLeaves(columnPath);
+        numericLeaves.lowest = null;
+        numericLeaves.scanFolder(columnPath, null, null, fileUtil);
+        if (numericLeaves.lowest == null)
+            numericLeaves.lowest = new Leaf(columnPath, null);
+        return numericLeaves;
+    }
+
+    private void scanFolder(String path, BigDecimal lowerBound, BigDecimal upperBound, FileUtil fileUtil) {
+        boolean isLeaf = true;
+        for (File folder : fileUtil.getSubFolders(path)) {
+            String name = folder.getName();
+            if (name.length() < 2 || (name.charAt(0) != '-' && name.charAt(0) != '+'))
+                continue;
+
+            BigDecimal median;
+            try {
+                median = new BigDecimal(name.substring(1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            isLeaf = false;
+            if (name.charAt(0) == '-')
+                scanFolder(path + "/" + name, lowerBound, min(upperBound, median), fileUtil);
+            else
+                scanFolder(path + "/" + name, max(lowerBound, median), upperBound, fileUtil);
+        }
+
+        if (isLeaf)
+            add(new Leaf(path, upperBound), lowerBound);
+    }
+
+    private void add(Leaf leaf, BigDecimal lowerBound) {
+        if (lowerBound == null) {
+            if (lowest == null || covers(leaf.upperBound(), lowest.upperBound()))
+                lowest = leaf;
+            return;
+        }
+
+        // two leaves can only start at the same value if one of them is empty, keep the one that isn't
+        Leaf existing = leaves.get(lowerBound);
+        if (existing == null || covers(leaf.upperBound(), existing.upperBound()))
+            leaves.put(lowerBound, leaf);
+    }
+
+    /**
+     * @return the leaf folder index files for the value go in
+     */
+    public String find(BigDecimal value) {
+        Map.Entry<BigDecimal, Leaf> floor = leaves.floorEntry(value);
+        return (floor == null)? lowest.path() : floor.getValue().path();
+    }
+
+    /**
+     * Replaces a leaf with its new '-median' and '+median' folders
+     */
+    public void split(String leafPath, BigDecimal median) {
+        BigDecimal lowerBound = lowerBoundOf(leafPath);
+        Leaf leaf = (lowerBound == null)? lowest : leaves.get(lowerBound);
+        if (leaf == null || !leaf.path().equals(leafPath))
+            throw new IllegalArgumentException("Not a leaf of " + columnPath + ": " + leafPath);
+
+        // this happens while holding the table's index layout write lock, along with the folder swap
+        leaves.put(median, new Leaf(leafPath + "/+" + median, leaf.upperBound()));
+        Leaf lowerHalf = new Leaf(leafPath + "/-" + median, median);
+        if (lowerBound == null)
+            lowest = lowerHalf;
+        else
+            leaves.put(lowerBound, lowerHalf);
+    }
+
+    /**
+     * The largest '+median' folder in the path, or null if there isn't one
+     */
+    private BigDecimal lowerBoundOf(String leafPath) {
+        BigDecimal lowerBound = null;
+        String relative = leafPath.substring(columnPath.length());
+        for (String folder : relative.split("/")) {
+            if (folder.length() > 1 && folder.charAt(0) == '+')
+                lowerBound = max(lowerBound, new BigDecimal(folder.substring(1)));
+        }
+        return lowerBound;
+    }
+
+    public int size() {
+        return leaves.size() + 1;
+    }
+
+
+    private static boolean covers(BigDecimal upperBound, BigDecimal otherUpperBound) {
+        return upperBound == null || (otherUpperBound != null && upperBound.compareTo(otherUpperBound) > 0);
+    }
+
+    private static BigDecimal min(BigDecimal bound, BigDecimal value) {
+        return (bound == null || value.compareTo(bound) < 0)? value : bound;
+    }
+
+    private static BigDecimal max(BigDecimal bound, BigDecimal value) {
+        return (bound == null || value.compareTo(bound) > 0)? value : bound;
+    }
+
+}
@@ -0,0 +1,139 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileStamp;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.fileaccess.PageCache;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import static org.dava.core.database.objects.exception.ExceptionType.INDEX_READ_ERROR;
+
+/**
+ * Base for single file indices made of fixed size pages, where page 0 holds the index's meta data.
+ *
+ * <p> Pages are written straight to disk and cached in {@link #pageCache}. Before every operation
+ * subclasses call {@link #refresh()}, which drops the cached pages and reloads the meta page if the
+ * file changed since this instance last touched it (deleted by a rollback, replaced, etc.).
+ */
+public abstract class PagedIndex implements SingleFileIndex {
+
+    public static final int PAGE_SIZE = 4096;
+
+    public static PageCache pageCache = new PageCache();
+    public static FileUtil fileUtil = new FileUtil();
+
+    protected final String filePath;
+    private FileStamp stamp;
+    private boolean loaded = false;
+
+
+    protected PagedIndex(String filePath) {
+        this.filePath = filePath;
+    }
+
+
+    /**
+     * Clears the in memory state, as if the file didn't exist.
+     */
+    protected abstract void reset();
+
+    /**
+     * Loads the in memory state from an existing file.
+     */
+    protected abstract void load(byte[] meta) throws IOException;
+
+
+    @Override
+    public synchronized void replace(String value, RouteBuffer routes, KeyType type) {
+        RouteBuffer existing = get(value);
+        for (int i = 0; i < existing.size(); i++) {
+            delete(value, existing.getOffset(i), existing.getLength(i));
+        }
+        for (int i = 0; i < routes.size(); i++) {
+            insert(value, routes.getOffset(i), routes.getLength(i), type);
+        }
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+
+
+    /*
+        Page helpers
+     */
+
+    protected void refresh() throws IOException {
+        FileStamp current = FileStamp.of(filePath);
+        if (loaded && Objects.equals(current, stamp))
+            return;
+
+        pageCache.invalidateFile(filePath);
+        stamp = current;
+        loaded = true;
+        reset();
+        if (current == null || current.size() < PAGE_SIZE)
+            return;
+
+        load(readPage(0));
+    }
+
+    /**
+     * Makes the next {@link #refresh()} load the meta page again, for when the in memory state was changed
+     * for writes that didn't happen
+     */
+    protected void unload() {
+        loaded = false;
+    }
+
+    /**
+     * Call after writing so our own writes don't look like outside changes to {@link #refresh()}
+     */
+    protected void restamp() throws IOException {
+        stamp = FileStamp.of(filePath);
+    }
+
+    protected byte[] readPage(int pageNumber) throws IOException {
+        byte[] page = pageCache.get(filePath, pageNumber);
+        if (page == null) {
+            page = fileUtil.readBytes(filePath, (long) pageNumber * PAGE_SIZE, PAGE_SIZE);
+            if (page == null || page.length < PAGE_SIZE)
+                throw new IOException("Missing page " + pageNumber + " in index: " + filePath);
+            pageCache.put(filePath, pageNumber, page);
+        }
+        return page;
+    }
+
+    protected void writePage(int pageNumber, byte[] page) throws IOException {
+        fileUtil.writeBytes(filePath, (long) pageNumber * PAGE_SIZE, page);
+        pageCache.put(filePath, pageNumber, page);
+    }
+
+    protected DavaException notAnIndex() {
+        return new DavaException(INDEX_READ_ERROR, "Not a " + getClass().getSimpleName() + " file: " + filePath, null);
+    }
+
+    protected static int getInt(byte[] bytes, int at) {
+        return ((bytes[at] & 0xFF) << 24) | ((bytes[at + 1] & 0xFF) << 16) | ((bytes[at + 2] & 0xFF) << 8) | (bytes[at + 3] & 0xFF);
+    }
+
+    protected static void putInt(byte[] bytes, int at, int value) {
+        bytes[at] = (byte) (value >> 24);
+        bytes[at + 1] = (byte) (value >> 16);
+        bytes[at + 2] = (byte) (value >> 8);
+        bytes[at + 3] = (byte) value;
+    }
+
+    protected static long getLong(byte[] bytes, int at) {
+        return ((long) getInt(bytes, at) << 32) | (getInt(bytes, at + 4) & 0xFFFFFFFFL);
+    }
+
+    protected static void putLong(byte[] bytes, int at, long value) {
+        putInt(bytes, at, (int) (value >> 32));
+        putInt(bytes, at + 4, (int) value);
+    }
+
+}
@@ -1,11 +1,7 @@
 package org.dava.core.database.service.structure;
 
-import org.dava.core.common.ArrayUtil;
-import org.dava.core.database.service.type.compression.TypeToByteUtil;
-
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.IntStream;
 
 public class Route {
 
@@ -25,44 +21,26 @@ public class Route {
     /**
      * Indices are made up of 10 bytes:
      *    - [6 bytes offset][4 bytes length]
+     *
+     * <p> Use {@link RouteBuffer#parse(byte[])} instead if you don't need Route objects for every entry.
      */
     public static List<Route> parseBytes(byte[] bytes, String partition) {
-        return IntStream.range(0, bytes.length/10)
-            .mapToObj(i -> {
-                int index = i * 10;
-                return parseRoute(
-                    ArrayUtil.subRange(bytes, index, index+10),
-                    partition
-                );
-            })
-            .toList();
-
+        return RouteBuffer.parse(bytes).toRoutes(partition);
     }
 
     public static Route parseRoute(byte[] bytes, String partition) {
-        byte[] offset = ArrayUtil.subRange(bytes, 0, 6);
-        byte[] length = ArrayUtil.subRange(bytes, 6, 10);
-
         return new Route(
             partition,
-            TypeToByteUtil.byteArrayToLong(
-                ArrayUtil.appendArray(new byte[2], offset)
-            ),
-            TypeToByteUtil.byteArrayToInt(
-                length
-            )
+            RouteBuffer.decodeOffset(bytes, 0),
+            RouteBuffer.decodeLength(bytes, 0)
         );
     }
 
 
     public byte[] getRouteAsBytes() {
-        byte[] offset = TypeToByteUtil.longToByteArray(offsetInTable);
-        byte[] length = TypeToByteUtil.longToByteArray(lengthInTable);
-
-        return ArrayUtil.appendArray(
-            ArrayUtil.subRange(offset, offset.length-6, offset.length),
-            ArrayUtil.subRange(length, length.length-4, length.length)
-        );
+        byte[] bytes = new byte[RouteBuffer.ROUTE_SIZE];
+        RouteBuffer.encode(offsetInTable, lengthInTable, bytes, 0);
+        return bytes;
     }
 
 
@@ -0,0 +1,241 @@
+package org.dava.core.database.service.structure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Growable list of routes stored as primitive arrays, so index files with lots of routes can be
+ * read and scanned without making a Route object (and several byte arrays) for each entry.
+ *
+ * <p> Uses the same 10 byte encoding as index and empties files:
+ *    - [6 bytes offset][4 bytes length]
+ *
+ * <p> Routes here don't have a partition, use {@link #getRoute(int, String)} or
+ * {@link #toRoutes(String)} when you need actual Route objects.
+ */
+public class RouteBuffer {
+
+    public static final int ROUTE_SIZE = 10;
+
+    private long[] offsets;
+    private int[] lengths;
+    private int size;
+
+
+    public RouteBuffer() {
+        this(16);
+    }
+
+    public RouteBuffer(int initialCapacity) {
+        this.offsets = new long[Math.max(initialCapacity, 1)];
+        this.lengths = new int[Math.max(initialCapacity, 1)];
+    }
+
+
+    /**
+     * Decodes every whole route in the array.
+     */
+    public static RouteBuffer parse(byte[] bytes) {
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes every whole route from 'from' (inclusive) to 'to' (exclusive).
+     */
+    public static RouteBuffer parse(byte[] bytes, int from, int to) {
+        int count = (to - from) / ROUTE_SIZE;
+        RouteBuffer buffer = new RouteBuffer(count);
+        for (int i = 0; i < count; i++) {
+            int index = from + i * ROUTE_SIZE;
+            buffer.offsets[i] = decodeOffset(bytes, index);
+            buffer.lengths[i] = decodeLength(bytes, index);
+        }
+        buffer.size = count;
+        return buffer;
+    }
+
+    public static long decodeOffset(byte[] bytes, int index) {
+        long offset = 0;
+        for (int i = 0; i < 6; i++) {
+            offset = (offset << 8) | (bytes[index + i] & 0xFF);
+        }
+        return offset;
+    }
+
+    public static int decodeLength(byte[] bytes, int index) {
+        return ((bytes[index + 6] & 0xFF) << 24) |
+            ((bytes[index + 7] & 0xFF) << 16) |
+            ((bytes[index + 8] & 0xFF) << 8) |
+            (bytes[index + 9] & 0xFF);
+    }
+
+    public static void encode(long offset, int length, byte[] bytes, int index) {
+        for (int i = 0; i < 6; i++) {
+            bytes[index + i] = (byte) (offset >> (40 - (i * 8)));
+        }
+        bytes[index + 6] = (byte) (length >> 24);
+        bytes[index + 7] = (byte) (length >> 16);
+        bytes[index + 8] = (byte) (length >> 8);
+        bytes[index + 9] = (byte) length;
+    }
+
+
+    public void add(long offset, int length) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        offsets[size] = offset;
+        lengths[size] = length;
+        size++;
+    }
+
+    public void add(Route route) {
+        add(route.getOffsetInTable(), route.getLengthInTable());
+    }
+
+    public void addAll(RouteBuffer other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.offsets[i], other.lengths[i]);
+        }
+    }
+
+    public int indexOf(long offset, int length) {
+        for (int i = 0; i < size; i++) {
+            if (offsets[i] == offset && lengths[i] == length)
+                return i;
+        }
+        return -1;
+    }
+
+    public boolean contains(long offset, int length) {
+        return indexOf(offset, length) != -1;
+    }
+
+    /**
+     * Sorts by offset then length. Needed before using {@link #containsSorted(long, int)}
+     */
+    public void sort() {
+        // heap sort, in place so sorting doesn't box every route
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i, size);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (2 * i + 1 < end) {
+            int child = 2 * i + 1;
+            if (child + 1 < end && compare(child + 1, child) > 0)
+                child++;
+            if (compare(i, child) >= 0)
+                return;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private int compare(int a, int b) {
+        return (offsets[a] != offsets[b])? Long.compare(offsets[a], offsets[b]) : Integer.compare(lengths[a], lengths[b]);
+    }
+
+    private void swap(int a, int b) {
+        long offset = offsets[a];
+        offsets[a] = offsets[b];
+        offsets[b] = offset;
+        int length = lengths[a];
+        lengths[a] = lengths[b];
+        lengths[b] = length;
+    }
+
+    /**
+     * Binary search, only valid after {@link #sort()}
+     */
+    public boolean containsSorted(long offset, int length) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = (offsets[mid] != offset)? Long.compare(offsets[mid], offset) : Integer.compare(lengths[mid], length);
+            if (compare < 0)
+                low = mid + 1;
+            else if (compare > 0)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the routes the same way they're stored in index files.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[size * ROUTE_SIZE];
+        for (int i = 0; i < size; i++) {
+            encode(offsets[i], lengths[i], bytes, i * ROUTE_SIZE);
+        }
+        return bytes;
+    }
+
+    public Route getRoute(int i, String partition) {
+        return new Route(partition, offsets[i], lengths[i]);
+    }
+
+    public List<Route> toRoutes(String partition) {
+        List<Route> routes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            routes.add(getRoute(i, partition));
+        }
+        return routes;
+    }
+
+    /**
+     * Copy of the routes from 'from' (inclusive) to 'to' (exclusive).
+     */
+    public RouteBuffer slice(int from, int to) {
+        RouteBuffer slice = new RouteBuffer(to - from);
+        System.arraycopy(offsets, from, slice.offsets, 0, to - from);
+        System.arraycopy(lengths, from, slice.lengths, 0, to - from);
+        slice.size = to - from;
+        return slice;
+    }
+
+    public RouteBuffer copy() {
+        RouteBuffer copy = new RouteBuffer(size);
+        copy.addAll(this);
+        return copy;
+    }
+
+    public static RouteBuffer of(List<Route> routes) {
+        RouteBuffer buffer = new RouteBuffer(routes.size());
+        routes.forEach(buffer::add);
+        return buffer;
+    }
+
+
+
+    /*
+        Getter setter
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getOffset(int i) {
+        return offsets[i];
+    }
+
+    public int getLength(int i) {
+        return lengths[i];
+    }
+
+}
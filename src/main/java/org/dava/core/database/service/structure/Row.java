@@ -1,10 +1,12 @@
 package org.dava.core.database.service.structure;
 
+import org.dava.api.annotations.RowFormat;
 import org.dava.core.common.TypeUtil;
 import org.dava.core.database.objects.dates.Date;
 import org.dava.core.database.objects.exception.DavaException;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -12,10 +14,19 @@ import static org.dava.core.common.Checks.*;
 import static org.dava.core.database.objects.exception.ExceptionType.CORRUPTED_ROW_ERROR;
 
 public class Row {
-    private Map<String, Object> columnsToValues;
+    private static final Object NOT_DECODED = new Object();
+
+    private volatile Map<String, Object> columnsToValues;
     private String tableName;
     private Route locationInTable;
 
+    // rows read from a table partition keep their line and decode a cell the first time it's asked for (see Row.of)
+    private Table<?> table;
+    private byte[] line;
+    private boolean binary;
+    private int[] cellBounds; // csv: start and end of each cell. binary: start of each field
+    private Object[] cells;
+
 
     public Row() {}
 
@@ -24,15 +35,16 @@ public class Row {
             this.locationInTable = locationInTable;
             line = line.trim();
             List<String> values = getValuesFromLine(line);
-            columnsToValues = new HashMap<>();
-            List<Map.Entry<String, Column<?>>> list = new ArrayList<>(table.getColumns().entrySet());
+            Map<String, Object> columnsToValues = new HashMap<>();
+            List<Column<?>> list = table.getColumnList();
             for (int i = 0; i < values.size(); i++) {
-                Column<?> column = list.get(i).getValue();
+                Column<?> column = list.get(i);
                 columnsToValues.put(
                     column.getName(),
                     parseValue(column.getType(), values.get(i))
                 );
             }
+            this.columnsToValues = columnsToValues;
             tableName = table.getTableName();
         } catch(Exception e) {//IndexOutOfBoundsException
             throw new DavaException(
@@ -43,6 +55,107 @@ public class Row {
         }
     }
 
+    /**
+     * Reads a row from the bytes of a line in a table partition, in either csv or binary format
+     * (see {@link BinaryRow}). The range can include the ending '\n'.
+     *
+     * <p> The row is decoded lazily. Only the line is copied and where each cell starts is found, and a cell is
+     * parsed the first time it's asked for with {@link #getValue(String)}. So filtering on one column, or
+     * marshalling a few fields (see {@link org.dava.core.database.service.MarshallingService#parseObject(Row, Class, Set)}),
+     * doesn't parse the rest of the row. {@link #getColumnsToValues()} decodes the whole row.
+     */
+    public static Row of(byte[] buffer, int from, int length, Table<?> table, Route locationInTable) {
+        Row row = new Row();
+        row.tableName = table.getTableName();
+        row.locationInTable = locationInTable;
+        row.table = table;
+        row.binary = BinaryRow.isBinary(buffer, from, length);
+
+        try {
+            if (row.binary) {
+                row.line = BinaryRow.unescape(buffer, from, length);
+                row.cellBounds = BinaryRow.fieldOffsets(table, row.line);
+            }
+            else {
+                row.line = Arrays.copyOfRange(buffer, from, from + length);
+                row.cellBounds = getCellBounds(row.line, table.getColumnList().size());
+            }
+        } catch (RuntimeException e) {
+            throw row.makeCorruptedRowError(e);
+        }
+
+        row.cells = new Object[table.getColumnList().size()];
+        Arrays.fill(row.cells, NOT_DECODED);
+        return row;
+    }
+
+    /**
+     * Finds the start and end of each cell in a csv line, ignoring leading and trailing whitespace
+     * (like {@link String#trim()}) and commas in quotes.
+     */
+    private static int[] getCellBounds(byte[] line, int columnCount) {
+        int start = 0;
+        int end = line.length;
+        while (start < end && (line[start] & 0xff) <= ' ')
+            start++;
+        while (end > start && (line[end - 1] & 0xff) <= ' ')
+            end--;
+
+        int[] bounds = new int[columnCount * 2];
+        int cell = 0;
+        boolean inQuotes = false;
+        bounds[0] = start;
+        for (int i = start; i < end; i++) {
+            if (line[i] == '"') {
+                inQuotes = !inQuotes;
+            }
+            else if (line[i] == ',' && !inQuotes) {
+                bounds[cell * 2 + 1] = i;
+                cell++;
+                bounds[cell * 2] = i + 1; // throws for rows with more cells than columns
+            }
+        }
+        bounds[cell * 2 + 1] = end;
+
+        // rows with fewer cells than columns are missing the rest
+        for (int i = cell + 1; i < columnCount; i++) {
+            bounds[i * 2] = -1;
+            bounds[i * 2 + 1] = -1;
+        }
+        return bounds;
+    }
+
+    private Object decodeCell(int index) {
+        Column<?> column = table.getColumnList().get(index);
+        try {
+            if (binary)
+                return BinaryRow.decodeField(column, line, cellBounds[index]);
+
+            int start = cellBounds[index * 2];
+            if (start < 0)
+                return null;
+            String value = new String(line, start, cellBounds[index * 2 + 1] - start, StandardCharsets.UTF_8);
+            if (value.indexOf('"') >= 0)
+                value = value.replace("\"", "");
+            return parseValue(column.getType(), value);
+        } catch (RuntimeException e) {
+            throw makeCorruptedRowError(e);
+        }
+    }
+
+    private boolean hasCell(int index) {
+        return binary || cellBounds[index * 2] >= 0;
+    }
+
+    private DavaException makeCorruptedRowError(Exception e) {
+        String raw = (line == null || binary)? "at " + locationInTable : new String(line, StandardCharsets.UTF_8).trim();
+        return new DavaException(
+            CORRUPTED_ROW_ERROR,
+            "Error trying to parse table row to table type " + table.getTableName() + ". Raw row: " + raw,
+            e
+        );
+    }
+
     public static Object parseValue(Class<?> columnType, String stringValue) {
         if (TypeUtil.isNumericClass(columnType)){
             return new BigDecimal(stringValue);
@@ -93,6 +206,48 @@ public class Row {
         return serialization.toString();
     }
 
+    /**
+     * The row as it's written in the table's partition files, including the ending '\n'
+     */
+    public static byte[] toBytes(Table<?> table, Map<String, Object> columnsToValuesMap) {
+        if (table.getRowFormat() == RowFormat.BINARY)
+            return BinaryRow.encode(table, columnsToValuesMap);
+
+        return (serialize(table, columnsToValuesMap) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The row as bytes that take up exactly 'length' bytes, padded with spaces before the ending '\n'. The table's
+     * row format is tried first, then the other one, so rows can be written back in place in a file that has
+     * rows of both formats in it (see {@link org.dava.core.database.service.RowFormatConverter}).
+     *
+     * @return the bytes, or null if the row doesn't fit in 'length' bytes in either format
+     */
+    public static byte[] toBytesPadded(Table<?> table, Map<String, Object> columnsToValuesMap, int length) {
+        byte[] binary = null;
+        byte[] csv = null;
+        if (table.getRowFormat() == RowFormat.BINARY) {
+            binary = BinaryRow.encode(table, columnsToValuesMap);
+            if (binary.length > length)
+                csv = (serialize(table, columnsToValuesMap) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        else {
+            csv = (serialize(table, columnsToValuesMap) + "\n").getBytes(StandardCharsets.UTF_8);
+            if (csv.length > length)
+                binary = BinaryRow.encode(table, columnsToValuesMap);
+        }
+
+        byte[] fits = (binary != null && binary.length <= length)? binary
+            : (csv != null && csv.length <= length)? csv
+            : null;
+        if (fits == null || fits.length == length)
+            return fits;
+
+        byte[] padded = Table.getWhitespaceBytes(length);
+        System.arraycopy(fits, 0, padded, 0, fits.length - 1);
+        return padded;
+    }
+
     public Row(Map<String, Object> columnsToValues, String tableName) {
         this.columnsToValues = columnsToValues;
         this.tableName = tableName;
@@ -100,10 +255,7 @@ public class Row {
 
     public Row copy() {
         Row row = new Row();
-        row.columnsToValues = new HashMap<>();
-        for (Entry<String, Object> entry : this.columnsToValues.entrySet()) {
-            row.columnsToValues.put(entry.getKey(), entry.getValue());
-        }
+        row.columnsToValues = new HashMap<>(getColumnsToValues());
         row.tableName = this.tableName;
         row.locationInTable = this.locationInTable;
 
@@ -116,11 +268,43 @@ public class Row {
         Getter Setter
      */
     public Object getValue(String column) {
-        return columnsToValues.get(column);
+        Map<String, Object> values = columnsToValues;
+        if (values != null || line == null)
+            return values.get(column);
+
+        int index = table.getColumnIndex(column);
+        if (index < 0)
+            return null;
+
+        Object value = cells[index];
+        if (value == NOT_DECODED) {
+            value = decodeCell(index);
+            cells[index] = value;
+        }
+        return value;
     }
 
+    /**
+     * @return every column of the row. For rows read lazily (see {@link #of(byte[], int, int, Table, Route)}) this
+     * decodes the cells that haven't been yet, so use {@link #getValue(String)} when only some columns are needed.
+     */
     public Map<String, Object> getColumnsToValues() {
-        return columnsToValues;
+        Map<String, Object> values = columnsToValues;
+        if (values != null || line == null)
+            return values;
+
+        synchronized (this) {
+            if (columnsToValues == null) {
+                values = new HashMap<>();
+                List<Column<?>> columns = table.getColumnList();
+                for (int i = 0; i < columns.size(); i++) {
+                    if (hasCell(i))
+                        values.put(columns.get(i).getName(), getValue(columns.get(i).getName()));
+                }
+                columnsToValues = values;
+            }
+            return columnsToValues;
+        }
     }
 
     public String getTableName() {
@@ -140,7 +324,7 @@ public class Row {
         return Objects.hash(
             tableName,
             locationInTable,
-            columnsToValues.entrySet().stream()
+            getColumnsToValues().entrySet().stream()
                 .map( entry -> Objects.hash(entry.getKey(), entry.getValue()) )
                 .reduce( Objects::hash )
         );
@@ -155,7 +339,7 @@ public class Row {
             .map( entry -> {
                 String columnName = entry.getKey();
                 String value = entry.getValue().toString();
-                String thisValue = this.columnsToValues.get(columnName).toString();
+                String thisValue = this.getValue(columnName).toString();
 
                 return value.equals(thisValue);
             })
@@ -166,7 +350,7 @@ public class Row {
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        for (Object obj : columnsToValues.values()) {
+        for (Object obj : getColumnsToValues().values()) {
             builder.append(obj).append(", ");
         }
         return builder.substring(0, builder.length()-2);
@@ -175,7 +359,7 @@ public class Row {
     public String toStringColumns(Set<String> columns) {
         StringBuilder builder = new StringBuilder();
         for (String column : columns) {
-            Object obj = columnsToValues.get(column);
+            Object obj = getValue(column);
             builder.append(obj).append(", ");
         }
         return builder.substring(0, builder.length()-2);
@@ -184,7 +368,7 @@ public class Row {
 
     public String toStringExcludeColumns(Set<String> columnsToExclude) {
         StringBuilder builder = new StringBuilder();
-        for (Entry<String, Object> entry : columnsToValues.entrySet()) {
+        for (Entry<String, Object> entry : getColumnsToValues().entrySet()) {
             if (!columnsToExclude.contains(entry.getKey())) {
                 builder.append(entry.getValue()).append(", ");
             }
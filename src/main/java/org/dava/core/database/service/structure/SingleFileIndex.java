@@ -0,0 +1,58 @@
+package org.dava.core.database.service.structure;
+
+import java.util.function.Predicate;
+
+/**
+ * An index that keeps every (value, route) entry for a column partition in one file, instead of
+ * a file per value. See {@link BTreeIndex} and {@link SortedNumericIndex}.
+ *
+ * <p> Index paths for these are virtual, '.../META_partition/column.extension/value.index', so the
+ * rest of the code can treat them like index files. See {@link Index#isSingleFileIndexPath(String)}
+ */
+public interface SingleFileIndex {
+
+    enum KeyType { STRING, NUMERIC }
+
+
+    /**
+     * @param type only used if the index file doesn't exist yet
+     */
+    void insert(String value, long offset, int length, KeyType type);
+
+    /**
+     * Removes one (value, route) entry.
+     * @return false if the entry wasn't in the index
+     */
+    boolean delete(String value, long offset, int length);
+
+    /**
+     * Gets every route for a value.
+     */
+    RouteBuffer get(String value);
+
+    /**
+     * Replaces all the routes for a value (used by rollbacks).
+     */
+    void replace(String value, RouteBuffer routes, KeyType type);
+
+    /**
+     * Visits entries in key order whose key matches a monotone predicate (like 'greater than 5'),
+     * where every match is either before or after every non match.
+     *
+     * @param matches predicate on the value
+     * @param descending visit largest keys first
+     * @param visitor called for each matching entry, return false to stop
+     */
+    void scan(Predicate<String> matches, boolean descending, EntryVisitor visitor);
+
+
+    @FunctionalInterface
+    interface EntryVisitor {
+
+        /**
+         * @return false to stop the scan
+         */
+        boolean visit(String value, long offset, int length);
+    }
+
+}
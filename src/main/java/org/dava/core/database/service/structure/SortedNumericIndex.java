@@ -0,0 +1,438 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.core.database.objects.exception.DavaException;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static org.dava.core.database.objects.exception.ExceptionType.INDEX_CREATION_ERROR;
+import static org.dava.core.database.objects.exception.ExceptionType.INDEX_READ_ERROR;
+
+/**
+ * Index for numeric and date columns that keeps (key, route) entries sorted in fixed width blocks.
+ *
+ * <p> Numeric indices made of median folders need a folder listing and a BigDecimal parse per file
+ * name to answer a range query. Here the first key of every block is kept in memory (the fences), so
+ * a range query binary searches the fences to the first block with matches and streams forward from
+ * there, reading nothing else.
+ *
+ * <p> File layout, every block is {@value #PAGE_SIZE} bytes:
+ *    - block 0: [4 bytes magic][4 bytes first block][4 bytes block count]
+ *    - other blocks: [2 bytes entry count][2 unused][4 bytes next block] then entries of [8 bytes key][10 bytes route]
+ *
+ * <p> Blocks are chained in key order, a full block is split in half with the new block appended to the file.
+ * Keys are the value as a double, encoded so comparing the longs orders the numbers. Dates (epoch milliseconds)
+ * and whole numbers under 2^53 are exact, decimals past double precision are ordered by their nearest double.
+ *
+ * <p> Deletes just remove the entry from its block, blocks aren't merged.
+ */
+public class SortedNumericIndex extends PagedIndex {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int KEY_SIZE = 8;
+    private static final int ENTRY_SIZE = KEY_SIZE + RouteBuffer.ROUTE_SIZE;
+    private static final int BLOCK_CAPACITY = (PAGE_SIZE - HEADER_SIZE) / ENTRY_SIZE;
+
+    private static final int MAGIC = 0x44534e31;
+    private static final int NO_BLOCK = -1;
+
+    private static final Map<String, SortedNumericIndex> openIndices = new ConcurrentHashMap<>();
+
+    private int firstBlock = NO_BLOCK;
+    private int blockCount = 0;
+
+    // sparse index, the lowest key (fence) of each block in chain order
+    private long[] fences = new long[16];
+    private int[] fenceBlocks = new int[16];
+    private int fenceCount = 0;
+
+
+    private SortedNumericIndex(String filePath) {
+        super(filePath);
+    }
+
+    /**
+     * Gets the index for a file. The file doesn't have to exist yet, an empty index acts like
+     * it has no entries until something is inserted.
+     */
+    public static SortedNumericIndex of(String filePath) {
+        return openIndices.computeIfAbsent(filePath, SortedNumericIndex::new);
+    }
+
+
+    /*
+        Operations
+     */
+
+    /**
+     * @param type ignored, keys are always numeric
+     */
+    @Override
+    public synchronized void insert(String value, long offset, int length, KeyType type) {
+        try {
+            refresh();
+            if (firstBlock == NO_BLOCK)
+                create();
+
+            long key = encodeKey(value);
+            int fence = lastFenceAtOrBelow(key);
+            int blockNumber = fenceBlocks[fence];
+            byte[] block = readPage(blockNumber);
+            int count = getCount(block);
+
+            // after any equal keys
+            int position = upperBound(block, count, key);
+            byte[] entry = new byte[ENTRY_SIZE];
+            putLong(entry, 0, key);
+            RouteBuffer.encode(offset, length, entry, KEY_SIZE);
+
+            if (count < BLOCK_CAPACITY) {
+                byte[] updated = block.clone();
+                System.arraycopy(block, entryAt(position), updated, entryAt(position + 1), (count - position) * ENTRY_SIZE);
+                System.arraycopy(entry, 0, updated, entryAt(position), ENTRY_SIZE);
+                setCount(updated, count + 1);
+                writePage(blockNumber, updated);
+            }
+            else {
+                split(fence, block, position, entry);
+            }
+            restamp();
+        } catch (IOException e) {
+            throw new DavaException(INDEX_CREATION_ERROR, "Error writing to sorted index: " + filePath, e);
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(String value, long offset, int length) {
+        try {
+            refresh();
+            if (firstBlock == NO_BLOCK)
+                return false;
+
+            long key = encodeKey(value);
+            for (int fence = lastFenceBelow(key); fence < fenceCount && fences[fence] <= key; fence++) {
+                int blockNumber = fenceBlocks[fence];
+                byte[] block = readPage(blockNumber);
+                int count = getCount(block);
+                for (int i = lowerBound(block, count, key); i < count && getLong(block, entryAt(i)) == key; i++) {
+                    int at = entryAt(i);
+                    if (RouteBuffer.decodeOffset(block, at + KEY_SIZE) == offset && RouteBuffer.decodeLength(block, at + KEY_SIZE) == length) {
+                        byte[] updated = block.clone();
+                        System.arraycopy(block, entryAt(i + 1), updated, at, (count - i - 1) * ENTRY_SIZE);
+                        setCount(updated, count - 1);
+                        writePage(blockNumber, updated);
+                        restamp();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            throw new DavaException(INDEX_CREATION_ERROR, "Error deleting from sorted index: " + filePath, e);
+        }
+    }
+
+    @Override
+    public synchronized RouteBuffer get(String value) {
+        try {
+            refresh();
+            RouteBuffer routes = new RouteBuffer();
+            if (firstBlock == NO_BLOCK)
+                return routes;
+
+            long key = encodeKey(value);
+            for (int fence = lastFenceBelow(key); fence < fenceCount && fences[fence] <= key; fence++) {
+                byte[] block = readPage(fenceBlocks[fence]);
+                int count = getCount(block);
+                for (int i = lowerBound(block, count, key); i < count && getLong(block, entryAt(i)) == key; i++) {
+                    int at = entryAt(i) + KEY_SIZE;
+                    routes.add(RouteBuffer.decodeOffset(block, at), RouteBuffer.decodeLength(block, at));
+                }
+            }
+            return routes;
+        } catch (IOException e) {
+            throw new DavaException(INDEX_READ_ERROR, "Error reading sorted index: " + filePath, e);
+        }
+    }
+
+    /**
+     * Binary searches the fences to the first block that can match, then streams entries from there.
+     */
+    @Override
+    public synchronized void scan(Predicate<String> matches, boolean descending, EntryVisitor visitor) {
+        try {
+            refresh();
+            if (firstBlock == NO_BLOCK)
+                return;
+
+            Long first = edgeKey(false);
+            Long last = edgeKey(true);
+            if (first == null)
+                return;
+
+            boolean firstMatches = matches.test(decodeKey(first));
+            boolean lastMatches = matches.test(decodeKey(last));
+            if (!firstMatches && !lastMatches)
+                return;
+
+            int start;
+            if (firstMatches && lastMatches || firstMatches != descending) {
+                start = (descending)? fenceCount - 1 : 0;
+            }
+            else {
+                // ascending: start at the last block whose fence doesn't match
+                // descending: start at the last block whose fence does match
+                start = 0;
+                int low = 1;
+                int high = fenceCount - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if (matches.test(decodeKey(fences[mid])) == descending) {
+                        start = mid;
+                        low = mid + 1;
+                    }
+                    else {
+                        high = mid - 1;
+                    }
+                }
+            }
+
+            boolean matching = false;
+            for (int fence = start; fence >= 0 && fence < fenceCount; fence += (descending)? -1 : 1) {
+                byte[] block = readPage(fenceBlocks[fence]);
+                int count = getCount(block);
+                for (int j = 0; j < count; j++) {
+                    int at = entryAt( (descending)? count - 1 - j : j );
+                    String value = decodeKey(getLong(block, at));
+                    if (!matches.test(value)) {
+                        if (matching)
+                            return;
+                        continue;
+                    }
+                    matching = true;
+
+                    boolean keepGoing = visitor.visit(
+                        value,
+                        RouteBuffer.decodeOffset(block, at + KEY_SIZE),
+                        RouteBuffer.decodeLength(block, at + KEY_SIZE)
+                    );
+                    if (!keepGoing)
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            throw new DavaException(INDEX_READ_ERROR, "Error scanning sorted index: " + filePath, e);
+        }
+    }
+
+
+
+    /*
+        Block helpers
+     */
+
+    private void split(int fence, byte[] block, int position, byte[] entry) throws IOException {
+        int count = getCount(block);
+        byte[] all = new byte[(count + 1) * ENTRY_SIZE];
+        System.arraycopy(block, entryAt(0), all, 0, position * ENTRY_SIZE);
+        System.arraycopy(entry, 0, all, position * ENTRY_SIZE, ENTRY_SIZE);
+        System.arraycopy(block, entryAt(position), all, (position + 1) * ENTRY_SIZE, (count - position) * ENTRY_SIZE);
+        int leftCount = (count + 1) / 2;
+        int rightCount = count + 1 - leftCount;
+
+        int rightBlockNumber = blockCount++;
+
+        byte[] right = newBlock(getInt(block, 4));
+        System.arraycopy(all, leftCount * ENTRY_SIZE, right, HEADER_SIZE, rightCount * ENTRY_SIZE);
+        setCount(right, rightCount);
+
+        byte[] left = newBlock(rightBlockNumber);
+        System.arraycopy(all, 0, left, HEADER_SIZE, leftCount * ENTRY_SIZE);
+        setCount(left, leftCount);
+
+        // write the new block before linking to it
+        writePage(rightBlockNumber, right);
+        writePage(fenceBlocks[fence], left);
+        writeMeta();
+
+        addFence(fence + 1, getLong(right, entryAt(0)), rightBlockNumber);
+    }
+
+    private void addFence(int at, long key, int blockNumber) {
+        if (fenceCount == fences.length) {
+            fences = Arrays.copyOf(fences, fenceCount * 2);
+            fenceBlocks = Arrays.copyOf(fenceBlocks, fenceCount * 2);
+        }
+        System.arraycopy(fences, at, fences, at + 1, fenceCount - at);
+        System.arraycopy(fenceBlocks, at, fenceBlocks, at + 1, fenceCount - at);
+        fences[at] = key;
+        fenceBlocks[at] = blockNumber;
+        fenceCount++;
+    }
+
+    /**
+     * Last block a key can be inserted into
+     */
+    private int lastFenceAtOrBelow(long key) {
+        int low = 0;
+        int high = fenceCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fences[mid] <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return Math.max(low - 1, 0);
+    }
+
+    /**
+     * First block that can have entries for a key, equal keys can continue over several blocks
+     */
+    private int lastFenceBelow(long key) {
+        int low = 0;
+        int high = fenceCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fences[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return Math.max(low - 1, 0);
+    }
+
+    private static int lowerBound(byte[] block, int count, long key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getLong(block, entryAt(mid)) < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static int upperBound(byte[] block, int count, long key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getLong(block, entryAt(mid)) <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Smallest or largest key in the index, or null if there are no entries
+     */
+    private Long edgeKey(boolean last) throws IOException {
+        for (int j = 0; j < fenceCount; j++) {
+            byte[] block = readPage(fenceBlocks[ (last)? fenceCount - 1 - j : j ]);
+            int count = getCount(block);
+            if (count > 0)
+                return getLong(block, entryAt( (last)? count - 1 : 0 ));
+        }
+        return null;
+    }
+
+    /**
+     * Doubles as longs that sort the same way, negative numbers get every bit but the sign flipped
+     */
+    private static long encodeKey(String value) {
+        long bits = Double.doubleToLongBits(new BigDecimal(value).doubleValue());
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    private static String decodeKey(long key) {
+        double value = Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+
+
+    /*
+        File helpers
+     */
+
+    @Override
+    protected void reset() {
+        firstBlock = NO_BLOCK;
+        blockCount = 0;
+        fenceCount = 0;
+    }
+
+    /**
+     * Walks the block chain reading just the header and first key of each block to build the fences.
+     * Empty blocks (other than the first) are left out, nothing can be found in them or needs to go in them.
+     */
+    @Override
+    protected void load(byte[] meta) throws IOException {
+        if (getInt(meta, 0) != MAGIC)
+            throw notAnIndex();
+
+        firstBlock = getInt(meta, 4);
+        blockCount = getInt(meta, 8);
+
+        int blockNumber = firstBlock;
+        while (blockNumber != NO_BLOCK) {
+            byte[] header = fileUtil.readBytes(filePath, (long) blockNumber * PAGE_SIZE, HEADER_SIZE + KEY_SIZE);
+            if (header == null || header.length < HEADER_SIZE + KEY_SIZE)
+                throw new IOException("Missing block " + blockNumber + " in sorted index: " + filePath);
+
+            if (fenceCount == 0)
+                addFence(0, Long.MIN_VALUE, blockNumber);
+            else if (getCount(header) > 0)
+                addFence(fenceCount, getLong(header, HEADER_SIZE), blockNumber);
+
+            blockNumber = getInt(header, 4);
+        }
+    }
+
+    private void create() throws IOException {
+        blockCount = 1;
+        firstBlock = blockCount++;
+        writePage(firstBlock, newBlock(NO_BLOCK));
+        writeMeta();
+        addFence(0, Long.MIN_VALUE, firstBlock);
+    }
+
+    private void writeMeta() throws IOException {
+        byte[] meta = new byte[PAGE_SIZE];
+        putInt(meta, 0, MAGIC);
+        putInt(meta, 4, firstBlock);
+        putInt(meta, 8, blockCount);
+        writePage(0, meta);
+    }
+
+    private static byte[] newBlock(int next) {
+        byte[] block = new byte[PAGE_SIZE];
+        putInt(block, 4, next);
+        return block;
+    }
+
+    private static int entryAt(int i) {
+        return HEADER_SIZE + i * ENTRY_SIZE;
+    }
+
+    private static int getCount(byte[] block) {
+        return ((block[0] & 0xFF) << 8) | (block[1] & 0xFF);
+    }
+
+    private static void setCount(byte[] block, int count) {
+        block[0] = (byte) (count >> 8);
+        block[1] = (byte) count;
+    }
+
+}
@@ -1,24 +1,38 @@
 package org.dava.core.database.service.structure;
 
 
+import org.dava.api.annotations.Partitioning;
 import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.RowFormat;
 import org.dava.api.annotations.constraints.Unique;
+import org.dava.api.annotations.indices.IndexType;
+import org.dava.api.annotations.indices.Columnar;
 import org.dava.api.annotations.indices.Indexed;
+import org.dava.core.common.HashUtil;
 import org.dava.core.common.TypeUtil;
 import org.dava.core.database.objects.exception.DavaException;
-import org.dava.core.database.service.BaseOperationService;
+import org.dava.core.database.service.BulkLoader;
+import org.dava.core.database.service.Compactor;
+import org.dava.core.database.service.IndexMaintenance;
+import org.dava.core.database.service.Rollback;
 import org.dava.core.database.service.fileaccess.FileUtil;
-import org.dava.core.database.service.operations.common.EmptiesPackage;
+import org.dava.core.database.service.operations.common.WritePackage;
 import org.dava.core.database.service.type.compression.TypeToByteUtil;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.dava.core.database.objects.exception.ExceptionType.BASE_IO_ERROR;
+import static org.dava.core.database.objects.exception.ExceptionType.PARTITION_ERROR;
 import static org.dava.core.database.objects.exception.ExceptionType.TABLE_PARSE_ERROR;
 
 
@@ -26,13 +40,31 @@ public class Table<T> {
 
     private final Class<T> tableClass;
     private LinkedHashMap<String, Column<?>> columns;
+    private List<Column<?>> columnList; // columns in order, for reading rows (see Row.of)
+    private Map<String, Integer> columnIndices;
+    private boolean hasColumnarColumns;
     private final String tableName;
     private final String directory;
     private final String databaseRoot;
     private final Mode mode;
-    private List<String> partitions;
+    private final RowFormat rowFormat;
+    private final List<String> partitions = new CopyOnWriteArrayList<>();
+    private final String[] partitionDirectories;
+    private final long maxPartitionSize;
+    private final Partitioning partitioning;
+    private String primaryKeyColumnName;
     private final Random random;
-    private Map<String, List<File>> columnLeaves = new HashMap<>(); // for numeric folders
+    private Map<String, NumericLeaves> columnLeaves = new ConcurrentHashMap<>(); // for numeric folders
+    private final Map<String, FreeSpace> freeSpaces = new ConcurrentHashMap<>();
+
+    // numeric repartitions move index folders, see IndexMaintenance
+    private final ReentrantReadWriteLock indexLayoutLock = new ReentrantReadWriteLock();
+    private final AtomicLong indexLayoutVersion = new AtomicLong();
+
+    // compaction moves rows and truncates table files, see Compactor
+    private final ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    private final Map<String, AtomicLong> compactionGenerations = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> compactionHolds = new ConcurrentHashMap<>();
 
 
     public FileUtil fileUtil = new FileUtil();
@@ -50,11 +82,12 @@ public class Table<T> {
         this.tableName = (annotation.name().isEmpty())? tableClass.getSimpleName() : annotation.name();
         this.databaseRoot = databaseRoot;
         this.mode = mode;
+        this.rowFormat = annotation.format();
         this.directory = databaseRoot + "/" + tableName;
-
-        // TODO get this from the folder structure, also make settings for this
-        partitions = new ArrayList<>();
-        partitions.add(tableName);
+        this.partitionDirectories = annotation.partitionDirectories();
+        this.maxPartitionSize = annotation.maxPartitionSize();
+        this.partitioning = annotation.partitioning();
+        List<String> existingPartitions = discoverPartitions();
 
         // TODO later get this stuff from the master sql file
         // build table schema
@@ -66,69 +99,236 @@ public class Table<T> {
             Unique unique = field.getAnnotation( Unique.class );
             PrimaryKey primaryKey = field.getAnnotation(PrimaryKey.class );
             boolean isUnique = unique != null || primaryKey != null;
+            if (primaryKey != null)
+                primaryKeyColumnName = name;
 
             Indexed indexed = field.getAnnotation( Indexed.class );
             boolean isIndexed = mode == Mode.INDEX_ALL || indexed != null || primaryKey != null;
             isIndexed = mode != Mode.LIGHT && isIndexed; // if it's light mode don't index anything
+            IndexType indexType = (indexed == null)? IndexType.FILE_PER_VALUE : indexed.type();
+            if (indexType == IndexType.SORTED && !Index.isNumericallyIndexed(field.getType()))
+                throw makeTableParseError("Sorted indices are only for numeric and date columns: " + tableName + "." + name);
+
+            boolean isColumnar = field.getAnnotation( Columnar.class ) != null;
+            hasColumnarColumns = hasColumnarColumns || isColumnar;
 
             columns.put(
                 name,
-                new Column<>(name, field.getType(), isIndexed, isUnique)
+                new Column<>(name, field.getType(), isIndexed, isUnique, indexType, isColumnar)
             );
-
-            // make numeric index count files
-            if ( isIndexed && Index.isNumericallyIndexed(field.getType()) ) {
-                partitions.forEach( partition -> {
-                    String indexPath = Index.buildColumnPath(databaseRoot, tableName, partition, name);
-                    try {
-                        List<File> subDirs = fileUtil.getSubFolders(indexPath);
-                        columnLeaves.put(partition + name, subDirs);
-
-                        if (subDirs.isEmpty()) {
-                            // make count file if doesn't exist
-                            fileUtil.createDirectoriesIfNotExist(indexPath);
-                            if (!fileUtil.exists(indexPath + "/c.count"))
-                                fileUtil.createFile(indexPath + "/c.count", TypeToByteUtil.longToByteArray(0L));
-                        }
-
-                    } catch (IOException e) {
-                        throw new DavaException(
-                            BASE_IO_ERROR,
-                            "Error creating count file for table index: " + indexPath,
-                            e
-                        );
-                    }
-                });
+        }
+        if (partitioning == Partitioning.PRIMARY_KEY_HASH && primaryKeyColumnName == null)
+            throw makeTableParseError("Tables partitioned by primary key need a @PrimaryKey: " + tableName);
+        if (partitioning == Partitioning.PRIMARY_KEY_HASH && maxPartitionSize != Long.MAX_VALUE)
+            throw makeTableParseError("Tables partitioned by primary key can't be split with a maxPartitionSize: " + tableName);
+
+        columnList = List.copyOf(columns.values());
+        columnIndices = new HashMap<>();
+        for (int i = 0; i < columnList.size(); i++)
+            columnIndices.put(columnList.get(i).getName(), i);
+
+        // make the partitions of a new table
+        if (existingPartitions.isEmpty()) {
+            for (int i = 0; i < Math.max(annotation.partitions(), 1); i++) {
+                String partition = partitionName(i);
+                placePartition(partition, i);
+                existingPartitions.add(partition);
             }
         }
+        existingPartitions.forEach(this::initPartition);
+        partitions.addAll(existingPartitions);
+
+        random = new Random(seed);
+
+
+        // start up maintenance
+        doStartupMaintenance();
+    }
+
+    /*
+        Partitions
+     */
+
+    /**
+     * Finds the table's partitions from the table files in its folder. The first partition is named after the
+     * table, and the rest after the table and a number, like 'User_1.csv'
+     */
+    private List<String> discoverPartitions() {
+        List<String> found = new ArrayList<>();
+        File[] files = fileUtil.listFiles(directory);
+        if (files == null)
+            return found;
+
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith(".csv") && partitionNumber(fileName.substring(0, fileName.length() - 4)) != -1)
+                found.add(fileName.substring(0, fileName.length() - 4));
+        }
+        found.sort(Comparator.comparingInt(this::partitionNumber));
+        return found;
+    }
+
+    private String partitionName(int number) {
+        return (number == 0)? tableName : tableName + "_" + number;
+    }
+
+    private int partitionNumber(String partition) {
+        if (partition.equals(tableName))
+            return 0;
+
+        String prefix = tableName + "_";
+        if (!partition.startsWith(prefix) || partition.length() == prefix.length())
+            return -1;
+        for (char c : partition.substring(prefix.length()).toCharArray()) {
+            if (!Character.isDigit(c))
+                return -1;
+        }
+        return Integer.parseInt(partition.substring(prefix.length()));
+    }
+
+    /**
+     * If partition directories are set, makes the partition's table file and meta folder in the next one, and
+     * links to them from the table's folder. So all the partition's paths are the same wherever it's placed.
+     */
+    private void placePartition(String partition, int number) {
+        if (partitionDirectories.length == 0)
+            return;
 
-        // make empties file and rollback log
+        String placement = partitionDirectories[number % partitionDirectories.length] + "/" + tableName;
         try {
-            String folder = indicesFolder(tableName);
-            fileUtil.createDirectoriesIfNotExist(folder);
+            fileUtil.createDirectoriesIfNotExist(directory);
+            fileUtil.createDirectoriesIfNotExist(placement + "/META_" + partition);
+            fileUtil.createSymbolicLink(indicesFolder(partition), placement + "/META_" + partition);
+            fileUtil.createSymbolicLink(getTablePath(partition), placement + "/" + partition + ".csv");
+        } catch (IOException e) {
+            throw new DavaException(
+                BASE_IO_ERROR,
+                "Error placing partition: " + partition + " in: " + placement,
+                e
+            );
+        }
+    }
+
+    /**
+     * Makes the partition's meta folder, empties file, rollback log, numeric index count files and table file
+     * if they don't exist
+     */
+    private void initPartition(String partition) {
+        try {
+            // may be a link to where the partition was placed
+            if (!fileUtil.exists(indicesFolder(partition)))
+                fileUtil.createDirectoriesIfNotExist(indicesFolder(partition));
 
             if (mode != Mode.LIGHT)
-                makeEmptiesFileIfDoesntExist(tableName);
+                makeEmptiesFileIfDoesntExist(partition);
 
-            fileUtil.createFile( getRollbackPath(tableName) );
+            fileUtil.createFile( getRollbackPath(partition) );
 
         } catch (IOException e) {
             throw new DavaException(
                 BASE_IO_ERROR,
-                "Error creating folder for rollback or empties file: " + tableName,
+                "Error creating folder for rollback or empties file: " + tableName + partition,
                 e
             );
         }
 
+        // make numeric index count files (single file indices don't need them)
+        columns.values().forEach( column -> {
+            if ( column.isIndexed() && !column.hasSingleFileIndex() && Index.isNumericallyIndexed(column.getType()) ) {
+                String indexPath = Index.buildColumnPath(databaseRoot, tableName, partition, column.getName());
+                try {
+                    NumericLeaves leaves = NumericLeaves.scan(indexPath, fileUtil);
+                    columnLeaves.put(partition + column.getName(), leaves);
+
+                    if (leaves.size() == 1) {
+                        // make count file if doesn't exist
+                        fileUtil.createDirectoriesIfNotExist(indexPath);
+                        if (!fileUtil.exists(indexPath + "/c.count"))
+                            fileUtil.createFile(indexPath + "/c.count", TypeToByteUtil.longToByteArray(0L));
+                    }
+
+                } catch (IOException e) {
+                    throw new DavaException(
+                        BASE_IO_ERROR,
+                        "Error creating count file for table index: " + indexPath,
+                        e
+                    );
+                }
+            }
+        });
 
         // set up the column titles
-        partitions.forEach(this::initTableCsv);
+        initTableCsv(partition);
+    }
 
-        random = new Random(seed);
+    /**
+     * Adds a new partition to the table, placed in the next partition directory if there are any
+     */
+    public synchronized String addPartition() {
+        if (partitioning == Partitioning.PRIMARY_KEY_HASH)
+            throw new DavaException(
+                PARTITION_ERROR,
+                "Can't add partitions to a table partitioned by primary key, rows would be looked for in the wrong partition: " + tableName,
+                null
+            );
 
+        int number = partitions.stream().mapToInt(this::partitionNumber).max().orElse(-1) + 1;
+        String partition = partitionName(number);
 
-        // start up maintenance
-        doStartupMaintenance();
+        placePartition(partition, number);
+        initPartition(partition);
+        partitions.add(partition);
+
+        return partition;
+    }
+
+    /**
+     * The partitions new rows can go in, which are those smaller than the table's max partition size. If all
+     * the partitions are full the table is split, by adding a new partition for new rows.
+     */
+    public List<String> getInsertPartitions() {
+        if (maxPartitionSize == Long.MAX_VALUE)
+            return partitions;
+
+        List<String> open = partitions.stream()
+            .filter(partition -> fileUtil.fileSize(getTablePath(partition)) < maxPartitionSize)
+            .toList();
+        if (!open.isEmpty())
+            return open;
+
+        synchronized (this) {
+            // another insert may have just split it
+            open = partitions.stream()
+                .filter(partition -> fileUtil.fileSize(getTablePath(partition)) < maxPartitionSize)
+                .toList();
+            return (open.isEmpty())? List.of(addPartition()) : open;
+        }
+    }
+
+    /**
+     * The partition rows with the primary key go in, for tables partitioned by primary key. For other tables
+     * this is null, since the rows could be in any partition.
+     */
+    public String getPartitionForPrimaryKey(Object primaryKey) {
+        if (partitioning != Partitioning.PRIMARY_KEY_HASH)
+            return null;
+
+        // the same form of the value that index files are named with, so dates and strings match however they're given
+        String key = Index.prepareValueForIndexName(primaryKey, columns.get(primaryKeyColumnName)).toString();
+        long hash = HashUtil.hashString(key.getBytes(StandardCharsets.UTF_8));
+        return partitions.get((int) Math.floorMod(hash, (long) partitions.size()));
+    }
+
+    /**
+     * The partitions rows with the value in the column could be in. For lookups by primary key on tables
+     * partitioned by primary key this is just one partition.
+     */
+    public List<String> getPartitionsFor(String columnName, Object value) {
+        if (value == null || !columnName.equals(primaryKeyColumnName))
+            return partitions;
+
+        String partition = getPartitionForPrimaryKey(value);
+        return (partition == null)? partitions : List.of(partition);
     }
 
     public void initTableCsv(String partition) {
@@ -158,6 +358,31 @@ public class Table<T> {
         }
     }
 
+    /**
+     * Replaces the rows in the partition's table file with the given ones, under the column titles.
+     *
+     * <p> The file is truncated and written in place, instead of deleted and made again, since a partition placed
+     * on another disk is a link to it's file there.
+     */
+    public void rewriteTableCsv(String partition, byte[] rowBytes) {
+        try {
+            byte[] columnTitles = makeColumnTitles().getBytes(StandardCharsets.UTF_8);
+            fileUtil.replaceFile(
+                getTablePath(partition),
+                List.of(
+                    new WritePackage(0L, columnTitles),
+                    new WritePackage((long) columnTitles.length, rowBytes)
+                )
+            );
+        } catch (IOException e) {
+            throw new DavaException(
+                BASE_IO_ERROR,
+                "Error rewriting rows in table: " + tableName,
+                e
+            );
+        }
+    }
+
     public String makeColumnTitles() {
         return columns.values().stream()
             .map(Column::getName)
@@ -166,18 +391,39 @@ public class Table<T> {
     }
 
 
+    /**
+     * Reads the leaf folders of every numeric index from disk. After this they're kept up to date with
+     * {@link #splitColumnLeaf(String, String, String, BigDecimal)}
+     */
     public void initColumnLeaves() {
         columnLeaves.clear();
 
         partitions.forEach( partition -> {
             columns.values().forEach( column -> {
-                String indexPath = Index.buildColumnPath(databaseRoot, tableName, partition, column.getName());
-
-                List<File> subDirs = fileUtil.getLeafFolders(indexPath);
-                columnLeaves.put(partition + column.getName(), subDirs);
+                if (column.isIndexed() && !column.hasSingleFileIndex() && Index.isNumericallyIndexed(column.getType())) {
+                    String indexPath = Index.buildColumnPath(databaseRoot, tableName, partition, column.getName());
+                    columnLeaves.put(partition + column.getName(), NumericLeaves.scan(indexPath, fileUtil));
+                }
             });
         });
 
+        indexLayoutVersion.incrementAndGet();
+    }
+
+    /**
+     * Replaces a numeric leaf folder with the two folders it was repartitioned into. Should be called while
+     * holding the index layout write lock.
+     */
+    public void splitColumnLeaf(String partition, String columnName, String folderPath, BigDecimal median) {
+        NumericLeaves leaves = columnLeaves.get(partition + columnName);
+        if (leaves == null) {
+            String indexPath = Index.buildColumnPath(databaseRoot, tableName, partition, columnName);
+            columnLeaves.put(partition + columnName, NumericLeaves.scan(indexPath, fileUtil));
+        }
+        else {
+            leaves.split(folderPath, median);
+        }
+        indexLayoutVersion.incrementAndGet();
     }
 
     public DavaException makeTableParseError(String message) {
@@ -193,34 +439,29 @@ public class Table<T> {
     }
 
     /**
-     * Get an empty row in the table.
-     * @return next empty row in the table, or null there are no empty rows.
+     * Get the empty rows of the partition, loading them from the empties file the first time.
      */
-    public EmptiesPackage getEmptyRows(String partition) {
-
-        String emptiesFile = emptiesFilePath(partition);
-
-        try {
-            List<Route> routes = BaseOperationService.getAllEmpties(emptiesFile);
-            EmptiesPackage emptiesPackage = new EmptiesPackage();
-            if (routes == null)
-                return emptiesPackage;
-
-            IntStream.range(0, routes.size())
-                .forEach(i ->
-                    emptiesPackage.addEmpty(
-                        new Empty(i, routes.get(i))
-                    )
+    public FreeSpace getFreeSpace(String partition) {
+        return freeSpaces.computeIfAbsent(partition, key -> {
+            String emptiesFile = emptiesFilePath(partition);
+            try {
+                return FreeSpace.load(emptiesFile);
+            } catch (IOException e) {
+                throw new DavaException(
+                    BASE_IO_ERROR,
+                    "Error loading empty rows from table meta file: " + emptiesFile,
+                    e
                 );
+            }
+        });
+    }
 
-            return emptiesPackage;
-        } catch (IOException e) {
-            throw new DavaException(
-                BASE_IO_ERROR,
-                "Error getting empty row for insert from table meta file: " + emptiesFile,
-                e
-            );
-        }
+    /**
+     * The share of the partition's table file that's empty rows, which full scans still read over
+     */
+    public double getBloat(String partition) {
+        long fileSize = fileUtil.fileSize(getTablePath(partition));
+        return (fileSize == 0 || mode == Mode.LIGHT)? 0 : (double) getFreeSpace(partition).getFreeBytes() / fileSize;
     }
 
     public void makeEmptiesFileIfDoesntExist(String partition) throws IOException {
@@ -237,10 +478,49 @@ public class Table<T> {
     }
 
     private void doStartupMaintenance() {
+        // bulk loads stopped by a crash are dropped, see BulkLoader
+        if (mode == Mode.LIGHT) {
+            BulkLoader.dropPartialLoad(this);
+            return;
+        }
+
         // On restart after crash, scan numeric partitions for any partially complete repartitions and finish the work
-        
+        IndexMaintenance.awaitIdle(getDatabaseRoot());
+        Compactor.awaitIdle();
+        partitions.forEach( partition -> {
+            try {
+                String numericRollbackPath = getNumericRollbackPath(partition);
+                if (fileUtil.exists(numericRollbackPath) && fileUtil.fileSize(numericRollbackPath) > 0)
+                    Rollback.handleNumericRepartitionFailure(this, partition);
+
+                String stagingPath = getRepartitionStagingPath(partition);
+                if (fileUtil.exists(stagingPath))
+                    fileUtil.deleteDirectory(stagingPath);
+
+            } catch (IOException e) {
+                throw new DavaException(
+                    BASE_IO_ERROR,
+                    "Error cleaning up numeric repartition for table: " + tableName + partition,
+                    e
+                );
+            }
+        });
 
+        initColumnLeaves();
+        BulkLoader.dropPartialLoad(this);
 
+        // nothing is writing yet, so the empties journals can be shrunk
+        partitions.forEach( partition -> {
+            try {
+                getFreeSpace(partition).compactJournal();
+            } catch (IOException e) {
+                throw new DavaException(
+                    BASE_IO_ERROR,
+                    "Error compacting empties file for table: " + tableName + partition,
+                    e
+                );
+            }
+        });
     }
 
     private String indicesFolder(String partition) {
@@ -302,18 +582,47 @@ public class Table<T> {
         return columns.get(columnName);
     }
 
+    /**
+     * @return the position of the column in the table's rows, or -1 if there's no column with that name
+     */
+    public int getColumnIndex(String columnName) {
+        return columnIndices.getOrDefault(columnName, -1);
+    }
+
     public String getRollbackPath(String partition) {
         return indicesFolder(partition) + "/" + partition + ".rollback";
     }
 
+    /**
+     * Folder of the partition's columnar sidecar, see {@link ColumnarSidecar}
+     */
+    public String getColumnarPath(String partition) {
+        return indicesFolder(partition) + "/columnar";
+    }
+
     public String getNumericRollbackPath(String partition) {
         return indicesFolder(partition) + "/" + partition + ".numeric_rollback";
     }
 
-    public List<File> getLeafList(String partition, String columnName) {
+    public NumericLeaves getNumericLeaves(String partition, String columnName) {
         return columnLeaves.get(partition + columnName);
     }
 
+    /**
+     * Folder numeric index repartitions are built in before being swapped in
+     */
+    public String getRepartitionStagingPath(String partition) {
+        return indicesFolder(partition) + "/~repartition";
+    }
+
+    public String getBulkLoadStagingPath(String partition) {
+        return indicesFolder(partition) + "/~bulkload";
+    }
+
+    public String getBulkLoadMarkerPath() {
+        return directory + "/~bulkload.marker";
+    }
+
 
     public static byte[] getWhitespaceBytes(int length) {
         byte[] whitespaceBytes = new byte[length];
@@ -331,6 +640,14 @@ public class Table<T> {
         return columns;
     }
 
+    public List<Column<?>> getColumnList() {
+        return columnList;
+    }
+
+    public boolean hasColumnarColumns() {
+        return hasColumnarColumns;
+    }
+
     public String getTableName() {
         return tableName;
     }
@@ -343,6 +660,18 @@ public class Table<T> {
         return mode;
     }
 
+    public Partitioning getPartitioning() {
+        return partitioning;
+    }
+
+    public String getPrimaryKeyColumnName() {
+        return primaryKeyColumnName;
+    }
+
+    public RowFormat getRowFormat() {
+        return rowFormat;
+    }
+
     public String getDatabaseRoot() {
         return databaseRoot;
     }
@@ -351,4 +680,44 @@ public class Table<T> {
         return tableClass;
     }
 
+    public ReentrantReadWriteLock getIndexLayoutLock() {
+        return indexLayoutLock;
+    }
+
+    public long getIndexLayoutVersion() {
+        return indexLayoutVersion.get();
+    }
+
+    public ReentrantReadWriteLock getCompactionLock() {
+        return compactionLock;
+    }
+
+    public long getCompactionGeneration(String partition) {
+        return compactionGenerations.computeIfAbsent(partition, key -> new AtomicLong()).get();
+    }
+
+    /**
+     * Called by the compactor after it moves rows or truncates the partition, so batches built
+     * before then know their routes may be stale
+     */
+    public void incrementCompactionGeneration(String partition) {
+        compactionGenerations.computeIfAbsent(partition, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Keeps the compactor from moving rows in or truncating the partition until the hold is released. Held while
+     * a batch on the partition may still be rolled back, since rolling back uses the routes the batch wrote.
+     */
+    public void holdCompaction(String partition) {
+        compactionHolds.computeIfAbsent(partition, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    public void releaseCompactionHold(String partition) {
+        compactionHolds.computeIfAbsent(partition, key -> new AtomicInteger()).decrementAndGet();
+    }
+
+    public boolean isCompactionHeld(String partition) {
+        return compactionHolds.computeIfAbsent(partition, key -> new AtomicInteger()).get() > 0;
+    }
+
 }
@@ -1,9 +1,11 @@
 package org.dava.core.sql;
 
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import org.dava.core.database.service.structure.Row;
 import org.dava.core.sql.conditions.Condition;
 
 
@@ -17,9 +19,12 @@ public class Select {
 
 
 
-    public <T> List<T> retrieve() {
+    /**
+     * Rows matching the query, made into records by the caller
+     */
+    public List<Row> retrieve() {
 
-        return null;
+        return new ArrayList<>();
     }
 
 
@@ -33,11 +33,8 @@ public class Equals implements Condition {
             table,
             parentFilters,
             column,
-            () -> table.getPartitions().parallelStream()
-                .flatMap(partition ->
-                    BaseOperationService.getRowsFromTable(table, column, value, 0, null).stream()
-                        .filter(row -> parentFilters.parallelStream().allMatch(condition -> condition.filter(row)))
-                ),
+            () -> BaseOperationService.getRowsFromTable(table, column, value, 0, null).stream()
+                .filter(row -> parentFilters.parallelStream().allMatch(condition -> condition.filter(row))),
             (startRow, rowsPerIteration) -> BaseOperationService.getRowsFromTable(
                 table,
                 column,
@@ -54,7 +51,7 @@ public class Equals implements Condition {
     public Long getCountEstimate(Table<?> table) {
         Column<?> columnObj = table.getColumn(column);
         if (columnObj.isIndexed()) {
-            return table.getPartitions().parallelStream()
+            return table.getPartitionsFor(column, value).parallelStream()
                 .map(partition ->
                          getCountForIndexPath(
                              Index.buildIndexPath(
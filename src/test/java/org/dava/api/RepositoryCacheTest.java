@@ -0,0 +1,133 @@
+package org.dava.api;
+
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.Table;
+import org.dava.core.database.service.caching.Cache;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.structure.Database;
+import org.dava.core.database.service.structure.Mode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RepositoryCacheTest {
+
+    private static final String DB_ROOT = "repository_cache_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @Table(name = "Customer")
+    public static class Customer {
+        @PrimaryKey
+        public String customerId;
+        public String city;
+
+        public Customer() {}
+
+        Customer(String customerId, String city) {
+            this.customerId = customerId;
+            this.city = city;
+        }
+    }
+
+    @Table(name = "Invoice")
+    public static class Invoice {
+        @PrimaryKey
+        public String invoiceId;
+        public Customer customer;
+
+        public Invoice() {}
+
+        Invoice(String invoiceId, Customer customer) {
+            this.invoiceId = invoiceId;
+            this.customer = customer;
+        }
+    }
+
+    static class CustomerRepository extends Repository<Customer, String> {
+        CustomerRepository(Database database) {
+            super(database);
+        }
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void findByColumn_isCachedUntilTheTableIsSaved() {
+        Database database = database(new Database.Builder(DB_ROOT));
+        Cache cache = database.getQueryCache();
+        CustomerRepository customers = new CustomerRepository(database);
+
+        customers.save(new Customer("c1", "Provo"));
+        assertEquals(1, customers.findByColumn("city", "Provo").size());
+        assertEquals(1, customers.findByColumn("city", "Provo").size());
+        assertEquals(1, cache.getHits());
+
+        customers.save(new Customer("c2", "Provo"));
+        assertEquals(2, customers.findByColumn("city", "Provo").size());
+
+        customers.delete("c1", false);
+        assertEquals(List.of("c2"), customers.findByColumn("city", "Provo").stream().map(c -> c.customerId).toList());
+    }
+
+    @Test
+    void save_invalidatesTheTablesOfSubObjects() {
+        Database database = database(new Database.Builder(DB_ROOT));
+        CustomerRepository customers = new CustomerRepository(database);
+        Repository<Invoice, String> invoices = new Repository<>(database, Invoice.class);
+
+        assertEquals(0, customers.findByColumn("city", "Orem").size());
+
+        // the customer is saved into it's own table by the invoice repository
+        invoices.save(new Invoice("i1", new Customer("c3", "Orem")));
+        assertEquals(1, customers.findByColumn("city", "Orem").size());
+    }
+
+    @Test
+    void bulkLoad_invalidatesTheTable() {
+        Database database = database(new Database.Builder(DB_ROOT));
+        CustomerRepository customers = new CustomerRepository(database);
+
+        customers.save(new Customer("c1", "Lehi"));
+        assertEquals(1, customers.findByColumn("city", "Lehi").size());
+
+        customers.bulkLoad(List.of(new Customer("c2", "Lehi"), new Customer("c3", "Lehi")).iterator());
+        assertEquals(3, customers.findByColumn("city", "Lehi").size());
+    }
+
+    @Test
+    void cachingObjects_returnsTheSameRecords() {
+        Database rowsDatabase = database(new Database.Builder(DB_ROOT));
+        CustomerRepository rowCustomers = new CustomerRepository(rowsDatabase);
+        rowCustomers.save(new Customer("c1", "Provo"));
+        assertNotSame(rowCustomers.findById("c1"), rowCustomers.findById("c1"));
+
+        Database objectsDatabase = database(new Database.Builder(DB_ROOT).cachingObjects(true));
+        CustomerRepository objectCustomers = new CustomerRepository(objectsDatabase);
+        assertSame(objectCustomers.findById("c1"), objectCustomers.findById("c1"));
+
+        Database uncachedDatabase = database(new Database.Builder(DB_ROOT).withoutQueryCache());
+        CustomerRepository uncachedCustomers = new CustomerRepository(uncachedDatabase);
+        assertNull(uncachedDatabase.getQueryCache());
+        assertEquals("Provo", uncachedCustomers.findById("c1").city);
+    }
+
+
+    private static Database database(Database.Builder builder) {
+        return builder
+            .withTableFromClass(Customer.class, Mode.INDEX_ALL)
+            .withTableFromClass(Invoice.class, Mode.INDEX_ALL)
+            .build();
+    }
+
+}
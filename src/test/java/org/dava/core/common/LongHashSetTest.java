@@ -0,0 +1,62 @@
+package org.dava.core.common;
+
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.structure.RouteBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongHashSetTest {
+
+    @Test
+    void add_keepsEveryValueThroughGrowing() {
+        LongHashSet set = new LongHashSet(2);
+        IntStream.range(0, 10000).forEach( i -> assertTrue(set.add(i * 37L)) );
+        assertFalse(set.add(37L));
+
+        // the value used for empty slots is still a value
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.contains(Long.MIN_VALUE));
+
+        assertEquals(10001, set.size());
+        IntStream.range(0, 10000).forEach( i -> {
+            assertTrue(set.contains(i * 37L));
+            assertFalse(set.contains(i * 37L + 1));
+        });
+    }
+
+    @Test
+    void removeRecords_dropsRoutesInOnePass() throws IOException {
+        FileUtil fileUtil = new FileUtil();
+        String indexPath = "long_hash_set_test.index";
+
+        RouteBuffer routes = new RouteBuffer();
+        IntStream.range(0, 100).forEach( i -> routes.add(i * 100L, 20) );
+        fileUtil.replaceFile(indexPath, routes.toBytes());
+
+        LongHashSet doomed = new LongHashSet();
+        IntStream.range(0, 100).filter(i -> i % 3 == 0).forEach( i -> doomed.add(i * 100L) );
+        try {
+            long newSize = fileUtil.removeRecords(
+                indexPath,
+                RouteBuffer.ROUTE_SIZE,
+                (bytes, start) -> doomed.contains(RouteBuffer.decodeOffset(bytes, start))
+            );
+            assertEquals(66L * RouteBuffer.ROUTE_SIZE, newSize);
+
+            // the routes left keep their order
+            RouteBuffer left = RouteBuffer.parse(fileUtil.readBytes(indexPath));
+            assertEquals(66, left.size());
+            assertEquals(100L, left.getOffset(0));
+            assertEquals(9800L, left.getOffset(65));
+            IntStream.range(0, left.size()).forEach( i -> assertNotEquals(0, left.getOffset(i) / 100 % 3) );
+        } finally {
+            fileUtil.deleteFile(indexPath);
+        }
+    }
+
+}
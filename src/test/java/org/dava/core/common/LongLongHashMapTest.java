@@ -0,0 +1,31 @@
+package org.dava.core.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongLongHashMapTest {
+
+    @Test
+    void remove_keepsTheOtherKeysFindable() {
+        LongLongHashMap map = new LongLongHashMap(2);
+        IntStream.range(0, 10000).forEach( i -> map.put(i * 64L, i) );
+        map.put(Long.MIN_VALUE, 7);
+        assertEquals(10001, map.size());
+
+        // removing every other key leaves holes in the middle of probe runs
+        IntStream.range(0, 10000).filter(i -> i % 2 == 0).forEach( i -> assertEquals(i, map.remove(i * 64L, -1)) );
+        assertEquals(-1, map.remove(0L, -1));
+        assertEquals(7, map.remove(Long.MIN_VALUE, -1));
+
+        assertEquals(5000, map.size());
+        IntStream.range(0, 10000).forEach( i -> assertEquals((i % 2 == 0)? -1 : i, map.get(i * 64L, -1)) );
+
+        map.put(64L, 100);
+        assertEquals(100, map.get(64L, -1));
+        assertEquals(5000, map.size());
+    }
+
+}
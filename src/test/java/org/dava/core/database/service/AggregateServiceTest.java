@@ -0,0 +1,115 @@
+package org.dava.core.database.service;
+
+import org.dava.api.AggregateFunction;
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.Table;
+import org.dava.api.annotations.indices.Columnar;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.operations.Delete;
+import org.dava.core.database.service.operations.Insert;
+import org.dava.core.database.service.operations.common.Batch;
+import org.dava.core.database.service.structure.Database;
+import org.dava.core.database.service.structure.Mode;
+import org.dava.core.database.service.structure.Row;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregateServiceTest {
+
+    private static final String DB_ROOT = "aggregate_service_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @Table(name = "Payment")
+    static class Payment {
+        @PrimaryKey
+        private String paymentId;
+        private String method;
+        private BigDecimal amount;
+    }
+
+    @Table(name = "Payment")
+    static class ColumnarPayment {
+        @PrimaryKey
+        private String paymentId;
+        @Columnar
+        private String method;
+        @Columnar
+        private BigDecimal amount;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        IndexMaintenance.awaitIdle(); // background repartitions could still be writing
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void aggregate_fromIndicesAndScans() {
+        // index all, so counts come from index files and the rest from scanning rows
+        Database database = new Database(DB_ROOT, List.of(Payment.class), List.of(Mode.INDEX_ALL));
+        assertAggregates(database);
+    }
+
+    @Test
+    void aggregate_fromColumnarSidecar() {
+        Database database = new Database(DB_ROOT, List.of(ColumnarPayment.class), List.of(Mode.MANUAL));
+        assertAggregates(database);
+    }
+
+
+    private static void assertAggregates(Database database) {
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Payment");
+        String partition = table.getRandomPartition();
+
+        // 30 payments: amounts 1.5, 2.5 ... 30.5, methods card, cash, check in turn
+        List<Row> rows = IntStream.range(0, 30)
+            .mapToObj(i -> {
+                Map<String, Object> values = new HashMap<>();
+                values.put("paymentId", "payment-" + i);
+                values.put("method", List.of("card", "cash", "check").get(i % 3));
+                values.put("amount", new BigDecimal(i + 1 + ".5"));
+                return new Row(values, "Payment");
+            })
+            .toList();
+        new Insert(database, table, partition).addToBatch(rows, true, new Batch()).execute(table, true);
+
+        // delete the check payments
+        List<Row> checks = BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).stream()
+            .filter(row -> row.getValue("method").equals("check"))
+            .toList();
+        new Delete(database, table).addToBatch(checks, true, new Batch()).execute(table, true);
+
+        assertEquals(20, AggregateService.count(table));
+        assertEquals(10, AggregateService.countEquals(table, "method", "cash"));
+        assertEquals(0, AggregateService.countEquals(table, "method", "check"));
+
+        // card: 1.5, 4.5 ... 28.5, cash: 2.5, 5.5 ... 29.5
+        assertEquals(0, new BigDecimal("20").compareTo(AggregateService.aggregate(table, AggregateFunction.COUNT, "amount")));
+        assertEquals(0, new BigDecimal("310").compareTo(AggregateService.aggregate(table, AggregateFunction.SUM, "amount")));
+        assertEquals(0, new BigDecimal("1.5").compareTo(AggregateService.aggregate(table, AggregateFunction.MIN, "amount")));
+        assertEquals(0, new BigDecimal("29.5").compareTo(AggregateService.aggregate(table, AggregateFunction.MAX, "amount")));
+        assertEquals(0, new BigDecimal("15.5").compareTo(AggregateService.aggregate(table, AggregateFunction.AVG, "amount")));
+
+        Map<String, BigDecimal> sums = AggregateService.aggregateGroupBy(table, AggregateFunction.SUM, "amount", "method");
+        assertEquals(2, sums.size());
+        assertEquals(0, new BigDecimal("150").compareTo(sums.get("card")));
+        assertEquals(0, new BigDecimal("160").compareTo(sums.get("cash")));
+
+        Map<String, BigDecimal> counts = AggregateService.aggregateGroupBy(table, AggregateFunction.COUNT, null, "method");
+        assertEquals(Map.of("card", BigDecimal.valueOf(10), "cash", BigDecimal.valueOf(10)), counts);
+    }
+
+}
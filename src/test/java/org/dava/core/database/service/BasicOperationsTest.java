@@ -48,6 +48,7 @@ class BasicOperationsTest {
     static FileUtil fileUtil = new FileUtil();
 
     static void setUpWipeAndPopulate() throws IOException {
+        IndexMaintenance.awaitIdle(); // background repartitions of the last run could still be writing
         if (fileUtil.exists(DB_ROOT + "/Order")) {
             fileUtil.deleteDirectory(DB_ROOT + "/Order");
         }
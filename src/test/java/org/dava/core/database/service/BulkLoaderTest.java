@@ -0,0 +1,239 @@
+package org.dava.core.database.service;
+
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.operations.PartitionedInsert;
+import org.dava.core.database.service.structure.Database;
+import org.dava.core.database.service.structure.Index;
+import org.dava.core.database.service.structure.Mode;
+import org.dava.core.database.service.structure.Row;
+import org.dava.core.database.service.structure.Table;
+import org.dava.core.sql.conditions.Equals;
+import org.dava.core.sql.conditions.GreaterThan;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.dava.core.database.objects.exception.ExceptionType.UNIQUE_CONSTRAINT_VIOLATION;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkLoaderTest {
+
+    private static final String DB_ROOT = "bulk_loader_test";
+    private static final String CSV_PATH = "bulk_loader_test.csv";
+
+    private final FileUtil fileUtil = new FileUtil();
+    private int runSize;
+
+
+    @org.dava.api.annotations.Table(name = "Sale")
+    static class Sale {
+        @PrimaryKey
+        private String saleId;
+        private String store;
+        private BigDecimal amount;
+    }
+
+    @org.dava.api.annotations.Table(name = "Sale", partitions = 3)
+    static class SplitSale {
+        @PrimaryKey
+        private String saleId;
+        private String store;
+        private BigDecimal amount;
+    }
+
+    private static class Crash extends Error {}
+
+
+    @BeforeEach
+    void setUp() {
+        // small runs, so the index entries are merged from lots of them
+        runSize = BulkLoader.RUN_SIZE;
+        BulkLoader.RUN_SIZE = 64;
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        BulkLoader.RUN_SIZE = runSize;
+        IndexMaintenance.awaitIdle();
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+        fileUtil.deleteFile(CSV_PATH);
+    }
+
+    @Test
+    void load_writesRowsAndBuildsIndices() {
+        Database database = new Database(DB_ROOT, List.of(Sale.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Sale");
+
+        assertEquals(500, new BulkLoader(database, table).load(sales(0, 500).iterator()));
+        IndexMaintenance.awaitIdle();
+
+        assertEquals(500, AggregateService.count(table));
+        assertEquals(1, new Equals("saleId", "sale-321").retrieve(table, List.of(), null, null).size());
+        assertEquals(100, new Equals("store", "store 3").retrieve(table, List.of(), null, null).size());
+        List<Row> big = new GreaterThan("amount", BigDecimal.valueOf(40), false, null).retrieve(table, new ArrayList<>(), null, null);
+        assertEquals(90, big.size());
+        assertFalse(fileUtil.exists(table.getBulkLoadStagingPath(table.getPartitions().get(0))));
+
+        // loaded rows are the same as inserted ones
+        new PartitionedInsert(database).add(table, sales(500, 510)).execute(true);
+        assertEquals(510, AggregateService.count(table));
+        assertEquals(102, new Equals("store", "store 3").retrieve(table, List.of(), null, null).size());
+    }
+
+    @Test
+    void load_dropsThePartialLoadOnFailure() {
+        Database database = new Database(DB_ROOT, List.of(Sale.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Sale");
+        String partition = table.getPartitions().get(0);
+        new BulkLoader(database, table).load(sales(0, 100).iterator());
+        long fileSize = fileUtil.fileSize(table.getTablePath(partition));
+
+        // 'sale-5' is already in the table, so the primary key index fails part way through the load
+        List<Row> rows = new ArrayList<>(sales(100, 300));
+        rows.addAll(sales(5, 6));
+        DavaException exception = assertThrows(DavaException.class, () -> new BulkLoader(database, table).load(rows.iterator()));
+        assertTrue(exception.getMessage().startsWith(UNIQUE_CONSTRAINT_VIOLATION.name()));
+
+        assertEquals(fileSize, fileUtil.fileSize(table.getTablePath(partition)));
+        assertEquals(100, AggregateService.count(table));
+        assertEquals(0, new Equals("saleId", "sale-150").retrieve(table, List.of(), null, null).size());
+        assertEquals(20, new Equals("store", "store 3").retrieve(table, List.of(), null, null).size());
+        assertFalse(fileUtil.exists(table.getBulkLoadStagingPath(partition)));
+    }
+
+    @Test
+    void load_keyInAnotherPartitionIsAUniqueViolation() {
+        Database database = new Database(DB_ROOT, List.of(SplitSale.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Sale");
+        new BulkLoader(database, table).load(sales(0, 90).iterator());
+
+        // rows are spread round robin, so 'sale-5' is loaded into a different partition than it's in
+        List<Row> rows = new ArrayList<>(sales(90, 91));
+        rows.addAll(sales(5, 6));
+        DavaException exception = assertThrows(DavaException.class, () -> new BulkLoader(database, table).load(rows.iterator()));
+        assertTrue(exception.getMessage().startsWith(UNIQUE_CONSTRAINT_VIOLATION.name()));
+
+        assertEquals(90, AggregateService.count(table));
+        assertEquals(1, new Equals("saleId", "sale-5").retrieve(table, List.of(), null, null).size());
+        assertEquals(0, new Equals("saleId", "sale-90").retrieve(table, List.of(), null, null).size());
+    }
+
+    @Test
+    void load_findsNumericFoldersWhenMerging() {
+        Database database = new Database(DB_ROOT, List.of(Sale.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Sale");
+        String partition = table.getPartitions().get(0);
+        String amountFolder = Index.buildColumnPath(DB_ROOT, "Sale", partition, "amount");
+
+        // the amount folder fills up, but isn't split yet
+        int numericPartitionSize = BaseOperationService.NUMERIC_PARTITION_SIZE;
+        BaseOperationService.NUMERIC_PARTITION_SIZE = 1000;
+        try {
+            new BulkLoader(database, table).load(sales(0, 500).iterator());
+        } finally {
+            BaseOperationService.NUMERIC_PARTITION_SIZE = numericPartitionSize;
+        }
+
+        // and it's split part way through the next load, after some of it's rows were added
+        Iterator<Row> rows = sales(500, 1000).iterator();
+        int[] added = {0};
+        new BulkLoader(database, table).load(new Iterator<>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public Row next() {
+                if (added[0]++ == 250) {
+                    IndexMaintenance.scheduleRepartitionIfFull(table, partition, amountFolder);
+                    IndexMaintenance.awaitIdle();
+                }
+                return rows.next();
+            }
+        });
+        IndexMaintenance.awaitIdle();
+
+        assertEquals(1000, AggregateService.count(table));
+        assertEquals(20, new Equals("amount", "3").retrieve(table, List.of(), null, null).size());
+        assertEquals(20, new Equals("amount", "45").retrieve(table, List.of(), null, null).size());
+        assertEquals(180, new GreaterThan("amount", BigDecimal.valueOf(40), false, null).retrieve(table, new ArrayList<>(), 1000, null).size());
+    }
+
+    @Test
+    void load_stoppedByACrashIsDroppedFromEveryPartitionOnRestart() {
+        Database database = new Database(DB_ROOT, List.of(SplitSale.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Sale");
+        new BulkLoader(database, table).load(sales(0, 90).iterator());
+        Map<String, Long> fileSizes = new HashMap<>();
+        table.getPartitions().forEach( partition -> fileSizes.put(partition, fileUtil.fileSize(table.getTablePath(partition))) );
+
+        // an error the loader doesn't catch stands in for the process dying, so nothing is cleaned up
+        Iterator<Row> rows = sales(90, 600).iterator();
+        int[] added = {0};
+        assertThrows(Crash.class, () -> new BulkLoader(database, table).load(new Iterator<>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public Row next() {
+                if (added[0]++ == 400)
+                    throw new Crash();
+                return rows.next();
+            }
+        }));
+        assertTrue(fileUtil.exists(table.getBulkLoadMarkerPath()));
+
+        Database reopened = new Database(DB_ROOT, List.of(SplitSale.class), List.of(Mode.INDEX_ALL));
+        Table<?> reopenedTable = reopened.getTableByName("Sale");
+        assertFalse(fileUtil.exists(reopenedTable.getBulkLoadMarkerPath()));
+        reopenedTable.getPartitions().forEach( partition -> {
+            assertEquals(fileSizes.get(partition), fileUtil.fileSize(reopenedTable.getTablePath(partition)));
+            assertFalse(fileUtil.exists(reopenedTable.getBulkLoadStagingPath(partition)));
+        });
+        assertEquals(90, AggregateService.count(reopenedTable));
+        assertEquals(0, new Equals("saleId", "sale-95").retrieve(reopenedTable, List.of(), null, null).size());
+    }
+
+    @Test
+    void loadCsv_readsColumnsByName() throws IOException {
+        Database database = new Database(DB_ROOT, List.of(Sale.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Sale");
+
+        String csv = "amount,saleId,store\n" + IntStream.range(0, 30)
+            .mapToObj(i -> i + ",sale-" + i + ",\"store, " + (i % 3) + "\"")
+            .collect(Collectors.joining("\n"));
+        fileUtil.writeFile(CSV_PATH, csv);
+
+        assertEquals(30, new BulkLoader(database, table).loadCsv(CSV_PATH));
+        List<Row> found = new Equals("saleId", "sale-7").retrieve(table, List.of(), null, null);
+        assertEquals(1, found.size());
+        assertEquals("store, 1", found.get(0).getValue("store"));
+        assertEquals(10, new Equals("store", "store, 2").retrieve(table, List.of(), null, null).size());
+    }
+
+
+    private static List<Row> sales(int from, int to) {
+        return IntStream.range(from, to)
+            .mapToObj(i -> {
+                Map<String, Object> values = new HashMap<>();
+                values.put("saleId", "sale-" + i);
+                values.put("store", "store " + (i % 5));
+                values.put("amount", String.valueOf(i % 50));
+                return new Row(values, "Sale");
+            })
+            .toList();
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.dava.core.database.service;
+
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.operations.Delete;
+import org.dava.core.database.service.operations.Insert;
+import org.dava.core.database.service.operations.common.Batch;
+import org.dava.core.database.service.structure.Database;
+import org.dava.core.database.service.structure.Mode;
+import org.dava.core.database.service.structure.Row;
+import org.dava.core.database.service.structure.Table;
+import org.dava.core.sql.conditions.All;
+import org.dava.core.sql.conditions.Equals;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactorTest {
+
+    private static final String DB_ROOT = "compactor_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @org.dava.api.annotations.Table(name = "Reading")
+    static class Reading {
+        @PrimaryKey
+        private String readingId;
+        private String sensor;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Compactor.awaitIdle();
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void compact_movesRowsIntoEmptiesAndTruncatesTheFile() {
+        Database database = new Database(DB_ROOT, List.of(Reading.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Reading");
+        String partition = table.getRandomPartition();
+
+        new Insert(database, table, partition).addToBatch(readings(0, 200), true, new Batch()).execute(table, true);
+        List<Row> deleted = new All().retrieve(table, List.of(), null, null).stream()
+            .filter(row -> Integer.parseInt(row.getValue("readingId").toString().substring(8)) < 150)
+            .toList();
+        new Delete(database, table).addToBatch(deleted, true, new Batch()).execute(table, true);
+        long fileSize = fileUtil.fileSize(table.getTablePath(partition));
+        assertTrue(table.getBloat(partition) > 0.5);
+
+        // built before the compaction, so it's routes could be stale
+        Batch staleBatch = new Insert(database, table, partition).addToBatch(readings(500, 501), true, new Batch());
+
+        long reclaimed = Compactor.compact(database, table, partition);
+        assertTrue(reclaimed > fileSize / 2);
+        assertEquals(fileSize - reclaimed, fileUtil.fileSize(table.getTablePath(partition)));
+        assertTrue(table.getBloat(partition) < 0.1);
+
+        // every row left is still found by it's indices
+        assertEquals(50, AggregateService.count(table));
+        List<Row> found = new Equals("readingId", "reading-175").retrieve(table, List.of(), null, null);
+        assertEquals(1, found.size());
+        assertEquals("sensor 5", found.get(0).getValue("sensor"));
+        assertEquals(5, new Equals("sensor", "sensor 3").retrieve(table, List.of(), null, null).size());
+        assertEquals(50, BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).size());
+
+        assertThrows(DavaException.class, () -> staleBatch.execute(table, true));
+        new Insert(database, table, partition).addToBatch(readings(500, 501), true, new Batch()).execute(table, true);
+        assertEquals(51, AggregateService.count(table));
+    }
+
+    @Test
+    void compact_rowsReadBeforeItAreNotDeletedAtTheirOldRoutes() {
+        Database database = new Database(DB_ROOT, List.of(Reading.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Reading");
+        String partition = table.getRandomPartition();
+
+        new Insert(database, table, partition).addToBatch(readings(0, 200), true, new Batch()).execute(table, true);
+        List<Row> deleted = new All().retrieve(table, List.of(), null, null).stream()
+            .filter(row -> Integer.parseInt(row.getValue("readingId").toString().substring(8)) < 150)
+            .toList();
+        new Delete(database, table).addToBatch(deleted, true, new Batch()).execute(table, true);
+
+        // read before the compaction moves it, but the batch is built after
+        List<Row> read = new Equals("readingId", "reading-190").retrieve(table, List.of(), null, null);
+        Compactor.compact(database, table, partition);
+        Batch staleBatch = new Delete(database, table).addToBatch(read, true, new Batch());
+
+        DavaException exception = assertThrows(DavaException.class, () -> staleBatch.execute(table, true));
+        assertTrue(Batch.isStale(exception));
+        assertEquals(50, AggregateService.count(table));
+        assertEquals(50, BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).size());
+
+        // read again, it's deleted from where it is now
+        read = new Equals("readingId", "reading-190").retrieve(table, List.of(), null, null);
+        new Delete(database, table).addToBatch(read, true, new Batch()).execute(table, true);
+        assertEquals(49, AggregateService.count(table));
+        assertEquals(0, new Equals("readingId", "reading-190").retrieve(table, List.of(), null, null).size());
+        assertEquals(1, new Equals("readingId", "reading-191").retrieve(table, List.of(), null, null).size());
+    }
+
+    @Test
+    void compact_leavesPartitionsWithAnInsertThatCanBeRolledBackAlone() {
+        Database database = new Database(DB_ROOT, List.of(Reading.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Reading");
+        String partition = table.getRandomPartition();
+
+        new Insert(database, table, partition).addToBatch(readings(0, 200), true, new Batch()).execute(table, true);
+        List<Row> deleted = new All().retrieve(table, List.of(), null, null).stream()
+            .filter(row -> Integer.parseInt(row.getValue("readingId").toString().substring(8)) < 150)
+            .toList();
+        new Delete(database, table).addToBatch(deleted, true, new Batch()).execute(table, true);
+
+        // the rows at the end were just inserted, and rolling the insert back would whitespace their old routes
+        Batch insert = new Insert(database, table, partition).addToBatch(readings(500, 520), true, new Batch());
+        table.holdCompaction(partition);
+        long fileSize;
+        try {
+            insert.execute(table, true);
+            fileSize = fileUtil.fileSize(table.getTablePath(partition));
+            assertEquals(0, Compactor.compact(database, table, partition));
+
+            new Rollback().rollback(table, partition, List.of(insert));
+        } finally {
+            table.releaseCompactionHold(partition);
+        }
+        assertEquals(fileSize, fileUtil.fileSize(table.getTablePath(partition)));
+        assertEquals(50, AggregateService.count(table));
+
+        assertTrue(Compactor.compact(database, table, partition) > 0);
+        assertEquals(50, AggregateService.count(table));
+        assertEquals(50, BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).size());
+    }
+
+    @Test
+    void compact_rollingBackTheLastTransactionAfterItUndoesTheTransaction() {
+        Database database = new Database(DB_ROOT, List.of(Reading.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Reading");
+        String partition = table.getRandomPartition();
+
+        new Insert(database, table, partition).addToBatch(readings(0, 200), true, new Batch()).execute(table, true);
+        List<Row> deleted = new All().retrieve(table, List.of(), null, null).stream()
+            .filter(row -> Integer.parseInt(row.getValue("readingId").toString().substring(8)) < 150)
+            .toList();
+        new Delete(database, table).addToBatch(deleted, true, new Batch()).execute(table, true);
+        new Insert(database, table, partition).addToBatch(readings(500, 520), true, new Batch()).execute(table, true);
+
+        assertTrue(Compactor.compact(database, table, partition) > 0);
+        new Rollback().rollback(table, partition, table.getRollbackPath(partition));
+
+        // back to before the last insert, with the rows the compactor moved where they were
+        assertEquals(50, AggregateService.count(table));
+        assertEquals(50, BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).size());
+        assertEquals(0, new Equals("readingId", "reading-510").retrieve(table, List.of(), null, null).size());
+        List<Row> found = new Equals("readingId", "reading-175").retrieve(table, List.of(), null, null);
+        assertEquals(1, found.size());
+        assertEquals("sensor 5", found.get(0).getValue("sensor"));
+
+        new Insert(database, table, partition).addToBatch(readings(500, 501), true, new Batch()).execute(table, true);
+        assertEquals(51, AggregateService.count(table));
+        assertEquals(51, BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).size());
+    }
+
+
+    private static List<Row> readings(int from, int to) {
+        return IntStream.range(from, to)
+            .mapToObj(i -> {
+                Map<String, Object> values = new HashMap<>();
+                values.put("readingId", String.format("reading-%03d", i));
+                values.put("sensor", "sensor " + (i % 10));
+                return new Row(values, "Reading");
+            })
+            .toList();
+    }
+
+}
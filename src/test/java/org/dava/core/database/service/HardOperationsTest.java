@@ -64,6 +64,7 @@ class HardOperationsTest {
 
 
     static void setUpWipeAndPopulate(Mode tableMode) throws IOException {
+        IndexMaintenance.awaitIdle(); // background repartitions of the last run could still be writing
         if (fileUtil.exists(DB_ROOT + "/Order")) {
             fileUtil.deleteDirectory(DB_ROOT + "/Order");
         }
@@ -0,0 +1,108 @@
+package org.dava.core.database.service.caching;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheTest {
+
+    @Test
+    void get_cachesUntilTheResourceIsInvalidated() {
+        Cache cache = new Cache();
+        AtomicInteger calls = new AtomicInteger();
+
+        assertEquals("value", cache.get("table", "op", () -> { calls.incrementAndGet(); return "value"; }));
+        assertEquals("value", cache.get("table", "op", () -> { calls.incrementAndGet(); return "value"; }));
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // other resources keep their entries
+        cache.get("other", "op", () -> "other value");
+        cache.invalidate("table");
+        assertEquals("new value", cache.get("table", "op", () -> "new value"));
+        assertEquals("other value", cache.get("other", "op", () -> "reloaded"));
+
+        cache.invalidateCacheAll();
+        assertEquals("reloaded", cache.get("other", "op", () -> "reloaded"));
+    }
+
+    @Test
+    void get_withCacheKeys_matchesEqualParams() {
+        Cache cache = new Cache();
+        AtomicInteger calls = new AtomicInteger();
+
+        // sets compare by contents, so the order fields are given in doesn't matter
+        CacheKey key = CacheKey.of("findByColumn", "name", "bob", Set.of("name", "age"));
+        CacheKey sameKey = CacheKey.of("findByColumn", "name", "bob", Set.of("age", "name"));
+        assertEquals(key, sameKey);
+        assertEquals(key.hash(), sameKey.hash());
+        assertNotEquals(key, CacheKey.of("findByColumn", "name", "bob", null));
+
+        cache.get("table", key, () -> { calls.incrementAndGet(); return "bob"; });
+        cache.get("table", sameKey, () -> { calls.incrementAndGet(); return "bob"; });
+        cache.get("table", CacheKey.of("findByColumn", "name", "alice", null), () -> { calls.incrementAndGet(); return "alice"; });
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void get_staysUnderItsWeightAndKeepsEntriesThatAreUsedAgain() {
+        Cache cache = new Cache(64);
+        AtomicInteger hotCalls = new AtomicInteger();
+
+        // used more than once, so it's protected from one off entries
+        for (int i = 0; i < 3; i++)
+            cache.get("table", "hot", () -> { hotCalls.incrementAndGet(); return "hot"; });
+
+        for (int i = 0; i < 1000; i++) {
+            int value = i;
+            cache.get("table", "scan " + i, () -> List.of(value));
+        }
+
+        assertTrue(cache.getWeight() <= 64);
+        assertTrue(cache.getEvictions() > 0);
+
+        cache.get("table", "hot", () -> { hotCalls.incrementAndGet(); return "hot"; });
+        assertEquals(1, hotCalls.get());
+    }
+
+    @Test
+    void get_loadsConcurrentMissesOnce() throws Exception {
+        Cache cache = new Cache();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = IntStream.range(0, 8)
+                .mapToObj(i -> executor.submit(() -> {
+                    start.await();
+                    return cache.get("table", "slow", () -> {
+                        calls.incrementAndGet();
+                        Thread.sleep(200);
+                        return "loaded";
+                    });
+                }))
+                .toList();
+
+            start.countDown();
+            for (Future<String> result : results)
+                assertEquals("loaded", result.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, calls.get());
+    }
+
+}
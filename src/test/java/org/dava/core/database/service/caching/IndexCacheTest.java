@@ -0,0 +1,47 @@
+package org.dava.core.database.service.caching;
+
+import org.dava.core.common.Bundle;
+import org.dava.core.database.service.BaseOperationService;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.structure.RouteBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexCacheTest {
+
+    @Test
+    void getFileSizeAndRouteBuffer_readsOnlyThePageOfUncacheableFiles() throws IOException {
+        FileUtil fileUtil = new FileUtil();
+        String indexPath = "index_cache_test.index";
+        IndexCache cache = BaseOperationService.indexCache;
+
+        RouteBuffer routes = new RouteBuffer();
+        IntStream.range(0, 1000).forEach( i -> routes.add(i * 100L, 20) );
+        fileUtil.replaceFile(indexPath, routes.toBytes());
+        long fileSize = 1000L * RouteBuffer.ROUTE_SIZE;
+
+        // too small to hold the file's routes
+        BaseOperationService.indexCache = new IndexCache(4096);
+        try {
+            assertFalse(BaseOperationService.indexCache.isCacheable(fileSize));
+
+            Bundle<Long, RouteBuffer> page = BaseOperationService.getFileSizeAndRouteBuffer(indexPath, 500L * RouteBuffer.ROUTE_SIZE, 20 * RouteBuffer.ROUTE_SIZE);
+            assertEquals(fileSize, page.getFirst());
+            assertEquals(20, page.getSecond().size());
+            assertEquals(50000L, page.getSecond().getOffset(0));
+            assertEquals(51900L, page.getSecond().getOffset(19));
+
+            Bundle<Long, RouteBuffer> last = BaseOperationService.getFileSizeAndRouteBuffer(indexPath, 990L * RouteBuffer.ROUTE_SIZE, null);
+            assertEquals(10, last.getSecond().size());
+            assertEquals(0, BaseOperationService.indexCache.size());
+        } finally {
+            BaseOperationService.indexCache = cache;
+            fileUtil.deleteFile(indexPath);
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package org.dava.core.database.service.fileaccess;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileChannelPoolTest {
+
+    @Test
+    void acquire_handlesForTheSamePathShareALock() throws IOException {
+        FileChannelPool pool = new FileChannelPool(4);
+        String path = "file_channel_pool_test.txt";
+        FileUtil fileUtil = new FileUtil();
+        fileUtil.writeFile(path, "first");
+        try {
+            try (FileChannelPool.Handle retired = pool.acquire(path, false)) {
+                // invalidated while still borrowed, the next borrower gets a new handle
+                pool.invalidate(path);
+                try (FileChannelPool.Handle replacement = pool.acquire("./" + path, false)) {
+                    assertNotSame(retired, replacement);
+                    assertSame(retired.lock(), replacement.lock());
+                }
+            }
+        } finally {
+            fileUtil.deleteFile(path);
+        }
+    }
+
+    @Test
+    void writeFile_replacesThroughThePool() throws IOException {
+        FileUtil fileUtil = new FileUtil();
+        String path = "file_channel_pool_test.txt";
+        try {
+            fileUtil.writeFile(path, "a longer first version");
+            assertEquals("a longer first version", fileUtil.readFile(path));
+
+            long opens = FileUtil.channelPool.getOpenCount();
+            fileUtil.writeFile(path, "second");
+            assertEquals("second", fileUtil.readFile(path));
+            assertEquals(opens, FileUtil.channelPool.getOpenCount()); // the pooled handle was reused
+        } finally {
+            fileUtil.deleteFile(path);
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.dava.core.database.service.fileaccess;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LineScannerTest {
+
+    private static final String PATH = "line_scanner_test.csv";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileUtil.deleteFile(PATH);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 7, 1024})
+    void scan_linesAcrossChunkBoundaries(int chunkSize) throws IOException {
+        String contents = "header,row\nfirst,1\n\n   \nsecond,22\nlast";
+        fileUtil.writeFile(PATH, contents);
+
+        List<String> lines = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        new LineScanner(fileUtil, chunkSize % 2 == 0, chunkSize).scan(PATH, (buffer, from, length, offset) -> {
+            lines.add(new String(buffer, from, length, StandardCharsets.UTF_8));
+            offsets.add(offset);
+            return true;
+        });
+
+        assertEquals(List.of("header,row", "first,1", "", "   ", "second,22", "last"), lines);
+        assertEquals(List.of(0L, 11L, 19L, 20L, 24L, 34L), offsets);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4, 1024})
+    void scan_stopsEarly(int chunkSize) throws IOException {
+        fileUtil.writeFile(PATH, "a\nb\nc\nd\n");
+
+        List<String> lines = new ArrayList<>();
+        new LineScanner(fileUtil, false, chunkSize).scan(PATH, (buffer, from, length, offset) -> {
+            lines.add(new String(buffer, from, length, StandardCharsets.UTF_8));
+            return lines.size() < 2;
+        });
+
+        assertEquals(List.of("a", "b"), lines);
+    }
+
+}
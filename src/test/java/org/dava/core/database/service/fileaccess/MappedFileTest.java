@@ -0,0 +1,34 @@
+package org.dava.core.database.service.fileaccess;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedFileTest {
+
+    @Test
+    void read_remapsAfterATruncateThroughAnotherHandle() throws IOException {
+        FileUtil fileUtil = new FileUtil();
+        String path = "mapped_file_test.txt";
+        fileUtil.writeFile(path, "x".repeat(10000));
+        try (FileChannelPool.Handle mapped = FileUtil.channelPool.acquire(path, false)) {
+            synchronized (mapped.lock()) {
+                assertEquals('x', mapped.mappedFile().read(mapped.channel(), 9000, 1)[0]);
+            }
+
+            // the old handle is still borrowed and mapped when the file is shrunk through a new one
+            FileUtil.channelPool.invalidate(path);
+            fileUtil.writeFile(path, "short");
+
+            synchronized (mapped.lock()) {
+                assertNull(mapped.mappedFile().read(mapped.channel(), 9000, 1));
+                assertEquals("short", new String(mapped.mappedFile().read(mapped.channel(), 0, 5)));
+            }
+        } finally {
+            fileUtil.deleteFile(path);
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.dava.core.database.service.fileaccess;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+
+    private static final String PATH = "write_ahead_log_test.rollback";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileUtil.deleteFile(PATH);
+    }
+
+    @Test
+    void readLastTransaction_startsAtLastBeginAndSkipsTornRecord() throws IOException {
+        WriteAheadLog wal = WriteAheadLog.of(PATH);
+        wal.log(bytes("old"), true);
+        wal.log(bytes("first"), true);
+        wal.log(bytes("second"), false);
+        wal.log(bytes("third"), false);
+
+        // cut the last record off part way, like a crash while logging it
+        fileUtil.truncate(PATH, fileUtil.fileSize(PATH) - 2);
+
+        byte[] log = fileUtil.readBytes(PATH);
+        assertTrue(WriteAheadLog.isWriteAheadLog(log));
+        assertEquals(
+            List.of("first", "second"),
+            WriteAheadLog.readLastTransaction(log).stream().map(WriteAheadLogTest::string).toList()
+        );
+    }
+
+    @Test
+    void log_concurrentCommitsAreAllRecorded() throws IOException {
+        WriteAheadLog wal = WriteAheadLog.of(PATH);
+        wal.log(bytes("begin"), true);
+
+        IntStream.range(0, 200).parallel().forEach(i -> {
+            try {
+                wal.log(bytes("batch " + i), false);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Set<String> logged = WriteAheadLog.readLastTransaction(fileUtil.readBytes(PATH)).stream()
+            .map(WriteAheadLogTest::string)
+            .collect(Collectors.toSet());
+        assertEquals(201, logged.size());
+        assertTrue(logged.contains("batch 199"));
+    }
+
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,142 @@
+package org.dava.core.database.service.operations;
+
+import org.dava.api.annotations.Partitioning;
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.Table;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.objects.exception.ExceptionType;
+import org.dava.core.database.service.BaseOperationService;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.structure.Database;
+import org.dava.core.database.service.structure.Mode;
+import org.dava.core.database.service.structure.Row;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartitionedInsertTest {
+
+    private static final String DB_ROOT = "partitioned_insert_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @Table(name = "Account")
+    static class Account {
+        @PrimaryKey
+        private String accountId;
+        private String owner;
+    }
+
+    @Table(name = "Transfer")
+    static class Transfer {
+        @PrimaryKey
+        private String transferId;
+        private String accountId;
+    }
+
+
+    @Table(name = "Account", partitions = 3)
+    static class SpreadAccount {
+        @PrimaryKey
+        private String accountId;
+        private String owner;
+    }
+
+    @Table(name = "Account", partitions = 3, partitioning = Partitioning.PRIMARY_KEY_HASH)
+    static class HashedAccount {
+        @PrimaryKey
+        private String accountId;
+        private String owner;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void execute_insertsIntoEveryTable() {
+        Database database = new Database(DB_ROOT, List.of(Account.class, Transfer.class), List.of(Mode.INDEX_ALL, Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> accounts = database.getTableByName("Account");
+        org.dava.core.database.service.structure.Table<?> transfers = database.getTableByName("Transfer");
+
+        new PartitionedInsert(database)
+            .add(accounts, rows("Account", "accountId", "owner", 5))
+            .add(transfers, rows("Transfer", "transferId", "accountId", 40))
+            .execute(true);
+
+        assertEquals(5, countRows(accounts));
+        assertEquals(40, countRows(transfers));
+
+        // rows are indexed in the partition they went to
+        List<Row> found = BaseOperationService.getRowsFromTable(transfers, "transferId", "Transfer-17", 0, null);
+        assertEquals(1, found.size());
+        assertEquals("accountId 17", found.get(0).getValue("accountId"));
+    }
+
+    @Test
+    void execute_rollsBackEveryPartitionWhenOneFails() {
+        Database database = new Database(DB_ROOT, List.of(HashedAccount.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> accounts = database.getTableByName("Account");
+        List<Row> rows = rows("Account", "accountId", "owner", 30);
+        new PartitionedInsert(database).add(accounts, List.of(rows.get(7))).execute(true);
+
+        // 'Account-7' is already in it's partition, so that partition's batch fails and the others succeed
+        Map<String, Long> sizes = new HashMap<>();
+        accounts.getPartitions().forEach( partition -> sizes.put(partition, accounts.getSize(partition)) );
+        DavaException exception = assertThrows(DavaException.class, () -> new PartitionedInsert(database).add(accounts, rows).execute(true));
+        assertEquals(0, exception.getSuppressed().length); // every rollback worked
+
+        assertEquals(1, countRows(accounts));
+        accounts.getPartitions().forEach( partition -> assertEquals(sizes.get(partition), accounts.getSize(partition)) );
+        for (int i = 0; i < 30; i++) {
+            List<Row> found = BaseOperationService.getRowsFromTable(accounts, "accountId", "Account-" + i, 0, null);
+            assertEquals((i == 7)? 1 : 0, found.size());
+        }
+    }
+
+    @Test
+    void execute_keyInAnotherPartitionIsAUniqueViolation() {
+        Database database = new Database(DB_ROOT, List.of(SpreadAccount.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> accounts = database.getTableByName("Account");
+        List<Row> rows = rows("Account", "accountId", "owner", 2);
+        new PartitionedInsert(database).add(accounts, List.of(rows.get(0))).execute(true);
+
+        // spread round robin, so 'Account-0' goes to a different partition than the first one
+        DavaException exception = assertThrows(
+            DavaException.class,
+            () -> new PartitionedInsert(database).add(accounts, List.of(rows.get(1), rows.get(0))).execute(true)
+        );
+        assertEquals(ExceptionType.UNIQUE_CONSTRAINT_VIOLATION, exception.getType());
+        assertEquals(1, countRows(accounts));
+    }
+
+
+    private static List<Row> rows(String tableName, String key, String column, int count) {
+        return IntStream.range(0, count)
+            .mapToObj(i -> {
+                Map<String, Object> values = new HashMap<>();
+                values.put(key, tableName + "-" + i);
+                values.put(column, column + " " + i);
+                return new Row(values, tableName);
+            })
+            .toList();
+    }
+
+    private static long countRows(org.dava.core.database.service.structure.Table<?> table) {
+        return table.getPartitions().stream()
+            .mapToLong(partition -> BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).size())
+            .sum();
+    }
+
+}
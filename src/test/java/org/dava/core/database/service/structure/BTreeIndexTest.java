@@ -0,0 +1,235 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.Table;
+import org.dava.api.annotations.indices.IndexType;
+import org.dava.api.annotations.indices.Indexed;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.operations.PartitionedInsert;
+import org.dava.core.sql.conditions.Equals;
+import org.dava.core.sql.conditions.GreaterThan;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BTreeIndexTest {
+
+    private static final String PATH = "btree_index_test.btree";
+    private static final String CRASHED_PATH = "btree_index_test_crashed.btree";
+    private static final String DB_ROOT = "btree_index_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @Table(name = "Transfer")
+    static class Transfer {
+        @PrimaryKey
+        private String transferId;
+        @Indexed(type = IndexType.BTREE)
+        private BigDecimal amount;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (String path : List.of(PATH, CRASHED_PATH)) {
+            fileUtil.deleteFile(path);
+            fileUtil.deleteFile(path + ".journal");
+        }
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void insertGetDelete_acrossManySplits() {
+        BTreeIndex tree = BTreeIndex.of(PATH);
+
+        // enough entries to split internal nodes, with every value repeated a few times
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(7));
+        for (int i : order) {
+            tree.insert("value" + (i % 5000), i * 100L, i, BTreeIndex.KeyType.STRING);
+        }
+
+        RouteBuffer routes = tree.get("value42");
+        assertEquals(4, routes.size());
+        for (int i = 0; i < routes.size(); i++) {
+            assertEquals(42, routes.getLength(i) % 5000);
+            assertEquals(routes.getLength(i) * 100L, routes.getOffset(i));
+        }
+
+        assertTrue(tree.delete("value42", 5042 * 100L, 5042));
+        assertFalse(tree.delete("value42", 5042 * 100L, 5042));
+        assertEquals(3, tree.get("value42").size());
+        assertEquals(0, tree.get("missing").size());
+
+        // rereading from disk gives the same tree
+        BTreeIndex.pageCache.invalidateAll();
+        assertEquals(3, tree.get("value42").size());
+        assertEquals(4, tree.get("value4999").size());
+    }
+
+    @Test
+    void scan_numericRanges() {
+        BTreeIndex tree = BTreeIndex.of(PATH);
+        for (int i = -500; i < 500; i++) {
+            tree.insert(Integer.toString(i), i + 1000L, 1, BTreeIndex.KeyType.NUMERIC);
+        }
+        tree.insert("10.5", 5000L, 1, BTreeIndex.KeyType.NUMERIC);
+
+        List<String> greater = new ArrayList<>();
+        tree.scan(key -> Double.parseDouble(key) > 495, false, (key, offset, length) -> greater.add(key));
+        assertEquals(List.of("496", "497", "498", "499"), greater);
+
+        List<String> lessDescending = new ArrayList<>();
+        tree.scan(key -> Double.parseDouble(key) < -496, true, (key, offset, length) -> lessDescending.add(key));
+        assertEquals(List.of("-497", "-498", "-499", "-500"), lessDescending);
+
+        List<String> limited = new ArrayList<>();
+        tree.scan(key -> Double.parseDouble(key) > 10, false, (key, offset, length) -> {
+            limited.add(key);
+            return limited.size() < 3;
+        });
+        assertEquals(List.of("10.5", "11", "12"), limited);
+
+        List<String> none = new ArrayList<>();
+        tree.scan(key -> Double.parseDouble(key) > 1000, false, (key, offset, length) -> none.add(key));
+        assertTrue(none.isEmpty());
+    }
+
+    @Test
+    void scan_numericKeysAreExact() {
+        BTreeIndex tree = BTreeIndex.of(PATH);
+        List<String> values = List.of(
+            "10000000000000000.2", "10000000000000000.1", "10000000000000000.15", "-3.25", "-3.5", "-3", "0",
+            "0.001", "1000", "10", "10.0", "-10000000000000000000000000000000000000000000000000000000000000.5",
+            "12345678901234567890123456789012345678901234567890123.5"
+        );
+        for (int i = 0; i < values.size(); i++) {
+            tree.insert(values.get(i), i, 1, BTreeIndex.KeyType.NUMERIC);
+        }
+
+        // read back as inserted, in numeric order
+        List<String> scanned = new ArrayList<>();
+        tree.scan(key -> true, false, (key, offset, length) -> scanned.add(key));
+        List<String> sorted = new ArrayList<>(values);
+        sorted.sort(Comparator.comparing(BigDecimal::new));
+        assertEquals(sorted, scanned);
+
+        List<String> between = new ArrayList<>();
+        tree.scan(
+            key -> new BigDecimal(key).compareTo(new BigDecimal("10000000000000000.1")) > 0, false,
+            (key, offset, length) -> between.add(key)
+        );
+        assertEquals(List.of("10000000000000000.15", "10000000000000000.2", "12345678901234567890123456789012345678901234567890123.5"), between);
+
+        assertEquals(1, tree.get("10000000000000000.15").size());
+        assertEquals(1, tree.get("12345678901234567890123456789012345678901234567890123.5").size());
+        assertEquals(0, tree.get("10000000000000000.16").size());
+
+        // too many digits to order exactly in a key
+        char[] digits = new char[200];
+        Arrays.fill(digits, '7');
+        assertThrows(DavaException.class, () -> tree.insert(new String(digits), 99, 1, BTreeIndex.KeyType.NUMERIC));
+        assertEquals(values.size(), countEntries(tree));
+    }
+
+    @Test
+    void numericColumn_longValuesAreNotHashed() {
+        Database database = new Database(DB_ROOT, List.of(Transfer.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Transfer");
+
+        // longer than the 50 characters index file names are hashed past
+        String big = "1" + "0".repeat(60) + ".25";
+        String bigger = "1" + "0".repeat(60) + ".5";
+        new PartitionedInsert(database).add(table, List.of(
+            new Row(Map.of("transferId", "t1", "amount", big), "Transfer"),
+            new Row(Map.of("transferId", "t2", "amount", bigger), "Transfer"),
+            new Row(Map.of("transferId", "t3", "amount", "7"), "Transfer")
+        )).execute(true);
+
+        // with a limit it's a range scan of the index
+        List<Row> found = new GreaterThan("amount", new BigDecimal(big), false, null).retrieve(table, new ArrayList<>(), 10, null);
+        assertEquals(1, found.size());
+        assertEquals("t2", found.get(0).getValue("transferId"));
+        assertEquals(2, new GreaterThan("amount", BigDecimal.TEN, false, null).retrieve(table, new ArrayList<>(), 10, null).size());
+        assertEquals(1, new Equals("amount", big).retrieve(table, List.of(), null, null).size());
+    }
+
+    @Test
+    void insert_splitCutOffByACrashIsFinishedFromTheJournal() throws IOException {
+        BTreeIndex tree = BTreeIndex.of(PATH);
+        for (int i = 0; i < 10; i++) {
+            tree.insert("value" + i, i, 1, BTreeIndex.KeyType.STRING);
+        }
+
+        // insert until a leaf splits, which logs its pages to the journal
+        int inserted = 10;
+        byte[] before;
+        long journalSize;
+        do {
+            before = fileUtil.readBytes(PATH);
+            journalSize = fileUtil.fileSize(PATH + ".journal");
+            tree.insert("value" + inserted, inserted, 1, BTreeIndex.KeyType.STRING);
+            inserted++;
+        } while (fileUtil.fileSize(PATH + ".journal") == journalSize);
+
+        // the process died after writing the split pages, but before the meta page and marking the journal done
+        byte[] crashed = fileUtil.readBytes(PATH);
+        System.arraycopy(before, 0, crashed, 0, PagedIndex.PAGE_SIZE);
+        fileUtil.writeBytes(CRASHED_PATH, 0, crashed);
+        byte[] journal = fileUtil.readBytes(PATH + ".journal");
+        fileUtil.writeBytes(CRASHED_PATH + ".journal", 0, Arrays.copyOf(journal, journal.length - 18));
+
+        BTreeIndex recovered = BTreeIndex.of(CRASHED_PATH);
+        for (int i = inserted; i < inserted + 500; i++) {
+            recovered.insert("value" + i, i, 1, BTreeIndex.KeyType.STRING);
+        }
+        for (int i = 0; i < inserted + 500; i++) {
+            assertEquals(1, recovered.get("value" + i).size(), "value" + i);
+        }
+        assertEquals(inserted + 500, countEntries(recovered));
+    }
+
+    @Test
+    void replace() {
+        BTreeIndex tree = BTreeIndex.of(PATH);
+        tree.insert("a", 1, 1, BTreeIndex.KeyType.STRING);
+        tree.insert("a", 2, 1, BTreeIndex.KeyType.STRING);
+        tree.insert("b", 3, 1, BTreeIndex.KeyType.STRING);
+
+        RouteBuffer routes = new RouteBuffer();
+        routes.add(9, 9);
+        tree.replace("a", routes, BTreeIndex.KeyType.STRING);
+
+        assertEquals(1, tree.get("a").size());
+        assertEquals(9, tree.get("a").getOffset(0));
+        assertEquals(1, tree.get("b").size());
+    }
+
+
+    private static int countEntries(BTreeIndex tree) {
+        int[] count = {0};
+        tree.scan(key -> true, false, (key, offset, length) -> {
+            count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+}
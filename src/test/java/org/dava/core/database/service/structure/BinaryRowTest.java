@@ -0,0 +1,128 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.RowFormat;
+import org.dava.api.annotations.Table;
+import org.dava.core.database.objects.dates.BasicDateTime;
+import org.dava.core.database.objects.dates.OffsetDate;
+import org.dava.core.database.objects.dates.ZonedDate;
+import org.dava.core.database.service.BaseOperationService;
+import org.dava.core.database.service.RowFormatConverter;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.operations.Insert;
+import org.dava.core.database.service.operations.common.Batch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryRowTest {
+
+    private static final String DB_ROOT = "binary_row_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @Table(name = "Shipment")
+    static class CsvShipment {
+        @PrimaryKey
+        private String shipmentId;
+        private String description;
+        private BigDecimal weight;
+        private OffsetDateTime shipped;
+        private LocalDateTime created;
+        private ZonedDateTime delivered;
+    }
+
+    @Table(name = "Shipment", format = RowFormat.BINARY)
+    static class BinaryShipment {
+        @PrimaryKey
+        private String shipmentId;
+        private String description;
+        private BigDecimal weight;
+        private OffsetDateTime shipped;
+        private LocalDateTime created;
+        private ZonedDateTime delivered;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void encode_decodesToTheSameValues() {
+        Database database = new Database(DB_ROOT, List.of(BinaryShipment.class), List.of(Mode.MANUAL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Shipment");
+
+        Map<String, Object> values = makeValues(7);
+        values.put("description", "line\nbreak, escape \u001B and comma");
+        values.put("weight", new BigDecimal("123456789012345678901234567890.5"));
+
+        byte[] bytes = Row.toBytes(table, values);
+        assertEquals('\n', bytes[bytes.length - 1]);
+        for (int i = 0; i < bytes.length - 1; i++)
+            assertNotEquals('\n', bytes[i]);
+
+        Row row = Row.of(bytes, 0, bytes.length, table, null);
+        values.forEach((column, value) -> assertEquals(value.toString(), row.getValue(column).toString(), column));
+
+        // padded rows (rows rewritten in place) read the same
+        byte[] padded = Row.toBytesPadded(table, values, bytes.length + 10);
+        assertEquals(bytes.length + 10, padded.length);
+        Row paddedRow = Row.of(padded, 0, padded.length, table, null);
+        values.forEach((column, value) -> assertEquals(value.toString(), paddedRow.getValue(column).toString(), column));
+    }
+
+    @Test
+    void convert_rewritesCsvRowsAsBinary() {
+        Database csvDatabase = new Database(DB_ROOT, List.of(CsvShipment.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> csvTable = csvDatabase.getTableByName("Shipment");
+        String partition = csvTable.getRandomPartition();
+        List<Row> rows = IntStream.range(0, 20)
+            .mapToObj(i -> new Row(makeValues(i), "Shipment"))
+            .toList();
+        new Insert(csvDatabase, csvTable, partition).addToBatch(rows, true, new Batch()).execute(csvTable, true);
+
+        Database database = new Database(DB_ROOT, List.of(BinaryShipment.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Shipment");
+        assertEquals(20, RowFormatConverter.convert(database, table, partition));
+        assertEquals(0, RowFormatConverter.convert(database, table, partition));
+
+        List<Row> after = BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition);
+        assertEquals(20, after.size());
+        rows.forEach(row -> assertTrue(after.contains(row)));
+
+        // the index still finds a row, whether it was rewritten in place or moved
+        List<Row> found = BaseOperationService.getRowsFromTable(table, "shipmentId", "shipment-3", 0, null);
+        assertEquals(1, found.size());
+        assertEquals("description 3", found.get(0).getValue("description").toString());
+    }
+
+
+    private static Map<String, Object> makeValues(int i) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("shipmentId", "shipment-" + i);
+        values.put("description", "description " + i);
+        values.put("weight", new BigDecimal(i + ".25"));
+        values.put("shipped", OffsetDate.of(OffsetDateTime.of(2024, 1, 1 + i, 10, 30, 0, 0, ZoneOffset.ofHours(-6))));
+        values.put("created", BasicDateTime.of(LocalDateTime.of(2023, 5, 1 + i, 8, 15, 30, 123456000).toString()));
+        values.put("delivered", ZonedDate.of(ZonedDateTime.of(2024, 2, 1 + i, 12, 0, 0, 0, ZoneId.of("America/Denver")).toString()));
+        return values;
+    }
+
+}
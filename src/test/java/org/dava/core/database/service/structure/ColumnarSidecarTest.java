@@ -0,0 +1,110 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.Table;
+import org.dava.api.annotations.indices.Columnar;
+import org.dava.core.database.service.BaseOperationService;
+import org.dava.core.database.service.IndexMaintenance;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.operations.Delete;
+import org.dava.core.database.service.operations.Insert;
+import org.dava.core.database.service.operations.common.Batch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ColumnarSidecarTest {
+
+    private static final String DB_ROOT = "columnar_sidecar_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @Table(name = "Sale")
+    static class Sale {
+        @PrimaryKey
+        private String saleId;
+        @Columnar
+        private String region;
+        @Columnar
+        private BigDecimal amount;
+        private String note;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        IndexMaintenance.awaitIdle(); // background repartitions could still be writing
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void summarize_keepsUpWithInsertsAndDeletes() {
+        Database database = new Database(DB_ROOT, List.of(Sale.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Sale");
+        String partition = table.getRandomPartition();
+
+        // rows written before the sidecar is first used are read from the table when it's built
+        insert(database, table, partition, 0, 10);
+        ColumnarSidecar sidecar = ColumnarSidecar.of(table, partition);
+        ColumnSummary summary = sidecar.summarize(table, "amount");
+        assertEquals(10, summary.getCount());
+        assertEquals(0, new BigDecimal("32.5").compareTo(summary.getSum()));
+        assertEquals(0, new BigDecimal("1").compareTo(summary.getMin()));
+        assertEquals(0, new BigDecimal("5.5").compareTo(summary.getMax()));
+
+        // after that batches keep it up to date
+        insert(database, table, partition, 10, 20);
+        List<Row> toDelete = BaseOperationService.getRowsFromTable(table, "region", "north", 0, null);
+        new Delete(database, table).addToBatch(toDelete, true, new Batch()).execute(table, true);
+
+        List<Row> rows = BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition);
+        assertEquals(rows.size(), sidecar.count(table));
+
+        summary = sidecar.summarize(table, "amount");
+        BigDecimal expectedSum = rows.stream()
+            .map(row -> new BigDecimal(row.getValue("amount").toString()))
+            .reduce(BigDecimal.ZERO, BigDecimal::add);
+        assertEquals(rows.size(), summary.getCount());
+        assertEquals(0, expectedSum.compareTo(summary.getSum()));
+
+        Map<String, Long> regions = sidecar.countByValue(table, "region");
+        assertNull(regions.get("north"));
+        assertEquals(10L, regions.get("south"));
+
+        // the same after rebuilding it from the table
+        sidecar.invalidate();
+        assertEquals(0, expectedSum.compareTo(sidecar.summarize(table, "amount").getSum()));
+        assertEquals(regions, sidecar.countByValue(table, "region"));
+    }
+
+
+    private static void insert(Database database, org.dava.core.database.service.structure.Table<?> table, String partition, int from, int to) {
+        List<Row> rows = IntStream.range(from, to)
+            .mapToObj(i -> {
+                Map<String, Object> values = new HashMap<>();
+                values.put("saleId", "sale-" + i);
+                values.put("region", (i % 2 == 0)? "north" : "south");
+                values.put("amount", amount(i));
+                values.put("note", "note " + i);
+                return new Row(values, "Sale");
+            })
+            .toList();
+        new Insert(database, table, partition).addToBatch(rows, true, new Batch()).execute(table, true);
+    }
+
+    private static BigDecimal amount(int i) {
+        // mixed scales, like numbers users save
+        return (i % 2 == 0)? BigDecimal.valueOf(i / 2 + 1) : new BigDecimal((i / 2 + 1) + ".5");
+    }
+
+}
@@ -0,0 +1,190 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.AggregateService;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.operations.Delete;
+import org.dava.core.database.service.operations.Insert;
+import org.dava.core.database.service.operations.common.Batch;
+import org.dava.core.database.service.type.compression.TypeToByteUtil;
+import org.dava.core.sql.conditions.Equals;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FreeSpaceTest {
+
+    private static final String EMPTIES_FILE = "free_space_test.empties";
+    private static final String DB_ROOT = "free_space_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // table size, then the routes of the empty rows
+        fileUtil.replaceFile(EMPTIES_FILE, TypeToByteUtil.longToByteArray(42L));
+    }
+
+    @org.dava.api.annotations.Table(name = "Note")
+    static class Note {
+        @PrimaryKey
+        private String noteId;
+        private String text;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileUtil.deleteFile(EMPTIES_FILE);
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void take_usesTheSmallestEmptyThatFits_andIsReplayedOnLoad() throws IOException {
+        FreeSpace freeSpace = FreeSpace.load(EMPTIES_FILE);
+        freeSpace.free(List.of(route(100, 20), route(200, 20), route(300, 35)));
+
+        long offset = freeSpace.take(18).getOffsetInTable();
+        assertTrue(offset == 100 || offset == 200);
+        assertNull(freeSpace.take(36));
+        freeSpace.markUsed(List.of(route(offset, 20)));
+
+        // freeing an empty twice doesn't make a second copy of it
+        freeSpace.free(List.of(route(300, 35)));
+        assertEquals(2, freeSpace.getEmptyCount());
+        assertEquals(55, freeSpace.getFreeBytes());
+
+        FreeSpace reloaded = FreeSpace.load(EMPTIES_FILE);
+        assertEquals(2, reloaded.getEmptyCount());
+        assertEquals(300, reloaded.take(21).getOffsetInTable());
+        assertNull(reloaded.take(21));
+        assertEquals(300 - offset, reloaded.take(20).getOffsetInTable());
+        assertEquals(2.0 / 3, reloaded.getReuseRate(), 0.001);
+
+        // the table size isn't touched
+        assertEquals(42L, TypeToByteUtil.byteArrayToLong(fileUtil.readBytes(EMPTIES_FILE, 0, 8)));
+    }
+
+    @Test
+    void take_splitsEmptiesWithEnoughLeftOver() throws IOException {
+        FreeSpace freeSpace = FreeSpace.load(EMPTIES_FILE);
+        freeSpace.free(List.of(route(100, 80)));
+
+        Route empty = freeSpace.take(30);
+        Route remainder = FreeSpace.remainder(empty, 30);
+        assertEquals(130, remainder.getOffsetInTable());
+        assertEquals(50, remainder.getLengthInTable());
+        assertNull(FreeSpace.remainder(route(100, 40), 30));
+
+        // the row only uses the start of the empty, and what's left is an empty once the insert is done
+        freeSpace.markUsed(List.of(route(100, 30)));
+        freeSpace.free(List.of(remainder));
+        assertEquals(1, freeSpace.getSplits());
+
+        FreeSpace reloaded = FreeSpace.load(EMPTIES_FILE);
+        assertEquals(List.of(130L), reloaded.getRoutes(null).stream().map(Route::getOffsetInTable).toList());
+        assertEquals(50, reloaded.getFreeBytes());
+    }
+
+    @Test
+    void insert_reusesEmptiesOfOtherLengths() throws IOException {
+        Database database = new Database(DB_ROOT, List.of(Note.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Note");
+        String partition = table.getRandomPartition();
+
+        new Insert(database, table, partition).addToBatch(notes(0, 20, 40), true, new Batch()).execute(table, true);
+        List<Row> deleted = new Equals("noteId", "note-3").retrieve(table, List.of(), null, null);
+        new Delete(database, table).addToBatch(deleted, true, new Batch()).execute(table, true);
+        long fileSize = fileUtil.fileSize(table.getTablePath(partition));
+
+        // a shorter row goes in the deleted row's space, padded out to fill it
+        new Insert(database, table, partition).addToBatch(notes(100, 101, 35), true, new Batch()).execute(table, true);
+        assertEquals(fileSize, fileUtil.fileSize(table.getTablePath(partition)));
+        assertEquals(0, table.getBloat(partition));
+
+        List<Row> found = new Equals("noteId", "note-100").retrieve(table, List.of(), null, null);
+        assertEquals(1, found.size());
+        assertEquals(deleted.get(0).getLocationInTable().getOffsetInTable(), found.get(0).getLocationInTable().getOffsetInTable());
+        assertEquals("x".repeat(35), found.get(0).getValue("text"));
+        assertEquals(20, AggregateService.count(table));
+    }
+
+    @Test
+    void insert_thatFailsBeforeWritingGivesBackTheEmptiesItTook() {
+        Database database = new Database(DB_ROOT, List.of(Note.class), List.of(Mode.INDEX_ALL));
+        Table<?> table = database.getTableByName("Note");
+        String partition = table.getRandomPartition();
+        FreeSpace freeSpace = table.getFreeSpace(partition);
+
+        new Insert(database, table, partition).addToBatch(notes(0, 20, 40), true, new Batch()).execute(table, true);
+        List<Row> deleted = new Equals("noteId", "note-3").retrieve(table, List.of(), null, null);
+        new Delete(database, table).addToBatch(deleted, true, new Batch()).execute(table, true);
+        long freeBytes = freeSpace.getFreeBytes();
+
+        // takes the deleted row's space (splitting it) when it's built, then is stale when it's executed
+        Batch stale = new Insert(database, table, partition).addToBatch(notes(100, 101, 5), true, new Batch());
+        assertEquals(0, freeSpace.getEmptyCount());
+        table.incrementCompactionGeneration(partition);
+        assertThrows(DavaException.class, () -> stale.execute(table, true));
+        assertFalse(stale.isStarted());
+
+        assertEquals(1, freeSpace.getEmptyCount());
+        assertEquals(freeBytes, freeSpace.getFreeBytes());
+
+        // built again, it goes in the same space
+        new Insert(database, table, partition).addToBatch(notes(100, 101, 5), true, new Batch()).execute(table, true);
+        List<Row> found = new Equals("noteId", "note-100").retrieve(table, List.of(), null, null);
+        assertEquals(deleted.get(0).getLocationInTable().getOffsetInTable(), found.get(0).getLocationInTable().getOffsetInTable());
+        assertEquals(20, AggregateService.count(table));
+    }
+
+    @Test
+    void compactJournal_keepsOnlyTheEmptiesLeft() throws IOException {
+        FreeSpace freeSpace = FreeSpace.load(EMPTIES_FILE);
+        List<Route> routes = IntStream.range(0, 2000)
+            .mapToObj(i -> route(i * 10L, 10))
+            .toList();
+        freeSpace.free(routes);
+        freeSpace.markUsed(routes.subList(0, 1990));
+        assertEquals(3990, freeSpace.getJournalRecords());
+
+        freeSpace.compactJournal();
+        assertEquals(8 + 10 * 10L, fileUtil.fileSize(EMPTIES_FILE));
+        assertEquals(42L, TypeToByteUtil.byteArrayToLong(fileUtil.readBytes(EMPTIES_FILE, 0, 8)));
+
+        FreeSpace reloaded = FreeSpace.load(EMPTIES_FILE);
+        assertEquals(10, reloaded.getEmptyCount());
+        assertEquals(
+            IntStream.range(1990, 2000).mapToLong(i -> i * 10L).sum(),
+            reloaded.getRoutes(null).stream().mapToLong(Route::getOffsetInTable).sum()
+        );
+    }
+
+
+    private static List<Row> notes(int from, int to, int textLength) {
+        return IntStream.range(from, to)
+            .mapToObj(i -> {
+                Map<String, Object> values = new HashMap<>();
+                values.put("noteId", "note-" + i);
+                values.put("text", "x".repeat(textLength));
+                return new Row(values, "Note");
+            })
+            .toList();
+    }
+
+    private static Route route(long offset, int length) {
+        return new Route(null, offset, length);
+    }
+
+}
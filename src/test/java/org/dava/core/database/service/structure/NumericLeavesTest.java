@@ -0,0 +1,63 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NumericLeavesTest {
+
+    private static final String PATH = "numeric_leaves_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (fileUtil.exists(PATH))
+            fileUtil.deleteDirectory(PATH);
+    }
+
+    @Test
+    void scan_findsLeafForEachRange() throws IOException {
+        fileUtil.createDirectoriesIfNotExist(PATH + "/-50");
+        fileUtil.createDirectoriesIfNotExist(PATH + "/+50/-75");
+        fileUtil.createDirectoriesIfNotExist(PATH + "/+50/+75/--1");
+        fileUtil.createDirectoriesIfNotExist(PATH + "/+50/+75/+-1");
+
+        NumericLeaves leaves = NumericLeaves.scan(PATH, fileUtil);
+
+        // '+-1' under '+75' can only hold values from 75 up, so '--1' is empty and dropped
+        assertEquals(3, leaves.size());
+        assertEquals(PATH + "/-50", leaves.find(new BigDecimal("-1000")));
+        assertEquals(PATH + "/-50", leaves.find(new BigDecimal("49.9")));
+        assertEquals(PATH + "/+50/-75", leaves.find(new BigDecimal("50")));
+        assertEquals(PATH + "/+50/-75", leaves.find(new BigDecimal("74")));
+        assertEquals(PATH + "/+50/+75/+-1", leaves.find(new BigDecimal("75")));
+        assertEquals(PATH + "/+50/+75/+-1", leaves.find(new BigDecimal("1000000")));
+    }
+
+    @Test
+    void split_replacesOnlyTheSplitLeaf() throws IOException {
+        fileUtil.createDirectoriesIfNotExist(PATH);
+        NumericLeaves leaves = NumericLeaves.scan(PATH, fileUtil);
+        assertEquals(PATH, leaves.find(BigDecimal.TEN));
+
+        leaves.split(PATH, new BigDecimal("10"));
+        leaves.split(PATH + "/+10", new BigDecimal("20"));
+        leaves.split(PATH + "/-10", new BigDecimal("5"));
+
+        assertEquals(4, leaves.size());
+        assertEquals(PATH + "/-10/-5", leaves.find(new BigDecimal("4")));
+        assertEquals(PATH + "/-10/+5", leaves.find(new BigDecimal("5")));
+        assertEquals(PATH + "/+10/-20", leaves.find(BigDecimal.TEN));
+        assertEquals(PATH + "/+10/+20", leaves.find(new BigDecimal("20")));
+
+        assertThrows(IllegalArgumentException.class, () -> leaves.split(PATH + "/+10", new BigDecimal("15")));
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.Table;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.MarshallingService;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RowTest {
+
+    private static final String DB_ROOT = "row_test";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @Table(name = "Parcel")
+    public static class Parcel {
+        @PrimaryKey
+        public String parcelId;
+        public String address;
+        public BigDecimal weight;
+        public String note;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (fileUtil.exists(DB_ROOT))
+            fileUtil.deleteDirectory(DB_ROOT);
+    }
+
+    @Test
+    void of_onlyParsesCellsThatAreAskedFor() {
+        org.dava.core.database.service.structure.Table<?> table = makeTable();
+
+        // the weight is corrupted, but reading the other columns shouldn't parse it
+        Row row = of(table, "  p-1,\"12 Main St, Apt 4\",not a number,fragile  \n");
+        assertEquals("p-1", row.getValue("parcelId"));
+        assertEquals("12 Main St, Apt 4", row.getValue("address"));
+        assertEquals("fragile", row.getValue("note"));
+        assertNull(row.getValue("missing"));
+
+        DavaException exception = assertThrows(DavaException.class, () -> row.getValue("weight"));
+        assertTrue(exception.getMessage().contains("not a number"));
+    }
+
+    @Test
+    void of_readsTheSameAsTheStringConstructor() {
+        org.dava.core.database.service.structure.Table<?> table = makeTable();
+        String line = "p-2,\"a, b\",2.5,\n";
+
+        Row lazy = of(table, line);
+        Row eager = new Row(line, table, null);
+        assertEquals(eager.getColumnsToValues(), lazy.getColumnsToValues());
+        assertEquals(eager.hashCode(), lazy.hashCode());
+
+        // rows with fewer cells than columns are missing the rest
+        Map<String, Object> shortRow = of(table, "p-3,x\n").getColumnsToValues();
+        assertEquals(Map.of("parcelId", "p-3", "address", "x"), shortRow);
+
+        assertThrows(DavaException.class, () -> of(table, "p-4,x,1,y,extra\n"));
+    }
+
+    @Test
+    void parseObject_onlySetsProjectedFields() {
+        org.dava.core.database.service.structure.Table<?> table = makeTable();
+        Row row = of(table, "p-5,1 Elm St,not a number,keep dry\n");
+
+        Parcel parcel = MarshallingService.parseObject(row, Parcel.class, Set.of("parcelId", "note"));
+        assertEquals("p-5", parcel.parcelId);
+        assertEquals("keep dry", parcel.note);
+        assertNull(parcel.address);
+        assertNull(parcel.weight);
+    }
+
+
+    private org.dava.core.database.service.structure.Table<?> makeTable() {
+        Database database = new Database(DB_ROOT, List.of(Parcel.class), List.of(Mode.MANUAL));
+        return database.getTableByName("Parcel");
+    }
+
+    private static Row of(org.dava.core.database.service.structure.Table<?> table, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return Row.of(bytes, 0, bytes.length, table, null);
+    }
+
+}
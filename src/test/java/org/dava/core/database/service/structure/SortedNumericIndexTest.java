@@ -0,0 +1,84 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SortedNumericIndexTest {
+
+    private static final String PATH = "sorted_index_test.sorted";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileUtil.deleteFile(PATH);
+    }
+
+    @Test
+    void insertGetDelete_acrossManyBlocks() {
+        SortedNumericIndex index = SortedNumericIndex.of(PATH);
+
+        // lots of blocks, with runs of equal keys longer than a block
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(3));
+        for (int i : order) {
+            index.insert(Integer.toString(i % 20 - 10), i, 1, SingleFileIndex.KeyType.NUMERIC);
+        }
+
+        assertEquals(500, index.get("-3").size());
+        assertEquals(500, index.get("-3.0").size());
+        assertEquals(0, index.get("11").size());
+
+        assertTrue(index.delete("-3", 7, 1));
+        assertFalse(index.delete("-3", 7, 1));
+        assertEquals(499, index.get("-3").size());
+
+        // a changed file is reloaded, rebuilding the fences from disk
+        assertTrue(new File(PATH).setLastModified(0));
+        assertEquals(499, index.get("-3").size());
+        assertEquals(500, index.get("9").size());
+    }
+
+    @Test
+    void scan_ranges() {
+        SortedNumericIndex index = SortedNumericIndex.of(PATH);
+        for (int i = 1000; i > -1000; i--) {
+            index.insert(Integer.toString(i), i + 5000L, 1, SingleFileIndex.KeyType.NUMERIC);
+        }
+        index.insert("1.25", 1L, 1, SingleFileIndex.KeyType.NUMERIC);
+        index.insert("1708000000000", 2L, 1, SingleFileIndex.KeyType.NUMERIC);
+
+        List<String> greater = new ArrayList<>();
+        index.scan(key -> new BigDecimal(key).compareTo(BigDecimal.valueOf(997)) > 0, false, (key, offset, length) -> greater.add(key));
+        assertEquals(List.of("998", "999", "1000", "1708000000000"), greater);
+
+        List<String> lessDescending = new ArrayList<>();
+        index.scan(key -> new BigDecimal(key).compareTo(BigDecimal.valueOf(2)) < 0, true, (key, offset, length) -> {
+            lessDescending.add(key);
+            return lessDescending.size() < 3;
+        });
+        assertEquals(List.of("1.25", "1", "0"), lessDescending);
+
+        List<String> all = new ArrayList<>();
+        index.scan(key -> true, true, (key, offset, length) -> all.add(key));
+        assertEquals(2002, all.size());
+        assertEquals("1708000000000", all.get(0));
+        assertEquals("-999", all.get(all.size() - 1));
+    }
+
+}
@@ -0,0 +1,229 @@
+package org.dava.core.database.service.structure;
+
+import org.dava.api.annotations.Partitioning;
+import org.dava.api.annotations.PrimaryKey;
+import org.dava.api.annotations.Table;
+import org.dava.core.database.objects.exception.DavaException;
+import org.dava.core.database.service.AggregateService;
+import org.dava.core.database.service.BaseOperationService;
+import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.operations.Delete;
+import org.dava.core.database.service.operations.PartitionedInsert;
+import org.dava.core.database.service.operations.Update;
+import org.dava.core.database.service.operations.common.Batch;
+import org.dava.core.sql.conditions.Equals;
+import org.dava.core.sql.conditions.In;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.dava.core.database.objects.exception.ExceptionType.PARTITION_ERROR;
+import static org.dava.core.database.objects.exception.ExceptionType.UNIQUE_CONSTRAINT_VIOLATION;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TablePartitionsTest {
+
+    private static final String DB_ROOT = "table_partitions_test";
+    private static final String DISK_A = "table_partitions_test_a";
+    private static final String DISK_B = "table_partitions_test_b";
+
+    private final FileUtil fileUtil = new FileUtil();
+
+
+    @Table(name = "Event", partitions = 3)
+    static class Event {
+        @PrimaryKey
+        private String eventId;
+        private String kind;
+    }
+
+    @Table(name = "Event", partitions = 2, partitionDirectories = {DISK_A, DISK_B})
+    static class PlacedEvent {
+        @PrimaryKey
+        private String eventId;
+        private String kind;
+    }
+
+    @Table(name = "Event", partitions = 4, partitioning = Partitioning.PRIMARY_KEY_HASH)
+    static class HashedEvent {
+        @PrimaryKey
+        private String eventId;
+        private String kind;
+    }
+
+    @Table(name = "Event", maxPartitionSize = 400)
+    static class SplitEvent {
+        @PrimaryKey
+        private String eventId;
+        private String kind;
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (String directory : List.of(DB_ROOT, DISK_A, DISK_B)) {
+            if (fileUtil.exists(directory))
+                fileUtil.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    void partitions_areMadeAndFoundOnRestart() {
+        Database database = new Database(DB_ROOT, List.of(Event.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Event");
+        assertEquals(List.of("Event", "Event_1", "Event_2"), table.getPartitions());
+
+        new PartitionedInsert(database).add(table, events(0, 30)).execute(true);
+        table.getPartitions().forEach( partition ->
+            assertEquals(10, BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).size())
+        );
+
+        // found from the table files when the database is opened again
+        database = new Database(DB_ROOT, List.of(Event.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> reopened = database.getTableByName("Event");
+        assertEquals(List.of("Event", "Event_1", "Event_2"), reopened.getPartitions());
+        assertEquals(30, AggregateService.count(reopened));
+
+        // deleting rows from every partition
+        List<Row> rows = BaseOperationService.getRowsFromTable(reopened, "kind", "kind 0", 0, null);
+        assertEquals(15, rows.size());
+        Map<String, Batch> batches = new Delete(database, reopened).addToBatches(rows, true);
+        assertEquals(3, batches.size());
+        batches.values().forEach(batch -> batch.execute(reopened, true));
+        assertEquals(15, AggregateService.count(reopened));
+    }
+
+    @Test
+    void partitions_arePlacedInPartitionDirectories() {
+        Database database = new Database(DB_ROOT, List.of(PlacedEvent.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Event");
+        new PartitionedInsert(database).add(table, events(0, 10)).execute(true);
+
+        assertTrue(Files.isSymbolicLink(Path.of(table.getTablePath("Event"))));
+        assertTrue(fileUtil.exists(DISK_A + "/Event/Event.csv"));
+        assertTrue(fileUtil.exists(DISK_B + "/Event/Event_1.csv"));
+        assertTrue(fileUtil.exists(DISK_B + "/Event/META_Event_1/Event_1.empties"));
+
+        assertEquals(1, BaseOperationService.getRowsFromTable(table, "eventId", "event-7", 0, null).size());
+        assertEquals(10, AggregateService.count(table));
+    }
+
+    @Test
+    void partitions_placed_lightModeDeleteKeepsTheLink() {
+        Database database = new Database(DB_ROOT, List.of(PlacedEvent.class), List.of(Mode.LIGHT));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Event");
+        new PartitionedInsert(database).add(table, events(0, 10)).execute(true);
+
+        String partition = "Event_1";
+        List<Row> rows = BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition);
+        new Delete(database, table).addToBatch(rows.subList(0, 2), true, new Batch()).execute(table, true);
+
+        // rewritten through the link, into the file on the partition's disk
+        assertTrue(Files.isSymbolicLink(Path.of(table.getTablePath(partition))));
+        assertEquals(rows.size() - 2, BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).size());
+        assertEquals(fileUtil.fileSize(DISK_B + "/Event/Event_1.csv"), fileUtil.fileSize(table.getTablePath(partition)));
+    }
+
+    @Test
+    void partitions_update_staysInTheRowsPartition() {
+        Database database = new Database(DB_ROOT, List.of(HashedEvent.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Event");
+        new PartitionedInsert(database).add(table, events(0, 40)).execute(true);
+
+        List<Row> old = new Equals("eventId", "event-12").retrieve(table, List.of(), null, null);
+        Row updated = old.get(0).copy();
+        updated.getColumnsToValues().put("kind", "kind 9");
+        new Update(database, table).addToBatch(old, List.of(updated), true, new Batch()).execute(table, true);
+
+        List<Row> found = new Equals("eventId", "event-12").retrieve(table, List.of(), null, null);
+        assertEquals(1, found.size());
+        assertEquals("kind 9", found.get(0).getValue("kind"));
+        assertEquals(table.getPartitionForPrimaryKey("event-12"), found.get(0).getLocationInTable().getPartition());
+        assertEquals(40, AggregateService.count(table));
+
+        // rows from several partitions, or a key that belongs in another partition, can't be updated in one batch
+        List<Row> spread = new In(Set.of("event-1", "event-2", "event-3", "event-33"), "eventId").retrieve(table, List.of(), null, null);
+        DavaException exception = assertThrows(DavaException.class, () ->
+            new Update(database, table).addToBatch(spread, spread, true, new Batch())
+        );
+        assertTrue(exception.getMessage().startsWith(PARTITION_ERROR.name()));
+
+        Row moved = found.get(0).copy();
+        String otherKey = IntStream.range(100, 200)
+            .mapToObj(i -> "event-" + i)
+            .filter(key -> !table.getPartitionForPrimaryKey(key).equals(table.getPartitionForPrimaryKey("event-12")))
+            .findFirst().orElseThrow();
+        moved.getColumnsToValues().put("eventId", otherKey);
+        assertThrows(DavaException.class, () ->
+            new Update(database, table).addToBatch(found, List.of(moved), true, new Batch())
+        );
+    }
+
+    @Test
+    void partitions_byPrimaryKeyHash_onlyLookInOnePartition() {
+        Database database = new Database(DB_ROOT, List.of(HashedEvent.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Event");
+        new PartitionedInsert(database).add(table, events(0, 40)).execute(true);
+
+        // every row is in the partition for its key
+        table.getPartitions().forEach( partition ->
+            BaseOperationService.getAllRowsInTablePartitionWithoutIndicies(table, partition).forEach( row ->
+                assertEquals(partition, table.getPartitionForPrimaryKey(row.getValue("eventId")))
+            )
+        );
+        assertEquals(1, table.getPartitionsFor("eventId", "event-12").size());
+        assertEquals(4, table.getPartitionsFor("kind", "kind 0").size());
+
+        List<Row> found = new Equals("eventId", "event-12").retrieve(table, List.of(), null, null);
+        assertEquals(1, found.size());
+        assertEquals(table.getPartitionForPrimaryKey("event-12"), found.get(0).getLocationInTable().getPartition());
+
+        Set<String> ids = Set.of("event-1", "event-2", "event-3", "event-33");
+        assertEquals(4, new In(ids, "eventId").retrieve(table, List.of(), 10, null).size());
+        assertEquals(20, new Equals("kind", "kind 1").retrieve(table, List.of(), null, null).size());
+    }
+
+    @Test
+    void partitions_areAddedWhenFull() {
+        Database database = new Database(DB_ROOT, List.of(SplitEvent.class), List.of(Mode.INDEX_ALL));
+        org.dava.core.database.service.structure.Table<?> table = database.getTableByName("Event");
+
+        for (int i = 0; i < 10; i++)
+            new PartitionedInsert(database).add(table, events(i * 5, i * 5 + 5)).execute(true);
+
+        assertTrue(table.getPartitions().size() > 1);
+        assertEquals(50, AggregateService.count(table));
+        table.getPartitions().stream()
+            .limit(table.getPartitions().size() - 1)
+            .forEach( partition -> assertTrue(fileUtil.fileSize(table.getTablePath(partition)) >= 400) );
+
+        // new rows only go in the partitions that aren't full, so the key is in a different partition
+        DavaException exception = assertThrows(
+            DavaException.class,
+            () -> new PartitionedInsert(database).add(table, events(0, 1)).execute(true)
+        );
+        assertEquals(UNIQUE_CONSTRAINT_VIOLATION, exception.getType());
+        assertEquals(50, AggregateService.count(table));
+    }
+
+
+    private static List<Row> events(int from, int to) {
+        return IntStream.range(from, to)
+            .mapToObj(i -> {
+                Map<String, Object> values = new HashMap<>();
+                values.put("eventId", "event-" + i);
+                values.put("kind", "kind " + (i % 2));
+                return new Row(values, "Event");
+            })
+            .toList();
+    }
+
+}
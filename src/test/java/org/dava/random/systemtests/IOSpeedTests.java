@@ -2,6 +2,8 @@ package org.dava.random.systemtests;
 
 import org.dava.core.common.Timer;
 import org.dava.core.database.service.fileaccess.FileUtil;
+import org.dava.core.database.service.structure.Route;
+import org.dava.core.database.service.structure.RouteBuffer;
 import org.dava.core.database.service.type.compression.TypeToByteUtil;
 import org.junit.jupiter.api.Test;
 
@@ -37,6 +39,9 @@ class IOSpeedTests {
      *    as bytes is 7ms
      *  - reading count file is much faster than list sub files
      *  - reading a file's size is a lot faster than reading the first 8 bytes
+     *  - opening a file is most of the cost of a small read or write, keep channels open (FileChannelPool)
+     *  - reading routes through a memory mapped file avoids a system call per read
+     *  - decoding routes into primitive arrays (RouteBuffer) is much faster than making a Route per entry
      */
 
 
@@ -805,4 +810,132 @@ class IOSpeedTests {
         System.out.println(System.currentTimeMillis() - time);
     }
 
+    @Test
+    void openPerCall_vs_pooledChannels() throws IOException {
+        /*
+            TEST RESULTS (iterations 100000, 10 byte reads and writes on 10 index files):
+                open per call: 100000 opens, 1293
+                pooled channels: 10 opens, 755
+         */
+
+        int ITERATIONS = 100000;
+        int FILES = 10;
+
+        File directory = new File("one_rows");
+        directory.mkdirs();
+        for (int i = 0; i < FILES; i++) {
+            fileUtil.writeBytes("one_rows/pooled_" + i + ".index", 0, new byte[1000]);
+        }
+        byte[] route = new byte[10];
+
+
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            try (RandomAccessFile raf = new RandomAccessFile("one_rows/pooled_" + (i % FILES) + ".index", "rw")) {
+                raf.seek((i % 100) * 10L);
+                if (i % 2 == 0)
+                    raf.read(route);
+                else
+                    raf.write(route);
+            }
+        }
+        System.out.print("open per call: " + ITERATIONS + " opens, ");
+        System.out.println(System.currentTimeMillis() - time);
+
+
+        FileUtil.channelPool.invalidateAll();
+        long opens = FileUtil.channelPool.getOpenCount();
+        time = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            String path = "one_rows/pooled_" + (i % FILES) + ".index";
+            if (i % 2 == 0)
+                fileUtil.readBytes(path, (i % 100) * 10L, 10);
+            else
+                fileUtil.writeBytes(path, (i % 100) * 10L, route);
+        }
+        System.out.print("pooled channels: " + (FileUtil.channelPool.getOpenCount() - opens) + " opens, ");
+        System.out.println(System.currentTimeMillis() - time);
+    }
+
+    @Test
+    void channelReads_vs_mappedReads() throws IOException {
+        /*
+            TEST RESULTS (iterations 100000, 50 byte rows out of 50,000):
+                channel reads: 291
+                mapped reads: 187
+         */
+
+        int ITERATIONS = 100000;
+        int NUM_ROWS = 50000;
+        int ROW_LENGTH = 50;
+
+        File directory = new File("one_rows");
+        directory.mkdirs();
+        fileUtil.writeBytes("one_rows/mapped.csv", 0, new byte[NUM_ROWS * ROW_LENGTH]);
+
+        Random random = new Random(1);
+        List<Long> starts = new ArrayList<>();
+        List<Long> lengths = new ArrayList<>();
+        for (int i = 0; i < ITERATIONS; i++) {
+            starts.add( (long) random.nextInt(NUM_ROWS) * ROW_LENGTH );
+            lengths.add( (long) ROW_LENGTH );
+        }
+
+
+        long time = System.currentTimeMillis();
+        fileUtil.readBytes("one_rows/mapped.csv", starts, lengths);
+        System.out.print("channel reads: ");
+        System.out.println(System.currentTimeMillis() - time);
+
+
+        time = System.currentTimeMillis();
+        fileUtil.readBytesMapped("one_rows/mapped.csv", starts, lengths);
+        System.out.print("mapped reads: ");
+        System.out.println(System.currentTimeMillis() - time);
+    }
+
+    @Test
+    void routeObjects_vs_routeBuffer() {
+        /*
+            TEST RESULTS (iterations 20, 1,000,000 routes):
+                route objects: 2875
+                route buffer: 341
+         */
+
+        int ITERATIONS = 20;
+        int NUM_ROUTES = 1000000;
+
+        byte[] bytes = new byte[NUM_ROUTES * 10];
+        for (int i = 0; i < NUM_ROUTES; i++) {
+            RouteBuffer.encode(i * 50L, 50, bytes, i * 10);
+        }
+
+        // warm up
+        Route.parseBytes(bytes, "Order");
+        RouteBuffer.parse(bytes);
+
+
+        long sum = 0;
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Route route : Route.parseBytes(bytes, "Order")) {
+                sum += route.getOffsetInTable();
+            }
+        }
+        System.out.print("route objects: ");
+        System.out.println(System.currentTimeMillis() - time);
+
+
+        time = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            RouteBuffer routes = RouteBuffer.parse(bytes);
+            for (int j = 0; j < routes.size(); j++) {
+                sum -= routes.getOffset(j);
+            }
+        }
+        System.out.print("route buffer: ");
+        System.out.println(System.currentTimeMillis() - time);
+        System.out.println(sum);
+    }
+
 }